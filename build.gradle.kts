@@ -2,6 +2,8 @@ plugins {
     id("java")
     id("org.springframework.boot") version "3.3.5"
     id("io.spring.dependency-management") version "1.1.6"
+    // Microbenchmarks under src/jmh, run with ./gradlew jmh
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "nl.mallepetrus"
@@ -25,10 +27,15 @@ dependencies {
     implementation("org.springframework.boot:spring-boot-starter-validation")
     implementation("org.springframework.boot:spring-boot-starter-actuator")
     implementation("org.springframework.boot:spring-boot-starter-data-jpa")
+    // Bounded in-memory caches (version managed by Spring Boot)
+    implementation("com.github.ben-manes.caffeine:caffeine")
+    // Argon2 implementation behind Spring Security's Argon2PasswordEncoder
+    implementation("org.bouncycastle:bcprov-jdk18on:1.78.1")
 
     // Nimbus JOSE + JWT is provided via Spring Boot's managed dependencies through spring-security-oauth2-jose
 
-    runtimeOnly("org.postgresql:postgresql:42.7.4")
+    // Compile scope for LISTEN/NOTIFY (PGConnection) in the stream slot ledger
+    implementation("org.postgresql:postgresql:42.7.4")
     implementation("org.flywaydb:flyway-core")
     implementation("org.flywaydb:flyway-database-postgresql")
 
@@ -40,3 +47,7 @@ dependencies {
 tasks.test {
     useJUnitPlatform()
 }
+
+jmh {
+    zip64.set(true) // the benchmark jar bundles the whole runtime classpath
+}
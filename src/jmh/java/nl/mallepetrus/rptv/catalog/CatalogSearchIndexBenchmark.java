@@ -0,0 +1,51 @@
+package nl.mallepetrus.rptv.catalog;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Name search over a live catalog: building the index, as every catalog refresh does, and answering
+ * the mix of prefix, substring and missing queries a channel search box sends. The target is well
+ * under a millisecond per query at 100k entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogSearchIndexBenchmark {
+
+    private static final String[] QUERIES = {"channel 4242", "nl", "uk channel 99", "fhd", "9999", "channel 1", "zzz", "el 12"};
+
+    @Param({"10000", "100000"})
+    int entries;
+
+    private ColumnarCatalog catalog;
+    private CatalogSearchIndex index;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        ColumnarCatalog.Builder builder = ColumnarCatalog.builder(ColumnarCatalog.Kind.LIVE);
+        for (int i = 0; i < entries; i++) {
+            String name = (i % 7 == 0 ? "NL: " : "UK| ") + "Channel " + i + (i % 3 == 0 ? " HD" : " FHD");
+            builder.add(new CatalogDtos.LiveStreamEntry(i + 1, name, i, null, null, 1, 0, 0L));
+        }
+        catalog = builder.build();
+        index = CatalogSearchIndex.build(catalog);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public CatalogSearchIndex build() {
+        return CatalogSearchIndex.build(catalog);
+    }
+
+    @Benchmark
+    public int[] search() {
+        String query = QUERIES[next++ % QUERIES.length];
+        return index.search(query, 50);
+    }
+}
@@ -0,0 +1,98 @@
+package nl.mallepetrus.rptv.catalog;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Columnar catalog against the {@code List<Map<String, Object>>} graph it replaces: building from
+ * a {@code get_live_streams} body, and looking entries up by stream id. Run with {@code -prof gc}
+ * to compare allocation; retained size is asserted by {@code ColumnarCatalogTest}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogStoreBenchmark {
+
+    @Param({"10000", "100000"})
+    int entries;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final XtreamJsonParser parser = new XtreamJsonParser();
+    private byte[] json;
+    private Map<Object, Map<String, Object>> naiveById;
+    private ColumnarCatalog columnar;
+
+    @Setup
+    public void setUp() throws Exception {
+        json = liveStreamsJson(entries);
+        naiveById = index(mapGraph());
+        columnar = columnar();
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> buildMapGraph() throws Exception {
+        return mapGraph();
+    }
+
+    @Benchmark
+    public ColumnarCatalog buildColumnar() {
+        return columnar();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object lookupMapGraph() {
+        Map<String, Object> entry = naiveById.get(ThreadLocalRandom.current().nextInt(entries));
+        return entry.get("name");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object lookupColumnar() {
+        return columnar.name(columnar.indexOf(ThreadLocalRandom.current().nextInt(entries)));
+    }
+
+    private List<Map<String, Object>> mapGraph() throws Exception {
+        return mapper.readValue(json, new TypeReference<>() {});
+    }
+
+    private ColumnarCatalog columnar() {
+        return parser.elements(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(json)), CatalogDtos.LiveStreamEntry.class)
+                .reduceWith(() -> ColumnarCatalog.builder(ColumnarCatalog.Kind.LIVE), ColumnarCatalog.Builder::add)
+                .map(ColumnarCatalog.Builder::build)
+                .block();
+    }
+
+    private static Map<Object, Map<String, Object>> index(List<Map<String, Object>> entries) {
+        Map<Object, Map<String, Object>> byId = new HashMap<>();
+        for (Map<String, Object> e : entries) byId.put(e.get("stream_id"), e);
+        return byId;
+    }
+
+    private static byte[] liveStreamsJson(int entries) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"num\":").append(i + 1)
+                    .append(",\"name\":\"Channel ").append(i).append(" HD\",\"stream_type\":\"live\",\"stream_id\":").append(i)
+                    .append(",\"stream_icon\":\"http://icons.example.org/logos/").append(i % 997).append(".png\"")
+                    .append(",\"epg_channel_id\":\"ch").append(i).append(".example\",\"added\":\"1700000000\",\"is_adult\":\"0\"")
+                    .append(",\"category_id\":\"").append(i % 40).append("\",\"category_ids\":[").append(i % 40).append(']')
+                    .append(",\"custom_sid\":\"\",\"tv_archive\":0,\"direct_source\":\"\",\"tv_archive_duration\":0}");
+        }
+        return sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,135 @@
+package nl.mallepetrus.rptv.crypto;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credential encryption as done per account load: the previous implementation (a new {@link Cipher}
+ * and a shared {@link SecureRandom} per call) against {@link AesGcmCryptoService}. Run with
+ * {@code -prof gc} for bytes allocated per operation and with {@code -t 8} to see IV contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AesGcmBenchmark {
+
+    @Param({"16", "1024"})
+    int size;
+
+    private AesGcmCryptoService crypto;
+    private Legacy legacy;
+    private String plain;
+    private String sealed;
+    private byte[] envelope;
+
+    @Setup
+    public void setUp() {
+        String key = AesGcmCryptoService.generateRandomKeyB64();
+        crypto = new AesGcmCryptoService(key, 1);
+        legacy = new Legacy(key);
+        plain = "p".repeat(size);
+        sealed = crypto.encrypt(plain);
+        envelope = Base64.getDecoder().decode(sealed);
+    }
+
+    /** Output buffers for the ByteBuffer API, one set per benchmark thread. */
+    @State(Scope.Thread)
+    public static class Buffers {
+        ByteBuffer in;
+        ByteBuffer out;
+
+        @Setup
+        public void setUp(AesGcmBenchmark bench) {
+            in = ByteBuffer.wrap(bench.plain.getBytes(StandardCharsets.UTF_8));
+            out = ByteBuffer.allocate(bench.crypto.encryptedLength(in.capacity()));
+        }
+    }
+
+    @Benchmark
+    public String legacyEncrypt() {
+        return legacy.encrypt(plain);
+    }
+
+    @Benchmark
+    public String legacyDecrypt() {
+        return legacy.decrypt(sealed);
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return crypto.encrypt(plain);
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return crypto.decrypt(sealed);
+    }
+
+    @Benchmark
+    public int encryptBuffer(Buffers buffers) {
+        buffers.in.rewind();
+        buffers.out.clear();
+        return crypto.encrypt(buffers.in, buffers.out);
+    }
+
+    @Benchmark
+    public int decryptBuffer(Buffers buffers) {
+        buffers.out.clear();
+        return crypto.decrypt(ByteBuffer.wrap(envelope), buffers.out);
+    }
+
+    /** The implementation this class replaced, kept verbatim as the baseline. */
+    static final class Legacy {
+        private final SecretKey key;
+        private final SecureRandom secureRandom = new SecureRandom();
+
+        Legacy(String b64Key) {
+            this.key = new SecretKeySpec(Base64.getDecoder().decode(b64Key), "AES");
+        }
+
+        String encrypt(String plainText) {
+            try {
+                byte[] iv = new byte[12];
+                secureRandom.nextBytes(iv);
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+                byte[] cipherBytes = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
+                ByteBuffer bb = ByteBuffer.allocate(1 + iv.length + cipherBytes.length);
+                bb.put((byte) 1);
+                bb.put(iv);
+                bb.put(cipherBytes);
+                return Base64.getEncoder().encodeToString(bb.array());
+            } catch (Exception e) {
+                throw new IllegalStateException("Encryption failed", e);
+            }
+        }
+
+        String decrypt(String cipherText) {
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(Base64.getDecoder().decode(cipherText));
+                bb.get();
+                byte[] iv = new byte[12];
+                bb.get(iv);
+                byte[] cipherBytes = new byte[bb.remaining()];
+                bb.get(cipherBytes);
+                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+                return new String(cipher.doFinal(cipherBytes), StandardCharsets.UTF_8);
+            } catch (Exception e) {
+                throw new IllegalStateException("Decryption failed", e);
+            }
+        }
+    }
+}
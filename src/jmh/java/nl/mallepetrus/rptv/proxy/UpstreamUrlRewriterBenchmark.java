@@ -0,0 +1,112 @@
+package nl.mallepetrus.rptv.proxy;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewriting a 50 MB {@code get_live_streams}-style body delivered in 16 KB buffers, as the
+ * streaming transform against joining the body and replacing in a {@code String}. Run with
+ * {@code -prof gc} to compare allocation; the streaming variants stay at one buffer per chunk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpstreamUrlRewriterBenchmark {
+    private static final int PAYLOAD_BYTES = 50 * 1024 * 1024;
+    private static final int CHUNK = 16 * 1024;
+    private static final XtreamUpstream UPSTREAM = new XtreamUpstream("http://prov.example:8080", "bob", "s3cret");
+
+    private final UpstreamUrlRewriter rewriter = UpstreamUrlRewriter.of(UPSTREAM, "https://rptv.example",
+            List.of("/live/", "/movie/", "/series/", "/player_api.php"), "me", "pw");
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        StringBuilder json = new StringBuilder(PAYLOAD_BYTES + 1024).append('[');
+        for (int id = 1; json.length() < PAYLOAD_BYTES; id++) {
+            if (id > 1) json.append(',');
+            json.append("{\"num\":").append(id).append(",\"name\":\"Channel ").append(id)
+                    .append("\",\"stream_type\":\"live\",\"stream_id\":").append(id)
+                    .append(",\"stream_icon\":\"http:\\/\\/prov.example:8080\\/images\\/").append(id).append(".png\"")
+                    .append(",\"epg_channel_id\":\"ch").append(id).append(".nl\",\"added\":\"1700000000\",\"category_id\":\"5\"")
+                    .append(",\"direct_source\":\"http:\\/\\/prov.example:8080\\/live\\/bob\\/s3cret\\/").append(id).append(".ts\"}");
+        }
+        payload = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Time to the first rewritten buffer: independent of the body size. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int firstBufferFlux() {
+        DataBuffer first = rewriter.rewrite(chunks()).blockFirst();
+        int size = first.readableByteCount();
+        DataBufferUtils.release(first);
+        return size;
+    }
+
+    @Benchmark
+    public long streamingFlux() {
+        return rewriter.rewrite(chunks())
+                .map(buffer -> {
+                    int size = buffer.readableByteCount();
+                    DataBufferUtils.release(buffer);
+                    return (long) size;
+                })
+                .reduce(0L, Long::sum)
+                .block();
+    }
+
+    @Benchmark
+    public long streamingOutputStream() throws Exception {
+        Counting out = new Counting();
+        UpstreamUrlRewriter.RewritingOutputStream rewritten = rewriter.rewrite(out);
+        for (int off = 0; off < payload.length; off += CHUNK) {
+            rewritten.write(payload, off, Math.min(CHUNK, payload.length - off));
+        }
+        rewritten.finish();
+        return out.count;
+    }
+
+    /** The buffered approach it replaces: join, decode, replace, encode. */
+    @Benchmark
+    public long bufferedStringReplace() {
+        DataBuffer joined = DataBufferUtils.join(chunks()).block();
+        String body = joined.toString(StandardCharsets.UTF_8);
+        String rewritten = body
+                .replace("http:\\/\\/prov.example:8080\\/live\\/", "https:\\/\\/rptv.example\\/live\\/")
+                .replace("\\/bob\\/s3cret\\/", "\\/me\\/pw\\/");
+        return rewritten.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private Flux<DataBuffer> chunks() {
+        return Flux.range(0, (payload.length + CHUNK - 1) / CHUNK)
+                .map(i -> DefaultDataBufferFactory.sharedInstance.wrap(
+                        ByteBuffer.wrap(payload, i * CHUNK, Math.min(CHUNK, payload.length - i * CHUNK))));
+    }
+
+    private static final class Counting extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
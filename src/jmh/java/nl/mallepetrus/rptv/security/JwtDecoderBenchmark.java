@@ -0,0 +1,74 @@
+package nl.mallepetrus.rptv.security;
+
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.oauth2.jose.jws.SignatureAlgorithm;
+import org.springframework.security.oauth2.jwt.*;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bearer token decoding as done for every authenticated request: full RS256 verification against
+ * the {@link CachingJwtDecoder} hit path, with one token and with a pool of viewers' tokens.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtDecoderBenchmark {
+
+    @Param({"1", "1000"})
+    int viewers;
+
+    private String[] tokens;
+    private JwtDecoder nimbus;
+    private JwtDecoder cached;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair keys = kpg.generateKeyPair();
+        RSAKey jwk = new RSAKey.Builder((RSAPublicKey) keys.getPublic()).privateKey((RSAPrivateKey) keys.getPrivate()).build();
+        JwtEncoder encoder = new NimbusJwtEncoder((selector, ctx) -> selector.select(new JWKSet(jwk)));
+        tokens = new String[viewers];
+        for (int i = 0; i < viewers; i++) {
+            JwtClaimsSet claims = JwtClaimsSet.builder()
+                    .issuer("rptv")
+                    .subject("user-" + i)
+                    .issuedAt(Instant.now())
+                    .expiresAt(Instant.now().plusSeconds(3600))
+                    .claim("roles", "USER")
+                    .build();
+            tokens[i] = encoder.encode(JwtEncoderParameters.from(JwsHeader.with(SignatureAlgorithm.RS256).build(), claims))
+                    .getTokenValue();
+        }
+        nimbus = NimbusJwtDecoder.withPublicKey((RSAPublicKey) keys.getPublic()).build();
+        cached = new CachingJwtDecoder(nimbus, 10_000, new SimpleMeterRegistry());
+        for (String token : tokens) cached.decode(token);
+    }
+
+    @Benchmark
+    public Jwt verifyEveryTime() {
+        return nimbus.decode(next());
+    }
+
+    @Benchmark
+    public Jwt cachedDecoder() {
+        return cached.decode(next());
+    }
+
+    private String next() {
+        return tokens[viewers == 1 ? 0 : ThreadLocalRandom.current().nextInt(viewers)];
+    }
+}
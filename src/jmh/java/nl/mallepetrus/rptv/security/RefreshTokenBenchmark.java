@@ -0,0 +1,56 @@
+package nl.mallepetrus.rptv.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hashing work of one {@code /api/auth/refresh}: verify the presented token and hash its
+ * replacement, with the Argon2 encoder previously used and with {@link HmacRefreshTokenVerifier}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RefreshTokenBenchmark {
+
+    private String token;
+    private PasswordEncoder argon2;
+    private String argon2Hash;
+    private HmacRefreshTokenVerifier hmac;
+    private String hmacHash;
+
+    @Setup
+    public void setUp() {
+        SecureRandom random = new SecureRandom();
+        byte[] raw = new byte[32];
+        random.nextBytes(raw);
+        token = "AAAAAAAAAAAAAAAA." + Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+        argon2 = Argon2PasswordEncoder.defaultsForSpringSecurity_v5_8();
+        argon2Hash = argon2.encode(token);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        hmac = new HmacRefreshTokenVerifier(key, new PasswordHashingExecutor(argon2, new AppProps.AuthProps(), new SimpleMeterRegistry()));
+        hmacHash = hmac.hash(token);
+    }
+
+    @Benchmark
+    public String argon2Refresh() {
+        if (!argon2.matches(token, argon2Hash)) throw new IllegalStateException();
+        return argon2.encode(token);
+    }
+
+    @Benchmark
+    public String hmacRefresh() {
+        if (!hmac.matches(token, hmacHash)) throw new IllegalStateException();
+        return hmac.hash(token);
+    }
+}
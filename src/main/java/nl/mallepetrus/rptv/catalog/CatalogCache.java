@@ -0,0 +1,213 @@
+package nl.mallepetrus.rptv.catalog;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.proxy.UpstreamSingleFlight;
+import nl.mallepetrus.rptv.proxy.UpstreamUrlRewriter;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-account cache of heavy {@code player_api.php} responses, kept as the raw upstream bytes.
+ * <p>
+ * An entry is fresh for its action's ttl; after that it is still served (stale-while-revalidate)
+ * while exactly one background refresh replaces it, until {@code staleWindow} has also passed.
+ * Concurrent misses for the same key share one upstream request. The cache is bounded by the
+ * total number of cached bytes.
+ */
+@Service
+public class CatalogCache {
+    private static final Logger log = LoggerFactory.getLogger(CatalogCache.class);
+
+    record CatalogKey(UUID accountId, String action, String args) {}
+
+    public static final class CachedResponse {
+        private final byte[] body;
+        private final String contentType;
+        private final long fetchedAtNanos;
+        private final long ttlNanos;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CachedResponse(byte[] body, String contentType, Duration ttl) {
+            this.body = body;
+            this.contentType = contentType;
+            this.fetchedAtNanos = System.nanoTime();
+            this.ttlNanos = ttl.toNanos();
+        }
+
+        public byte[] body() { return body; }
+        /** The body for one client, passed through {@code rewriter} as it is written. */
+        public StreamingResponseBody writeTo(UpstreamUrlRewriter rewriter) {
+            return out -> {
+                UpstreamUrlRewriter.RewritingOutputStream rewritten = rewriter.rewrite(out);
+                rewritten.write(body);
+                rewritten.finish();
+            };
+        }
+        public String contentType() { return contentType; }
+        boolean isStale() { return System.nanoTime() - fetchedAtNanos > ttlNanos; }
+    }
+
+    public record Lookup(CachedResponse response, String cacheStatus) {}
+
+    private final WebClient webClient;
+    private final UpstreamSingleFlight singleFlight;
+    private final AppProps.CatalogProps props;
+    private final AsyncCache<CatalogKey, CachedResponse> cache;
+    private final Counter staleServed;
+    private final Counter refreshFailures;
+
+    public CatalogCache(WebClient webClient, UpstreamSingleFlight singleFlight, AppProps.CatalogProps props,
+                        MeterRegistry meterRegistry) {
+        this.webClient = webClient;
+        this.singleFlight = singleFlight;
+        this.props = props;
+        long staleNanos = props.getStaleWindow().toNanos();
+        this.cache = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumWeight(props.getMaxBytes())
+                .<CatalogKey, CachedResponse>weigher((k, v) -> v.body.length)
+                .expireAfter(new Expiry<CatalogKey, CachedResponse>() {
+                    @Override
+                    public long expireAfterCreate(CatalogKey key, CachedResponse value, long currentTime) {
+                        return value.ttlNanos + staleNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(CatalogKey key, CachedResponse value, long currentTime, long currentDuration) {
+                        return value.ttlNanos + staleNanos;
+                    }
+
+                    @Override
+                    public long expireAfterRead(CatalogKey key, CachedResponse value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .buildAsync(), "rptv.catalog");
+        this.staleServed = Counter.builder("rptv.catalog.stale")
+                .description("Stale catalog responses served while refreshing").register(meterRegistry);
+        this.refreshFailures = Counter.builder("rptv.catalog.refresh.failures")
+                .description("Background catalog refreshes that failed").register(meterRegistry);
+    }
+
+    public boolean isCached(String action) {
+        return action != null && props.getTtl().containsKey(action);
+    }
+
+    /** Returns the cached response for a cacheable action, loading it on a miss. */
+    public CompletableFuture<Lookup> get(UUID accountId, XtreamUpstream upstream, MultiValueMap<String, String> params) {
+        String action = params.getFirst("action");
+        Duration ttl = props.getTtl().get(action);
+        CatalogKey key = new CatalogKey(accountId, action, canonicalArgs(params));
+        boolean[] loaded = new boolean[1];
+        CompletableFuture<CachedResponse> entry = cache.get(key, (k, executor) -> {
+            loaded[0] = true;
+            return fetch(upstream, params, ttl).toFuture();
+        });
+        return entry.thenApply(response -> {
+                    if (loaded[0]) return new Lookup(response, "MISS");
+                    if (!response.isStale()) return new Lookup(response, "HIT");
+                    staleServed.increment();
+                    refreshInBackground(key, entry, response, upstream, params, ttl);
+                    return new Lookup(response, "STALE");
+                });
+    }
+
+    /**
+     * Drops the account's responses now and, inside a transaction, once more after it completes, so a
+     * request or refresh that read the old account meanwhile cannot leave its response cached.
+     */
+    public void invalidateAccount(UUID accountId) {
+        drop(accountId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    drop(accountId);
+                }
+            });
+        }
+    }
+
+    private void drop(UUID accountId) {
+        cache.synchronous().asMap().keySet().removeIf(k -> k.accountId().equals(accountId));
+    }
+
+    /**
+     * Replaces {@code entry} with a fresh response, unless it left the cache meanwhile: an account
+     * invalidated during the fetch must not get the old provider's response back.
+     */
+    private void refreshInBackground(CatalogKey key, CompletableFuture<CachedResponse> entry, CachedResponse current,
+                                     XtreamUpstream upstream, MultiValueMap<String, String> params, Duration ttl) {
+        if (!current.refreshing.compareAndSet(false, true)) return;
+        fetch(upstream, params, ttl).subscribe(
+                fresh -> {
+                    if (!cache.asMap().replace(key, entry, CompletableFuture.completedFuture(fresh))) {
+                        log.debug("Catalog refresh for {} dropped, the entry was replaced or invalidated", key);
+                    }
+                },
+                err -> {
+                    refreshFailures.increment();
+                    log.debug("Catalog refresh for {} failed: {}", key, err.toString());
+                    current.refreshing.set(false);
+                });
+    }
+
+    private Mono<CachedResponse> fetch(XtreamUpstream upstream, MultiValueMap<String, String> params, Duration ttl) {
+        // keyed by the upstream URI, so accounts pointing at the same provider login share the call too
+        URI uri = upstream.playerApiUri(params);
+        return singleFlight.execute("catalog", uri, () -> webClient.get().uri(uri)
+                .exchangeToMono(resp -> {
+                    if (!resp.statusCode().is2xxSuccessful()) {
+                        return resp.releaseBody().then(Mono.error(
+                                new ResponseStatusException(resp.statusCode(), "Upstream catalog request failed")));
+                    }
+                    String contentType = resp.headers().contentType()
+                            .map(MediaType::toString).orElse(MediaType.APPLICATION_JSON_VALUE);
+                    return DataBufferUtils.join(resp.bodyToFlux(DataBuffer.class), props.getMaxResponseBytes())
+                            .map(joined -> {
+                                byte[] body = new byte[joined.readableByteCount()];
+                                joined.read(body);
+                                DataBufferUtils.release(joined);
+                                return new CachedResponse(body, contentType, ttl);
+                            })
+                            .switchIfEmpty(Mono.fromSupplier(() -> new CachedResponse(new byte[0], contentType, ttl)));
+                }));
+    }
+
+    /** Request parameters other than credentials and action, in a stable order. */
+    private static String canonicalArgs(MultiValueMap<String, String> params) {
+        Map<String, List<String>> sorted = new TreeMap<>(params);
+        sorted.remove("username");
+        sorted.remove("password");
+        sorted.remove("action");
+        return new LinkedMultiValueMap<>(sorted).toString();
+    }
+}
@@ -0,0 +1,72 @@
+package nl.mallepetrus.rptv.catalog;
+
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.stereotype.Service;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Typed, streaming access to an upstream Xtream catalog. Records are decoded while the body is
+ * still arriving, so a large {@code get_live_streams} never exists in memory as a whole.
+ */
+@Service
+public class CatalogClient {
+    private final WebClient webClient;
+    private final XtreamJsonParser parser;
+
+    public CatalogClient(WebClient webClient, XtreamJsonParser parser) {
+        this.webClient = webClient;
+        this.parser = parser;
+    }
+
+    public Flux<CatalogDtos.CategoryEntry> liveCategories(XtreamUpstream upstream) {
+        return elements(upstream, "get_live_categories", CatalogDtos.CategoryEntry.class);
+    }
+
+    public Flux<CatalogDtos.LiveStreamEntry> liveStreams(XtreamUpstream upstream) {
+        return elements(upstream, "get_live_streams", CatalogDtos.LiveStreamEntry.class);
+    }
+
+    public Flux<CatalogDtos.CategoryEntry> vodCategories(XtreamUpstream upstream) {
+        return elements(upstream, "get_vod_categories", CatalogDtos.CategoryEntry.class);
+    }
+
+    public Flux<CatalogDtos.VodStreamEntry> vodStreams(XtreamUpstream upstream) {
+        return elements(upstream, "get_vod_streams", CatalogDtos.VodStreamEntry.class);
+    }
+
+    public Flux<CatalogDtos.CategoryEntry> seriesCategories(XtreamUpstream upstream) {
+        return elements(upstream, "get_series_categories", CatalogDtos.CategoryEntry.class);
+    }
+
+    public Flux<CatalogDtos.SeriesEntry> series(XtreamUpstream upstream) {
+        return elements(upstream, "get_series", CatalogDtos.SeriesEntry.class);
+    }
+
+    public Mono<CatalogDtos.AccountInfo> accountInfo(XtreamUpstream upstream) {
+        return body(upstream, new LinkedMultiValueMap<>())
+                .as(body -> parser.document(body, CatalogDtos.AccountInfo.class));
+    }
+
+    private <T> Flux<T> elements(XtreamUpstream upstream, String action, Class<T> type) {
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("action", action);
+        return parser.elements(body(upstream, params), type);
+    }
+
+    private Flux<DataBuffer> body(XtreamUpstream upstream, MultiValueMap<String, String> params) {
+        return webClient.get().uri(upstream.playerApiUri(params))
+                .exchangeToFlux(resp -> {
+                    if (!resp.statusCode().is2xxSuccessful()) {
+                        return resp.releaseBody().thenMany(Flux.error(
+                                new ResponseStatusException(resp.statusCode(), "Upstream catalog request failed")));
+                    }
+                    return resp.bodyToFlux(DataBuffer.class);
+                });
+    }
+}
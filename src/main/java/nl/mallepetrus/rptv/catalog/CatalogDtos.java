@@ -0,0 +1,89 @@
+package nl.mallepetrus.rptv.catalog;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * Compact typed views of Xtream {@code player_api.php} payloads. Only the fields the proxy uses
+ * are kept; numeric values that providers send as strings are coerced by the parser.
+ */
+public class CatalogDtos {
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record CategoryEntry(
+            @JsonProperty("category_id") int categoryId,
+            @JsonProperty("category_name") String name,
+            @JsonProperty("parent_id") int parentId
+    ) {}
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record LiveStreamEntry(
+            int num,
+            String name,
+            @JsonProperty("stream_id") int streamId,
+            @JsonProperty("stream_icon") String icon,
+            @JsonProperty("epg_channel_id") String epgChannelId,
+            @JsonProperty("category_id") int categoryId,
+            @JsonProperty("tv_archive") int tvArchive,
+            long added
+    ) {}
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record VodStreamEntry(
+            int num,
+            String name,
+            @JsonProperty("stream_id") int streamId,
+            @JsonProperty("stream_icon") String icon,
+            @JsonProperty("category_id") int categoryId,
+            @JsonProperty("container_extension") String containerExtension,
+            String rating,
+            long added
+    ) {}
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record SeriesEntry(
+            int num,
+            String name,
+            @JsonProperty("series_id") int seriesId,
+            String cover,
+            @JsonProperty("category_id") int categoryId,
+            String genre,
+            String rating,
+            @JsonProperty("last_modified") long lastModified
+    ) {}
+
+    /** The account block returned by {@code player_api.php} without an action; credentials are not kept. */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record AccountInfo(
+            @JsonProperty("user_info") UserInfo userInfo,
+            @JsonProperty("server_info") ServerInfo serverInfo
+    ) {}
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record UserInfo(
+            int auth,
+            String status,
+            String message,
+            @JsonProperty("exp_date") String expDate,
+            @JsonProperty("is_trial") int isTrial,
+            @JsonProperty("active_cons") int activeConnections,
+            @JsonProperty("max_connections") int maxConnections,
+            @JsonProperty("allowed_output_formats") List<String> allowedOutputFormats
+    ) {}
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public record ServerInfo(
+            String url,
+            String port,
+            @JsonProperty("https_port") String httpsPort,
+            @JsonProperty("server_protocol") String serverProtocol,
+            String timezone,
+            @JsonProperty("timestamp_now") long timestampNow
+    ) {}
+
+    public record SearchHit(String type, int id, String name, String icon, int categoryId) {}
+
+    public record SearchResult(String query, List<SearchHit> hits) {}
+}
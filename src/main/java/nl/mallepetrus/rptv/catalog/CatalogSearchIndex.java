@@ -0,0 +1,195 @@
+package nl.mallepetrus.rptv.catalog;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Name search over one {@link ColumnarCatalog}: prefix matches through the rows sorted by
+ * normalized name, substring matches through a trigram index whose candidates are verified against
+ * the normalized name. Names are normalized by stripping accents, lower-casing and collapsing
+ * punctuation to single spaces, so "Één HD" is found by "een h".
+ * <p>
+ * Immutable once built, and built whole for every catalog refresh: normalizing and trigramming is
+ * linear in the catalog, and ordering rows by name and trigrams by key sorts primitive arrays. A
+ * prefix query costs a binary search plus the rows it returns; a substring query walks the shortest
+ * posting list of its trigrams, which for common trigrams can be a large part of the catalog.
+ */
+public final class CatalogSearchIndex {
+
+    private final String[] normalized;
+    private final int[] byName; // rows ordered by normalized name
+    private final long[] trigrams; // sorted
+    private final int[][] postings; // rows containing trigrams[i], ascending
+
+    private CatalogSearchIndex(String[] normalized, int[] byName, long[] trigrams, int[][] postings) {
+        this.normalized = normalized;
+        this.byName = byName;
+        this.trigrams = trigrams;
+        this.postings = postings;
+    }
+
+    public static CatalogSearchIndex build(ColumnarCatalog catalog) {
+        int size = catalog.size();
+        String[] normalized = new String[size];
+        for (int row = 0; row < size; row++) {
+            normalized[row] = normalize(catalog.name(row));
+        }
+        int[] byName = new int[size];
+        for (int row = 0; row < size; row++) byName[row] = row;
+        // stable, so rows with equal names stay in catalog order
+        mergeSort(byName, new int[size], 0, size, (a, b) -> normalized[a].compareTo(normalized[b]));
+
+        // two passes: count rows per trigram, then fill exactly sized posting lists in row order
+        Map<Long, Integer> ids = new HashMap<>();
+        List<int[]> perRow = new ArrayList<>(size);
+        long[] keys = new long[64];
+        int[] counts = new int[64];
+        for (int row = 0; row < size; row++) {
+            String s = normalized[row];
+            int[] rowIds = new int[Math.max(0, s.length() - 2)];
+            for (int i = 0; i < rowIds.length; i++) {
+                long key = trigram(s, i);
+                Integer id = ids.get(key);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(key, id);
+                    if (id == counts.length) {
+                        counts = Arrays.copyOf(counts, id * 2);
+                        keys = Arrays.copyOf(keys, id * 2);
+                    }
+                    keys[id] = key;
+                }
+                rowIds[i] = id;
+            }
+            Arrays.sort(rowIds);
+            int distinct = 0;
+            for (int i = 0; i < rowIds.length; i++) {
+                if (i == 0 || rowIds[i] != rowIds[i - 1]) {
+                    rowIds[distinct++] = rowIds[i];
+                    counts[rowIds[i]]++;
+                }
+            }
+            perRow.add(Arrays.copyOf(rowIds, distinct));
+        }
+
+        // trigrams are distinct, so each id finds its slot by binary search in the sorted keys
+        int distinct = ids.size();
+        long[] trigrams = Arrays.copyOf(keys, distinct);
+        Arrays.sort(trigrams);
+        int[] slotOf = new int[distinct];
+        int[][] postings = new int[distinct][];
+        for (int id = 0; id < distinct; id++) {
+            int slot = Arrays.binarySearch(trigrams, keys[id]);
+            slotOf[id] = slot;
+            postings[slot] = new int[counts[id]];
+        }
+        int[] fill = new int[distinct];
+        for (int row = 0; row < size; row++) {
+            for (int id : perRow.get(row)) {
+                int slot = slotOf[id];
+                postings[slot][fill[slot]++] = row;
+            }
+        }
+        return new CatalogSearchIndex(normalized, byName, trigrams, postings);
+    }
+
+    /**
+     * Rows whose name matches {@code query}, at most {@code limit}: names starting with the query
+     * first (alphabetically), then other names containing it (in catalog order). Substring matches
+     * need at least three characters; shorter queries match prefixes only.
+     */
+    public int[] search(String query, int limit) {
+        String q = normalize(query);
+        if (q.isEmpty() || limit <= 0) return new int[0];
+        int[] hits = new int[limit];
+        int found = 0;
+
+        int from = lowerBound(q);
+        for (int i = from; i < byName.length && found < limit && normalized[byName[i]].startsWith(q); i++) {
+            hits[found++] = byName[i];
+        }
+        if (found == limit || q.length() < 3) return Arrays.copyOf(hits, found);
+
+        int[][] lists = new int[q.length() - 2][];
+        for (int i = 0; i < lists.length; i++) {
+            int slot = Arrays.binarySearch(trigrams, trigram(q, i));
+            if (slot < 0) return Arrays.copyOf(hits, found);
+            lists[i] = postings[slot];
+        }
+        Arrays.sort(lists, Comparator.comparingInt(l -> l.length));
+        candidates:
+        for (int row : lists[0]) {
+            for (int i = 1; i < lists.length; i++) {
+                if (Arrays.binarySearch(lists[i], row) < 0) continue candidates;
+            }
+            String name = normalized[row];
+            if (name.startsWith(q) || !name.contains(q)) continue;
+            hits[found++] = row;
+            if (found == limit) break;
+        }
+        return Arrays.copyOf(hits, found);
+    }
+
+    /** Sorts {@code rows[from, to)} without boxing; {@code scratch} is at least as long as {@code rows}. */
+    private static void mergeSort(int[] rows, int[] scratch, int from, int to, IntBinaryOperator order) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                int row = rows[i];
+                int j = i;
+                for (; j > from && order.applyAsInt(rows[j - 1], row) > 0; j--) rows[j] = rows[j - 1];
+                rows[j] = row;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(rows, scratch, from, mid, order);
+        mergeSort(rows, scratch, mid, to, order);
+        if (order.applyAsInt(rows[mid - 1], rows[mid]) <= 0) return; // already in order
+        System.arraycopy(rows, from, scratch, from, to - from);
+        for (int i = from, a = from, b = mid; i < to; i++) {
+            rows[i] = b == to || (a < mid && order.applyAsInt(scratch[a], scratch[b]) <= 0) ? scratch[a++] : scratch[b++];
+        }
+    }
+
+    private int lowerBound(String q) {
+        int lo = 0, hi = byName.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (normalized[byName[mid]].compareTo(q) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static long trigram(String s, int at) {
+        return ((long) s.charAt(at) << 32) | ((long) s.charAt(at + 1) << 16) | s.charAt(at + 2);
+    }
+
+    static String normalize(String s) {
+        if (s == null) return "";
+        boolean ascii = true;
+        for (int i = 0; i < s.length() && ascii; i++) ascii = s.charAt(i) < 128;
+        if (!ascii) s = Normalizer.normalize(s, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = true;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            } else if (!space && Character.getType(c) != Character.NON_SPACING_MARK) {
+                sb.append(' ');
+                space = true;
+            }
+        }
+        int len = sb.length();
+        if (len > 0 && sb.charAt(len - 1) == ' ') sb.setLength(len - 1);
+        return sb.toString();
+    }
+}
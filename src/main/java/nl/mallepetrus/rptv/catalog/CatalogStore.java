@@ -0,0 +1,166 @@
+package nl.mallepetrus.rptv.catalog;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Decoded stream catalogs per account, held as {@link ColumnarCatalog}s rather than object graphs.
+ * Catalogs are decoded from the response bytes {@link CatalogCache} already holds for the same
+ * action, so the provider is asked once for both forms; only an action that is not cached there is
+ * streamed from upstream straight into the columnar builder. Catalogs expire after their action's
+ * ttl and are bounded by their estimated retained size. Category names are loaded alongside; a
+ * catalog whose categories cannot be fetched is kept without them.
+ * <p>
+ * Building the columns, and indexing and searching them, take time in the size of the catalog, so
+ * they run on a small pool of their own rather than on the event loop the catalog arrived on.
+ */
+@Service
+public class CatalogStore {
+    private static final Logger log = LoggerFactory.getLogger(CatalogStore.class);
+
+    record StoreKey(UUID accountId, ColumnarCatalog.Kind kind) {}
+
+    private final CatalogClient client;
+    private final CatalogCache catalogCache;
+    private final XtreamJsonParser parser;
+    private final AppProps.CatalogProps props;
+    private final AsyncCache<StoreKey, ColumnarCatalog> cache;
+    private final Executor executor;
+    private final Scheduler scheduler;
+
+    public CatalogStore(CatalogClient client, CatalogCache catalogCache, XtreamJsonParser parser,
+                        AppProps.CatalogProps props, MeterRegistry meterRegistry) {
+        this.client = client;
+        this.catalogCache = catalogCache;
+        this.parser = parser;
+        this.props = props;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, props.getIndexThreads()), r -> {
+            Thread t = new Thread(r, "rptv-catalog-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler = Schedulers.fromExecutor(executor);
+        this.cache = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumWeight(props.getStoreMaxBytes())
+                .<StoreKey, ColumnarCatalog>weigher((k, v) -> (int) Math.min(Integer.MAX_VALUE, v.estimatedBytes()))
+                .expireAfter(new Expiry<StoreKey, ColumnarCatalog>() {
+                    @Override
+                    public long expireAfterCreate(StoreKey key, ColumnarCatalog value, long currentTime) {
+                        return ttl(key.kind()).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(StoreKey key, ColumnarCatalog value, long currentTime, long currentDuration) {
+                        return ttl(key.kind()).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterRead(StoreKey key, ColumnarCatalog value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .buildAsync(), "rptv.catalog.store");
+    }
+
+    /** Returns the account's catalog of the given kind, loading it on a miss; concurrent misses share the load. */
+    public CompletableFuture<ColumnarCatalog> get(UUID accountId, XtreamUpstream upstream, ColumnarCatalog.Kind kind) {
+        return cache.get(new StoreKey(accountId, kind), (k, ignored) -> load(accountId, upstream, kind).toFuture());
+    }
+
+    /** The pool for work over a whole catalog, such as {@link ColumnarCatalog#searchIndex()}. */
+    public Executor executor() {
+        return executor;
+    }
+
+    /** Drops the account's catalogs now and, inside a transaction, once more after it completes; see {@link CatalogCache#invalidateAccount}. */
+    public void invalidateAccount(UUID accountId) {
+        drop(accountId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    drop(accountId);
+                }
+            });
+        }
+    }
+
+    private void drop(UUID accountId) {
+        cache.synchronous().asMap().keySet().removeIf(k -> k.accountId().equals(accountId));
+    }
+
+    private Mono<ColumnarCatalog> load(UUID accountId, XtreamUpstream upstream, ColumnarCatalog.Kind kind) {
+        Supplier<ColumnarCatalog.Builder> builder = () -> ColumnarCatalog.builder(kind);
+        Mono<ColumnarCatalog.Builder> filled = switch (kind) {
+            case LIVE -> elements(accountId, upstream, kind.action(), CatalogDtos.LiveStreamEntry.class,
+                    client.liveStreams(upstream)).reduceWith(builder, ColumnarCatalog.Builder::add);
+            case VOD -> elements(accountId, upstream, kind.action(), CatalogDtos.VodStreamEntry.class,
+                    client.vodStreams(upstream)).reduceWith(builder, ColumnarCatalog.Builder::add);
+            case SERIES -> elements(accountId, upstream, kind.action(), CatalogDtos.SeriesEntry.class,
+                    client.series(upstream)).reduceWith(builder, ColumnarCatalog.Builder::add);
+        };
+        Mono<List<CatalogDtos.CategoryEntry>> categories = elements(accountId, upstream, kind.categoriesAction(),
+                CatalogDtos.CategoryEntry.class, switch (kind) {
+                    case LIVE -> client.liveCategories(upstream);
+                    case VOD -> client.vodCategories(upstream);
+                    case SERIES -> client.seriesCategories(upstream);
+                }).collectList().onErrorResume(e -> {
+            log.warn("Loading {} for {} failed, catalog kept without category names: {}",
+                    kind.categoriesAction(), upstream, e.toString());
+            return Mono.just(List.of());
+        });
+        return Mono.zip(filled, categories)
+                .publishOn(scheduler)
+                .map(loaded -> {
+                    loaded.getT2().forEach(loaded.getT1()::category);
+                    return loaded.getT1().build();
+                });
+    }
+
+    /**
+     * The elements of {@code action}'s response, decoded on the store's pool from the bytes
+     * {@link CatalogCache} holds (loading them there on a miss); {@code uncached} when the cache
+     * does not keep that action. {@code uncached} is lazy, so it costs nothing unless subscribed.
+     */
+    private <T> Flux<T> elements(UUID accountId, XtreamUpstream upstream, String action, Class<T> type, Flux<T> uncached) {
+        if (!catalogCache.isCached(action)) return uncached;
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("action", action);
+        return Mono.fromFuture(() -> catalogCache.get(accountId, upstream, params))
+                .publishOn(scheduler)
+                .flatMapMany(lookup -> parser.elements(
+                        Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(lookup.response().body())), type));
+    }
+
+    private Duration ttl(ColumnarCatalog.Kind kind) {
+        return props.getTtl().getOrDefault(kind.action(), Duration.ofHours(1));
+    }
+}
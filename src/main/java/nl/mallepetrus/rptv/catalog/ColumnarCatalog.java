@@ -0,0 +1,334 @@
+package nl.mallepetrus.rptv.catalog;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable, column-oriented copy of one stream catalog (live, VOD or series) of an account.
+ * <p>
+ * Numbers are kept in primitive arrays and strings in a per-catalog dictionary referenced by int
+ * code: each distinct value is stored once, as UTF-8 bytes packed into a single array, so repeated
+ * extensions, genres and EPG ids cost four bytes per row and no per-row objects exist at all. Icon
+ * URLs are split after the last '/' so their common host and path prefix is stored once. Strings
+ * are materialized on access. Rows are found by stream (or series) id through a sorted id index.
+ * Category names, when loaded, live in the same dictionary behind a sorted category id index.
+ */
+public final class ColumnarCatalog {
+
+    public enum Kind {
+        LIVE("get_live_streams", "get_live_categories", "live"),
+        VOD("get_vod_streams", "get_vod_categories", "movie"),
+        SERIES("get_series", "get_series_categories", "series");
+
+        private final String action;
+        private final String categoriesAction;
+        private final String streamType;
+
+        Kind(String action, String categoriesAction, String streamType) {
+            this.action = action;
+            this.categoriesAction = categoriesAction;
+            this.streamType = streamType;
+        }
+
+        /** The {@code player_api.php} action this catalog is loaded from. */
+        public String action() { return action; }
+
+        /** The {@code player_api.php} action listing the catalog's categories. */
+        public String categoriesAction() { return categoriesAction; }
+
+        /** The Xtream stream path segment ({@code live}, {@code movie}, {@code series}). */
+        public String streamType() { return streamType; }
+    }
+
+    private static final int NONE = -1;
+
+    private final Kind kind;
+    private final int size;
+    private final int[] nums;
+    private final int[] ids;
+    private final int[] categoryIds;
+    private final int[] flags; // tv_archive for live
+    private final long[] added; // last_modified for series
+    private final int[] names;
+    private final int[] iconPrefixes;
+    private final int[] iconFiles;
+    private final int[] extras; // epg channel id, container extension or genre
+    private final int[] ratings;
+    private final byte[] stringData;
+    private final int[] stringOffsets; // code -> start in stringData, plus the end of the last one
+    private final int[] sortedIds;
+    private final int[] rowsBySortedId;
+    private final int[] sortedCategoryIds;
+    private final int[] categoryNames; // by position in sortedCategoryIds
+    private volatile CatalogSearchIndex searchIndex;
+    private volatile long version;
+
+    private ColumnarCatalog(Builder b) {
+        this.kind = b.kind;
+        this.size = b.size;
+        this.nums = Arrays.copyOf(b.nums, size);
+        this.ids = Arrays.copyOf(b.ids, size);
+        this.categoryIds = Arrays.copyOf(b.categoryIds, size);
+        this.flags = Arrays.copyOf(b.flags, size);
+        this.added = Arrays.copyOf(b.added, size);
+        this.names = Arrays.copyOf(b.names, size);
+        this.iconPrefixes = Arrays.copyOf(b.iconPrefixes, size);
+        this.iconFiles = Arrays.copyOf(b.iconFiles, size);
+        this.extras = Arrays.copyOf(b.extras, size);
+        this.ratings = Arrays.copyOf(b.ratings, size);
+        this.stringData = Arrays.copyOf(b.stringData, b.stringLength);
+        this.stringOffsets = Arrays.copyOf(b.stringOffsets, b.codes.size() + 1);
+
+        long[] packed = new long[size];
+        for (int row = 0; row < size; row++) {
+            packed[row] = ((long) ids[row] << 32) | row;
+        }
+        Arrays.sort(packed);
+        this.sortedIds = new int[size];
+        this.rowsBySortedId = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedIds[i] = (int) (packed[i] >> 32);
+            rowsBySortedId[i] = (int) packed[i];
+        }
+
+        long[] categories = new long[b.categories.size()];
+        int c = 0;
+        for (Map.Entry<Integer, Integer> e : b.categories.entrySet()) {
+            categories[c++] = ((long) e.getKey() << 32) | (e.getValue() & 0xffffffffL);
+        }
+        Arrays.sort(categories);
+        this.sortedCategoryIds = new int[categories.length];
+        this.categoryNames = new int[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            sortedCategoryIds[i] = (int) (categories[i] >> 32);
+            categoryNames[i] = (int) categories[i];
+        }
+    }
+
+    public static Builder builder(Kind kind) {
+        return new Builder(kind);
+    }
+
+    public Kind kind() { return kind; }
+
+    public int size() { return size; }
+
+    /** Row holding the given stream (or series) id, or -1 when the catalog does not contain it. */
+    public int indexOf(int id) {
+        int i = Arrays.binarySearch(sortedIds, id);
+        return i < 0 ? -1 : rowsBySortedId[i];
+    }
+
+    public int id(int row) { return ids[row]; }
+
+    public int num(int row) { return nums[row]; }
+
+    public int categoryId(int row) { return categoryIds[row]; }
+
+    /** Name of the row's category, or null when it is unknown or categories were not loaded. */
+    public String categoryName(int row) {
+        int i = Arrays.binarySearch(sortedCategoryIds, categoryIds[row]);
+        return i < 0 ? null : string(categoryNames[i]);
+    }
+
+    public long added(int row) { return added[row]; }
+
+    public String name(int row) { return string(names[row]); }
+
+    public String icon(int row) {
+        String prefix = string(iconPrefixes[row]);
+        String file = string(iconFiles[row]);
+        if (prefix == null) return file;
+        return file == null ? prefix : prefix + file;
+    }
+
+    public CatalogDtos.LiveStreamEntry live(int row) {
+        requireKind(Kind.LIVE);
+        return new CatalogDtos.LiveStreamEntry(nums[row], name(row), ids[row], icon(row),
+                string(extras[row]), categoryIds[row], flags[row], added[row]);
+    }
+
+    public CatalogDtos.VodStreamEntry vod(int row) {
+        requireKind(Kind.VOD);
+        return new CatalogDtos.VodStreamEntry(nums[row], name(row), ids[row], icon(row),
+                categoryIds[row], string(extras[row]), string(ratings[row]), added[row]);
+    }
+
+    public CatalogDtos.SeriesEntry series(int row) {
+        requireKind(Kind.SERIES);
+        return new CatalogDtos.SeriesEntry(nums[row], name(row), ids[row], icon(row),
+                categoryIds[row], string(extras[row]), string(ratings[row]), added[row]);
+    }
+
+    /** Name search over this catalog, built on first use and dropped together with the catalog. */
+    public CatalogSearchIndex searchIndex() {
+        CatalogSearchIndex index = searchIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = searchIndex;
+                if (index == null) {
+                    index = CatalogSearchIndex.build(this);
+                    searchIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /** Approximate retained size, used to weigh the catalog in caches. */
+    public long estimatedBytes() {
+        return 64L + (long) size * (4 * 11 + 8) + stringData.length + 4L * stringOffsets.length
+                + 8L * sortedCategoryIds.length;
+    }
+
+    /**
+     * A 64-bit fingerprint of the catalog's content, computed on first use. Two loads of identical
+     * upstream data have the same version, so validators derived from it survive a cache refresh.
+     */
+    public long version() {
+        long v = version;
+        if (v == 0) {
+            v = mix(kind.ordinal(), size);
+            for (int row = 0; row < size; row++) {
+                v = mix(v, ((long) nums[row] << 32) | (ids[row] & 0xffffffffL));
+                v = mix(v, ((long) categoryIds[row] << 32) | (flags[row] & 0xffffffffL));
+                v = mix(v, added[row]);
+                v = mix(v, ((long) names[row] << 32) | (iconPrefixes[row] & 0xffffffffL));
+                v = mix(v, ((long) iconFiles[row] << 32) | (extras[row] & 0xffffffffL));
+                v = mix(v, ratings[row]);
+            }
+            for (int i = 0; i < sortedCategoryIds.length; i++) {
+                v = mix(v, ((long) sortedCategoryIds[i] << 32) | (categoryNames[i] & 0xffffffffL));
+            }
+            // codes are handed out in first-seen order, so equal content means equal dictionaries
+            for (int i = 0; i < stringData.length; i++) v = mix(v, stringData[i]);
+            for (int offset : stringOffsets) v = mix(v, offset);
+            if (v == 0) v = 1;
+            version = v;
+        }
+        return v;
+    }
+
+    private static long mix(long h, long x) {
+        return Long.rotateLeft((h ^ x) * 0x9E3779B97F4A7C15L, 31) * 0xBF58476D1CE4E5B9L;
+    }
+
+    private String string(int code) {
+        if (code == NONE) return null;
+        int start = stringOffsets[code];
+        return new String(stringData, start, stringOffsets[code + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    private void requireKind(Kind expected) {
+        if (kind != expected) throw new IllegalStateException("Catalog holds " + kind + " entries, not " + expected);
+    }
+
+    /** Accumulates rows in arrival order; not thread-safe. */
+    public static final class Builder {
+        private final Kind kind;
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final Map<Integer, Integer> categories = new HashMap<>();
+        private byte[] stringData = new byte[4096];
+        private int[] stringOffsets = new int[257];
+        private int stringLength;
+        private int size;
+        private int[] nums = new int[256];
+        private int[] ids = new int[256];
+        private int[] categoryIds = new int[256];
+        private int[] flags = new int[256];
+        private long[] added = new long[256];
+        private int[] names = new int[256];
+        private int[] iconPrefixes = new int[256];
+        private int[] iconFiles = new int[256];
+        private int[] extras = new int[256];
+        private int[] ratings = new int[256];
+
+        private Builder(Kind kind) {
+            this.kind = kind;
+        }
+
+        public Builder add(CatalogDtos.LiveStreamEntry e) {
+            requireKind(Kind.LIVE);
+            return add(e.num(), e.streamId(), e.categoryId(), e.tvArchive(), e.added(), e.name(), e.icon(),
+                    e.epgChannelId(), null);
+        }
+
+        public Builder add(CatalogDtos.VodStreamEntry e) {
+            requireKind(Kind.VOD);
+            return add(e.num(), e.streamId(), e.categoryId(), 0, e.added(), e.name(), e.icon(),
+                    e.containerExtension(), e.rating());
+        }
+
+        public Builder add(CatalogDtos.SeriesEntry e) {
+            requireKind(Kind.SERIES);
+            return add(e.num(), e.seriesId(), e.categoryId(), 0, e.lastModified(), e.name(), e.cover(),
+                    e.genre(), e.rating());
+        }
+
+        public Builder category(CatalogDtos.CategoryEntry e) {
+            categories.put(e.categoryId(), code(e.name()));
+            return this;
+        }
+
+        public ColumnarCatalog build() {
+            return new ColumnarCatalog(this);
+        }
+
+        private Builder add(int num, int id, int categoryId, int flag, long addedAt, String name, String icon,
+                            String extra, String rating) {
+            if (size == ids.length) grow();
+            nums[size] = num;
+            ids[size] = id;
+            categoryIds[size] = categoryId;
+            flags[size] = flag;
+            added[size] = addedAt;
+            names[size] = code(name);
+            int slash = icon == null ? -1 : icon.lastIndexOf('/');
+            iconPrefixes[size] = slash < 0 ? NONE : code(icon.substring(0, slash + 1));
+            iconFiles[size] = slash < 0 ? code(icon) : code(icon.substring(slash + 1));
+            extras[size] = code(extra);
+            ratings[size] = code(rating);
+            size++;
+            return this;
+        }
+
+        private int code(String s) {
+            if (s == null) return NONE;
+            Integer existing = codes.get(s);
+            if (existing != null) return existing;
+            int code = codes.size();
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (stringLength + bytes.length > stringData.length) {
+                stringData = Arrays.copyOf(stringData, Math.max(stringData.length * 2, stringLength + bytes.length));
+            }
+            if (code + 2 > stringOffsets.length) {
+                stringOffsets = Arrays.copyOf(stringOffsets, stringOffsets.length * 2);
+            }
+            System.arraycopy(bytes, 0, stringData, stringLength, bytes.length);
+            stringLength += bytes.length;
+            stringOffsets[code + 1] = stringLength;
+            codes.put(s, code);
+            return code;
+        }
+
+        private void grow() {
+            int capacity = ids.length * 2;
+            nums = Arrays.copyOf(nums, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            categoryIds = Arrays.copyOf(categoryIds, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            added = Arrays.copyOf(added, capacity);
+            names = Arrays.copyOf(names, capacity);
+            iconPrefixes = Arrays.copyOf(iconPrefixes, capacity);
+            iconFiles = Arrays.copyOf(iconFiles, capacity);
+            extras = Arrays.copyOf(extras, capacity);
+            ratings = Arrays.copyOf(ratings, capacity);
+        }
+
+        private void requireKind(Kind expected) {
+            if (kind != expected) throw new IllegalStateException("Builder collects " + kind + " entries, not " + expected);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package nl.mallepetrus.rptv.catalog;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * An {@code #EXTM3U} playlist over cached {@link ColumnarCatalog}s. Entries are written to the
+ * output one row at a time through a small buffer; the document itself is never held in memory.
+ */
+public final class M3uPlaylist {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The rows of one catalog. Stream URLs are {@code urlPrefix + id + "." + extension}, with the
+     * row's container extension (else {@code mp4}) when {@code extension} is null.
+     */
+    public record Section(ColumnarCatalog catalog, String urlPrefix, String extension) {}
+
+    private final List<Section> sections;
+
+    public M3uPlaylist(List<Section> sections) {
+        this.sections = List.copyOf(sections);
+    }
+
+    /**
+     * A strong ETag for the bytes {@link #write} produces under {@code contentCoding} (null for
+     * identity): it covers the catalog versions, the URL prefixes and extensions, and the coding.
+     */
+    public String etag(String contentCoding) {
+        MessageDigest sha = sha256();
+        ByteBuffer version = ByteBuffer.allocate(Long.BYTES);
+        for (Section section : sections) {
+            sha.update(version.clear().putLong(section.catalog().version()).array());
+            sha.update(section.urlPrefix().getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+            if (section.extension() != null) sha.update(section.extension().getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+        }
+        if (contentCoding != null) sha.update(contentCoding.getBytes(StandardCharsets.UTF_8));
+        return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(sha.digest(), 18)) + '"';
+    }
+
+    /** Writes the playlist as UTF-8; the stream is flushed, not closed. */
+    public void write(OutputStream out) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        w.write("#EXTM3U\n");
+        for (Section section : sections) {
+            ColumnarCatalog catalog = section.catalog();
+            boolean live = catalog.kind() == ColumnarCatalog.Kind.LIVE;
+            for (int row = 0; row < catalog.size(); row++) {
+                String name = catalog.name(row);
+                String extension = section.extension();
+                w.write("#EXTINF:-1");
+                if (live) {
+                    attribute(w, "tvg-id", catalog.live(row).epgChannelId());
+                } else if (extension == null && catalog.kind() == ColumnarCatalog.Kind.VOD) {
+                    extension = catalog.vod(row).containerExtension();
+                }
+                attribute(w, "tvg-name", name);
+                attribute(w, "tvg-logo", catalog.icon(row));
+                attribute(w, "group-title", catalog.categoryName(row));
+                w.write(',');
+                text(w, name);
+                w.write('\n');
+                w.write(section.urlPrefix());
+                w.write(Integer.toString(catalog.id(row)));
+                w.write('.');
+                w.write(extension == null || extension.isEmpty() ? "mp4" : extension);
+                w.write('\n');
+            }
+        }
+        w.flush();
+    }
+
+    private static void attribute(Writer w, String name, String value) throws IOException {
+        if (value == null || value.isEmpty()) return;
+        w.write(' ');
+        w.write(name);
+        w.write("=\"");
+        text(w, value.replace('"', '\''));
+        w.write('"');
+    }
+
+    /** Line breaks would start a new directive; they become spaces. */
+    private static void text(Writer w, String value) throws IOException {
+        if (value == null) return;
+        if (value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            w.write(value);
+        } else {
+            w.write(value.replace('\r', ' ').replace('\n', ' '));
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package nl.mallepetrus.rptv.catalog;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.cfg.CoercionAction;
+import com.fasterxml.jackson.databind.cfg.CoercionInputShape;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental JSON decoding of upstream bodies, fed chunk by chunk from a {@code Flux<DataBuffer>}.
+ * <p>
+ * {@link #elements} emits each object nested directly in the top-level array (or object map, which
+ * some panels return instead) as soon as its closing brace arrives; only that object's tokens are
+ * held, so memory is bounded by the records of one network chunk rather than by the document.
+ * Buffers are released as soon as they have been fed to the parser.
+ */
+@Component
+public class XtreamJsonParser {
+
+    private final ObjectMapper mapper;
+
+    public XtreamJsonParser() {
+        JsonMapper m = JsonMapper.builder()
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .build();
+        // panels send "" for missing numbers; treat it as absent instead of failing the whole catalog
+        m.coercionConfigDefaults().setCoercion(CoercionInputShape.EmptyString, CoercionAction.AsNull);
+        this.mapper = m;
+    }
+
+    /** Decodes every object directly inside the top-level array or object. */
+    public <T> Flux<T> elements(Flux<DataBuffer> body, Class<T> type) {
+        return decode(body, type, 2);
+    }
+
+    /** Decodes the whole document as one value; meant for small payloads such as account info. */
+    public <T> Mono<T> document(Flux<DataBuffer> body, Class<T> type) {
+        return decode(body, type, 1).next();
+    }
+
+    private <T> Flux<T> decode(Flux<DataBuffer> body, Class<T> type, int valueDepth) {
+        return Flux.defer(() -> {
+            Tokenizer<T> tokenizer = new Tokenizer<>(type, valueDepth);
+            return body.concatMapIterable(tokenizer::feed)
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(tokenizer.endOfInput())))
+                    .doFinally(signal -> tokenizer.close());
+        });
+    }
+
+    private final class Tokenizer<T> {
+        private final Class<T> type;
+        private final int valueDepth;
+        private final JsonParser parser;
+        private final ByteBufferFeeder feeder;
+        private int depth;
+        private TokenBuffer current;
+
+        Tokenizer(Class<T> type, int valueDepth) {
+            this.type = type;
+            this.valueDepth = valueDepth;
+            try {
+                this.parser = mapper.getFactory().createNonBlockingByteBufferParser();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+        }
+
+        List<T> feed(DataBuffer buffer) {
+            List<T> out = new ArrayList<>();
+            try (DataBuffer.ByteBufferIterator it = buffer.readableByteBuffers()) {
+                while (it.hasNext()) {
+                    ByteBuffer chunk = it.next();
+                    feeder.feedInput(chunk);
+                    drain(out);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
+            return out;
+        }
+
+        List<T> endOfInput() {
+            List<T> out = new ArrayList<>();
+            feeder.endOfInput();
+            try {
+                drain(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out;
+        }
+
+        private void drain(List<T> out) throws IOException {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                if (token.isStructStart()) {
+                    depth++;
+                    if (current == null && depth == valueDepth && (valueDepth == 1 || token == JsonToken.START_OBJECT)) {
+                        current = new TokenBuffer(parser);
+                    }
+                }
+                if (current != null) {
+                    current.copyCurrentEvent(parser);
+                }
+                if (token.isStructEnd()) {
+                    depth--;
+                    if (current != null && depth == valueDepth - 1) {
+                        try (JsonParser value = current.asParser(mapper)) {
+                            out.add(mapper.readValue(value, type));
+                        }
+                        current = null;
+                    }
+                }
+            }
+        }
+
+        void close() {
+            try {
+                parser.close();
+            } catch (IOException ignored) {
+                // nothing left to release
+            }
+        }
+    }
+}
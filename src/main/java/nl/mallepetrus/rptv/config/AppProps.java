@@ -4,8 +4,13 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 @Configuration
-@EnableConfigurationProperties({AppProps.JwtProps.class})
+@EnableConfigurationProperties({AppProps.JwtProps.class, AppProps.ProxyProps.class, AppProps.CatalogProps.class,
+        AppProps.EncProps.class, AppProps.AuthProps.class, AppProps.EpgProps.class})
 public class AppProps {
 
     @ConfigurationProperties(prefix = "security.jwt")
@@ -13,6 +18,8 @@ public class AppProps {
         private String issuer = "rptv";
         private long accessTokenTtl = 900; // seconds
         private long refreshTokenTtl = 2_592_000; // 30 days
+        private long decoderCacheSize = 10_000; // verified access tokens remembered until they expire
+        private String refreshTokenKey; // Base64 HMAC key for stored refresh tokens; derived from app.enc.master-key if unset
 
         public String getIssuer() { return issuer; }
         public void setIssuer(String issuer) { this.issuer = issuer; }
@@ -20,5 +27,237 @@ public class AppProps {
         public void setAccessTokenTtl(long accessTokenTtl) { this.accessTokenTtl = accessTokenTtl; }
         public long getRefreshTokenTtl() { return refreshTokenTtl; }
         public void setRefreshTokenTtl(long refreshTokenTtl) { this.refreshTokenTtl = refreshTokenTtl; }
+        public long getDecoderCacheSize() { return decoderCacheSize; }
+        public void setDecoderCacheSize(long decoderCacheSize) { this.decoderCacheSize = decoderCacheSize; }
+        public String getRefreshTokenKey() { return refreshTokenKey; }
+        public void setRefreshTokenKey(String refreshTokenKey) { this.refreshTokenKey = refreshTokenKey; }
+    }
+
+    @ConfigurationProperties(prefix = "app.auth")
+    public static class AuthProps {
+        private int hashThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2); // concurrent Argon2 runs
+        private int hashQueueCapacity = 32; // logins waiting for a hashing thread; beyond this they get 429
+        private Duration hashTimeout = Duration.ofSeconds(5); // a login waiting longer gets 503
+        private boolean argon2Calibrate = true; // measure in the background after startup; otherwise the floors are fixed
+        private Duration argon2TargetLatency = Duration.ofMillis(250); // one hash on this host
+        private int argon2MinMemoryKib = 19_456; // floors: OWASP's minimum for Argon2id
+        private int argon2MinIterations = 2;
+        private int argon2MaxMemoryKib = 64 * 1024; // per hash; hash-threads of them can run at once
+        private int argon2Parallelism = 1; // lanes; the hashing pool already provides concurrency
+
+        public int getHashThreads() { return hashThreads; }
+        public void setHashThreads(int hashThreads) { this.hashThreads = hashThreads; }
+        public int getHashQueueCapacity() { return hashQueueCapacity; }
+        public void setHashQueueCapacity(int hashQueueCapacity) { this.hashQueueCapacity = hashQueueCapacity; }
+        public Duration getHashTimeout() { return hashTimeout; }
+        public void setHashTimeout(Duration hashTimeout) { this.hashTimeout = hashTimeout; }
+        public boolean isArgon2Calibrate() { return argon2Calibrate; }
+        public void setArgon2Calibrate(boolean argon2Calibrate) { this.argon2Calibrate = argon2Calibrate; }
+        public Duration getArgon2TargetLatency() { return argon2TargetLatency; }
+        public void setArgon2TargetLatency(Duration argon2TargetLatency) { this.argon2TargetLatency = argon2TargetLatency; }
+        public int getArgon2MinMemoryKib() { return argon2MinMemoryKib; }
+        public void setArgon2MinMemoryKib(int argon2MinMemoryKib) { this.argon2MinMemoryKib = argon2MinMemoryKib; }
+        public int getArgon2MinIterations() { return argon2MinIterations; }
+        public void setArgon2MinIterations(int argon2MinIterations) { this.argon2MinIterations = argon2MinIterations; }
+        public int getArgon2MaxMemoryKib() { return argon2MaxMemoryKib; }
+        public void setArgon2MaxMemoryKib(int argon2MaxMemoryKib) { this.argon2MaxMemoryKib = argon2MaxMemoryKib; }
+        public int getArgon2Parallelism() { return argon2Parallelism; }
+        public void setArgon2Parallelism(int argon2Parallelism) { this.argon2Parallelism = argon2Parallelism; }
+    }
+
+    @ConfigurationProperties(prefix = "app.proxy")
+    public static class ProxyProps {
+        private int maxConnections = 500; // upstream sockets shared by all relayed streams
+        private int pendingAcquireMaxCount = 1000;
+        private int writeBufferSize = 32 * 1024; // bytes copied per non-blocking write
+        private int liveRingChunks = 256; // recent chunks kept per shared live channel
+        private String segmentCacheDir = System.getProperty("java.io.tmpdir") + "/rptv-segments";
+        private long segmentCacheMaxBytes = 1024L * 1024 * 1024; // HLS segments kept on disk
+        private Duration segmentCacheIdle = Duration.ofMinutes(10); // unread segments are dropped after this
+        private long maxSegmentBytes = 64L * 1024 * 1024; // single segment download
+        private int vodBlockSize = 1024 * 1024; // aligned unit in which VOD byte ranges are fetched and cached
+        private String vodBlockCacheDir = System.getProperty("java.io.tmpdir") + "/rptv-blocks";
+        private long vodBlockCacheMaxBytes = 512L * 1024 * 1024; // /tmp is tmpfs in the container; use a volume for more
+        private Duration vodBlockCacheIdle = Duration.ofHours(6);
+        private Duration slotWaitTimeout = Duration.ofSeconds(10); // queued stream requests fail with 503 after this
+        private Duration slotIdlePreemptAfter = Duration.ofSeconds(30); // a session idle this long yields to a waiting one
+        private Duration slotViewerIdle = Duration.ofSeconds(20); // a player's segment/block slot is kept this long between requests
+        private int defaultMaxConnections = 1; // when the provider does not report max_connections
+        private Duration slotLimitRefresh = Duration.ofMinutes(10);
+        private boolean clusterSlots = true; // count slots across instances in Postgres
+        private Duration slotLeaseTtl = Duration.ofSeconds(30); // sessions of a dead instance expire after this
+        private Duration slotPollInterval = Duration.ofSeconds(2); // waiters re-check for expired leases
+        private boolean slotLedgerFailOpen = false; // grant on the per-instance limit alone while Postgres is down
+        private long credentialCacheMaxSize = 10_000; // accounts with decrypted credentials kept in memory
+        private Duration credentialCacheTtl = Duration.ofMinutes(5); // also bounds staleness on other instances
+        private String streamUrlKey; // Base64 HMAC key for signed stream URLs; derived from app.enc.master-key if unset
+        private Duration streamUrlTtl = Duration.ofHours(12); // signed URLs, including rewritten HLS ones, stop working after this
+        private long facadeCredentialCacheMaxSize = 10_000; // Xtream app logins remembered after an Argon2 check
+        private Duration facadeCredentialCacheTtl = Duration.ofMinutes(10);
+
+        public int getMaxConnections() { return maxConnections; }
+        public void setMaxConnections(int maxConnections) { this.maxConnections = maxConnections; }
+        public int getPendingAcquireMaxCount() { return pendingAcquireMaxCount; }
+        public void setPendingAcquireMaxCount(int pendingAcquireMaxCount) { this.pendingAcquireMaxCount = pendingAcquireMaxCount; }
+        public int getWriteBufferSize() { return writeBufferSize; }
+        public void setWriteBufferSize(int writeBufferSize) { this.writeBufferSize = writeBufferSize; }
+        public int getLiveRingChunks() { return liveRingChunks; }
+        public void setLiveRingChunks(int liveRingChunks) { this.liveRingChunks = liveRingChunks; }
+        public String getSegmentCacheDir() { return segmentCacheDir; }
+        public void setSegmentCacheDir(String segmentCacheDir) { this.segmentCacheDir = segmentCacheDir; }
+        public long getSegmentCacheMaxBytes() { return segmentCacheMaxBytes; }
+        public void setSegmentCacheMaxBytes(long segmentCacheMaxBytes) { this.segmentCacheMaxBytes = segmentCacheMaxBytes; }
+        public Duration getSegmentCacheIdle() { return segmentCacheIdle; }
+        public void setSegmentCacheIdle(Duration segmentCacheIdle) { this.segmentCacheIdle = segmentCacheIdle; }
+        public long getMaxSegmentBytes() { return maxSegmentBytes; }
+        public void setMaxSegmentBytes(long maxSegmentBytes) { this.maxSegmentBytes = maxSegmentBytes; }
+        public int getVodBlockSize() { return vodBlockSize; }
+        public void setVodBlockSize(int vodBlockSize) { this.vodBlockSize = vodBlockSize; }
+        public String getVodBlockCacheDir() { return vodBlockCacheDir; }
+        public void setVodBlockCacheDir(String vodBlockCacheDir) { this.vodBlockCacheDir = vodBlockCacheDir; }
+        public long getVodBlockCacheMaxBytes() { return vodBlockCacheMaxBytes; }
+        public void setVodBlockCacheMaxBytes(long vodBlockCacheMaxBytes) { this.vodBlockCacheMaxBytes = vodBlockCacheMaxBytes; }
+        public Duration getVodBlockCacheIdle() { return vodBlockCacheIdle; }
+        public void setVodBlockCacheIdle(Duration vodBlockCacheIdle) { this.vodBlockCacheIdle = vodBlockCacheIdle; }
+        public Duration getSlotWaitTimeout() { return slotWaitTimeout; }
+        public void setSlotWaitTimeout(Duration slotWaitTimeout) { this.slotWaitTimeout = slotWaitTimeout; }
+        public Duration getSlotIdlePreemptAfter() { return slotIdlePreemptAfter; }
+        public void setSlotIdlePreemptAfter(Duration slotIdlePreemptAfter) { this.slotIdlePreemptAfter = slotIdlePreemptAfter; }
+        public Duration getSlotViewerIdle() { return slotViewerIdle; }
+        public void setSlotViewerIdle(Duration slotViewerIdle) { this.slotViewerIdle = slotViewerIdle; }
+        public int getDefaultMaxConnections() { return defaultMaxConnections; }
+        public void setDefaultMaxConnections(int defaultMaxConnections) { this.defaultMaxConnections = defaultMaxConnections; }
+        public Duration getSlotLimitRefresh() { return slotLimitRefresh; }
+        public void setSlotLimitRefresh(Duration slotLimitRefresh) { this.slotLimitRefresh = slotLimitRefresh; }
+        public boolean isClusterSlots() { return clusterSlots; }
+        public void setClusterSlots(boolean clusterSlots) { this.clusterSlots = clusterSlots; }
+        public Duration getSlotLeaseTtl() { return slotLeaseTtl; }
+        public void setSlotLeaseTtl(Duration slotLeaseTtl) { this.slotLeaseTtl = slotLeaseTtl; }
+        public Duration getSlotPollInterval() { return slotPollInterval; }
+        public void setSlotPollInterval(Duration slotPollInterval) { this.slotPollInterval = slotPollInterval; }
+        public boolean isSlotLedgerFailOpen() { return slotLedgerFailOpen; }
+        public void setSlotLedgerFailOpen(boolean slotLedgerFailOpen) { this.slotLedgerFailOpen = slotLedgerFailOpen; }
+        public long getCredentialCacheMaxSize() { return credentialCacheMaxSize; }
+        public void setCredentialCacheMaxSize(long credentialCacheMaxSize) { this.credentialCacheMaxSize = credentialCacheMaxSize; }
+        public Duration getCredentialCacheTtl() { return credentialCacheTtl; }
+        public void setCredentialCacheTtl(Duration credentialCacheTtl) { this.credentialCacheTtl = credentialCacheTtl; }
+        public String getStreamUrlKey() { return streamUrlKey; }
+        public void setStreamUrlKey(String streamUrlKey) { this.streamUrlKey = streamUrlKey; }
+        public Duration getStreamUrlTtl() { return streamUrlTtl; }
+        public void setStreamUrlTtl(Duration streamUrlTtl) { this.streamUrlTtl = streamUrlTtl; }
+        public long getFacadeCredentialCacheMaxSize() { return facadeCredentialCacheMaxSize; }
+        public void setFacadeCredentialCacheMaxSize(long facadeCredentialCacheMaxSize) { this.facadeCredentialCacheMaxSize = facadeCredentialCacheMaxSize; }
+        public Duration getFacadeCredentialCacheTtl() { return facadeCredentialCacheTtl; }
+        public void setFacadeCredentialCacheTtl(Duration facadeCredentialCacheTtl) { this.facadeCredentialCacheTtl = facadeCredentialCacheTtl; }
+    }
+
+    @ConfigurationProperties(prefix = "app.catalog")
+    public static class CatalogProps {
+        // player_api.php actions that are cached, with the age after which they are refreshed
+        private Map<String, Duration> ttl = new LinkedHashMap<>(Map.of(
+                "get_live_categories", Duration.ofHours(1),
+                "get_live_streams", Duration.ofMinutes(15),
+                "get_vod_categories", Duration.ofHours(1),
+                "get_vod_streams", Duration.ofHours(1),
+                "get_series_categories", Duration.ofHours(1),
+                "get_series", Duration.ofHours(1),
+                "get_series_info", Duration.ofHours(1)));
+        private Duration staleWindow = Duration.ofHours(24); // stale entries are served this long past their ttl
+        private long maxBytes = 256L * 1024 * 1024; // total cached response bytes
+        private int maxResponseBytes = 128 * 1024 * 1024; // single upstream response
+        private long storeMaxBytes = 128L * 1024 * 1024; // decoded columnar catalogs, estimated
+        private int indexThreads = 2; // build, index and search decoded catalogs
+
+        public Map<String, Duration> getTtl() { return ttl; }
+        public void setTtl(Map<String, Duration> ttl) { this.ttl = ttl; }
+        public Duration getStaleWindow() { return staleWindow; }
+        public void setStaleWindow(Duration staleWindow) { this.staleWindow = staleWindow; }
+        public long getMaxBytes() { return maxBytes; }
+        public void setMaxBytes(long maxBytes) { this.maxBytes = maxBytes; }
+        public int getMaxResponseBytes() { return maxResponseBytes; }
+        public void setMaxResponseBytes(int maxResponseBytes) { this.maxResponseBytes = maxResponseBytes; }
+        public long getStoreMaxBytes() { return storeMaxBytes; }
+        public void setStoreMaxBytes(long storeMaxBytes) { this.storeMaxBytes = storeMaxBytes; }
+        public int getIndexThreads() { return indexThreads; }
+        public void setIndexThreads(int indexThreads) { this.indexThreads = indexThreads; }
+    }
+
+    @ConfigurationProperties(prefix = "app.epg")
+    public static class EpgProps {
+        private String dir = System.getProperty("java.io.tmpdir") + "/rptv-epg"; // downloads and persisted guides
+        private Duration refreshInterval = Duration.ofHours(6); // guides older than this are refetched (conditionally)
+        private Duration idle = Duration.ofDays(2); // guides not queried this long leave memory
+        private Duration pastRetention = Duration.ofDays(1); // programmes that ended longer ago are dropped
+        private Duration futureLimit = Duration.ofDays(14); // programmes starting later are not ingested
+        private int maxProgrammes = 1_000_000; // per guide; ingestion stops there
+        private int maxDescriptionChars = 1024;
+        private long maxDownloadBytes = 2L * 1024 * 1024 * 1024;
+        private Duration downloadTimeout = Duration.ofMinutes(10);
+        private long maxBytes = 256L * 1024 * 1024; // guides in memory, estimated
+        private int ingestThreads = 1; // concurrent downloads and parses
+        private Duration maxQueryWindow = Duration.ofDays(7);
+
+        public String getDir() { return dir; }
+        public void setDir(String dir) { this.dir = dir; }
+        public Duration getRefreshInterval() { return refreshInterval; }
+        public void setRefreshInterval(Duration refreshInterval) { this.refreshInterval = refreshInterval; }
+        public Duration getIdle() { return idle; }
+        public void setIdle(Duration idle) { this.idle = idle; }
+        public Duration getPastRetention() { return pastRetention; }
+        public void setPastRetention(Duration pastRetention) { this.pastRetention = pastRetention; }
+        public Duration getFutureLimit() { return futureLimit; }
+        public void setFutureLimit(Duration futureLimit) { this.futureLimit = futureLimit; }
+        public int getMaxProgrammes() { return maxProgrammes; }
+        public void setMaxProgrammes(int maxProgrammes) { this.maxProgrammes = maxProgrammes; }
+        public int getMaxDescriptionChars() { return maxDescriptionChars; }
+        public void setMaxDescriptionChars(int maxDescriptionChars) { this.maxDescriptionChars = maxDescriptionChars; }
+        public long getMaxDownloadBytes() { return maxDownloadBytes; }
+        public void setMaxDownloadBytes(long maxDownloadBytes) { this.maxDownloadBytes = maxDownloadBytes; }
+        public Duration getDownloadTimeout() { return downloadTimeout; }
+        public void setDownloadTimeout(Duration downloadTimeout) { this.downloadTimeout = downloadTimeout; }
+        public long getMaxBytes() { return maxBytes; }
+        public void setMaxBytes(long maxBytes) { this.maxBytes = maxBytes; }
+        public int getIngestThreads() { return ingestThreads; }
+        public void setIngestThreads(int ingestThreads) { this.ingestThreads = ingestThreads; }
+        public Duration getMaxQueryWindow() { return maxQueryWindow; }
+        public void setMaxQueryWindow(Duration maxQueryWindow) { this.maxQueryWindow = maxQueryWindow; }
+    }
+
+    @ConfigurationProperties(prefix = "app.enc")
+    public static class EncProps {
+        private String masterKey; // Base64-encoded 256-bit key
+        private int keyId = 1; // written into binary envelopes (0-255) so a later key can be told apart
+        private boolean migrateLegacyColumns = true; // convert Base64 text credentials to bytea at startup
+        private int migrationBatchSize = 200; // rows converted per transaction
+        private Duration migrationBatchPause = Duration.ofMillis(100); // between batches, to stay out of the way
+        private Map<Integer, String> keys = new LinkedHashMap<>(); // further keys by id, e.g. retired or next master keys
+        private Integer activeKeyId; // key new envelopes are written with; defaults to key-id
+        private boolean rotateOnStartup = true; // re-encrypt rows still under another key id in the background
+        private int rotationRowsPerSecond = 200; // throttle so rotation never competes with requests
+        private int rotationBatchSize = 100; // rows per transaction and checkpoint step
+        private int rotationParallelism = 2; // batches re-encrypted concurrently
+
+        public String getMasterKey() { return masterKey; }
+        public void setMasterKey(String masterKey) { this.masterKey = masterKey; }
+        public int getKeyId() { return keyId; }
+        public void setKeyId(int keyId) { this.keyId = keyId; }
+        public boolean isMigrateLegacyColumns() { return migrateLegacyColumns; }
+        public void setMigrateLegacyColumns(boolean migrateLegacyColumns) { this.migrateLegacyColumns = migrateLegacyColumns; }
+        public int getMigrationBatchSize() { return migrationBatchSize; }
+        public void setMigrationBatchSize(int migrationBatchSize) { this.migrationBatchSize = migrationBatchSize; }
+        public Duration getMigrationBatchPause() { return migrationBatchPause; }
+        public void setMigrationBatchPause(Duration migrationBatchPause) { this.migrationBatchPause = migrationBatchPause; }
+        public Map<Integer, String> getKeys() { return keys; }
+        public void setKeys(Map<Integer, String> keys) { this.keys = keys; }
+        public Integer getActiveKeyId() { return activeKeyId; }
+        public void setActiveKeyId(Integer activeKeyId) { this.activeKeyId = activeKeyId; }
+        public boolean isRotateOnStartup() { return rotateOnStartup; }
+        public void setRotateOnStartup(boolean rotateOnStartup) { this.rotateOnStartup = rotateOnStartup; }
+        public int getRotationRowsPerSecond() { return rotationRowsPerSecond; }
+        public void setRotationRowsPerSecond(int rotationRowsPerSecond) { this.rotationRowsPerSecond = rotationRowsPerSecond; }
+        public int getRotationBatchSize() { return rotationBatchSize; }
+        public void setRotationBatchSize(int rotationBatchSize) { this.rotationBatchSize = rotationBatchSize; }
+        public int getRotationParallelism() { return rotationParallelism; }
+        public void setRotationParallelism(int rotationParallelism) { this.rotationParallelism = rotationParallelism; }
     }
 }
@@ -5,6 +5,8 @@ import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jose.jwk.RSAKey;
 import com.nimbusds.jose.jwk.source.JWKSource;
 import com.nimbusds.jose.proc.SecurityContext;
+import io.micrometer.core.instrument.MeterRegistry;
+import nl.mallepetrus.rptv.security.CachingJwtDecoder;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -23,7 +25,9 @@ public class JwtConfig {
 
     @Bean
     public JwtDecoder jwtDecoder(
-            @Value("${security.jwt.public-key-path:}") String publicKeyPath
+            @Value("${security.jwt.public-key-path:}") String publicKeyPath,
+            AppProps.JwtProps jwtProps,
+            MeterRegistry meterRegistry
     ) {
         if (publicKeyPath == null || publicKeyPath.isBlank()) {
             // Decoder will not work without key; provide a clear message
@@ -31,7 +35,9 @@ public class JwtConfig {
         }
         try {
             RSAPublicKey publicKey = loadPublicKey(Path.of(publicKeyPath));
-            return NimbusJwtDecoder.withPublicKey(publicKey).build();
+            NimbusJwtDecoder verifying = NimbusJwtDecoder.withPublicKey(publicKey).build();
+            // segment requests repeat the same bearer token many times a minute; verify each token once
+            return new CachingJwtDecoder(verifying, jwtProps.getDecoderCacheSize(), meterRegistry);
         } catch (Exception e) {
             throw new IllegalStateException("Failed to load RSA public key from path: " + publicKeyPath, e);
         }
@@ -1,15 +1,22 @@
 package nl.mallepetrus.rptv.config;
 
+import nl.mallepetrus.rptv.security.CalibratingPasswordEncoder;
+import nl.mallepetrus.rptv.security.HmacKeys;
+import nl.mallepetrus.rptv.security.HmacRefreshTokenVerifier;
+import nl.mallepetrus.rptv.security.PasswordHashingExecutor;
+import nl.mallepetrus.rptv.security.RefreshTokenVerifier;
+import nl.mallepetrus.rptv.security.SignedStreamUrlFilter;
+import nl.mallepetrus.rptv.security.StreamUrlSigner;
+import org.springframework.boot.actuate.info.InfoContributor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.method.configuration.EnableMethodSecurity;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.http.SessionCreationPolicy;
-import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationConverter;
+import org.springframework.security.oauth2.server.resource.web.authentication.BearerTokenAuthenticationFilter;
 import org.springframework.security.core.authority.mapping.SimpleAuthorityMapper;
 
 @Configuration
@@ -18,13 +25,17 @@ import org.springframework.security.core.authority.mapping.SimpleAuthorityMapper
 public class SecurityConfig {
 
     @Bean
-    public SecurityFilterChain securityFilterChain(HttpSecurity http) throws Exception {
+    public SecurityFilterChain securityFilterChain(HttpSecurity http, StreamUrlSigner streamUrlSigner) throws Exception {
         http
             .csrf(csrf -> csrf.disable())
+            // players cannot send bearer tokens; /proxy/** also accepts signed URLs
+            .addFilterBefore(new SignedStreamUrlFilter(streamUrlSigner), BearerTokenAuthenticationFilter.class)
             .sessionManagement(sm -> sm.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
             .authorizeHttpRequests(registry -> registry
                 .requestMatchers("/", "/actuator/health", "/actuator/info").permitAll()
                 .requestMatchers("/api/auth/**", "/v3/api-docs/**", "/swagger-ui/**").permitAll()
+                // the Xtream facade checks the rptv credentials in its own parameters
+                .requestMatchers("/player_api.php", "/get.php", "/live/**", "/movie/**", "/series/**").permitAll()
                 .anyRequest().authenticated()
             )
             .oauth2ResourceServer(oauth -> oauth.jwt(jwt -> jwt.jwtAuthenticationConverter(jwtAuthConverter())));
@@ -32,9 +43,22 @@ public class SecurityConfig {
     }
 
     @Bean
-    public PasswordEncoder passwordEncoder() {
-        // Defaults are fine; cost parameters can be tuned via constructor if needed
-        return Argon2PasswordEncoder.defaultsForSpringSecurity_v5_8();
+    public CalibratingPasswordEncoder passwordEncoder(AppProps.AuthProps authProps) {
+        return new CalibratingPasswordEncoder(authProps);
+    }
+
+    @Bean
+    public InfoContributor passwordHashingInfo(CalibratingPasswordEncoder passwordEncoder, AppProps.AuthProps authProps) {
+        return builder -> builder.withDetail("passwordHashing", passwordEncoder.report(Math.max(1, authProps.getHashThreads())));
+    }
+
+    @Bean
+    public RefreshTokenVerifier refreshTokenVerifier(AppProps.JwtProps jwtProps, AppProps.EncProps encProps,
+                                                     PasswordHashingExecutor passwordHashing) {
+        byte[] key = HmacKeys.resolve(jwtProps.getRefreshTokenKey(), encProps.getMasterKey(), "rptv refresh token v1",
+                "security.jwt.refresh-token-key");
+        // Argon2 hashes written before the switch stay valid until the token is next used (and rotated)
+        return new HmacRefreshTokenVerifier(key, passwordHashing);
     }
 
     @Bean
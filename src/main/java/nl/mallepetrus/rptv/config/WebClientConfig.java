@@ -13,17 +13,24 @@ import java.time.Duration;
 @Configuration
 public class WebClientConfig {
     @Bean
-    public WebClient webClient() {
+    public HttpClient upstreamHttpClient(AppProps.ProxyProps proxyProps) {
+        // Long-lived media relays each hold a pooled connection, so the pool is sized from config
         ConnectionProvider provider = ConnectionProvider.builder("rptv-webclient")
-                .maxConnections(100)
-                .pendingAcquireMaxCount(200)
+                .maxConnections(proxyProps.getMaxConnections())
+                .pendingAcquireMaxCount(proxyProps.getPendingAcquireMaxCount())
                 .build();
-        HttpClient httpClient = HttpClient.create(provider)
+        return HttpClient.create(provider)
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000)
                 .responseTimeout(Duration.ofSeconds(15))
+                // Xtream panels commonly answer stream URLs with a redirect to a load-balanced edge
+                .followRedirect(true)
                 .compress(true);
+    }
+
+    @Bean
+    public WebClient webClient(HttpClient upstreamHttpClient) {
         return WebClient.builder()
-                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .clientConnector(new ReactorClientHttpConnector(upstreamHttpClient))
                 .build();
     }
 }
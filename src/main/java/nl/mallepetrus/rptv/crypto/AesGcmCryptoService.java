@@ -1,6 +1,7 @@
 package nl.mallepetrus.rptv.crypto;
 
-import org.springframework.beans.factory.annotation.Value;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.Cipher;
@@ -10,76 +11,279 @@ import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * AES-256-GCM with a random 96-bit IV per message, in two envelopes:
+ * <ul>
+ *   <li>version 1, Base64 text: {@code [1][iv 12 bytes][ciphertext + 16 byte tag]}</li>
+ *   <li>version 2, binary: {@code [2][key id][iv 12 bytes][ciphertext + 16 byte tag]}</li>
+ * </ul>
+ * Both are accepted wherever ciphertext is read. Binary envelopes name their key, so a keyring can hold
+ * retired keys next to the active one while rows are re-encrypted; text envelopes always use the
+ * master key ({@code app.enc.master-key} under {@code app.enc.key-id}).
+ * <p>
+ * Each thread keeps its own {@link Cipher}, IV generator and scratch buffer, so an operation neither
+ * looks up a provider nor contends on a shared {@link SecureRandom}.
+ */
 @Service
 public class AesGcmCryptoService implements CryptoService {
 
     private static final String ALGO = "AES";
     private static final String TRANSFORMATION = "AES/GCM/NoPadding";
     private static final int GCM_TAG_LENGTH_BITS = 128;
+    private static final int TAG_LENGTH_BYTES = GCM_TAG_LENGTH_BITS / 8;
     private static final int IV_LENGTH_BYTES = 12; // recommended 96-bit IV
+    private static final byte TEXT_VERSION = 1;
+    private static final byte BINARY_VERSION = 2;
+    private static final int TEXT_HEADER_LENGTH = 1 + IV_LENGTH_BYTES;
+    private static final int BINARY_HEADER_LENGTH = 2 + IV_LENGTH_BYTES;
+    private static final int MAX_RETAINED_SCRATCH = 64 * 1024; // larger values get a one-off buffer
 
+    private static final ThreadLocal<Engine> ENGINES = ThreadLocal.withInitial(Engine::new);
+
+    /** Per-thread cipher state; never shared, so none of it needs locking. */
+    private static final class Engine {
+        final Cipher cipher;
+        final SecureRandom ivSource;
+        final byte[] iv = new byte[IV_LENGTH_BYTES];
+        byte[] scratch = new byte[512];
+
+        Engine() {
+            try {
+                this.cipher = Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(TRANSFORMATION + " not available", e);
+            }
+            this.ivSource = ivSource();
+        }
+
+        byte[] scratch(int length) {
+            if (length <= scratch.length) return scratch;
+            if (length > MAX_RETAINED_SCRATCH) return new byte[length];
+            return scratch = new byte[Math.min(MAX_RETAINED_SCRATCH, Math.max(length, scratch.length * 2))];
+        }
+
+        GCMParameterSpec nextIv() {
+            ivSource.nextBytes(iv);
+            return new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv);
+        }
+
+        private static SecureRandom ivSource() {
+            // a DRBG instance of our own is seeded once and then runs without the global lock
+            // NativePRNG takes for every read
+            try {
+                return SecureRandom.getInstance("DRBG");
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    }
+
+    private final SecretKey[] keyring = new SecretKey[256]; // by key id
+    private final SecretKey textKey;
     private final SecretKey key;
-    private final SecureRandom secureRandom = new SecureRandom();
+    private final byte keyId;
+
+    @Autowired
+    public AesGcmCryptoService(AppProps.EncProps props) {
+        this(keyring(props), props.getKeyId(), props.getActiveKeyId() != null ? props.getActiveKeyId() : props.getKeyId());
+    }
+
+    public AesGcmCryptoService(String b64Key, int keyId) {
+        this(keyring(b64Key, keyId, Map.of()), keyId, keyId);
+    }
 
-    public AesGcmCryptoService(@Value("${app.enc.master-key}") String b64Key) {
-        if (b64Key == null || b64Key.isBlank()) {
+    /**
+     * @param keys        Base64-encoded 256-bit keys by id (0-255)
+     * @param textKeyId   key of the text envelopes, which carry no id
+     * @param activeKeyId key new binary envelopes are written with
+     */
+    public AesGcmCryptoService(Map<Integer, String> keys, int textKeyId, int activeKeyId) {
+        keys.forEach((id, b64) -> {
+            String property = "app.enc.keys." + id;
+            if (id < 0 || id > 255) throw new IllegalStateException(property + ": key ids must be between 0 and 255");
+            if (b64 == null || b64.isBlank()) throw new IllegalStateException(property + " is empty");
+            byte[] keyBytes = Base64.getDecoder().decode(b64);
+            if (keyBytes.length != 32) {
+                throw new IllegalStateException(property + " must be 32 bytes (256-bit) when Base64-decoded");
+            }
+            keyring[id] = new SecretKeySpec(keyBytes, ALGO);
+        });
+        this.textKey = keyFor(textKeyId, "app.enc.key-id");
+        this.key = keyFor(activeKeyId, "app.enc.active-key-id");
+        this.keyId = (byte) activeKeyId;
+    }
+
+    private static Map<Integer, String> keyring(AppProps.EncProps props) {
+        return keyring(props.getMasterKey(), props.getKeyId(), props.getKeys());
+    }
+
+    private static Map<Integer, String> keyring(String masterKey, int keyId, Map<Integer, String> others) {
+        if (masterKey == null || masterKey.isBlank()) {
             throw new IllegalStateException("Missing required property app.enc.master-key (Base64-encoded 256-bit key)");
         }
-        byte[] keyBytes = Base64.getDecoder().decode(b64Key);
-        if (keyBytes.length != 32) {
+        if (Base64.getDecoder().decode(masterKey).length != 32) {
             throw new IllegalStateException("app.enc.master-key must be 32 bytes (256-bit) when Base64-decoded");
         }
-        this.key = new SecretKeySpec(keyBytes, ALGO);
+        String other = others.get(keyId);
+        if (other != null && !other.equals(masterKey)) {
+            throw new IllegalStateException("app.enc.keys." + keyId + " conflicts with app.enc.master-key");
+        }
+        Map<Integer, String> keys = new HashMap<>(others);
+        keys.put(keyId, masterKey);
+        return keys;
+    }
+
+    private SecretKey keyFor(int id, String property) {
+        SecretKey k = id >= 0 && id < keyring.length ? keyring[id] : null;
+        if (k == null) throw new IllegalStateException(property + " " + id + " is not in the keyring");
+        return k;
     }
 
     @Override
     public String encrypt(String plainText) {
         if (plainText == null) return null;
+        byte[] plain = plainText.getBytes(StandardCharsets.UTF_8);
+        byte[] envelope = new byte[TEXT_HEADER_LENGTH + plain.length + TAG_LENGTH_BYTES];
+        Engine engine = ENGINES.get();
         try {
-            byte[] iv = new byte[IV_LENGTH_BYTES];
-            secureRandom.nextBytes(iv);
-
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
-            byte[] cipherBytes = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
-
-            // package as: [version=1 byte][iv][cipher]
-            byte version = 1;
-            ByteBuffer bb = ByteBuffer.allocate(1 + iv.length + cipherBytes.length);
-            bb.put(version);
-            bb.put(iv);
-            bb.put(cipherBytes);
-            return Base64.getEncoder().encodeToString(bb.array());
-        } catch (Exception e) {
+            envelope[0] = TEXT_VERSION;
+            GCMParameterSpec spec = engine.nextIv();
+            System.arraycopy(engine.iv, 0, envelope, 1, IV_LENGTH_BYTES);
+            engine.cipher.init(Cipher.ENCRYPT_MODE, textKey, spec);
+            engine.cipher.doFinal(plain, 0, plain.length, envelope, TEXT_HEADER_LENGTH);
+        } catch (GeneralSecurityException e) {
             throw new IllegalStateException("Encryption failed", e);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
         }
+        byte[] encoded = engine.scratch((envelope.length + 2) / 3 * 4);
+        int length = Base64.getEncoder().encode(envelope, encoded);
+        return new String(encoded, 0, length, StandardCharsets.ISO_8859_1);
     }
 
     @Override
     public String decrypt(String cipherText) {
         if (cipherText == null) return null;
+        byte[] packed;
         try {
-            byte[] packed = Base64.getDecoder().decode(cipherText);
-            ByteBuffer bb = ByteBuffer.wrap(packed);
-            byte version = bb.get();
-            if (version != 1) {
-                throw new IllegalStateException("Unsupported crypto payload version: " + version);
-            }
-            byte[] iv = new byte[IV_LENGTH_BYTES];
-            bb.get(iv);
-            byte[] cipherBytes = new byte[bb.remaining()];
-            bb.get(cipherBytes);
-
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
-            byte[] plain = cipher.doFinal(cipherBytes);
-            return new String(plain, StandardCharsets.UTF_8);
-        } catch (Exception e) {
+            packed = Base64.getDecoder().decode(cipherText);
+        } catch (IllegalArgumentException e) {
             throw new IllegalStateException("Decryption failed", e);
         }
+        return decryptBytes(packed);
+    }
+
+    @Override
+    public byte[] encryptToBytes(String plainText) {
+        if (plainText == null) return null;
+        byte[] plain = plainText.getBytes(StandardCharsets.UTF_8);
+        byte[] envelope = new byte[encryptedLength(plain.length)];
+        Engine engine = ENGINES.get();
+        try {
+            envelope[0] = BINARY_VERSION;
+            envelope[1] = keyId;
+            GCMParameterSpec spec = engine.nextIv();
+            System.arraycopy(engine.iv, 0, envelope, 2, IV_LENGTH_BYTES);
+            engine.cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+            engine.cipher.doFinal(plain, 0, plain.length, envelope, BINARY_HEADER_LENGTH);
+            return envelope;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Encryption failed", e);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    @Override
+    public String decryptBytes(byte[] envelope) {
+        if (envelope == null) return null;
+        int header = headerLength(envelope.length > 0 ? envelope[0] : 0);
+        if (envelope.length < header + TAG_LENGTH_BYTES) throw new IllegalStateException("Truncated crypto payload");
+        SecretKey k = header == BINARY_HEADER_LENGTH ? keyOf(envelope[1]) : textKey;
+        Engine engine = ENGINES.get();
+        byte[] plain = engine.scratch(envelope.length - header - TAG_LENGTH_BYTES);
+        int length = 0;
+        try {
+            engine.cipher.init(Cipher.DECRYPT_MODE, k,
+                    new GCMParameterSpec(GCM_TAG_LENGTH_BITS, envelope, header - IV_LENGTH_BYTES, IV_LENGTH_BYTES));
+            length = engine.cipher.doFinal(envelope, header, envelope.length - header, plain, 0);
+            return new String(plain, 0, length, StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Decryption failed", e);
+        } finally {
+            Arrays.fill(plain, 0, length, (byte) 0); // no plaintext left behind in the thread's scratch
+        }
+    }
+
+    @Override
+    public int encrypt(ByteBuffer plain, ByteBuffer out) {
+        if (out.remaining() < encryptedLength(plain.remaining())) {
+            throw new IllegalArgumentException("Output buffer too small for encrypted payload");
+        }
+        Engine engine = ENGINES.get();
+        int start = out.position();
+        try {
+            GCMParameterSpec spec = engine.nextIv();
+            out.put(BINARY_VERSION).put(keyId).put(engine.iv);
+            engine.cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+            engine.cipher.doFinal(plain, out);
+        } catch (GeneralSecurityException e) {
+            out.position(start);
+            throw new IllegalStateException("Encryption failed", e);
+        }
+        return out.position() - start;
+    }
+
+    @Override
+    public int decrypt(ByteBuffer envelope, ByteBuffer out) {
+        int start = envelope.position();
+        int header = headerLength(envelope.hasRemaining() ? envelope.get(start) : 0);
+        if (envelope.remaining() < header + TAG_LENGTH_BYTES) throw new IllegalStateException("Truncated crypto payload");
+        if (out.remaining() < envelope.remaining() - header - TAG_LENGTH_BYTES) {
+            throw new IllegalArgumentException("Output buffer too small for decrypted payload");
+        }
+        SecretKey k = header == BINARY_HEADER_LENGTH ? keyOf(envelope.get(start + 1)) : textKey;
+        Engine engine = ENGINES.get();
+        envelope.position(start + header - IV_LENGTH_BYTES).get(engine.iv);
+        try {
+            engine.cipher.init(Cipher.DECRYPT_MODE, k, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, engine.iv));
+            return engine.cipher.doFinal(envelope, out);
+        } catch (GeneralSecurityException e) {
+            envelope.position(start);
+            throw new IllegalStateException("Decryption failed", e);
+        }
+    }
+
+    @Override
+    public int encryptedLength(int plainLength) {
+        return BINARY_HEADER_LENGTH + plainLength + TAG_LENGTH_BYTES;
+    }
+
+    private static int headerLength(byte version) {
+        return switch (version) {
+            case TEXT_VERSION -> TEXT_HEADER_LENGTH;
+            case BINARY_VERSION -> BINARY_HEADER_LENGTH;
+            default -> throw new IllegalStateException("Unsupported crypto payload version: " + version);
+        };
+    }
+
+    @Override
+    public int activeKeyId() {
+        return keyId & 0xff;
+    }
+
+    private SecretKey keyOf(byte id) {
+        SecretKey k = keyring[id & 0xff];
+        if (k == null) throw new IllegalStateException("Unknown key id: " + (id & 0xff));
+        return k;
     }
 
     // helper to generate a random key for local use (not used by runtime)
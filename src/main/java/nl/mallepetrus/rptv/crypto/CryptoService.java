@@ -1,6 +1,32 @@
 package nl.mallepetrus.rptv.crypto;
 
+import java.nio.ByteBuffer;
+
 public interface CryptoService {
     String encrypt(String plainText);
     String decrypt(String cipherText);
+
+    /** Encrypts into a binary envelope that carries the key id, for {@code bytea} columns. */
+    byte[] encryptToBytes(String plainText);
+
+    /** Reverses {@link #encryptToBytes}; also accepts the raw (Base64-decoded) text envelope. */
+    String decryptBytes(byte[] envelope);
+
+    /**
+     * Encrypts the remaining bytes of {@code plain} into {@code out} as a binary envelope, the same
+     * bytes {@link #encryptToBytes} returns. Returns the number of bytes written.
+     */
+    int encrypt(ByteBuffer plain, ByteBuffer out);
+
+    /**
+     * Decrypts the remaining bytes of an envelope into {@code out}, which never needs more room than
+     * the envelope itself. Returns the number of bytes written.
+     */
+    int decrypt(ByteBuffer envelope, ByteBuffer out);
+
+    /** Size of the binary envelope for a plaintext of the given length. */
+    int encryptedLength(int plainLength);
+
+    /** Key id new binary envelopes carry, at byte offset 1 (version 2). */
+    int activeKeyId();
 }
@@ -1,6 +1,8 @@
 package nl.mallepetrus.rptv.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
+import nl.mallepetrus.rptv.persistence.EncryptedBytesConverter;
 import nl.mallepetrus.rptv.persistence.EncryptedStringConverter;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
@@ -17,6 +19,7 @@ public class XtreamAccount {
     @GeneratedValue
     private UUID id;
 
+    @JsonIgnore // owner is implied by the request; never expose the user row
     @ManyToOne(optional = false, fetch = FetchType.LAZY)
     @JoinColumn(name = "user_id", nullable = false)
     private User user;
@@ -27,12 +30,26 @@ public class XtreamAccount {
     @Column(name = "api_url", nullable = false, length = 512)
     private String apiUrl;
 
+    @JsonIgnore
+    @Convert(converter = EncryptedBytesConverter.class)
+    @Column(name = "username_ct")
+    private String username;
+
+    @JsonIgnore
+    @Convert(converter = EncryptedBytesConverter.class)
+    @Column(name = "password_ct")
+    private String password;
+
+    // Pre-V4 text columns: still encrypted once more by the controller of the time. Read only until
+    // CredentialColumnMigration has moved the row to the binary columns, then NULL.
+    @JsonIgnore
     @Convert(converter = EncryptedStringConverter.class)
-    @Column(name = "username_enc", nullable = false, length = 2048)
+    @Column(name = "username_enc", length = 2048)
     private String usernameEnc;
 
+    @JsonIgnore
     @Convert(converter = EncryptedStringConverter.class)
-    @Column(name = "password_enc", nullable = false, length = 2048)
+    @Column(name = "password_enc", length = 2048)
     private String passwordEnc;
 
     @CreationTimestamp
@@ -51,6 +68,10 @@ public class XtreamAccount {
     public void setName(String name) { this.name = name; }
     public String getApiUrl() { return apiUrl; }
     public void setApiUrl(String apiUrl) { this.apiUrl = apiUrl; }
+    public String getUsername() { return username; }
+    public void setUsername(String username) { this.username = username; this.usernameEnc = null; }
+    public String getPassword() { return password; }
+    public void setPassword(String password) { this.password = password; this.passwordEnc = null; }
     public String getUsernameEnc() { return usernameEnc; }
     public void setUsernameEnc(String usernameEnc) { this.usernameEnc = usernameEnc; }
     public String getPasswordEnc() { return passwordEnc; }
@@ -0,0 +1,303 @@
+package nl.mallepetrus.rptv.epg;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, time-indexed programme guide of one upstream.
+ * <p>
+ * Programmes are grouped by channel (channels sorted by id) and sorted by start within a channel,
+ * in primitive columns: epoch-second starts and stops, and title and description codes into a
+ * string dictionary packed as UTF-8, as in {@code ColumnarCatalog}. A running maximum of the stops
+ * per channel is non-decreasing, so the first programme still on air at a given time is found by
+ * binary search even when a provider's programmes overlap.
+ */
+public final class EpgGuide {
+    private static final int NONE = -1;
+    private static final int MAGIC = 0x45504731; // "EPG1"
+
+    public record Programme(Instant start, Instant stop, String title, String description) {}
+
+    private final String[] channels;
+    private final int[] channelStarts; // first row per channel, plus the end of the last one
+    private final long[] starts;
+    private final long[] stops;
+    private final long[] maxStops;
+    private final int[] titles;
+    private final int[] descriptions;
+    private final byte[] stringData;
+    private final int[] stringOffsets;
+
+    private EpgGuide(String[] channels, int[] channelStarts, long[] starts, long[] stops, int[] titles,
+                     int[] descriptions, byte[] stringData, int[] stringOffsets) {
+        this.channels = channels;
+        this.channelStarts = channelStarts;
+        this.starts = starts;
+        this.stops = stops;
+        this.titles = titles;
+        this.descriptions = descriptions;
+        this.stringData = stringData;
+        this.stringOffsets = stringOffsets;
+        this.maxStops = new long[stops.length];
+        for (int c = 0; c < channels.length; c++) {
+            long max = Long.MIN_VALUE;
+            for (int row = channelStarts[c]; row < channelStarts[c + 1]; row++) {
+                max = Math.max(max, stops[row]);
+                maxStops[row] = max;
+            }
+        }
+    }
+
+    public static Builder builder(Instant notBefore, Instant notAfter, int maxProgrammes) {
+        return new Builder(notBefore.getEpochSecond(), notAfter.getEpochSecond(), maxProgrammes);
+    }
+
+    public int size() { return starts.length; }
+
+    public int channelCount() { return channels.length; }
+
+    /** Programmes of {@code channel} that are on air at some point in {@code [from, to)}, by start. */
+    public List<Programme> programmes(String channel, Instant from, Instant to) {
+        int c = Arrays.binarySearch(channels, channel);
+        if (c < 0) return List.of();
+        long fromSecond = from.getEpochSecond(), toSecond = to.getEpochSecond();
+        int lo = channelStarts[c], hi = channelStarts[c + 1];
+        while (lo < hi) { // first row whose running stop maximum is after from
+            int mid = (lo + hi) >>> 1;
+            if (maxStops[mid] > fromSecond) hi = mid; else lo = mid + 1;
+        }
+        List<Programme> result = new ArrayList<>();
+        for (int row = lo; row < channelStarts[c + 1] && starts[row] < toSecond; row++) {
+            if (stops[row] > fromSecond) {
+                result.add(new Programme(Instant.ofEpochSecond(starts[row]), Instant.ofEpochSecond(stops[row]),
+                        string(titles[row]), string(descriptions[row])));
+            }
+        }
+        return result;
+    }
+
+    /** Approximate retained size, used to weigh the guide in caches. */
+    public long estimatedBytes() {
+        long channelBytes = 0;
+        for (String channel : channels) channelBytes += 48 + channel.length();
+        return 64L + channelBytes + 4L * channelStarts.length + (long) starts.length * (8 * 3 + 4 * 2)
+                + stringData.length + 4L * stringOffsets.length;
+    }
+
+    private String string(int code) {
+        if (code == NONE) return null;
+        int start = stringOffsets[code];
+        return new String(stringData, start, stringOffsets[code + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    /** Writes the guide in the format {@link #readFrom} expects. */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(channels.length);
+        for (int c = 0; c < channels.length; c++) {
+            out.writeUTF(channels[c]);
+            out.writeInt(channelStarts[c + 1]);
+        }
+        out.writeInt(starts.length);
+        for (int row = 0; row < starts.length; row++) {
+            out.writeLong(starts[row]);
+            out.writeLong(stops[row]);
+            out.writeInt(titles[row]);
+            out.writeInt(descriptions[row]);
+        }
+        out.writeInt(stringOffsets.length);
+        for (int offset : stringOffsets) out.writeInt(offset);
+        out.writeInt(stringData.length);
+        out.write(stringData);
+    }
+
+    public static EpgGuide readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("Not an EPG guide file");
+        String[] channels = new String[in.readInt()];
+        int[] channelStarts = new int[channels.length + 1];
+        for (int c = 0; c < channels.length; c++) {
+            channels[c] = in.readUTF();
+            channelStarts[c + 1] = in.readInt();
+        }
+        int size = in.readInt();
+        long[] starts = new long[size], stops = new long[size];
+        int[] titles = new int[size], descriptions = new int[size];
+        for (int row = 0; row < size; row++) {
+            starts[row] = in.readLong();
+            stops[row] = in.readLong();
+            titles[row] = in.readInt();
+            descriptions[row] = in.readInt();
+        }
+        int[] stringOffsets = new int[in.readInt()];
+        for (int i = 0; i < stringOffsets.length; i++) stringOffsets[i] = in.readInt();
+        byte[] stringData = new byte[in.readInt()];
+        in.readFully(stringData);
+        return new EpgGuide(channels, channelStarts, starts, stops, titles, descriptions, stringData, stringOffsets);
+    }
+
+    /**
+     * Accumulates programmes in arrival order; not thread-safe. Programmes entirely outside
+     * {@code [notBefore, notAfter)} are dropped and at most {@code maxProgrammes} are kept, so a
+     * guide of any size is ingested in bounded memory.
+     */
+    public static final class Builder {
+        private static final long MISSING = Long.MIN_VALUE;
+
+        private final long notBefore;
+        private final long notAfter;
+        private final int maxProgrammes;
+        private final Map<String, Integer> channelIds = new HashMap<>();
+        private final List<String> channelNames = new ArrayList<>();
+        private final Map<String, Integer> codes = new HashMap<>();
+        private byte[] stringData = new byte[64 * 1024];
+        private int[] stringOffsets = new int[1025];
+        private int stringLength;
+        private int size;
+        private int[] channelOf = new int[1024];
+        private long[] starts = new long[1024];
+        private long[] stops = new long[1024];
+        private int[] titles = new int[1024];
+        private int[] descriptions = new int[1024];
+        private int dropped;
+
+        private Builder(long notBefore, long notAfter, int maxProgrammes) {
+            this.notBefore = notBefore;
+            this.notAfter = notAfter;
+            this.maxProgrammes = maxProgrammes;
+        }
+
+        public int size() { return size; }
+
+        /** Programmes refused because the builder was full. */
+        public int dropped() { return dropped; }
+
+        /**
+         * Adds a programme, times in epoch seconds; a missing stop ({@link Long#MIN_VALUE}) becomes
+         * the start of the channel's next programme. Returns false once the builder is full.
+         */
+        public boolean add(String channel, long start, long stop, String title, String description) {
+            if (start >= notAfter || (stop != MISSING && stop <= notBefore)) return true;
+            if (size == maxProgrammes) {
+                dropped++;
+                return false;
+            }
+            if (size == starts.length) grow();
+            Integer c = channelIds.get(channel);
+            if (c == null) {
+                c = channelNames.size();
+                channelIds.put(channel, c);
+                channelNames.add(channel);
+            }
+            channelOf[size] = c;
+            starts[size] = start;
+            stops[size] = stop;
+            titles[size] = code(title);
+            descriptions[size] = code(description);
+            size++;
+            return true;
+        }
+
+        /**
+         * Keeps the programmes of {@code previous} that the new data no longer covers: per channel,
+         * those starting before the channel's first new programme (or all of them when the channel
+         * is absent), within this builder's window. Call after the new data has been added.
+         */
+        public Builder keep(EpgGuide previous) {
+            if (previous == null) return this;
+            long[] firstNew = new long[channelNames.size()];
+            Arrays.fill(firstNew, Long.MAX_VALUE);
+            for (int row = 0; row < size; row++) firstNew[channelOf[row]] = Math.min(firstNew[channelOf[row]], starts[row]);
+            for (int c = 0; c < previous.channels.length; c++) {
+                Integer current = channelIds.get(previous.channels[c]);
+                long until = current == null ? Long.MAX_VALUE : firstNew[current];
+                for (int row = previous.channelStarts[c]; row < previous.channelStarts[c + 1]; row++) {
+                    if (previous.starts[row] >= until) break;
+                    add(previous.channels[c], previous.starts[row], Math.min(previous.stops[row], until),
+                            previous.string(previous.titles[row]), previous.string(previous.descriptions[row]));
+                }
+            }
+            return this;
+        }
+
+        public EpgGuide build() {
+            String[] sortedChannels = channelNames.toArray(String[]::new);
+            Arrays.sort(sortedChannels);
+            int[] rank = new int[sortedChannels.length];
+            for (int i = 0; i < sortedChannels.length; i++) rank[channelIds.get(sortedChannels[i])] = i;
+
+            // rows bucketed by channel, then each bucket sorted by start through packed (start, row) keys
+            int[] channelStarts = new int[sortedChannels.length + 1];
+            for (int row = 0; row < size; row++) channelStarts[rank[channelOf[row]] + 1]++;
+            for (int c = 0; c < sortedChannels.length; c++) channelStarts[c + 1] += channelStarts[c];
+            int[] next = Arrays.copyOf(channelStarts, sortedChannels.length);
+            int[] order = new int[size];
+            for (int row = 0; row < size; row++) order[next[rank[channelOf[row]]]++] = row;
+
+            long[] outStarts = new long[size], outStops = new long[size];
+            int[] outTitles = new int[size], outDescriptions = new int[size];
+            for (int c = 0; c < sortedChannels.length; c++) {
+                int from = channelStarts[c], to = channelStarts[c + 1];
+                long min = Long.MAX_VALUE;
+                for (int i = from; i < to; i++) min = Math.min(min, starts[order[i]]);
+                long[] packed = new long[to - from];
+                for (int i = from; i < to; i++) {
+                    long offset = Math.min(starts[order[i]] - min, Integer.MAX_VALUE);
+                    packed[i - from] = offset << 32 | order[i];
+                }
+                Arrays.sort(packed);
+                for (int i = from; i < to; i++) {
+                    int row = (int) packed[i - from];
+                    outStarts[i] = starts[row];
+                    outStops[i] = stops[row];
+                    outTitles[i] = titles[row];
+                    outDescriptions[i] = descriptions[row];
+                }
+            }
+            for (int c = 0; c < sortedChannels.length; c++) {
+                for (int i = channelStarts[c]; i < channelStarts[c + 1]; i++) {
+                    if (outStops[i] != MISSING) continue;
+                    boolean last = i + 1 == channelStarts[c + 1];
+                    outStops[i] = last ? outStarts[i] + 3600 : Math.max(outStarts[i + 1], outStarts[i] + 1);
+                }
+            }
+            return new EpgGuide(sortedChannels, channelStarts, outStarts, outStops, outTitles, outDescriptions,
+                    Arrays.copyOf(stringData, stringLength), Arrays.copyOf(stringOffsets, codes.size() + 1));
+        }
+
+        private int code(String s) {
+            if (s == null) return NONE;
+            Integer existing = codes.get(s);
+            if (existing != null) return existing;
+            int code = codes.size();
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (stringLength + bytes.length > stringData.length) {
+                stringData = Arrays.copyOf(stringData, Math.max(stringData.length * 2, stringLength + bytes.length));
+            }
+            if (code + 2 > stringOffsets.length) {
+                stringOffsets = Arrays.copyOf(stringOffsets, stringOffsets.length * 2);
+            }
+            System.arraycopy(bytes, 0, stringData, stringLength, bytes.length);
+            stringLength += bytes.length;
+            stringOffsets[code + 1] = stringLength;
+            codes.put(s, code);
+            return code;
+        }
+
+        private void grow() {
+            int capacity = starts.length * 2;
+            channelOf = Arrays.copyOf(channelOf, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            stops = Arrays.copyOf(stops, capacity);
+            titles = Arrays.copyOf(titles, capacity);
+            descriptions = Arrays.copyOf(descriptions, capacity);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package nl.mallepetrus.rptv.epg;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import nl.mallepetrus.rptv.service.XtreamCredentialCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+
+/**
+ * XMLTV guides per provider URL, shared by every account on it, as {@link EpgGuide}s.
+ * <p>
+ * A guide is fetched on first use: {@code xmltv.php} is spooled to a file in {@code dir} (never to
+ * the heap), pull-parsed into a builder limited to the retention window and {@code maxProgrammes},
+ * and the result is written next to it. After {@code refreshInterval} the next query triggers a
+ * background refresh with the stored ETag / Last-Modified, so an unchanged guide costs a 304; a
+ * changed one is merged with the programmes the new file no longer lists. After a restart the
+ * stored guide is loaded from disk and only refetched once it is due.
+ * <p>
+ * Only the ids of the last few accounts that queried a provider URL are kept; their credentials are
+ * resolved through {@link XtreamCredentialCache} when a fetch needs them, and when one login is
+ * refused or gone the next account is tried.
+ */
+@Service
+public class EpgService {
+    private static final Logger log = LoggerFactory.getLogger(EpgService.class);
+    private static final int FILE_MAGIC = 0x45504753; // "EPGS"
+    private static final int MAX_ACCOUNTS_PER_SOURCE = 4;
+
+    /** A guide with the validators of the upstream response it came from. */
+    record Snapshot(EpgGuide guide, String etag, String lastModified, Instant fetchedAt) {}
+
+    private record Download(Path file, String etag, String lastModified) {
+        boolean notModified() { return file == null; }
+    }
+
+    private final WebClient webClient;
+    private final XtreamCredentialCache credentialCache;
+    private final AppProps.EpgProps props;
+    private final Path dir;
+    private final XmltvReader reader;
+    /** Accounts that queried each provider URL, most recent last; replaced, never changed in place. */
+    private final Map<String, Set<UUID>> accounts = new ConcurrentHashMap<>();
+    private final AsyncLoadingCache<String, Snapshot> guides;
+    private final MeterRegistry meterRegistry;
+
+    public EpgService(WebClient webClient, XtreamCredentialCache credentialCache, AppProps.EpgProps props,
+                      MeterRegistry meterRegistry) throws IOException {
+        this.webClient = webClient;
+        this.credentialCache = credentialCache;
+        this.props = props;
+        this.meterRegistry = meterRegistry;
+        this.dir = Path.of(props.getDir());
+        this.reader = new XmltvReader(props.getMaxDescriptionChars());
+        Files.createDirectories(dir);
+        try (Stream<Path> leftovers = Files.list(dir)) {
+            leftovers.filter(p -> p.getFileName().toString().endsWith(".part")).forEach(EpgService::deleteQuietly);
+        }
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService ingest = Executors.newFixedThreadPool(Math.max(1, props.getIngestThreads()), r -> {
+            Thread t = new Thread(r, "rptv-epg-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.guides = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumWeight(props.getMaxBytes())
+                .<String, Snapshot>weigher((k, v) -> (int) Math.min(Integer.MAX_VALUE, v.guide().estimatedBytes()))
+                .expireAfterAccess(props.getIdle())
+                .refreshAfterWrite(props.getRefreshInterval())
+                .removalListener((String source, Snapshot v, RemovalCause cause) -> {
+                    if (cause.wasEvicted()) accounts.remove(source);
+                })
+                .executor(ingest)
+                .recordStats()
+                .buildAsync(new CacheLoader<String, Snapshot>() {
+                    @Override
+                    public Snapshot load(String source) {
+                        return loadOrFetch(source);
+                    }
+
+                    @Override
+                    public Snapshot reload(String source, Snapshot previous) {
+                        return fetch(source, previous);
+                    }
+                }), "rptv.epg");
+    }
+
+    /**
+     * Programmes of {@code channel} (an {@code epg_channel_id}) on air within {@code [from, to)};
+     * {@code accountId}, whose upstream this is, becomes the first login tried for the guide.
+     */
+    public CompletableFuture<List<EpgGuide.Programme>> programmes(UUID accountId, XtreamUpstream upstream, String channel,
+                                                                  Instant from, Instant to) {
+        if (!to.isAfter(from)) throw new ResponseStatusException(BAD_REQUEST, "'to' must be after 'from'");
+        if (Duration.between(from, to).compareTo(props.getMaxQueryWindow()) > 0) {
+            throw new ResponseStatusException(BAD_REQUEST, "Window is longer than " + props.getMaxQueryWindow());
+        }
+        String source = upstream.baseUrl();
+        accounts.compute(source, (k, ids) -> {
+            Set<UUID> updated = ids == null ? new LinkedHashSet<>() : new LinkedHashSet<>(ids);
+            updated.remove(accountId);
+            updated.add(accountId);
+            if (updated.size() > MAX_ACCOUNTS_PER_SOURCE) updated.remove(updated.iterator().next());
+            return updated;
+        });
+        return guides.get(source).thenApply(snapshot -> snapshot.guide().programmes(channel, from, to));
+    }
+
+    private Snapshot loadOrFetch(String source) {
+        Snapshot stored = readStored(source);
+        if (stored != null && stored.fetchedAt().plus(props.getRefreshInterval()).isAfter(Instant.now())) {
+            log.info("EPG of {} loaded from disk: {} programmes", source, stored.guide().size());
+            return stored;
+        }
+        try {
+            return fetch(source, stored);
+        } catch (RuntimeException e) {
+            if (stored == null) throw e;
+            log.warn("EPG refresh of {} failed, serving the stored guide: {}", source, e.toString());
+            return stored;
+        }
+    }
+
+    private Snapshot fetch(String source, Snapshot previous) {
+        Download download = download(source, previous);
+        Instant now = Instant.now();
+        EpgGuide.Builder builder = EpgGuide.builder(now.minus(props.getPastRetention()),
+                now.plus(props.getFutureLimit()), props.getMaxProgrammes());
+        if (download.notModified()) {
+            count("not_modified");
+            // still rebuilt, so programmes that fell out of the window are released
+            EpgGuide guide = builder.keep(previous.guide()).build();
+            return persist(source, new Snapshot(guide, previous.etag(), previous.lastModified(), now));
+        }
+        try {
+            int seen;
+            try (InputStream in = open(download.file())) {
+                seen = reader.read(in, builder);
+            }
+            if (builder.dropped() > 0) {
+                log.warn("EPG of {} exceeds {} programmes, the rest is ignored", source, props.getMaxProgrammes());
+            }
+            EpgGuide guide = builder.keep(previous == null ? null : previous.guide()).build();
+            count("parsed");
+            log.info("EPG of {} ingested: {} of {} programmes kept, {} channels", source, guide.size(), seen,
+                    guide.channelCount());
+            return persist(source, new Snapshot(guide, download.etag(), download.lastModified(), now));
+        } catch (IOException | XMLStreamException e) {
+            count("failed");
+            throw new ResponseStatusException(BAD_GATEWAY, "Unreadable XMLTV guide", e);
+        } finally {
+            deleteQuietly(download.file());
+        }
+    }
+
+    /** Downloads with the most recent account's login, falling back to the others when it fails. */
+    private Download download(String source, Snapshot previous) {
+        List<UUID> ids = new ArrayList<>(accounts.getOrDefault(source, Set.of()));
+        Collections.reverse(ids);
+        RuntimeException failure = null;
+        for (UUID accountId : ids) {
+            XtreamUpstream upstream;
+            try {
+                upstream = credentialCache.resolve(accountId);
+            } catch (ResponseStatusException e) {
+                forget(source, accountId); // deleted
+                continue;
+            }
+            if (!upstream.baseUrl().equals(source)) {
+                forget(source, accountId); // moved to another provider
+                continue;
+            }
+            try {
+                return download(upstream, previous);
+            } catch (RuntimeException e) {
+                log.debug("EPG download of {} with account {} failed: {}", source, accountId, e.toString());
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+        throw new IllegalStateException("No account known for " + source);
+    }
+
+    private void forget(String source, UUID accountId) {
+        accounts.computeIfPresent(source, (k, ids) -> {
+            Set<UUID> updated = new LinkedHashSet<>(ids);
+            updated.remove(accountId);
+            return updated.isEmpty() ? null : updated;
+        });
+    }
+
+    /** Spools the guide to a file; a 304 against the previous validators yields {@link Download#notModified}. */
+    private Download download(XtreamUpstream upstream, Snapshot previous) {
+        Path file;
+        try {
+            file = Files.createTempFile(dir, "xmltv-", ".part");
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot create EPG download file in " + dir, e);
+        }
+        AtomicLong received = new AtomicLong();
+        try {
+            Download download = webClient.get().uri(upstream.xmltvUri())
+                    .headers(h -> {
+                        if (previous == null) return;
+                        if (previous.etag() != null) h.setIfNoneMatch(previous.etag());
+                        if (previous.lastModified() != null) h.set(HttpHeaders.IF_MODIFIED_SINCE, previous.lastModified());
+                    })
+                    .exchangeToMono(resp -> {
+                        if (resp.statusCode().value() == HttpStatus.NOT_MODIFIED.value() && previous != null) {
+                            return resp.releaseBody().thenReturn(new Download(null, null, null));
+                        }
+                        if (!resp.statusCode().is2xxSuccessful()) {
+                            return resp.releaseBody().then(Mono.<Download>error(new ResponseStatusException(BAD_GATEWAY,
+                                    "Upstream answered " + resp.statusCode().value() + " for xmltv.php")));
+                        }
+                        HttpHeaders headers = resp.headers().asHttpHeaders();
+                        Flux<DataBuffer> body = resp.bodyToFlux(DataBuffer.class).doOnNext(buffer -> {
+                            if (received.addAndGet(buffer.readableByteCount()) > props.getMaxDownloadBytes()) {
+                                DataBufferUtils.release(buffer);
+                                throw new ResponseStatusException(BAD_GATEWAY, "XMLTV guide exceeds "
+                                        + props.getMaxDownloadBytes() + " bytes");
+                            }
+                        });
+                        return DataBufferUtils.write(body, file)
+                                .thenReturn(new Download(file, headers.getETag(), headers.getFirst(HttpHeaders.LAST_MODIFIED)));
+                    })
+                    .timeout(props.getDownloadTimeout())
+                    .block();
+            if (download == null || download.notModified()) deleteQuietly(file);
+            if (download == null) throw new ResponseStatusException(BAD_GATEWAY, "Empty xmltv.php response");
+            return download;
+        } catch (RuntimeException e) {
+            deleteQuietly(file);
+            count("failed");
+            throw e;
+        }
+    }
+
+    /** The spooled body, un-gzipped when the provider serves a {@code .xml.gz} as-is. */
+    private static InputStream open(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+        in.mark(2);
+        int b1 = in.read(), b2 = in.read();
+        in.reset();
+        return b1 == 0x1f && b2 == 0x8b ? new GZIPInputStream(in, 64 * 1024) : in;
+    }
+
+    private Snapshot persist(String source, Snapshot snapshot) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir, "guide-", ".part");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+                out.writeInt(FILE_MAGIC);
+                out.writeUTF(source);
+                out.writeUTF(snapshot.etag() == null ? "" : snapshot.etag());
+                out.writeUTF(snapshot.lastModified() == null ? "" : snapshot.lastModified());
+                out.writeLong(snapshot.fetchedAt().toEpochMilli());
+                snapshot.guide().writeTo(out);
+            }
+            Files.move(tmp, fileOf(source), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the guide is still served from memory; only a restart would refetch it
+            log.warn("Cannot store the EPG of {}: {}", source, e.toString());
+            if (tmp != null) deleteQuietly(tmp);
+        }
+        return snapshot;
+    }
+
+    private Snapshot readStored(String source) {
+        Path file = fileOf(source);
+        if (!Files.exists(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            if (in.readInt() != FILE_MAGIC || !source.equals(in.readUTF())) return null;
+            String etag = in.readUTF(), lastModified = in.readUTF();
+            Instant fetchedAt = Instant.ofEpochMilli(in.readLong());
+            return new Snapshot(EpgGuide.readFrom(in), etag.isEmpty() ? null : etag,
+                    lastModified.isEmpty() ? null : lastModified, fetchedAt);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable stored EPG {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    private Path fileOf(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            return dir.resolve(HexFormat.of().formatHex(digest, 0, 16) + ".epg");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void count(String result) {
+        meterRegistry.counter("rptv.epg.fetches", "result", result).increment();
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Cannot delete {}: {}", file, e.toString());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package nl.mallepetrus.rptv.epg;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Pull-parses the {@code <programme>} elements of an XMLTV document into an {@link EpgGuide.Builder}.
+ * Only the current element is held, so memory does not grow with the file; channel definitions,
+ * icons, credits and the like are skipped. DTDs and external entities are not processed.
+ */
+public final class XmltvReader {
+    private static final XMLInputFactory FACTORY = factory();
+
+    private final int maxDescriptionChars;
+
+    public XmltvReader(int maxDescriptionChars) {
+        this.maxDescriptionChars = maxDescriptionChars;
+    }
+
+    /** Reads until the end of the document or until the builder is full; returns the programmes seen. */
+    public int read(InputStream in, EpgGuide.Builder builder) throws XMLStreamException {
+        XMLStreamReader r = FACTORY.createXMLStreamReader(in);
+        int seen = 0;
+        try {
+            while (r.hasNext()) {
+                if (r.next() != XMLStreamConstants.START_ELEMENT || !"programme".equals(r.getLocalName())) continue;
+                String channel = r.getAttributeValue(null, "channel");
+                long start = parseTime(r.getAttributeValue(null, "start"));
+                long stop = parseTime(r.getAttributeValue(null, "stop"));
+                String title = null, description = null;
+                while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    String element = r.getLocalName();
+                    if ("title".equals(element) && title == null) {
+                        title = r.getElementText().strip();
+                    } else if ("desc".equals(element) && description == null) {
+                        description = truncate(r.getElementText().strip());
+                    } else {
+                        skipElement(r);
+                    }
+                }
+                seen++;
+                if (channel == null || start == Long.MIN_VALUE) continue;
+                if (!builder.add(channel, start, stop, title, description)) break;
+            }
+        } finally {
+            r.close();
+        }
+        return seen;
+    }
+
+    /**
+     * XMLTV times: {@code yyyyMMddHHmm[ss]} with an optional {@code +HHMM} offset (UTC without);
+     * epoch seconds, or {@link Long#MIN_VALUE} when absent or malformed.
+     */
+    static long parseTime(String value) {
+        if (value == null) return Long.MIN_VALUE;
+        String v = value.strip();
+        int digits = 0;
+        while (digits < v.length() && digits < 14 && Character.isDigit(v.charAt(digits))) digits++;
+        if (digits != 12 && digits != 14) return Long.MIN_VALUE;
+        try {
+            LocalDateTime local = LocalDateTime.of(
+                    Integer.parseInt(v, 0, 4, 10), Integer.parseInt(v, 4, 6, 10), Integer.parseInt(v, 6, 8, 10),
+                    Integer.parseInt(v, 8, 10, 10), Integer.parseInt(v, 10, 12, 10),
+                    digits == 14 ? Integer.parseInt(v, 12, 14, 10) : 0);
+            String zone = v.substring(digits).strip();
+            ZoneOffset offset = ZoneOffset.UTC;
+            if (zone.length() == 5 && (zone.charAt(0) == '+' || zone.charAt(0) == '-')) {
+                int sign = zone.charAt(0) == '-' ? -1 : 1;
+                offset = ZoneOffset.ofHoursMinutes(sign * Integer.parseInt(zone, 1, 3, 10),
+                        sign * Integer.parseInt(zone, 3, 5, 10));
+            }
+            return local.toEpochSecond(offset);
+        } catch (RuntimeException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private String truncate(String description) {
+        if (description.isEmpty()) return null;
+        if (description.length() <= maxDescriptionChars) return description;
+        int end = maxDescriptionChars;
+        if (Character.isHighSurrogate(description.charAt(end - 1))) end--;
+        return description.substring(0, end);
+    }
+
+    private static void skipElement(XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+        }
+    }
+
+    private static XMLInputFactory factory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
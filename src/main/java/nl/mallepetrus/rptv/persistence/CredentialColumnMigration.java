@@ -0,0 +1,168 @@
+package nl.mallepetrus.rptv.persistence;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.crypto.CryptoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Moves Xtream credentials written before V4 from the Base64 text columns to the binary ones.
+ * <p>
+ * Rows are walked in id order, a small batch per transaction. Each batch locks only its own rows and
+ * skips rows another transaction holds ({@code FOR UPDATE SKIP LOCKED}), so neither account updates
+ * nor a second instance running the same pass have to wait. Rows skipped that way lie behind the
+ * cursor, so a pass ends with a count of what is still pending and starts over while rows other than
+ * undecryptable ones remain. Undecryptable rows stay readable through the text columns and are
+ * retried on the next start.
+ */
+@Component
+public class CredentialColumnMigration implements SmartLifecycle {
+    private static final Logger log = LoggerFactory.getLogger(CredentialColumnMigration.class);
+
+    private static final String PENDING = """
+            SELECT id, username_enc, password_enc, username_ct IS NULL AS need_username, password_ct IS NULL AS need_password
+            FROM xtream_accounts
+            WHERE id > ? AND (username_ct IS NULL OR password_ct IS NULL)
+            ORDER BY id
+            LIMIT ?
+            FOR UPDATE SKIP LOCKED""";
+    private static final String REMAINING =
+            "SELECT count(*) FROM xtream_accounts WHERE username_ct IS NULL OR password_ct IS NULL";
+    private static final String CONVERT = """
+            UPDATE xtream_accounts
+            SET username_ct = COALESCE(username_ct, ?::bytea), password_ct = COALESCE(password_ct, ?::bytea),
+                username_enc = NULL, password_enc = NULL
+            WHERE id = ?""";
+
+    private record Pending(UUID id, String usernameEnc, String passwordEnc, boolean needUsername, boolean needPassword) {}
+
+    private record Batch(int rows, int converted, UUID last) {}
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+    private final CryptoService cryptoService;
+    private final AppProps.EncProps props;
+    private final Counter migrated;
+    private final Counter failed;
+    private Thread worker;
+    private volatile boolean running;
+
+    public CredentialColumnMigration(DataSource dataSource, PlatformTransactionManager transactionManager,
+                                     CryptoService cryptoService, AppProps.EncProps props, MeterRegistry meterRegistry) {
+        this.jdbc = new JdbcTemplate(dataSource);
+        this.tx = new TransactionTemplate(transactionManager);
+        this.cryptoService = cryptoService;
+        this.props = props;
+        this.migrated = Counter.builder("rptv.credentials.migrated")
+                .description("Xtream accounts moved to binary credential columns").register(meterRegistry);
+        this.failed = Counter.builder("rptv.credentials.migration.failed")
+                .description("Xtream accounts whose text credentials could not be decrypted").register(meterRegistry);
+    }
+
+    /** Converts all pending rows on the calling thread, in as many passes as needed; returns the number converted. */
+    public int migrate() {
+        Set<UUID> failures = new HashSet<>();
+        int converted = 0;
+        while (true) {
+            UUID after = new UUID(0, 0);
+            while (true) {
+                UUID from = after;
+                Batch batch = tx.execute(status -> convertBatch(from, failures));
+                converted += batch.converted();
+                if (batch.rows() == 0 || !pause()) break;
+                after = batch.last();
+            }
+            if (Thread.currentThread().isInterrupted()) return converted;
+            // rows locked by another transaction were skipped behind the cursor; go around again for them
+            Integer remaining = jdbc.queryForObject(REMAINING, Integer.class);
+            if (remaining == null || remaining <= failures.size() || !pause()) return converted;
+        }
+    }
+
+    private boolean pause() {
+        if (Thread.currentThread().isInterrupted()) return false;
+        try {
+            Thread.sleep(props.getMigrationBatchPause().toMillis());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Batch convertBatch(UUID after, Set<UUID> failures) {
+        List<Pending> rows = jdbc.query(PENDING, (rs, i) -> new Pending(rs.getObject("id", UUID.class),
+                rs.getString("username_enc"), rs.getString("password_enc"),
+                rs.getBoolean("need_username"), rs.getBoolean("need_password")), after, props.getMigrationBatchSize());
+        List<Object[]> updates = new ArrayList<>(rows.size());
+        for (Pending row : rows) {
+            if (failures.contains(row.id())) continue; // already reported in an earlier round
+            try {
+                updates.add(new Object[]{
+                        row.needUsername() ? reencrypt(row.usernameEnc()) : null,
+                        row.needPassword() ? reencrypt(row.passwordEnc()) : null,
+                        row.id()});
+            } catch (RuntimeException e) {
+                failures.add(row.id());
+                failed.increment();
+                log.warn("Cannot convert credentials of Xtream account {}: {}", row.id(), e.getMessage());
+            }
+        }
+        if (!updates.isEmpty()) jdbc.batchUpdate(CONVERT, updates);
+        migrated.increment(updates.size());
+        return new Batch(rows.size(), updates.size(), rows.isEmpty() ? after : rows.get(rows.size() - 1).id());
+    }
+
+    /** Text column value: the column envelope around the envelope the controller used to add. */
+    private byte[] reencrypt(String column) {
+        if (column == null) throw new IllegalStateException("no credential stored");
+        return cryptoService.encryptToBytes(cryptoService.decrypt(cryptoService.decrypt(column)));
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return props.isMigrateLegacyColumns();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        worker = new Thread(() -> {
+            try {
+                int converted = migrate();
+                if (converted > 0) log.info("Moved {} Xtream accounts to binary credential columns", converted);
+            } catch (RuntimeException e) {
+                log.warn("Credential column migration stopped, will resume on next start", e);
+            }
+        }, "rptv-credential-migration");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        worker.interrupt();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,33 @@
+package nl.mallepetrus.rptv.persistence;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+import nl.mallepetrus.rptv.crypto.CryptoService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/** Plaintext attribute stored as a binary envelope in a {@code bytea} column. */
+@Converter
+@Component
+public class EncryptedBytesConverter implements AttributeConverter<String, byte[]> {
+
+    // JPA may instantiate converter outside Spring; handle both cases
+    private static CryptoService staticCryptoService;
+
+    @Autowired
+    public void setCryptoService(CryptoService cryptoService) {
+        staticCryptoService = cryptoService;
+    }
+
+    @Override
+    public byte[] convertToDatabaseColumn(String attribute) {
+        if (staticCryptoService == null) throw new IllegalStateException("CryptoService not initialised");
+        return staticCryptoService.encryptToBytes(attribute);
+    }
+
+    @Override
+    public String convertToEntityAttribute(byte[] dbData) {
+        if (staticCryptoService == null) throw new IllegalStateException("CryptoService not initialised");
+        return staticCryptoService.decryptBytes(dbData);
+    }
+}
@@ -0,0 +1,267 @@
+package nl.mallepetrus.rptv.persistence;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.crypto.CryptoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Re-encrypts Xtream credentials that are still under another key id to the active key, on a live
+ * system.
+ * <p>
+ * The key id sits at byte 1 of a binary envelope, so stale rows are found in SQL. The table is read in
+ * id order (keyset pagination) by one thread, paced to {@code rotationRowsPerSecond}; each page is
+ * re-encrypted and committed in its own short transaction on one of {@code rotationParallelism}
+ * workers, locking only its own rows and skipping rows a request holds. Once all pages up to a point
+ * have committed, that point is stored in {@code key_rotations}, and a restart resumes from there.
+ * Redoing a page is harmless: rows already under the active key no longer match.
+ */
+@Component
+public class KeyRotationJob implements SmartLifecycle {
+    private static final Logger log = LoggerFactory.getLogger(KeyRotationJob.class);
+    private static final UUID START = new UUID(0, 0);
+
+    private static final String STALE = "(get_byte(username_ct, 1) <> ? OR get_byte(password_ct, 1) <> ?)";
+    private static final String NEXT_PAGE =
+            "SELECT id FROM xtream_accounts WHERE id > ? AND " + STALE + " ORDER BY id LIMIT ?";
+    private static final String LOCK_PAGE = "SELECT id, username_ct, password_ct FROM xtream_accounts"
+            + " WHERE id > ? AND id <= ? AND " + STALE + " FOR UPDATE SKIP LOCKED";
+    private static final String REWRITE = "UPDATE xtream_accounts SET username_ct = ?, password_ct = ? WHERE id = ?";
+    private static final String REMAINING = "SELECT count(*) FROM xtream_accounts WHERE " + STALE;
+
+    public enum State { IDLE, RUNNING, FINISHED, INCOMPLETE, STOPPED, FAILED }
+
+    public record Progress(int targetKeyId, State state, long rowsDone, long rowsRemaining, UUID checkpoint,
+                           OffsetDateTime startedAt, OffsetDateTime updatedAt, OffsetDateTime finishedAt) {}
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+    private final CryptoService cryptoService;
+    private final AppProps.EncProps props;
+    private final Counter rotated;
+    private final Counter failed;
+    private Thread worker;
+    private volatile State state = State.IDLE;
+    private volatile boolean stopping;
+    private volatile boolean running;
+
+    public KeyRotationJob(DataSource dataSource, PlatformTransactionManager transactionManager,
+                          CryptoService cryptoService, AppProps.EncProps props, MeterRegistry meterRegistry) {
+        this.jdbc = new JdbcTemplate(dataSource);
+        this.tx = new TransactionTemplate(transactionManager);
+        this.cryptoService = cryptoService;
+        this.props = props;
+        this.rotated = Counter.builder("rptv.crypto.rotation.rows")
+                .description("Xtream accounts re-encrypted to the active key").register(meterRegistry);
+        this.failed = Counter.builder("rptv.crypto.rotation.failed")
+                .description("Xtream accounts that could not be decrypted during key rotation").register(meterRegistry);
+    }
+
+    /** Starts a pass in the background unless one is running; returns the progress at that moment. */
+    public synchronized Progress resume() {
+        if (worker == null || !worker.isAlive()) {
+            stopping = false;
+            state = State.RUNNING;
+            worker = new Thread(() -> {
+                try {
+                    state = rotate(cryptoService.activeKeyId());
+                } catch (RuntimeException e) {
+                    state = State.FAILED;
+                    log.warn("Key rotation failed, resume continues from the last checkpoint", e);
+                }
+            }, "rptv-key-rotation");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        return progress();
+    }
+
+    public Progress progress() {
+        int target = cryptoService.activeKeyId();
+        long remaining = remaining(target);
+        List<Progress> rows = jdbc.query("SELECT rows_done, last_id, started_at, updated_at, finished_at"
+                        + " FROM key_rotations WHERE target_key_id = ?",
+                (rs, i) -> new Progress(target, state, rs.getLong("rows_done"), remaining,
+                        rs.getObject("last_id", UUID.class), rs.getObject("started_at", OffsetDateTime.class),
+                        rs.getObject("updated_at", OffsetDateTime.class), rs.getObject("finished_at", OffsetDateTime.class)),
+                target);
+        return rows.isEmpty() ? new Progress(target, state, 0, remaining, null, null, null, null) : rows.get(0);
+    }
+
+    /** Runs one pass to {@code target} on the calling thread, from the stored checkpoint. */
+    public State rotate(int target) {
+        if (remaining(target) == 0) return State.FINISHED;
+        UUID after = checkpoint(target);
+        log.info("Re-encrypting Xtream credentials to key {} from {}", target, after);
+
+        int parallelism = Math.max(1, props.getRotationParallelism());
+        int batchSize = Math.max(1, props.getRotationBatchSize());
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "rptv-key-rotation-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore inFlight = new Semaphore(parallelism);
+        Checkpoints checkpoints = new Checkpoints(target);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        long nextSlot = System.nanoTime();
+        try {
+            while (!stopping && failure.get() == null) {
+                List<UUID> ids = jdbc.queryForList(NEXT_PAGE, UUID.class, after, target, target, batchSize);
+                if (ids.isEmpty()) break;
+                nextSlot = throttle(nextSlot, ids.size());
+                inFlight.acquire();
+                UUID from = after, to = ids.get(ids.size() - 1);
+                long page = checkpoints.submitted(to);
+                pool.execute(() -> {
+                    try {
+                        checkpoints.committed(page, tx.execute(status -> rewrite(target, from, to)));
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+                after = to;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.acquireUninterruptibly(parallelism); // every submitted page has finished
+            pool.shutdown();
+        }
+
+        if (failure.get() != null) throw failure.get();
+        if (stopping || Thread.currentThread().isInterrupted()) return State.STOPPED;
+        long left = remaining(target);
+        if (left == 0) {
+            jdbc.update("UPDATE key_rotations SET finished_at = now(), updated_at = now() WHERE target_key_id = ?", target);
+            log.info("Key rotation to key {} finished", target);
+            return State.FINISHED;
+        }
+        // rows held by requests or not decryptable with the keyring; the next pass rescans from the start
+        jdbc.update("UPDATE key_rotations SET last_id = ?, updated_at = now() WHERE target_key_id = ?", START, target);
+        log.warn("Key rotation to key {} left {} rows under other keys", target, left);
+        return State.INCOMPLETE;
+    }
+
+    private UUID checkpoint(int target) {
+        jdbc.update("INSERT INTO key_rotations (target_key_id) VALUES (?) ON CONFLICT (target_key_id) DO NOTHING", target);
+        // stale rows after a finished rotation mean the active key changed away and back; start over
+        jdbc.update("UPDATE key_rotations SET last_id = ?, rows_done = 0, started_at = now(), updated_at = now(),"
+                + " finished_at = NULL WHERE target_key_id = ? AND finished_at IS NOT NULL", START, target);
+        return jdbc.queryForObject("SELECT last_id FROM key_rotations WHERE target_key_id = ?", UUID.class, target);
+    }
+
+    private long throttle(long nextSlot, int rows) throws InterruptedException {
+        long now = System.nanoTime();
+        if (nextSlot > now) TimeUnit.NANOSECONDS.sleep(nextSlot - now);
+        return Math.max(nextSlot, now) + rows * 1_000_000_000L / Math.max(1, props.getRotationRowsPerSecond());
+    }
+
+    private int rewrite(int target, UUID from, UUID to) {
+        List<Object[]> updates = new ArrayList<>();
+        jdbc.query(LOCK_PAGE, rs -> {
+            UUID id = rs.getObject("id", UUID.class);
+            try {
+                updates.add(new Object[]{rekey(rs.getBytes("username_ct"), target),
+                        rekey(rs.getBytes("password_ct"), target), id});
+            } catch (IllegalStateException e) {
+                failed.increment();
+                log.warn("Cannot re-encrypt credentials of Xtream account {}: {}", id, e.getMessage());
+            }
+        }, from, to, target, target);
+        if (!updates.isEmpty()) jdbc.batchUpdate(REWRITE, updates);
+        rotated.increment(updates.size());
+        return updates.size();
+    }
+
+    private byte[] rekey(byte[] envelope, int target) {
+        if (envelope == null || (envelope[1] & 0xff) == target) return envelope;
+        return cryptoService.encryptToBytes(cryptoService.decryptBytes(envelope));
+    }
+
+    private long remaining(int target) {
+        Long count = jdbc.queryForObject(REMAINING, Long.class, target, target);
+        return count == null ? 0 : count;
+    }
+
+    /** Advances the stored checkpoint only over pages that committed without a gap before them. */
+    private final class Checkpoints {
+        private final int target;
+        private final Map<Long, UUID> ends = new HashMap<>();
+        private final Map<Long, Integer> done = new HashMap<>();
+        private long next;
+        private long contiguous;
+
+        Checkpoints(int target) {
+            this.target = target;
+        }
+
+        synchronized long submitted(UUID end) {
+            ends.put(next, end);
+            return next++;
+        }
+
+        synchronized void committed(long page, int rows) {
+            done.put(page, rows);
+            UUID end = null;
+            int sum = 0;
+            while (done.containsKey(contiguous)) {
+                sum += done.remove(contiguous);
+                end = ends.remove(contiguous);
+                contiguous++;
+            }
+            if (end != null) {
+                // GREATEST keeps the checkpoint monotonic should two instances run a pass at once
+                jdbc.update("UPDATE key_rotations SET last_id = GREATEST(last_id, ?), rows_done = rows_done + ?,"
+                        + " updated_at = now() WHERE target_key_id = ?", end, sum, target);
+            }
+        }
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return props.isRotateOnStartup();
+    }
+
+    @Override
+    public synchronized void start() {
+        running = true;
+        resume();
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        stopping = true;
+        if (worker != null) worker.interrupt();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,237 @@
+package nl.mallepetrus.rptv.proxy;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+
+/**
+ * Size-bounded LRU of immutable blobs in a local directory. A blob is written once from its
+ * source (concurrent misses share the write, via a temp file moved into place) and read back with
+ * positional {@link FileChannel} reads into pooled heap buffers of {@code readChunk} bytes, which
+ * the servlet writer hands to the socket without another copy.
+ * <p>
+ * The index lives in memory only; files left over from a previous run are removed on
+ * construction. Evicted files are deleted right away; a reader that already opened one keeps
+ * reading it, and its disk (or tmpfs) pages are freed as soon as that read ends, not at some
+ * later GC as with a mapping.
+ */
+final class DiskCache {
+    private static final Logger log = LoggerFactory.getLogger(DiskCache.class);
+    private static final NettyDataBufferFactory BUFFERS = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+
+    private record Entry(Path file, long size) {}
+
+    private final Path dir;
+    private final long maxEntryBytes;
+    private final int readChunk;
+    private final AtomicLong fileSeq = new AtomicLong();
+    private final AsyncCache<String, Entry> index;
+
+    DiskCache(Path dir, long maxBytes, Duration idle, long maxEntryBytes, int readChunk,
+              MeterRegistry meterRegistry, String metricName) throws IOException {
+        this.dir = dir;
+        this.maxEntryBytes = maxEntryBytes;
+        this.readChunk = readChunk;
+        Files.createDirectories(dir);
+        try (Stream<Path> leftovers = Files.list(dir)) {
+            leftovers.forEach(DiskCache::deleteQuietly);
+        }
+        this.index = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .expireAfterAccess(idle)
+                .<String, Entry>weigher((k, v) -> (int) Math.min(Integer.MAX_VALUE, v.size()))
+                .removalListener((k, v, cause) -> {
+                    if (v != null) deleteQuietly(v.file());
+                })
+                .recordStats()
+                .buildAsync(), metricName);
+        Gauge.builder(metricName + ".hit.ratio", index, c -> c.synchronous().stats().hitRate())
+                .description("Share of lookups served from disk").register(meterRegistry);
+    }
+
+    /** The blob opened for reading, writing it from {@code source} first on a miss. */
+    Mono<Blob> get(String key, Supplier<Flux<DataBuffer>> source) {
+        // a file evicted between lookup and opening is simply written again
+        return lookup(key, source).onErrorResume(NoSuchFileException.class, e -> {
+            index.synchronous().invalidate(key);
+            return lookup(key, source);
+        }).doOnDiscard(Blob.class, Blob::close);
+    }
+
+    /** Whether {@code key} is cached or being written; does not count as an access. */
+    boolean contains(String key) {
+        return index.synchronous().asMap().containsKey(key);
+    }
+
+    /**
+     * A writer that fills {@code key} incrementally, e.g. from a body that is being relayed at the
+     * same time; null when the key is already present.
+     */
+    Writer writer(String key) throws IOException {
+        if (contains(key)) return null;
+        Path part = dir.resolve(fileSeq.incrementAndGet() + ".part");
+        return new Writer(key, part, FileChannel.open(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+    }
+
+    final class Writer {
+        private final String key;
+        private final Path part;
+        private final FileChannel channel;
+        private long size;
+
+        private Writer(String key, Path part, FileChannel channel) {
+            this.key = key;
+            this.part = part;
+            this.channel = channel;
+        }
+
+        void write(ByteBuffer bytes) throws IOException {
+            size += bytes.remaining();
+            if (size > maxEntryBytes) throw new IOException("Blob larger than " + maxEntryBytes + " bytes");
+            while (bytes.hasRemaining()) channel.write(bytes);
+        }
+
+        /** Publishes the blob, unless another writer got there first. */
+        void commit() throws IOException {
+            channel.close();
+            if (contains(key)) {
+                deleteQuietly(part);
+                return;
+            }
+            Path file = dir.resolve(fileSeq.incrementAndGet() + ".bin");
+            Files.move(part, file, StandardCopyOption.ATOMIC_MOVE);
+            index.put(key, CompletableFuture.completedFuture(new Entry(file, size)));
+        }
+
+        void abort() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // deleted below either way
+            }
+            deleteQuietly(part);
+        }
+    }
+
+    /** An open cached file; it stays readable after eviction until {@link #read} ends or it is closed. */
+    static final class Blob implements Closeable {
+        private final FileChannel channel;
+        private final long size;
+        private final int chunk;
+
+        private Blob(FileChannel channel, long size, int chunk) {
+            this.channel = channel;
+            this.size = size;
+            this.chunk = chunk;
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * Bytes {@code from} (inclusive) to {@code to} (exclusive), one chunk per request, read on the
+         * requesting thread; the blob is closed when the read completes, fails or is cancelled.
+         */
+        Flux<DataBuffer> read(long from, long to) {
+            return Flux.<DataBuffer, Long>generate(() -> from, (position, sink) -> {
+                if (position >= to) {
+                    sink.complete();
+                    return position;
+                }
+                int length = (int) Math.min(chunk, to - position);
+                ByteBuf buf = PooledByteBufAllocator.DEFAULT.heapBuffer(length);
+                try {
+                    int read = buf.writeBytes(channel, position, length);
+                    if (read < 0) throw new EOFException("Cached file ends at " + position + " of " + size);
+                    sink.next(BUFFERS.wrap(buf));
+                    return position + read;
+                } catch (IOException e) {
+                    buf.release();
+                    sink.error(e);
+                    return position;
+                }
+            }, position -> close());
+        }
+
+        boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Could not close cached file: {}", e.toString());
+            }
+        }
+    }
+
+    private Mono<Blob> lookup(String key, Supplier<Flux<DataBuffer>> source) {
+        return Mono.defer(() -> Mono.fromFuture(index.get(key, (k, executor) -> write(source.get()).toFuture())))
+                .flatMap(entry -> Mono.fromCallable(() -> open(entry)));
+    }
+
+    private Mono<Entry> write(Flux<DataBuffer> source) {
+        Path part = dir.resolve(fileSeq.incrementAndGet() + ".part");
+        AtomicLong size = new AtomicLong();
+        Flux<DataBuffer> body = source.handle((buffer, sink) -> {
+            if (size.addAndGet(buffer.readableByteCount()) > maxEntryBytes) {
+                DataBufferUtils.release(buffer);
+                sink.error(new ResponseStatusException(BAD_GATEWAY, "Upstream body too large to cache"));
+            } else {
+                sink.next(buffer);
+            }
+        });
+        return DataBufferUtils.write(body, part)
+                .then(Mono.fromCallable(() -> {
+                    Path file = dir.resolve(fileSeq.incrementAndGet() + ".bin");
+                    Files.move(part, file, StandardCopyOption.ATOMIC_MOVE);
+                    return new Entry(file, Files.size(file));
+                }))
+                .doOnError(e -> deleteQuietly(part));
+    }
+
+    private Blob open(Entry entry) throws IOException {
+        return new Blob(FileChannel.open(entry.file(), StandardOpenOption.READ), entry.size(), readChunk);
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Could not delete cached file {}: {}", file, e.toString());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package nl.mallepetrus.rptv.proxy;
+
+import java.net.URI;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites the URIs of an HLS playlist: segment and variant lines, and the {@code URI="..."}
+ * attribute of tags such as {@code EXT-X-KEY} and {@code EXT-X-MAP}. Each URI is resolved against
+ * the playlist's own location before it is mapped; all other lines are copied verbatim.
+ */
+final class HlsPlaylistRewriter {
+    private static final Pattern URI_ATTRIBUTE = Pattern.compile("URI=\"([^\"]*)\"");
+
+    private HlsPlaylistRewriter() {}
+
+    static String rewrite(String playlist, URI base, Function<URI, String> mapper) {
+        StringBuilder out = new StringBuilder(playlist.length() + 256);
+        String[] lines = playlist.split("\r?\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) out.append('\n');
+            String line = lines[i];
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                out.append(line);
+            } else if (trimmed.startsWith("#")) {
+                Matcher m = URI_ATTRIBUTE.matcher(line);
+                StringBuilder tag = new StringBuilder();
+                while (m.find()) {
+                    String mapped = mapper.apply(resolve(base, m.group(1)));
+                    m.appendReplacement(tag, Matcher.quoteReplacement("URI=\"" + mapped + "\""));
+                }
+                m.appendTail(tag);
+                out.append(tag);
+            } else {
+                out.append(mapper.apply(resolve(base, trimmed)));
+            }
+        }
+        return out.toString();
+    }
+
+    private static URI resolve(URI base, String reference) {
+        return base.resolve(reference.replace(" ", "%20"));
+    }
+}
@@ -0,0 +1,158 @@
+package nl.mallepetrus.rptv.proxy;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import nl.mallepetrus.rptv.crypto.CryptoService;
+import nl.mallepetrus.rptv.security.StreamUrlSigner;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.util.UriUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+
+/**
+ * HLS through the proxy. Playlists are fetched and rewritten so that every segment, variant and
+ * key URI points back at a signed {@code /proxy/{accountId}/hls/{id}.{ext}}; the id is the account and
+ * upstream URI encrypted with the credential key, so provider hosts and credentials never reach the
+ * client and any instance can resolve it, across restarts and however long a player pauses. Media
+ * segments are then served from the shared {@link SegmentCache}. Rewritten URIs carry the
+ * playlist's {@link StreamSlotScheduler#PLAYBACK} token, minted on the first playlist of a playback,
+ * so all requests of one player share its viewer session.
+ */
+@Service
+public class HlsService {
+    private static final String MPEGURL = "application/vnd.apple.mpegurl";
+    private static final Map<String, String> SEGMENT_TYPES = Map.of(
+            "ts", "video/mp2t",
+            "m4s", "video/iso.segment",
+            "mp4", "video/mp4",
+            "m4v", "video/mp4",
+            "aac", "audio/aac",
+            "m4a", "audio/mp4");
+
+    private record Target(UUID accountId, URI uri) {}
+
+    private final HttpClient httpClient;
+    private final SegmentCache segmentCache;
+    private final StreamRelayService relayService;
+    private final StreamUrlSigner urlSigner;
+    private final CryptoService cryptoService;
+
+    public HlsService(HttpClient upstreamHttpClient, SegmentCache segmentCache, StreamRelayService relayService,
+                      StreamUrlSigner urlSigner, CryptoService cryptoService) {
+        this.httpClient = upstreamHttpClient;
+        this.segmentCache = segmentCache;
+        this.relayService = relayService;
+        this.urlSigner = urlSigner;
+        this.cryptoService = cryptoService;
+    }
+
+    /** Relays the playlist at {@code upstream} with its URIs rewritten to proxy paths. */
+    public void relayPlaylist(UUID accountId, URI upstream, HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        String given = request.getParameter(StreamSlotScheduler.PLAYBACK);
+        String playback = given == null || given.isEmpty() ? StreamSlotScheduler.newPlayback() : given;
+        Flux<DataBuffer> body = httpClient.get().uri(upstream.toString())
+                .responseSingle((res, bytes) -> {
+                    if (res.status().code() >= 300) {
+                        return bytes.then(Mono.error(new ResponseStatusException(
+                                HttpStatusCode.valueOf(res.status().code()), "Upstream playlist request failed")));
+                    }
+                    // relative URIs are relative to where the playlist ended up after redirects
+                    URI base = URI.create(res.resourceUrl());
+                    return bytes.asString(StandardCharsets.UTF_8).defaultIfEmpty("")
+                            .map(text -> rewrite(accountId, base, text, playback));
+                })
+                .<DataBuffer>map(playlist -> {
+                    byte[] bytes = playlist.getBytes(StandardCharsets.UTF_8);
+                    response.setStatus(HttpServletResponse.SC_OK);
+                    response.setContentType(MPEGURL);
+                    response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+                    response.setContentLength(bytes.length);
+                    return DefaultDataBufferFactory.sharedInstance.wrap(bytes);
+                })
+                .flux();
+        relayService.relay(body, request, response);
+    }
+
+    /** Serves a {@code {id}.{ext}} path from a rewritten playlist. */
+    public void relayTarget(UUID accountId, String name, HttpServletRequest request,
+                            HttpServletResponse response) throws IOException {
+        int dot = name.lastIndexOf('.');
+        Target target = dot < 0 ? null : target(name.substring(0, dot));
+        if (target == null || !target.accountId().equals(accountId)) {
+            throw new ResponseStatusException(NOT_FOUND);
+        }
+        String ext = name.substring(dot + 1);
+        if (ext.equals("m3u8")) {
+            relayPlaylist(accountId, target.uri(), request, response);
+        } else if (SEGMENT_TYPES.containsKey(ext)) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(SEGMENT_TYPES.get(ext));
+            Flux<DataBuffer> body = segmentCache.get(accountId, StreamSlotScheduler.viewerOf(request), target.uri(),
+                    response::setContentLengthLong);
+            relayService.relay(body, request, response);
+        } else {
+            // keys, subtitles and the like are small and often per-session; pass them through
+            relayService.relay(target.uri(), request, response);
+        }
+    }
+
+    private String rewrite(UUID accountId, URI base, String playlist, String playback) {
+        String head = playlist.startsWith("\uFEFF") ? playlist.substring(1) : playlist;
+        if (!head.startsWith("#EXTM3U")) {
+            throw new ResponseStatusException(BAD_GATEWAY, "Upstream did not return an HLS playlist");
+        }
+        // signed, so players that fetched the playlist through a signed URL can follow it without a token
+        Instant expiresAt = urlSigner.expiry();
+        return HlsPlaylistRewriter.rewrite(head, base, uri ->
+                urlSigner.sign("/proxy/" + accountId + "/hls/" + idFor(accountId, uri) + "." + extension(uri), expiresAt)
+                        + "&" + StreamSlotScheduler.PLAYBACK + "=" + UriUtils.encodeQueryParam(playback, StandardCharsets.UTF_8));
+    }
+
+    private String idFor(UUID accountId, URI uri) {
+        byte[] sealed = cryptoService.encryptToBytes(accountId + "\n" + uri);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sealed);
+    }
+
+    /** The target sealed into {@code id}, or null when it was not minted by {@link #idFor}. */
+    private Target target(String id) {
+        String plain;
+        try {
+            plain = cryptoService.decryptBytes(Base64.getUrlDecoder().decode(id));
+        } catch (RuntimeException e) {
+            return null; // malformed, tampered with, or sealed with a key since retired
+        }
+        int newline = plain.indexOf('\n');
+        if (newline < 0) return null;
+        try {
+            return new Target(UUID.fromString(plain.substring(0, newline)), URI.create(plain.substring(newline + 1)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String extension(URI uri) {
+        String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+        int dot = path.lastIndexOf('.');
+        String ext = dot < path.lastIndexOf('/') + 1 ? "" : path.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return ext.matches("[a-z0-9]{1,5}") ? ext : "bin";
+    }
+}
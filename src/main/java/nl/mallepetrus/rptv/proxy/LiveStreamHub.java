@@ -0,0 +1,233 @@
+package nl.mallepetrus.rptv.proxy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.SignalType;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Shares one upstream connection per live channel between all viewers of that channel.
+ * <p>
+ * Channels are keyed by (account id, stream). The first viewer opens the upstream; its chunks are
+ * copied once into a fixed-size ring and every viewer reads the ring through its own cursor, so the
+ * upstream is never slowed down by any viewer. A viewer that falls a full ring behind is detached
+ * instead of holding back the others. When the last viewer leaves, the upstream is cancelled.
+ */
+@Component
+public class LiveStreamHub {
+    private static final Logger log = LoggerFactory.getLogger(LiveStreamHub.class);
+
+    record ChannelKey(UUID accountId, String stream) {}
+
+    private record Chunk(long seq, byte[] data) {}
+
+    private final WebClient webClient;
+    private final StreamSlotScheduler slots;
+    private final int ringChunks;
+    private final ConcurrentHashMap<ChannelKey, Channel> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger viewers = new AtomicInteger();
+    private final Counter detached;
+
+    public LiveStreamHub(WebClient webClient, StreamSlotScheduler slots, AppProps.ProxyProps proxyProps,
+                         MeterRegistry meterRegistry) {
+        this.webClient = webClient;
+        this.slots = slots;
+        this.ringChunks = proxyProps.getLiveRingChunks();
+        Gauge.builder("rptv.live.channels", channels, ConcurrentHashMap::size)
+                .description("Live channels with an open upstream connection").register(meterRegistry);
+        Gauge.builder("rptv.live.viewers", viewers, AtomicInteger::get)
+                .description("Viewers attached to shared live channels").register(meterRegistry);
+        this.detached = Counter.builder("rptv.live.detached")
+                .description("Viewers detached for falling a full ring behind").register(meterRegistry);
+    }
+
+    /**
+     * Attaches a viewer to the shared channel for {@code stream}, opening {@code upstream} if nobody is
+     * watching yet. {@code onHead} is called once with the upstream content type before the first chunk.
+     */
+    public Flux<DataBuffer> watch(UUID accountId, String stream, URI upstream, Consumer<MediaType> onHead) {
+        ChannelKey key = new ChannelKey(accountId, stream);
+        return Flux.create(sink -> {
+            Channel channel;
+            Viewer viewer;
+            while (true) {
+                channel = channels.computeIfAbsent(key, k -> new Channel(k, upstream));
+                viewer = channel.tryAttach(sink, onHead);
+                if (viewer != null) break;
+                channels.remove(key, channel); // lost a race with the last viewer leaving
+            }
+            Viewer v = viewer;
+            sink.onRequest(n -> v.drain());
+            sink.onDispose(v::detach);
+            channel.connectIfNeeded();
+            v.drain();
+        }, FluxSink.OverflowStrategy.ERROR);
+    }
+
+    private final class Channel extends BaseSubscriber<DataBuffer> {
+        private final ChannelKey key;
+        private final URI upstream;
+        private final AtomicReferenceArray<Chunk> ring = new AtomicReferenceArray<>(ringChunks);
+        private final Set<Viewer> members = new CopyOnWriteArraySet<>();
+
+        private volatile long head; // sequence of the next chunk to be written
+        private volatile MediaType contentType;
+        private volatile Throwable failure;
+        private volatile boolean ended;
+        private boolean connected; // guarded by this
+        private boolean closed; // guarded by this
+
+        Channel(ChannelKey key, URI upstream) {
+            this.key = key;
+            this.upstream = upstream;
+        }
+
+        synchronized Viewer tryAttach(FluxSink<DataBuffer> sink, Consumer<MediaType> onHead) {
+            if (closed) return null;
+            // start half a ring back: an immediate burst for the player, with headroom before being lapped
+            Viewer viewer = new Viewer(this, sink, onHead, Math.max(0, head - ringChunks / 2));
+            members.add(viewer);
+            viewers.incrementAndGet();
+            return viewer;
+        }
+
+        void connectIfNeeded() {
+            synchronized (this) {
+                if (connected || closed) return;
+                connected = true;
+            }
+            log.debug("Opening shared live upstream for {}", key);
+            // one provider connection per channel, however many viewers share it
+            slots.withSlot(key.accountId(), webClient.get().uri(upstream)
+                    .exchangeToFlux(resp -> {
+                        if (!resp.statusCode().is2xxSuccessful()) {
+                            return resp.releaseBody().thenMany(Flux.error(
+                                    new ResponseStatusException(resp.statusCode(), "Upstream refused live stream")));
+                        }
+                        contentType = resp.headers().contentType().orElse(null);
+                        return resp.bodyToFlux(DataBuffer.class);
+                    }))
+                    .subscribe(this);
+        }
+
+        void detach(Viewer viewer) {
+            if (!members.remove(viewer)) return;
+            viewers.decrementAndGet();
+            synchronized (this) {
+                if (!members.isEmpty() || closed) return;
+                closed = true;
+            }
+            log.debug("Last viewer left {}, closing upstream", key);
+            channels.remove(key, this);
+            cancel();
+        }
+
+        @Override
+        protected void hookOnNext(DataBuffer buffer) {
+            byte[] data = new byte[buffer.readableByteCount()];
+            buffer.read(data);
+            DataBufferUtils.release(buffer);
+            long seq = head;
+            ring.set((int) (seq % ringChunks), new Chunk(seq, data));
+            head = seq + 1;
+            for (Viewer viewer : members) {
+                viewer.drain();
+            }
+        }
+
+        @Override
+        protected void hookOnError(Throwable t) {
+            failure = t;
+        }
+
+        @Override
+        protected void hookFinally(SignalType type) {
+            ended = true;
+            synchronized (this) {
+                closed = true;
+            }
+            channels.remove(key, this);
+            for (Viewer viewer : members) {
+                viewer.drain();
+            }
+        }
+    }
+
+    private final class Viewer {
+        private final Channel channel;
+        private final FluxSink<DataBuffer> sink;
+        private final AtomicInteger wip = new AtomicInteger();
+        private Consumer<MediaType> onHead; // cleared once called; only touched inside the drain loop
+        private long cursor; // only touched inside the drain loop
+        private volatile boolean done;
+
+        Viewer(Channel channel, FluxSink<DataBuffer> sink, Consumer<MediaType> onHead, long cursor) {
+            this.channel = channel;
+            this.sink = sink;
+            this.onHead = onHead;
+            this.cursor = cursor;
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                while (!done && sink.requestedFromDownstream() > 0 && cursor < channel.head) {
+                    Chunk chunk = channel.ring.get((int) (cursor % ringChunks));
+                    if (chunk == null || chunk.seq() != cursor) {
+                        lapped();
+                        return;
+                    }
+                    if (onHead != null) {
+                        onHead.accept(channel.contentType);
+                        onHead = null;
+                    }
+                    cursor++;
+                    sink.next(DefaultDataBufferFactory.sharedInstance.wrap(chunk.data()));
+                }
+                if (!done && channel.ended && cursor >= channel.head) {
+                    done = true;
+                    Throwable failure = channel.failure;
+                    if (failure != null) sink.error(failure);
+                    else sink.complete();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void lapped() {
+            done = true;
+            detached.increment();
+            log.debug("Detaching slow viewer from {}", channel.key);
+            sink.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Viewer fell behind live stream"));
+        }
+
+        void detach() {
+            done = true;
+            channel.detach(this);
+        }
+    }
+}
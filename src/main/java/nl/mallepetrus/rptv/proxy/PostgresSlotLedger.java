@@ -0,0 +1,361 @@
+package nl.mallepetrus.rptv.proxy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link SlotLedger} shared by all API instances through the {@code stream_sessions} table.
+ * <p>
+ * Each held connection is a row leased by the node that opened it. Claims are queued per account
+ * and granted in one short transaction per account, serialized by a transaction-scoped advisory
+ * lock on the account, that first drops expired leases and then inserts as many rows as the limit
+ * allows. Releases are collected and deleted in batches, and a {@code NOTIFY} per affected account
+ * wakes the waiters on every node. One {@code UPDATE} per heartbeat renews all leases of the node,
+ * however many streams it holds, and a periodic retry picks up leases expired on crashed nodes.
+ * <p>
+ * All database work runs on one background thread plus the listening connection; request and
+ * event-loop threads never touch JDBC. When the database cannot be reached, claims stay queued and
+ * are retried on the poll interval until the slot wait timeout gives up on them, so the cluster never
+ * goes over the provider limit; {@code app.proxy.slot-ledger-fail-open} grants them on the per-node
+ * limit alone instead.
+ */
+@Component
+@ConditionalOnProperty(prefix = "app.proxy", name = "cluster-slots", havingValue = "true", matchIfMissing = true)
+public class PostgresSlotLedger implements SlotLedger, SmartLifecycle {
+    private static final Logger log = LoggerFactory.getLogger(PostgresSlotLedger.class);
+    private static final String CHANNEL = "rptv_slots";
+    private static final int RELEASE_BATCH = 500;
+    static final Lease UNCOUNTED = () -> { };
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+    private final AppProps.ProxyProps props;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ConcurrentHashMap<UUID, Queue<Claim>> claims = new ConcurrentHashMap<>();
+    private final Set<UUID> attempting = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<UUID> released = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicInteger held = new AtomicInteger();
+    private final Counter fallbacks;
+    private final AtomicBoolean unavailable = new AtomicBoolean();
+    private ScheduledExecutorService executor;
+    private Thread listener;
+    private volatile boolean running;
+
+    public PostgresSlotLedger(DataSource dataSource, PlatformTransactionManager transactionManager,
+                              AppProps.ProxyProps props, MeterRegistry meterRegistry) {
+        this.dataSource = dataSource;
+        this.jdbc = new JdbcTemplate(dataSource);
+        this.tx = new TransactionTemplate(transactionManager);
+        this.props = props;
+        Gauge.builder("rptv.slots.cluster.held", held, AtomicInteger::get)
+                .description("Leased stream sessions held by this node").register(meterRegistry);
+        this.fallbacks = Counter.builder("rptv.slots.cluster.fallback")
+                .description("Claims granted without the cluster ledger because the database failed")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Mono<Lease> claim(UUID accountId, int limit) {
+        return Mono.create(sink -> {
+            Claim claim = new Claim(limit, sink);
+            Queue<Claim> queue = claims.computeIfAbsent(accountId, id -> new ConcurrentLinkedQueue<>());
+            queue.add(claim);
+            sink.onCancel(() -> {
+                if (claim.state.compareAndSet(Claim.WAITING, Claim.CANCELLED)) queue.remove(claim);
+            });
+            attemptSoon(accountId);
+        });
+    }
+
+    @Override
+    public Mono<Integer> sessions(UUID accountId, int local) {
+        return Mono.fromCallable(() -> jdbc.queryForObject(
+                        "SELECT count(*) FROM stream_sessions WHERE account_id = ? AND lease_until >= now()",
+                        Integer.class, accountId))
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorReturn(DataAccessException.class, local);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rptv-slot-ledger");
+            t.setDaemon(true);
+            return t;
+        });
+        long heartbeat = Math.max(1, props.getSlotLeaseTtl().toMillis() / 3);
+        executor.scheduleWithFixedDelay(this::renewLeases, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+        long poll = props.getSlotPollInterval().toMillis();
+        executor.scheduleWithFixedDelay(this::retryWaiting, poll, poll, TimeUnit.MILLISECONDS);
+        listener = new Thread(this::listen, "rptv-slot-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        listener.interrupt();
+        executor.execute(() -> {
+            flushReleases();
+            // streams still open are cut at shutdown; free their slots for the other nodes now
+            deleteAndNotify("DELETE FROM stream_sessions WHERE node_id = ? RETURNING account_id", nodeId);
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Runs one grant attempt for the account on the ledger thread; concurrent triggers coalesce. */
+    private void attemptSoon(UUID accountId) {
+        if (!running || !attempting.add(accountId)) return;
+        try {
+            executor.execute(() -> {
+                attempting.remove(accountId);
+                attempt(accountId);
+            });
+        } catch (RuntimeException e) { // shutting down
+            attempting.remove(accountId);
+        }
+    }
+
+    private void attempt(UUID accountId) {
+        Queue<Claim> queue = claims.get(accountId);
+        if (queue == null) return;
+        queue.removeIf(c -> c.state.get() != Claim.WAITING);
+        if (queue.isEmpty()) return;
+        List<Claim> granted;
+        try {
+            granted = tx.execute(status -> grant(accountId, queue));
+        } catch (DataAccessException | TransactionException e) {
+            // no connection at all surfaces from the transaction manager as CannotCreateTransactionException
+            if (props.isSlotLedgerFailOpen()) {
+                log.warn("Stream slot ledger unavailable, granting on the local limit: {}", e.getMessage());
+                for (Claim c; (c = queue.poll()) != null; ) {
+                    if (c.state.compareAndSet(Claim.WAITING, Claim.GRANTED)) {
+                        fallbacks.increment();
+                        c.sink.success(UNCOUNTED);
+                    }
+                }
+            } else if (unavailable.compareAndSet(false, true)) {
+                // retryWaiting() tries again on the poll interval; the slot wait timeout bounds the delay
+                log.warn("Stream slot ledger unavailable, holding claims until it is back: {}", e.getMessage());
+            }
+            return;
+        }
+        if (unavailable.compareAndSet(true, false)) log.info("Stream slot ledger available again");
+        for (Claim c : granted) {
+            queue.remove(c);
+            SessionLease lease = new SessionLease(c.sessionId);
+            held.incrementAndGet();
+            if (c.state.compareAndSet(Claim.WAITING, Claim.GRANTED)) {
+                c.sink.success(lease);
+            } else {
+                lease.release(); // gave up while the row was being inserted
+            }
+        }
+    }
+
+    private List<Claim> grant(UUID accountId, Queue<Claim> queue) {
+        jdbc.query("SELECT pg_advisory_xact_lock(?)", rs -> null,
+                accountId.getMostSignificantBits() ^ accountId.getLeastSignificantBits());
+        jdbc.update("DELETE FROM stream_sessions WHERE account_id = ? AND lease_until < now()", accountId);
+        Integer used = jdbc.queryForObject("SELECT count(*) FROM stream_sessions WHERE account_id = ?",
+                Integer.class, accountId);
+        List<Claim> take = new ArrayList<>();
+        for (Claim c : queue) {
+            if (used + take.size() >= c.limit) break;
+            if (c.state.get() == Claim.WAITING) take.add(c);
+        }
+        if (take.isEmpty()) return take;
+        double ttl = props.getSlotLeaseTtl().toMillis() / 1000.0;
+        jdbc.batchUpdate("INSERT INTO stream_sessions (id, account_id, node_id, lease_until)"
+                        + " VALUES (?, ?, ?, now() + make_interval(secs => ?))",
+                take, take.size(), (ps, c) -> {
+                    ps.setObject(1, c.sessionId);
+                    ps.setObject(2, accountId);
+                    ps.setString(3, nodeId);
+                    ps.setDouble(4, ttl);
+                });
+        return take;
+    }
+
+    private void retryWaiting() {
+        claims.forEach((accountId, queue) -> {
+            if (!queue.isEmpty()) attemptSoon(accountId);
+        });
+    }
+
+    private void renewLeases() {
+        if (held.get() == 0) return;
+        try {
+            jdbc.update("UPDATE stream_sessions SET lease_until = now() + make_interval(secs => ?) WHERE node_id = ?",
+                    props.getSlotLeaseTtl().toMillis() / 1000.0, nodeId);
+        } catch (DataAccessException e) {
+            log.warn("Could not renew stream session leases: {}", e.getMessage());
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) return;
+        try {
+            executor.execute(() -> {
+                flushScheduled.set(false);
+                flushReleases();
+            });
+        } catch (RuntimeException e) { // shutting down; stop() deletes the node's rows
+            flushScheduled.set(false);
+        }
+    }
+
+    private void flushReleases() {
+        List<UUID> batch = new ArrayList<>();
+        for (UUID id; (id = released.poll()) != null; ) {
+            batch.add(id);
+            if (batch.size() == RELEASE_BATCH) {
+                deleteAndNotify("DELETE FROM stream_sessions WHERE id = ANY(?) RETURNING account_id", batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            deleteAndNotify("DELETE FROM stream_sessions WHERE id = ANY(?) RETURNING account_id", batch);
+        }
+    }
+
+    /** Deletes rows and notifies every node once per account that got a slot back. */
+    private void deleteAndNotify(String delete, Object param) {
+        String sql = "WITH gone AS (" + delete + ")"
+                + " SELECT d.account_id, pg_notify('" + CHANNEL + "', d.account_id::text)"
+                + " FROM (SELECT DISTINCT account_id FROM gone) d";
+        Set<UUID> accounts = new HashSet<>();
+        try {
+            jdbc.query(con -> {
+                PreparedStatement ps = con.prepareStatement(sql);
+                if (param instanceof List<?> ids) {
+                    ps.setArray(1, con.createArrayOf("uuid", ids.toArray()));
+                } else {
+                    ps.setObject(1, param);
+                }
+                return ps;
+            }, rs -> {
+                accounts.add(rs.getObject(1, UUID.class));
+            });
+        } catch (DataAccessException e) {
+            // the leases run out on their own once the heartbeat no longer renews them
+            log.warn("Could not release stream sessions: {}", e.getMessage());
+        }
+        accounts.forEach(this::attemptSoon);
+    }
+
+    /** Holds a connection with {@code LISTEN}, turning release notifications into grant attempts. */
+    private void listen() {
+        while (running) {
+            try (Connection connection = dataSource.getConnection()) {
+                try (Statement st = connection.createStatement()) {
+                    st.execute("LISTEN " + CHANNEL);
+                }
+                PGConnection pg = connection.unwrap(PGConnection.class);
+                retryWaiting(); // releases may have been missed while not listening
+                while (running) {
+                    PGNotification[] notifications = pg.getNotifications(1000);
+                    if (notifications == null) continue;
+                    for (PGNotification n : notifications) {
+                        try {
+                            attemptSoon(UUID.fromString(n.getParameter()));
+                        } catch (IllegalArgumentException ignored) {
+                            // not ours
+                        }
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (!running) return;
+                log.warn("Stream slot listener lost its connection: {}", e.getMessage());
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class Claim {
+        static final int WAITING = 0, GRANTED = 1, CANCELLED = 2;
+
+        final int limit;
+        final MonoSink<Lease> sink;
+        final UUID sessionId = UUID.randomUUID();
+        final AtomicInteger state = new AtomicInteger(WAITING);
+
+        Claim(int limit, MonoSink<Lease> sink) {
+            this.limit = limit;
+            this.sink = sink;
+        }
+    }
+
+    private final class SessionLease implements Lease {
+        private final UUID sessionId;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        SessionLease(UUID sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void release() {
+            if (!done.compareAndSet(false, true)) return;
+            held.decrementAndGet();
+            released.add(sessionId);
+            scheduleFlush();
+        }
+    }
+}
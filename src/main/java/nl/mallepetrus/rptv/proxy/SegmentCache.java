@@ -0,0 +1,54 @@
+package nl.mallepetrus.rptv.proxy;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.function.LongConsumer;
+
+/**
+ * HLS media segments on local disk, shared by every viewer of the same account and upstream URI.
+ * A segment is downloaded once, inside the requesting viewer's connection slot, and then served
+ * from the file, see {@link DiskCache}.
+ */
+@Component
+public class SegmentCache {
+    private final WebClient webClient;
+    private final StreamSlotScheduler slots;
+    private final DiskCache disk;
+
+    public SegmentCache(WebClient webClient, StreamSlotScheduler slots, AppProps.ProxyProps props,
+                        MeterRegistry meterRegistry) throws IOException {
+        this.webClient = webClient;
+        this.slots = slots;
+        this.disk = new DiskCache(Path.of(props.getSegmentCacheDir()), props.getSegmentCacheMaxBytes(),
+                props.getSegmentCacheIdle(), props.getMaxSegmentBytes(), props.getWriteBufferSize(),
+                meterRegistry, "rptv.segments");
+    }
+
+    /**
+     * The segment body, downloading it first on a miss under the viewer's slot; {@code length} gets
+     * its size before the first byte.
+     */
+    public Flux<DataBuffer> get(UUID accountId, String viewer, URI uri, LongConsumer length) {
+        return disk.get(accountId + " " + uri, () -> slots.withSlot(accountId, viewer, webClient.get().uri(uri)
+                .exchangeToFlux(resp -> {
+                    if (!resp.statusCode().is2xxSuccessful()) {
+                        return resp.releaseBody().thenMany(Flux.error(
+                                new ResponseStatusException(resp.statusCode(), "Upstream segment request failed")));
+                    }
+                    return resp.bodyToFlux(DataBuffer.class);
+                }))).flatMapMany(blob -> {
+                    length.accept(blob.size());
+                    return blob.read(0, blob.size());
+                });
+    }
+}
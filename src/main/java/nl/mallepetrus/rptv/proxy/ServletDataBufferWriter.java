@@ -0,0 +1,212 @@
+package nl.mallepetrus.rptv.proxy;
+
+import io.netty.buffer.ByteBuf;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.BaseSubscriber;
+
+import java.io.IOException;
+
+/**
+ * Bridges a {@code Publisher<DataBuffer>} onto an async servlet response using non-blocking I/O.
+ * <p>
+ * Exactly one upstream buffer is requested at a time, and only while the container reports the
+ * socket as writable. A slow viewer therefore pushes backpressure into the upstream connection
+ * instead of heap, and no container thread is parked while a stream is open. Per stream we retain
+ * at most one upstream buffer plus the fixed-size scratch array. Heap buffers, such as the ones
+ * {@link DiskCache} reads into, are written straight from their array; direct ones from the
+ * upstream connection are copied through the scratch array first.
+ * <p>
+ * The upstream subscription starts from the first {@code onWritePossible()} callback, which the
+ * container only dispatches once the original request thread has left the filter chain; the
+ * response head is therefore never touched by two threads at once.
+ */
+final class ServletDataBufferWriter extends BaseSubscriber<DataBuffer> implements AsyncListener {
+    private static final Logger log = LoggerFactory.getLogger(ServletDataBufferWriter.class);
+
+    private final AsyncContext asyncContext;
+    private final HttpServletResponse response;
+    private final ServletOutputStream out;
+    private final Publisher<DataBuffer> body;
+    private final byte[] scratch;
+
+    // guarded by this
+    private DataBuffer pending;
+    private boolean started;
+    private boolean requested;
+    private boolean upstreamDone;
+    private boolean finished;
+    private boolean draining;
+
+    ServletDataBufferWriter(AsyncContext asyncContext, HttpServletResponse response,
+                            Publisher<DataBuffer> body, int scratchSize) throws IOException {
+        this.asyncContext = asyncContext;
+        this.response = response;
+        this.out = response.getOutputStream();
+        this.body = body;
+        this.scratch = new byte[scratchSize];
+    }
+
+    void start() {
+        asyncContext.addListener(this);
+        out.setWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible() {
+                writePossible();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.debug("Client write failed: {}", t.toString());
+                abort();
+            }
+        });
+    }
+
+    private void writePossible() {
+        boolean subscribe;
+        synchronized (this) {
+            subscribe = !started;
+            started = true;
+        }
+        if (subscribe) {
+            body.subscribe(this);
+        } else {
+            drain();
+        }
+    }
+
+    // --- Subscriber ---
+
+    @Override
+    protected void hookOnSubscribe(Subscription subscription) {
+        drain();
+    }
+
+    @Override
+    protected void hookOnNext(DataBuffer buffer) {
+        synchronized (this) {
+            requested = false;
+            if (finished) {
+                DataBufferUtils.release(buffer);
+                return;
+            }
+            pending = buffer;
+        }
+        drain();
+    }
+
+    @Override
+    protected void hookOnComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    @Override
+    protected void hookOnError(Throwable t) {
+        log.debug("Upstream relay failed: {}", t.toString());
+        synchronized (this) {
+            if (!response.isCommitted()) {
+                response.setStatus(t instanceof ResponseStatusException rse
+                        ? rse.getStatusCode().value() : HttpServletResponse.SC_BAD_GATEWAY);
+            }
+        }
+        abort();
+    }
+
+    // --- AsyncListener ---
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        abort();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        abort();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        abort();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    // --- write loop ---
+
+    private synchronized void drain() {
+        if (draining || finished) return; // the active loop picks up whatever changed
+        draining = true;
+        try {
+            while (!finished) {
+                if (pending != null) {
+                    if (!out.isReady()) return;
+                    int len = Math.min(pending.readableByteCount(), scratch.length);
+                    if (len == 0) {
+                        DataBufferUtils.release(pending);
+                        pending = null;
+                        if (out.isReady()) out.flush();
+                        continue;
+                    }
+                    if (pending instanceof NettyDataBuffer netty && netty.getNativeBuffer().hasArray()) {
+                        ByteBuf buf = netty.getNativeBuffer();
+                        out.write(buf.array(), buf.arrayOffset() + buf.readerIndex(), len);
+                        buf.skipBytes(len);
+                    } else {
+                        pending.read(scratch, 0, len);
+                        out.write(scratch, 0, len);
+                    }
+                } else if (upstreamDone) {
+                    finished = true;
+                    asyncContext.complete();
+                } else if (!requested && upstream() != null && out.isReady()) {
+                    requested = true;
+                    request(1); // may deliver synchronously; the loop re-checks pending
+                } else {
+                    return;
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.debug("Client went away: {}", e.toString());
+            abortLocked();
+        } finally {
+            draining = false;
+        }
+    }
+
+    private synchronized void abort() {
+        abortLocked();
+    }
+
+    private void abortLocked() {
+        if (pending != null) {
+            DataBufferUtils.release(pending);
+            pending = null;
+        }
+        if (finished) return;
+        finished = true;
+        cancel();
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException ignored) {
+            // already completed by the container
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package nl.mallepetrus.rptv.proxy;
+
+import reactor.core.publisher.Mono;
+
+import java.util.UUID;
+
+/**
+ * Record of the upstream connections held per account across every instance of the proxy,
+ * consulted by {@link StreamSlotScheduler} on top of its per-node limit.
+ */
+public interface SlotLedger {
+
+    /** A connection counted in the ledger; releasing it more than once has no effect. */
+    interface Lease {
+        void release();
+    }
+
+    /** Ledger for a single instance: the per-node limit is already the whole story. */
+    SlotLedger LOCAL = new SlotLedger() {
+        @Override
+        public Mono<Lease> claim(UUID accountId, int limit) {
+            return Mono.just(() -> { });
+        }
+
+        @Override
+        public Mono<Integer> sessions(UUID accountId, int local) {
+            return Mono.just(local);
+        }
+    };
+
+    /**
+     * Emits a lease once fewer than {@code limit} connections of the account are held cluster-wide.
+     * Cancelling the subscription gives up the claim.
+     */
+    Mono<Lease> claim(UUID accountId, int limit);
+
+    /** Connections of the account held by all instances, given the {@code local} ones held here. */
+    Mono<Integer> sessions(UUID accountId, int local);
+}
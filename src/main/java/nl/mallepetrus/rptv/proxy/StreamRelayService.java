@@ -0,0 +1,113 @@
+package nl.mallepetrus.rptv.proxy;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Streams upstream media bodies to the client without buffering them.
+ * The upstream {@code DataBuffer}s flow through {@link ServletDataBufferWriter}, so the request
+ * thread is released as soon as the relay is set up.
+ */
+@Service
+public class StreamRelayService {
+    private static final List<String> FORWARDED_REQUEST_HEADERS = List.of(
+            HttpHeaders.RANGE, HttpHeaders.IF_RANGE, HttpHeaders.USER_AGENT, HttpHeaders.ACCEPT);
+    private static final List<String> RELAYED_RESPONSE_HEADERS = List.of(
+            HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_LENGTH, HttpHeaders.CONTENT_RANGE,
+            HttpHeaders.ACCEPT_RANGES, HttpHeaders.LAST_MODIFIED, HttpHeaders.ETAG, HttpHeaders.CACHE_CONTROL);
+    private static final List<String> REWRITTEN_REQUEST_HEADERS = List.of(HttpHeaders.USER_AGENT, HttpHeaders.ACCEPT);
+    private static final List<String> REWRITTEN_RESPONSE_HEADERS = List.of(HttpHeaders.CONTENT_TYPE, HttpHeaders.CACHE_CONTROL);
+
+    private final WebClient webClient;
+    private final LiveStreamHub liveStreamHub;
+    private final StreamSlotScheduler slots;
+    private final AppProps.ProxyProps proxyProps;
+
+    public StreamRelayService(WebClient webClient, LiveStreamHub liveStreamHub, StreamSlotScheduler slots,
+                              AppProps.ProxyProps proxyProps) {
+        this.webClient = webClient;
+        this.liveStreamHub = liveStreamHub;
+        this.slots = slots;
+        this.proxyProps = proxyProps;
+    }
+
+    public void relay(URI upstream, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        relay(upstreamBody(upstream, request, response), request, response);
+    }
+
+    /**
+     * Relays an API or playlist body with the provider's URLs and credentials rewritten on the fly.
+     * Ranges are not forwarded and the length and validators are dropped, as they describe the original bytes.
+     */
+    public void relayRewritten(URI upstream, UpstreamUrlRewriter rewriter,
+                               HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Flux<DataBuffer> body = webClient.get().uri(upstream)
+                .headers(h -> copyRequestHeaders(request, h, REWRITTEN_REQUEST_HEADERS))
+                .exchangeToFlux(resp -> {
+                    copyResponseHead(resp, response, REWRITTEN_RESPONSE_HEADERS);
+                    return resp.bodyToFlux(DataBuffer.class);
+                });
+        relay(rewriter.rewrite(body), request, response);
+    }
+
+    /** Like {@link #relay(URI, HttpServletRequest, HttpServletResponse)}, holding one of the account's connection slots. */
+    public void relayStream(UUID accountId, URI upstream, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        relay(slots.withSlot(accountId, upstreamBody(upstream, request, response)), request, response);
+    }
+
+    /** The upstream body with the client's request headers forwarded; the response head is copied on arrival. */
+    public Flux<DataBuffer> upstreamBody(URI upstream, HttpServletRequest request, HttpServletResponse response) {
+        return webClient.get().uri(upstream)
+                .headers(h -> copyRequestHeaders(request, h, FORWARDED_REQUEST_HEADERS))
+                .exchangeToFlux(resp -> {
+                    copyResponseHead(resp, response, RELAYED_RESPONSE_HEADERS);
+                    return resp.bodyToFlux(DataBuffer.class);
+                });
+    }
+
+    /** Attaches the client to the shared upstream of a live channel, see {@link LiveStreamHub}. */
+    public void relayLive(UUID accountId, String stream, URI upstream,
+                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Flux<DataBuffer> body = liveStreamHub.watch(accountId, stream, upstream, contentType -> {
+            response.setStatus(HttpServletResponse.SC_OK);
+            if (contentType != null) response.setContentType(contentType.toString());
+        });
+        relay(body, request, response);
+    }
+
+    /** Writes an already prepared body; the response head must have been set by the publisher or caller. */
+    public void relay(Flux<DataBuffer> body, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(0); // live streams are open-ended; the writer completes the context itself
+        new ServletDataBufferWriter(asyncContext, response, body, proxyProps.getWriteBufferSize()).start();
+    }
+
+    private static void copyRequestHeaders(HttpServletRequest request, HttpHeaders headers, List<String> names) {
+        for (String name : names) {
+            String value = request.getHeader(name);
+            if (value != null) headers.set(name, value);
+        }
+    }
+
+    private static void copyResponseHead(ClientResponse upstream, HttpServletResponse response, List<String> names) {
+        response.setStatus(upstream.statusCode().value());
+        HttpHeaders headers = upstream.headers().asHttpHeaders();
+        for (String name : names) {
+            String value = headers.getFirst(name);
+            if (value != null) response.setHeader(name, value);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package nl.mallepetrus.rptv.proxy;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+
+/** Picks the relay for a {@code {kind}/{path}} stream request, whichever way the caller authenticated. */
+@Service
+public class StreamRouter {
+    private final StreamRelayService relayService;
+    private final HlsService hlsService;
+    private final VodRangeService vodRangeService;
+    private final StreamSlotScheduler slotScheduler;
+
+    public StreamRouter(StreamRelayService relayService, HlsService hlsService, VodRangeService vodRangeService,
+                        StreamSlotScheduler slotScheduler) {
+        this.relayService = relayService;
+        this.hlsService = hlsService;
+        this.vodRangeService = vodRangeService;
+        this.slotScheduler = slotScheduler;
+    }
+
+    public void stream(UUID accountId, XtreamUpstream upstream, String kind, String path,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (path.isBlank() || path.equals("/") || path.contains("..")) {
+            throw new ResponseStatusException(BAD_REQUEST, "Invalid stream path");
+        }
+        slotScheduler.prepare(accountId, () -> upstream);
+        if (path.endsWith(".m3u8")) {
+            // segment URIs are rewritten to /hls/ paths below, served from the shared segment cache
+            hlsService.relayPlaylist(accountId, upstream.streamUri(kind, path), request, response);
+        } else if ("live".equals(kind) && path.endsWith(".ts")) {
+            // continuous MPEG-TS: one upstream connection per channel, shared by all viewers
+            relayService.relayLive(accountId, path, upstream.streamUri(kind, path), request, response);
+        } else if (!"live".equals(kind)) {
+            // movies and episodes: seeks are answered from cached blocks where possible
+            vodRangeService.relay(accountId, upstream.streamUri(kind, path), request, response);
+        } else {
+            relayService.relayStream(accountId, upstream.streamUri(kind, path), request, response);
+        }
+    }
+}
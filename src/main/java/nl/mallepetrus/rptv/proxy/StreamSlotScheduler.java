@@ -0,0 +1,389 @@
+package nl.mallepetrus.rptv.proxy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import nl.mallepetrus.rptv.catalog.CatalogClient;
+import nl.mallepetrus.rptv.catalog.CatalogDtos;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
+
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+
+/**
+ * Keeps the upstream stream connections of each Xtream account within the provider's
+ * {@code max_connections}. Every long-lived or media upstream request runs inside a slot; when
+ * all slots are taken, new requests queue in arrival order until one is released or the wait
+ * times out (503). A session that has not moved any data for {@code slotIdlePreemptAfter} (a
+ * paused player holding its connection) is ended in favour of a waiting request.
+ * <p>
+ * Slot accounting is lock-free: a CAS on the per-account counter on the fast path and a
+ * concurrent queue for waiters; nothing blocks a thread. With several instances, a slot taken here
+ * is also claimed in the {@link SlotLedger} so the limit holds across all of them.
+ * <p>
+ * Players that fetch one short request after another (HLS segments, VOD blocks) hold a viewer
+ * session instead: the first request takes the slot, later ones from the same client reuse it, and
+ * it is given back once the client has made no request for {@code slotViewerIdle}. A request made
+ * while another of the same viewer is still running is a second upstream connection and takes a
+ * slot of its own. The ledger is consulted once per viewing session, not once per segment; its
+ * heartbeat renews the lease.
+ */
+@Component
+public class StreamSlotScheduler {
+    private static final Logger log = LoggerFactory.getLogger(StreamSlotScheduler.class);
+    /** Query parameter carrying the playback token that tells one player's requests apart. */
+    public static final String PLAYBACK = "pb";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int ENTERED = 0, BUSY = 1, CLOSED = 2;
+
+    private final CatalogClient catalogClient;
+    private final AppProps.ProxyProps props;
+    private final SlotLedger ledger;
+    private final ConcurrentHashMap<UUID, AccountSlots> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ViewerKey, ViewerSession> viewers = new ConcurrentHashMap<>();
+    private final Timer waitTimer;
+    private final Counter rejected;
+    private final Counter preempted;
+
+    @Autowired
+    public StreamSlotScheduler(CatalogClient catalogClient, AppProps.ProxyProps props, MeterRegistry meterRegistry,
+                               ObjectProvider<SlotLedger> ledger) {
+        this(catalogClient, props, meterRegistry, ledger.getIfAvailable(() -> SlotLedger.LOCAL));
+    }
+
+    StreamSlotScheduler(CatalogClient catalogClient, AppProps.ProxyProps props, MeterRegistry meterRegistry,
+                        SlotLedger ledger) {
+        this.catalogClient = catalogClient;
+        this.props = props;
+        this.ledger = ledger;
+        Gauge.builder("rptv.slots.queued", accounts, m -> m.values().stream().mapToInt(a -> a.waiters.size()).sum())
+                .description("Stream requests waiting for a provider connection").register(meterRegistry);
+        Gauge.builder("rptv.slots.active", accounts, m -> m.values().stream().mapToInt(a -> a.inUse.get()).sum())
+                .description("Provider connections currently held").register(meterRegistry);
+        this.waitTimer = Timer.builder("rptv.slots.wait")
+                .description("Time spent waiting for a provider connection").register(meterRegistry);
+        this.rejected = Counter.builder("rptv.slots.rejected")
+                .description("Stream requests that timed out waiting for a provider connection").register(meterRegistry);
+        this.preempted = Counter.builder("rptv.slots.preempted")
+                .description("Idle sessions ended to make room for a waiting request").register(meterRegistry);
+    }
+
+    /**
+     * Makes sure the account's limit is known and current, reading {@code max_connections} and
+     * {@code active_cons} from the provider in the background when it is not. The upstream is only
+     * resolved when a refresh is due.
+     */
+    public void prepare(UUID accountId, Supplier<XtreamUpstream> upstream) {
+        AccountSlots a = accounts.computeIfAbsent(accountId, id -> new AccountSlots());
+        boolean due = !a.limitKnown.isDone()
+                || System.nanoTime() - a.limitLoadedAt > props.getSlotLimitRefresh().toNanos();
+        if (!due || !a.loading.compareAndSet(false, true)) return;
+        catalogClient.accountInfo(upstream.get())
+                .timeout(Duration.ofSeconds(10))
+                .flatMap(info -> ledger.sessions(accountId, a.inUse.get()).map(held -> limitFrom(info.userInfo(), held)))
+                .subscribe(
+                        limit -> setLimit(a, limit),
+                        err -> {
+                            log.debug("Could not read connection limit of account {}: {}", accountId, err.toString());
+                            setLimit(a, a.limitKnown.isDone() ? a.limit : props.getDefaultMaxConnections());
+                            a.loading.set(false);
+                        },
+                        () -> a.loading.set(false));
+    }
+
+    /** Runs {@code body} while holding one of the account's connection slots. */
+    public <T> Flux<T> withSlot(UUID accountId, Flux<T> body) {
+        return Flux.usingWhen(acquire(accountId),
+                slot -> body.doOnNext(item -> slot.lastActivity = System.nanoTime())
+                        .takeUntilOther(slot.preemption.asMono()),
+                slot -> Mono.fromRunnable(slot::release));
+    }
+
+    /**
+     * Runs {@code body} under the slot of the viewer's session, opening the session (and taking a
+     * slot) when the viewer has none, or under a slot of its own while another request of the viewer
+     * runs on the session's. See {@link #viewerOf(HttpServletRequest)} for {@code viewer}.
+     */
+    public <T> Flux<T> withSlot(UUID accountId, String viewer, Flux<T> body) {
+        ViewerKey key = new ViewerKey(accountId, viewer);
+        return Flux.defer(() -> {
+            ViewerSession session = enter(key);
+            if (session == null) return withSlot(accountId, body); // parallel request: another connection
+            return Flux.usingWhen(Mono.just(session),
+                    s -> s.slot.flatMapMany(slot -> body
+                            .doOnNext(item -> slot.lastActivity = System.nanoTime())
+                            .takeUntilOther(slot.preemption.asMono())),
+                    s -> Mono.fromRunnable(s::leave));
+        });
+    }
+
+    /**
+     * The client a request comes from: the caller and the {@link #PLAYBACK} token when the URL
+     * carries one, which URLs handed out for one playback do; otherwise the caller, the client
+     * address (from the proxy's forwarded headers) and its user agent.
+     */
+    static String viewerOf(HttpServletRequest request) {
+        Principal principal = request.getUserPrincipal();
+        String caller = principal == null ? "" : principal.getName();
+        String playback = request.getParameter(PLAYBACK);
+        if (playback != null && !playback.isEmpty()) return caller + " " + PLAYBACK + " " + playback;
+        return caller + " " + request.getRemoteAddr() + " " + request.getHeader(HttpHeaders.USER_AGENT);
+    }
+
+    /** A fresh {@link #PLAYBACK} token for the URLs of one playback. */
+    public static String newPlayback() {
+        byte[] token = new byte[12];
+        RANDOM.nextBytes(token);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    /** The viewer's session, reserved for this request; null when a request of the viewer holds it. */
+    private ViewerSession enter(ViewerKey key) {
+        while (true) {
+            ViewerSession session = viewers.computeIfAbsent(key, ViewerSession::new);
+            switch (session.enter()) {
+                case ENTERED:
+                    return session;
+                case BUSY:
+                    return null;
+                default:
+                    viewers.remove(key, session); // closing; start a new one
+            }
+        }
+    }
+
+    private Mono<Slot> acquire(UUID accountId) {
+        return Mono.defer(() -> {
+            AccountSlots a = accounts.computeIfAbsent(accountId, id -> new AccountSlots());
+            if (!a.limitKnown.isDone() && !a.loading.get()) {
+                setLimit(a, props.getDefaultMaxConnections()); // never prepared
+            }
+            long start = System.nanoTime();
+            return Mono.fromFuture(a.limitKnown, true)
+                    .then(Mono.defer(() -> {
+                        if (a.waiters.isEmpty() && tryTake(a)) return Mono.just(new Slot(a));
+                        return enqueue(a);
+                    }))
+                    .flatMap(slot -> ledger.claim(accountId, a.limit)
+                            .map(lease -> {
+                                slot.lease = lease;
+                                return slot;
+                            })
+                            .doOnCancel(slot::release)
+                            .doOnError(e -> slot.release()))
+                    .timeout(props.getSlotWaitTimeout())
+                    .onErrorMap(TimeoutException.class, e -> {
+                        rejected.increment();
+                        return new ResponseStatusException(SERVICE_UNAVAILABLE,
+                                "All provider connections of this account are in use");
+                    })
+                    .doOnNext(slot -> waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    private Mono<Slot> enqueue(AccountSlots a) {
+        Waiter w = new Waiter();
+        a.waiters.add(w);
+        dispatch(a); // a slot may have been released between the failed take and the add
+        if (!w.future.isDone()) preemptIdle(a);
+        return Mono.fromFuture(w.future, true)
+                .doFinally(signal -> {
+                    if (signal == SignalType.ON_COMPLETE) return;
+                    if (w.future.completeExceptionally(new CancellationException())) {
+                        a.waiters.remove(w);
+                    } else if (!w.future.isCompletedExceptionally()) {
+                        w.future.join().release(); // handed a slot just as we gave up
+                    }
+                });
+    }
+
+    private void dispatch(AccountSlots a) {
+        while (!a.waiters.isEmpty() && tryTake(a)) {
+            Waiter w = a.waiters.poll();
+            if (w == null) {
+                a.inUse.decrementAndGet(); // another dispatcher served the last waiter
+                return;
+            }
+            Slot slot = new Slot(a);
+            if (!w.future.complete(slot)) {
+                slot.released.set(true);
+                a.active.remove(slot);
+                a.inUse.decrementAndGet();
+            }
+        }
+    }
+
+    private void preemptIdle(AccountSlots a) {
+        long idleNanos = props.getSlotIdlePreemptAfter().toNanos();
+        if (idleNanos <= 0) return;
+        long now = System.nanoTime();
+        Slot oldest = null;
+        for (Slot s : a.active) {
+            if (now - s.lastActivity >= idleNanos && !s.preempting.get()
+                    && (oldest == null || s.lastActivity < oldest.lastActivity)) {
+                oldest = s;
+            }
+        }
+        if (oldest != null && oldest.preempting.compareAndSet(false, true)) {
+            preempted.increment();
+            oldest.preemption.tryEmitEmpty(); // its release hands the slot to the head of the queue
+        }
+    }
+
+    private static boolean tryTake(AccountSlots a) {
+        while (true) {
+            int n = a.inUse.get();
+            if (n >= a.limit) return false;
+            if (a.inUse.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    private void setLimit(AccountSlots a, int limit) {
+        a.limit = Math.max(1, limit);
+        a.limitLoadedAt = System.nanoTime();
+        a.limitKnown.complete(null);
+        dispatch(a);
+    }
+
+    /** Provider limit minus the connections it reports beyond the {@code held} ones of this proxy (other devices on the same login). */
+    private int limitFrom(CatalogDtos.UserInfo info, int held) {
+        if (info == null || info.maxConnections() <= 0) return props.getDefaultMaxConnections();
+        int external = Math.max(0, info.activeConnections() - held);
+        return info.maxConnections() - external;
+    }
+
+    private record ViewerKey(UUID accountId, String viewer) {}
+
+    /** One client's run of short requests, one at a time, sharing a slot; closes once idle, preempted, or refused a slot. */
+    private final class ViewerSession {
+        final ViewerKey key;
+        final Mono<Slot> slot;
+        // guarded by this
+        private boolean busy;
+        private long idleSince;
+        private boolean closed;
+        private Slot acquired;
+
+        ViewerSession(ViewerKey key) {
+            this.key = key;
+            this.slot = acquire(key.accountId())
+                    .doOnNext(this::acquired)
+                    .doOnError(e -> close(true))
+                    .cache();
+        }
+
+        synchronized int enter() {
+            if (closed) return CLOSED;
+            if (busy) return BUSY;
+            busy = true;
+            return ENTERED;
+        }
+
+        void leave() {
+            synchronized (this) {
+                busy = false;
+                idleSince = System.nanoTime();
+            }
+            long idle = props.getSlotViewerIdle().toNanos();
+            Schedulers.parallel().schedule(this::closeIfIdle, idle, TimeUnit.NANOSECONDS);
+        }
+
+        private void acquired(Slot s) {
+            boolean keep;
+            synchronized (this) {
+                keep = !closed;
+                if (keep) acquired = s;
+            }
+            if (!keep) {
+                s.release(); // everyone left before the slot came through
+                return;
+            }
+            s.preemption.asMono().subscribe(null, null, () -> close(true));
+        }
+
+        private void closeIfIdle() {
+            synchronized (this) {
+                if (busy || System.nanoTime() - idleSince < props.getSlotViewerIdle().toNanos()) return;
+            }
+            close(false);
+        }
+
+        private void close(boolean force) {
+            Slot held;
+            synchronized (this) {
+                if (closed || (!force && busy)) return;
+                closed = true;
+                held = acquired;
+                acquired = null;
+            }
+            viewers.remove(key, this);
+            if (held != null) held.release();
+        }
+    }
+
+    private static final class AccountSlots {
+        final AtomicInteger inUse = new AtomicInteger();
+        final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+        final Set<Slot> active = ConcurrentHashMap.newKeySet();
+        final CompletableFuture<Void> limitKnown = new CompletableFuture<>();
+        final AtomicBoolean loading = new AtomicBoolean();
+        volatile int limit;
+        volatile long limitLoadedAt;
+    }
+
+    private static final class Waiter {
+        final CompletableFuture<Slot> future = new CompletableFuture<>();
+    }
+
+    private final class Slot {
+        final AccountSlots owner;
+        final AtomicBoolean released = new AtomicBoolean();
+        final AtomicBoolean preempting = new AtomicBoolean();
+        final Sinks.Empty<Void> preemption = Sinks.empty();
+        volatile SlotLedger.Lease lease;
+        volatile long lastActivity = System.nanoTime();
+
+        Slot(AccountSlots owner) {
+            this.owner = owner;
+            owner.active.add(this);
+        }
+
+        void release() {
+            if (!released.compareAndSet(false, true)) return;
+            SlotLedger.Lease held = lease;
+            if (held != null) held.release();
+            owner.active.remove(this);
+            owner.inUse.decrementAndGet();
+            dispatch(owner);
+        }
+    }
+}
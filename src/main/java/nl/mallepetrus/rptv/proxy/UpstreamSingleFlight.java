@@ -0,0 +1,62 @@
+package nl.mallepetrus.rptv.proxy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent identical upstream calls: while a call for a key is in flight, further
+ * callers for the same key wait for its result instead of issuing their own request. Nothing is
+ * retained once the call completes; this is not a cache.
+ * <p>
+ * The shared call is not cancelled when a single waiter goes away, since others may still need it.
+ */
+@Component
+public class UpstreamSingleFlight {
+
+    private record FlightKey(String operation, Object key) {}
+
+    private final ConcurrentHashMap<FlightKey, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+    private final MeterRegistry meterRegistry;
+
+    public UpstreamSingleFlight(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("rptv.upstream.inflight", inFlight, ConcurrentHashMap::size)
+                .description("Distinct upstream calls currently in flight").register(meterRegistry);
+    }
+
+    /**
+     * Runs {@code call} unless a call with the same operation and key is already running, in which
+     * case its outcome is shared. Callers using the same operation must agree on the result type.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Mono<T> execute(String operation, Object key, Supplier<Mono<T>> call) {
+        return Mono.defer(() -> {
+            FlightKey flightKey = new FlightKey(operation, key);
+            boolean[] leader = new boolean[1];
+            CompletableFuture<T> future = (CompletableFuture<T>) inFlight.computeIfAbsent(flightKey, k -> {
+                leader[0] = true;
+                return call.get().toFuture();
+            });
+            if (leader[0]) {
+                future.whenComplete((result, error) -> inFlight.remove(flightKey, future));
+            }
+            counter(operation, leader[0] ? "leader" : "coalesced").increment();
+            return Mono.fromFuture(future, true);
+        });
+    }
+
+    private Counter counter(String operation, String role) {
+        return Counter.builder("rptv.upstream.requests")
+                .description("Upstream calls by whether they went out or joined one in flight")
+                .tag("operation", operation)
+                .tag("role", role)
+                .register(meterRegistry);
+    }
+}
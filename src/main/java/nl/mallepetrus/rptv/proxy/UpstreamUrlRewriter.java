@@ -0,0 +1,396 @@
+package nl.mallepetrus.rptv.proxy;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.web.util.UriUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Replaces the provider's base URL and credentials in relayed {@code player_api.php} and playlist
+ * bodies, so that {@code direct_source} and stream URLs point back at the proxy and the provider
+ * login never reaches the client.
+ * <p>
+ * Works on bytes, one buffer at a time: only a possible partial match at the end of a buffer is
+ * carried over to the next, so memory and time to first byte do not depend on the body size. Every
+ * pattern is also matched in its JSON form with {@code \/} escaped slashes. A base URL or query value
+ * only matches when it is not followed by more of the same URL token (so {@code username=bob} leaves
+ * {@code username=bobby} alone).
+ * <p>
+ * Stream links can also be signed: the path after a signed route is read up to the end of the URL
+ * and handed to a signer, so the client can play it without its own credentials. Such a path is
+ * held back like a partial match, up to 1 KB; longer ones, and ones that
+ * already carry a query, are moved onto the proxy unsigned.
+ */
+public final class UpstreamUrlRewriter {
+    private static final int SLICE = 16 * 1024;
+    private static final int MAX_SIGNED_PATH = 1024;
+    private static final int[][] NO_CANDIDATES = new int[256][];
+    private static final boolean[] CONTINUES_TOKEN = new boolean[256];
+    private static final boolean[] PATH = new boolean[256];
+
+    static {
+        for (char c = '0'; c <= '9'; c++) CONTINUES_TOKEN[c] = true;
+        for (char c = 'a'; c <= 'z'; c++) CONTINUES_TOKEN[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++) CONTINUES_TOKEN[c] = true;
+        for (char c : "-._~%+:".toCharArray()) CONTINUES_TOKEN[c] = true;
+        System.arraycopy(CONTINUES_TOKEN, 0, PATH, 0, PATH.length);
+        for (char c : "/\\@!$;=".toCharArray()) PATH[c] = true;
+    }
+
+    private final byte[][] needles;
+    private final byte[][] replacements;
+    private final boolean[] bounded;
+    /** For signed rules, the target base (in the needle's escaping) the signed path is appended to; else null. */
+    private final byte[][] signedBases;
+    private final boolean[] escaped;
+    /** Needle indexes by first byte, longest first; null where no needle starts. */
+    private final int[][] candidates;
+    /** The upstream {@code /user/pass/} segment, dropped from signed paths. */
+    private final String credentialSegment;
+    private final UnaryOperator<String> signer;
+
+    private UpstreamUrlRewriter(List<Rule> rules, String credentialSegment, UnaryOperator<String> signer) {
+        this.credentialSegment = credentialSegment;
+        this.signer = signer;
+        List<Rule> sorted = new ArrayList<>(rules);
+        sorted.sort(Comparator.comparingInt((Rule r) -> r.needle.length).reversed());
+        int n = sorted.size();
+        needles = new byte[n][];
+        replacements = new byte[n][];
+        bounded = new boolean[n];
+        signedBases = new byte[n][];
+        escaped = new boolean[n];
+        int[][] byFirst = NO_CANDIDATES.clone();
+        for (int i = 0; i < n; i++) {
+            Rule rule = sorted.get(i);
+            needles[i] = rule.needle;
+            replacements[i] = rule.replacement;
+            bounded[i] = rule.bounded;
+            signedBases[i] = rule.signedBase;
+            escaped[i] = rule.escaped;
+            int first = rule.needle[0] & 0xff;
+            int[] existing = byFirst[first];
+            int[] grown = existing == null ? new int[1] : Arrays.copyOf(existing, existing.length + 1);
+            grown[grown.length - 1] = i;
+            byFirst[first] = grown;
+        }
+        candidates = byFirst;
+    }
+
+    private record Rule(byte[] needle, byte[] replacement, boolean bounded, byte[] signedBase, boolean escaped) {}
+
+    /**
+     * Rewrites {@code upstream}'s stream and API URLs ({@code routes}, e.g. {@code /live/},
+     * {@code /player_api.php}) onto {@code proxyBase}, and its credentials to the given ones; with
+     * null credentials the {@code /user/pass} path segments are dropped and query and JSON values are
+     * emptied, for clients that authenticate some other way. Other provider URLs, such as images and
+     * guides, keep their host: the proxy does not serve them.
+     */
+    public static UpstreamUrlRewriter of(XtreamUpstream upstream, String proxyBase, List<String> routes,
+                                         String username, String password) {
+        return of(upstream, proxyBase, routes, username, password, List.of(), null);
+    }
+
+    /**
+     * As {@link #of(XtreamUpstream, String, List, String, String)}, with links under
+     * {@code signedRoutes} (e.g. {@code /live/}) signed: {@code signer} gets the route and the rest of
+     * the path, upstream credentials dropped, and returns what follows {@code proxyBase} in the link.
+     */
+    public static UpstreamUrlRewriter of(XtreamUpstream upstream, String proxyBase, List<String> routes,
+                                         String username, String password,
+                                         List<String> signedRoutes, UnaryOperator<String> signer) {
+        Map<String, Rule> rules = new LinkedHashMap<>();
+        String base = stripTrailingSlashes(upstream.baseUrl());
+        String target = stripTrailingSlashes(proxyBase);
+        int scheme = base.indexOf("://");
+        List<String> bases = scheme > 0
+                ? List.of("http://" + base.substring(scheme + 3), "https://" + base.substring(scheme + 3))
+                : List.of(base);
+        for (String from : bases) {
+            for (String route : routes) {
+                // whole segments only; the slash after a prefix route is left for the credential rule
+                String path = stripTrailingSlashes(route);
+                add(rules, from + path, target + path, true, signedRoutes.contains(route) ? target : null);
+            }
+        }
+
+        String user = enc(upstream.username());
+        String pass = enc(upstream.password());
+        String credentialSegment = "/" + user + "/" + pass + "/";
+        boolean keep = username != null && password != null;
+        if (!user.isEmpty() && !pass.isEmpty()) {
+            add(rules, credentialSegment,
+                    keep ? "/" + enc(username) + "/" + enc(password) + "/" : "/", false);
+        }
+        if (!user.isEmpty()) {
+            add(rules, "username=" + user, "username=" + (keep ? enc(username) : ""), true);
+            add(rules, json("username", upstream.username()), json("username", keep ? username : ""), false);
+        }
+        if (!pass.isEmpty()) {
+            add(rules, "password=" + pass, "password=" + (keep ? enc(password) : ""), true);
+            add(rules, json("password", upstream.password()), json("password", keep ? password : ""), false);
+        }
+        return new UpstreamUrlRewriter(new ArrayList<>(rules.values()), credentialSegment, signer);
+    }
+
+    /** The body with every buffer rewritten; input buffers are released as they are consumed. */
+    public Flux<DataBuffer> rewrite(Flux<DataBuffer> body) {
+        return Flux.defer(() -> {
+            Session session = new Session();
+            DataBufferFactory[] factory = {DefaultDataBufferFactory.sharedInstance};
+            return body.<DataBuffer>handle((in, sink) -> {
+                        factory[0] = in.factory();
+                        DataBuffer out = factory[0].allocateBuffer(in.readableByteCount() + 64);
+                        try {
+                            session.feed(in, out);
+                        } finally {
+                            DataBufferUtils.release(in);
+                        }
+                        if (out.readableByteCount() > 0) {
+                            sink.next(out);
+                        } else {
+                            DataBufferUtils.release(out);
+                        }
+                    })
+                    .concatWith(Mono.fromCallable(() -> {
+                        if (session.carried == 0) return null;
+                        DataBuffer out = factory[0].allocateBuffer(session.carried);
+                        session.finish(out::write);
+                        return out;
+                    }))
+                    .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+        });
+    }
+
+    /** A stream that rewrites what is written to {@code out}; {@link RewritingOutputStream#finish()} writes the tail. */
+    public RewritingOutputStream rewrite(OutputStream out) {
+        return new RewritingOutputStream(out, new Session());
+    }
+
+    public static final class RewritingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final Session session;
+        private final byte[] one = new byte[1];
+
+        private RewritingOutputStream(OutputStream out, Session session) {
+            this.out = out;
+            this.session = session;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            one[0] = (byte) b;
+            write(one, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // in slices, so that writing a whole cached body does not copy it in one piece
+            while (len > 0) {
+                int n = Math.min(len, SLICE);
+                session.feed(b, off, n, out::write);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /** Writes a held back partial match; the underlying stream is flushed, not closed. */
+        public void finish() throws IOException {
+            session.finish(out::write);
+            out.flush();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            out.close();
+        }
+    }
+
+    private interface Sink {
+        void write(byte[] b, int off, int len) throws IOException;
+    }
+
+    /** Per-body state: the bytes of a possible match cut off at the end of the last input. */
+    private final class Session {
+        private byte[] work = new byte[0];
+        private int carried;
+
+        void feed(DataBuffer in, DataBuffer out) {
+            int len = in.readableByteCount();
+            ensureCapacity(carried + len);
+            in.read(work, carried, len);
+            try {
+                scan(carried + len, false, out::write);
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // buffers do not throw
+            }
+        }
+
+        void feed(byte[] b, int off, int len, Sink out) throws IOException {
+            ensureCapacity(carried + len);
+            System.arraycopy(b, off, work, carried, len);
+            scan(carried + len, false, out);
+        }
+
+        void finish(Sink out) throws IOException {
+            if (carried > 0) scan(carried, true, out);
+        }
+
+        private void ensureCapacity(int size) {
+            if (work.length < size) work = Arrays.copyOf(work, Math.max(size, work.length * 2));
+        }
+
+        private void scan(int end, boolean last, Sink out) throws IOException {
+            byte[] b = work;
+            int emitted = 0;
+            int i = 0;
+            while (i < end) {
+                int[] c = candidates[b[i] & 0xff];
+                if (c == null) {
+                    i++;
+                    continue;
+                }
+                int m = match(b, i, end, last, c);
+                if (m == NONE) {
+                    i++;
+                } else if (m == PARTIAL) {
+                    break;
+                } else {
+                    int from = i + needles[m].length;
+                    int to = signedBases[m] == null ? NONE : signedPathEnd(b, from, end, last);
+                    if (to == PARTIAL) break;
+                    if (i > emitted) out.write(b, emitted, i - emitted);
+                    if (to == NONE) {
+                        out.write(replacements[m], 0, replacements[m].length);
+                        i = from;
+                    } else {
+                        byte[] link = signedLink(m, b, from, to);
+                        out.write(link, 0, link.length);
+                        i = to;
+                    }
+                    emitted = i;
+                }
+            }
+            if (i > emitted) out.write(b, emitted, i - emitted);
+            carried = end - i;
+            if (carried > 0) System.arraycopy(b, i, b, 0, carried);
+        }
+    }
+
+    private static final int NONE = -1;
+    private static final int PARTIAL = -2;
+
+    /** The needle matching at {@code i}, {@link #NONE}, or {@link #PARTIAL} when more input could make a longer one match. */
+    private int match(byte[] b, int i, int end, boolean last, int[] candidates) {
+        int available = end - i;
+        boolean partial = false;
+        for (int idx : candidates) {
+            byte[] needle = needles[idx];
+            int k = 1;
+            while (k < needle.length && k < available && b[i + k] == needle[k]) k++;
+            if (k < needle.length) {
+                if (k == available && !last) partial = true;
+                continue;
+            }
+            if (bounded[idx]) {
+                int next = i + needle.length;
+                if (next == end) {
+                    if (!last) {
+                        partial = true;
+                        continue;
+                    }
+                } else if (CONTINUES_TOKEN[b[next] & 0xff]) {
+                    continue;
+                }
+            }
+            return partial ? PARTIAL : idx;
+        }
+        return partial ? PARTIAL : NONE;
+    }
+
+    /**
+     * Where the path after a signed route ends: {@link #NONE} when it is empty, too long or followed
+     * by a query of its own, {@link #PARTIAL} when the input ends inside it.
+     */
+    private static int signedPathEnd(byte[] b, int from, int end, boolean last) {
+        int limit = Math.min(end, from + MAX_SIGNED_PATH + 1);
+        int p = from;
+        while (p < limit && PATH[b[p] & 0xff]) p++;
+        if (p - from > MAX_SIGNED_PATH) return NONE;
+        if (p == end) {
+            if (!last) return PARTIAL;
+        } else if (b[p] == '?') {
+            return NONE;
+        }
+        return p - from < 2 ? NONE : p;
+    }
+
+    /** The signed proxy link for the route of rule {@code m} and the path in {@code b[from, to)}, in the rule's escaping. */
+    private byte[] signedLink(int m, byte[] b, int from, int to) {
+        String replacement = new String(replacements[m], StandardCharsets.ISO_8859_1);
+        String base = new String(signedBases[m], StandardCharsets.ISO_8859_1);
+        String path = new String(b, from, to - from, StandardCharsets.ISO_8859_1);
+        if (escaped[m]) {
+            replacement = replacement.replace("\\/", "/");
+            base = base.replace("\\/", "/");
+            path = path.replace("\\/", "/");
+        }
+        if (path.startsWith(credentialSegment)) path = path.substring(credentialSegment.length() - 1);
+        String link = base + signer.apply(replacement.substring(base.length()) + path);
+        return (escaped[m] ? link.replace("/", "\\/") : link).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void add(Map<String, Rule> rules, String needle, String replacement, boolean bounded) {
+        add(rules, needle, replacement, bounded, null);
+    }
+
+    private static void add(Map<String, Rule> rules, String needle, String replacement, boolean bounded, String signedBase) {
+        if (needle.isEmpty() || needle.equals(replacement)) return;
+        rules.putIfAbsent(needle, new Rule(bytes(needle), bytes(replacement), bounded,
+                signedBase == null ? null : bytes(signedBase), false));
+        String escaped = needle.replace("/", "\\/");
+        if (!escaped.equals(needle)) {
+            rules.putIfAbsent(escaped, new Rule(bytes(escaped), bytes(replacement.replace("/", "\\/")), bounded,
+                    signedBase == null ? null : bytes(signedBase.replace("/", "\\/")), true));
+        }
+    }
+
+    /** {@code "key":"value"} with the value as a JSON string; slashes are escaped by {@link #add}. */
+    private static String json(String key, String value) {
+        return "\"" + key + "\":\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String stripTrailingSlashes(String url) {
+        int end = url.length();
+        while (end > 0 && url.charAt(end - 1) == '/') end--;
+        return url.substring(0, end);
+    }
+
+    private static String enc(String value) {
+        return UriUtils.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
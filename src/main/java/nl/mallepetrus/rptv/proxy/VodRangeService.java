@@ -0,0 +1,326 @@
+package nl.mallepetrus.rptv.proxy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+
+/**
+ * Byte-range playback of movies and episodes. A single client range is answered with {@code 206}
+ * from aligned blocks of {@code vodBlockSize} bytes kept in a {@link DiskCache}, so seeks and
+ * re-watches within cached blocks never reach the provider. Each run of missing blocks is one
+ * upstream range request whose body goes to the client as it arrives and is written to the cache
+ * block by block on the way; the client's requests share one connection slot through a viewer session.
+ * <p>
+ * Requests without a Range header, with several ranges, or whose If-Range no longer matches, and
+ * resources whose upstream does not support ranges, are relayed unchanged.
+ */
+@Service
+public class VodRangeService {
+    private static final Logger log = LoggerFactory.getLogger(VodRangeService.class);
+
+    /** Upstream facts about one resource; the blocks of a different length or ETag are never mixed. */
+    private record Resource(long length, String contentType, String etag, String lastModified) {
+        static final Resource NOT_RANGEABLE = new Resource(-1, null, null, null);
+
+        boolean rangeable() { return length >= 0; }
+
+        String version() { return length + "/" + (etag != null ? etag : lastModified); }
+    }
+
+    private final WebClient webClient;
+    private final StreamRelayService relayService;
+    private final StreamSlotScheduler slots;
+    private final DiskCache blocks;
+    private final int blockSize;
+    private final Cache<String, Resource> resources;
+
+    public VodRangeService(WebClient webClient, StreamRelayService relayService, StreamSlotScheduler slots,
+                           AppProps.ProxyProps props, MeterRegistry meterRegistry) throws IOException {
+        this.webClient = webClient;
+        this.relayService = relayService;
+        this.slots = slots;
+        this.blockSize = props.getVodBlockSize();
+        this.blocks = new DiskCache(Path.of(props.getVodBlockCacheDir()), props.getVodBlockCacheMaxBytes(),
+                props.getVodBlockCacheIdle(), blockSize, props.getWriteBufferSize(), meterRegistry, "rptv.vod.blocks");
+        this.resources = Caffeine.newBuilder()
+                .maximumSize(10_000)
+                .expireAfterAccess(props.getVodBlockCacheIdle())
+                .build();
+    }
+
+    public void relay(UUID accountId, URI upstream, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long[] range = parseRange(request.getHeader(HttpHeaders.RANGE));
+        if (range == null) {
+            relayService.relayStream(accountId, upstream, request, response);
+            return;
+        }
+        String key = accountId + " " + upstream;
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        // players issue range after range; they all run under one viewer session slot
+        String viewer = StreamSlotScheduler.viewerOf(request);
+        Flux<DataBuffer> body = resource(accountId, viewer, key, upstream).flatMapMany(res -> {
+            if (!res.rangeable() || (ifRange != null && !ifRange.equals(res.etag()) && !ifRange.equals(res.lastModified()))) {
+                return slots.withSlot(accountId, viewer, relayService.upstreamBody(upstream, request, response));
+            }
+            return rangeBody(accountId, viewer, key, upstream, res, range, response);
+        });
+        relayService.relay(body, request, response);
+    }
+
+    private Flux<DataBuffer> rangeBody(UUID accountId, String viewer, String key, URI upstream, Resource res, long[] range, HttpServletResponse response) {
+        long start = range[0] < 0 ? Math.max(0, res.length() - range[1]) : range[0];
+        long end = range[0] < 0 || range[1] < 0 ? res.length() - 1 : Math.min(range[1], res.length() - 1);
+        if (start >= res.length() || start > end) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + res.length());
+            return Flux.empty();
+        }
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setContentType(res.contentType() != null ? res.contentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + res.length());
+        response.setContentLengthLong(end - start + 1);
+        if (res.etag() != null) response.setHeader(HttpHeaders.ETAG, res.etag());
+        if (res.lastModified() != null) response.setHeader(HttpHeaders.LAST_MODIFIED, res.lastModified());
+
+        String prefix = key + "#" + res.version() + "#";
+        long firstBlock = start / blockSize;
+        long lastBlock = end / blockSize;
+        // cached blocks come from disk; each run of missing ones is one upstream request, teed into the cache
+        List<long[]> plan = new ArrayList<>();
+        for (long block = firstBlock; block <= lastBlock; block++) {
+            boolean cached = blocks.contains(prefix + block);
+            long[] last = plan.isEmpty() ? null : plan.get(plan.size() - 1);
+            if (!cached && last != null && last[2] == 0) {
+                last[1] = block;
+            } else {
+                plan.add(new long[]{block, block, cached ? 1 : 0});
+            }
+        }
+        boolean fetching = plan.stream().anyMatch(run -> run[2] == 0);
+        Flux<DataBuffer> body = Flux.fromIterable(plan).concatMap(run -> {
+            if (run[2] == 0) return fetchRun(key, prefix, upstream, res, run[0], run[1], start, end);
+            return Flux.range(0, (int) (run[1] - run[0] + 1)).concatMap(i -> {
+                long block = run[0] + i;
+                long blockStart = block * blockSize;
+                // evicted since the plan was made: fetched alone
+                Flux<DataBuffer> fill = fetchRange(key, upstream, res, blockStart, blockEnd(block, res) - 1);
+                return blocks.get(prefix + block, () -> slots.withSlot(accountId, viewer, fill))
+                        .flatMapMany(blob -> blob.read(Math.max(0, start - blockStart),
+                                Math.min(blob.size(), end - blockStart + 1)));
+            });
+        });
+        // one slot for the whole response, however many blocks it spans
+        return fetching ? slots.withSlot(accountId, viewer, body) : body;
+    }
+
+    /** Blocks {@code from..to} in one upstream request, written to the block cache as they stream through. */
+    private Flux<DataBuffer> fetchRun(String key, String prefix, URI upstream, Resource res, long from, long to,
+                                      long start, long end) {
+        return Flux.defer(() -> {
+            BlockTee tee = new BlockTee(prefix, from, res);
+            return fetchRange(key, upstream, res, from * blockSize, blockEnd(to, res) - 1)
+                    .<DataBuffer>handle((buffer, sink) -> {
+                        long position = tee.position;
+                        tee.write(buffer);
+                        DataBuffer clipped = clip(buffer, position, start, end);
+                        if (clipped.readableByteCount() > 0) {
+                            sink.next(clipped);
+                        } else {
+                            DataBufferUtils.release(clipped);
+                        }
+                    })
+                    .doFinally(signal -> tee.close());
+        });
+    }
+
+    /** Narrows a buffer holding the bytes from {@code position} on to the client's {@code start..end}. */
+    private static DataBuffer clip(DataBuffer buffer, long position, long start, long end) {
+        int read = buffer.readPosition();
+        int from = (int) Math.max(0, Math.min(buffer.readableByteCount(), start - position));
+        int to = (int) Math.max(from, Math.min(buffer.readableByteCount(), end - position + 1));
+        return buffer.writePosition(read + to).readPosition(read + from);
+    }
+
+    private long blockEnd(long block, Resource res) {
+        return Math.min((block + 1) * blockSize, res.length());
+    }
+
+    /** Splits a relayed body into blocks and stores each complete one; a failed write only stops the caching. */
+    private final class BlockTee {
+        private final String prefix;
+        private final Resource res;
+        private long block;
+        private long position;
+        private DiskCache.Writer writer;
+        private boolean opened;
+        private boolean failed;
+
+        BlockTee(String prefix, long block, Resource res) {
+            this.prefix = prefix;
+            this.res = res;
+            this.block = block;
+            this.position = block * blockSize;
+        }
+
+        void write(DataBuffer buffer) {
+            try (DataBuffer.ByteBufferIterator it = buffer.readableByteBuffers()) {
+                while (it.hasNext()) {
+                    ByteBuffer bytes = it.next();
+                    while (bytes.hasRemaining()) {
+                        int n = (int) Math.min(bytes.remaining(), blockEnd(block, res) - position);
+                        if (n <= 0) return; // more than was asked for; not ours to cache
+                        ByteBuffer part = bytes.slice(bytes.position(), n);
+                        bytes.position(bytes.position() + n);
+                        store(part);
+                        position += n;
+                        if (position == blockEnd(block, res)) {
+                            commit();
+                            block++;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void store(ByteBuffer part) {
+            if (failed) return;
+            try {
+                if (!opened) {
+                    writer = blocks.writer(prefix + block); // null: cached meanwhile, just pass through
+                    opened = true;
+                }
+                if (writer != null) writer.write(part);
+            } catch (IOException e) {
+                log.debug("Could not cache block {} of {}: {}", block, prefix, e.toString());
+                failed = true;
+                close();
+            }
+        }
+
+        private void commit() {
+            try {
+                if (writer != null && !failed) writer.commit();
+            } catch (IOException e) {
+                log.debug("Could not cache block {} of {}: {}", block, prefix, e.toString());
+                writer.abort();
+            }
+            writer = null;
+            opened = false;
+        }
+
+        /** Drops an incomplete block, e.g. when the client went away mid-block. */
+        void close() {
+            if (writer != null) writer.abort();
+            writer = null;
+        }
+    }
+
+    private Mono<Resource> resource(UUID accountId, String viewer, String key, URI upstream) {
+        Resource known = resources.getIfPresent(key);
+        if (known != null) return Mono.just(known);
+        return slots.withSlot(accountId, viewer, webClient.get().uri(upstream)
+                        .header(HttpHeaders.RANGE, "bytes=0-0")
+                        .exchangeToMono(resp -> {
+                            Resource res = describe(resp);
+                            if (res != null) return resp.releaseBody().thenReturn(res);
+                            if (resp.statusCode().is2xxSuccessful()) return abandon(resp).thenReturn(Resource.NOT_RANGEABLE);
+                            return resp.releaseBody().then(Mono.error(
+                                    new ResponseStatusException(resp.statusCode(), "Upstream request failed")));
+                        })
+                        .flux())
+                .next()
+                .doOnNext(res -> resources.put(key, res));
+    }
+
+    private Flux<DataBuffer> fetchRange(String key, URI upstream, Resource expected, long from, long to) {
+        return webClient.get().uri(upstream)
+                .header(HttpHeaders.RANGE, "bytes=" + from + "-" + to)
+                .exchangeToFlux(resp -> {
+                    Resource res = describe(resp);
+                    if (res != null && res.version().equals(expected.version())) {
+                        return resp.bodyToFlux(DataBuffer.class);
+                    }
+                    // changed or no longer rangeable upstream: forget it so the next request starts over
+                    resources.invalidate(key);
+                    Mono<Void> discard = res == null && resp.statusCode().is2xxSuccessful() ? abandon(resp) : resp.releaseBody();
+                    return discard.thenMany(Flux.error(res == null && !resp.statusCode().is2xxSuccessful()
+                            ? new ResponseStatusException(resp.statusCode(), "Upstream request failed")
+                            : new ResponseStatusException(BAD_GATEWAY, "Upstream resource changed")));
+                });
+    }
+
+    /** The resource described by a {@code 206} response, or null for anything else. */
+    private static Resource describe(ClientResponse resp) {
+        if (resp.statusCode().value() != HttpStatus.PARTIAL_CONTENT.value()) return null;
+        HttpHeaders headers = resp.headers().asHttpHeaders();
+        String contentRange = headers.getFirst(HttpHeaders.CONTENT_RANGE);
+        int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+        if (slash < 0) return null;
+        try {
+            long length = Long.parseLong(contentRange.substring(slash + 1).trim());
+            String etag = headers.getETag();
+            return new Resource(length, headers.getFirst(HttpHeaders.CONTENT_TYPE),
+                    etag != null && !etag.startsWith("W/") ? etag : null,
+                    headers.getFirst(HttpHeaders.LAST_MODIFIED));
+        } catch (NumberFormatException e) {
+            return null; // "bytes 0-0/*": length unknown
+        }
+    }
+
+    /** Stops reading a full-length body that was sent instead of a range; cancelling closes the connection. */
+    private static Mono<Void> abandon(ClientResponse resp) {
+        return resp.bodyToFlux(DataBuffer.class).take(1).doOnNext(DataBufferUtils::release).then();
+    }
+
+    /**
+     * A single {@code bytes=} range as {start, end}; -1 marks an open end, and a suffix range
+     * ({@code bytes=-n}) is returned as {-1, n}. Null when absent, multiple or malformed.
+     */
+    static long[] parseRange(String header) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) return null;
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                return suffix > 0 ? new long[]{-1, suffix} : null;
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? -1 : Long.parseLong(last);
+            if (start < 0 || (end >= 0 && end < start)) return null;
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
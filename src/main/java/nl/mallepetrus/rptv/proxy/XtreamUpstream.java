@@ -0,0 +1,66 @@
+package nl.mallepetrus.rptv.proxy;
+
+import nl.mallepetrus.rptv.crypto.CryptoService;
+import nl.mallepetrus.rptv.domain.XtreamAccount;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Resolved upstream location and plaintext credentials of an {@link XtreamAccount}.
+ * Builds the provider URLs; never log or return an instance to clients.
+ */
+public record XtreamUpstream(String baseUrl, String username, String password) {
+
+    /** Rows not yet converted to binary columns still carry an inner text envelope to unwrap. */
+    public static XtreamUpstream of(XtreamAccount account, CryptoService cryptoService) {
+        return new XtreamUpstream(account.getApiUrl(),
+                account.getUsername() != null ? account.getUsername() : cryptoService.decrypt(account.getUsernameEnc()),
+                account.getPassword() != null ? account.getPassword() : cryptoService.decrypt(account.getPasswordEnc()));
+    }
+
+    /** {@code {base}/{kind}/{username}/{password}/{path}}, e.g. {@code /live/u/p/123.ts}. */
+    public URI streamUri(String kind, String path) {
+        UriComponentsBuilder b = UriComponentsBuilder.fromHttpUrl(baseUrl)
+                .pathSegment(enc(kind), enc(username), enc(password));
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) b.pathSegment(enc(segment));
+        }
+        return b.build(true).toUri();
+    }
+
+    /** {@code {base}/player_api.php?username=..&password=..} plus the given extra parameters. */
+    public URI playerApiUri(MultiValueMap<String, String> params) {
+        UriComponentsBuilder b = UriComponentsBuilder.fromHttpUrl(baseUrl)
+                .pathSegment("player_api.php")
+                .queryParam("username", enc(username))
+                .queryParam("password", enc(password));
+        params.forEach((name, values) -> {
+            if (!"username".equals(name) && !"password".equals(name)) {
+                values.forEach(v -> b.queryParam(enc(name), v == null ? null : enc(v)));
+            }
+        });
+        return b.build(true).toUri();
+    }
+
+    /** {@code {base}/xmltv.php?username=..&password=..}, the account's full XMLTV guide. */
+    public URI xmltvUri() {
+        return UriComponentsBuilder.fromHttpUrl(baseUrl)
+                .pathSegment("xmltv.php")
+                .queryParam("username", enc(username))
+                .queryParam("password", enc(password))
+                .build(true).toUri();
+    }
+
+    private static String enc(String value) {
+        return UriUtils.encode(value, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "XtreamUpstream[baseUrl=" + baseUrl + ", username=***, password=***]";
+    }
+}
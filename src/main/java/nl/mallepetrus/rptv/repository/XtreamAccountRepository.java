@@ -1,12 +1,15 @@
 package nl.mallepetrus.rptv.repository;
 
-import nl.mallepetrus.rptv.domain.User;
 import nl.mallepetrus.rptv.domain.XtreamAccount;
 import org.springframework.data.jpa.repository.JpaRepository;
 
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 public interface XtreamAccountRepository extends JpaRepository<XtreamAccount, UUID> {
-    List<XtreamAccount> findAllByUser(User user);
+    // user.id is the user_id column itself, so ownership is checked without touching users
+    List<XtreamAccount> findAllByUserId(UUID userId);
+
+    Optional<XtreamAccount> findByIdAndUserId(UUID id, UUID userId);
 }
@@ -0,0 +1,95 @@
+package nl.mallepetrus.rptv.security;
+
+import nl.mallepetrus.rptv.config.AppProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Argon2id cost parameters: the configured floors as they are, or measured on the host by
+ * {@link #calibrate}, which {@link CalibratingPasswordEncoder} runs in the background after startup.
+ * <p>
+ * Calibration starts at the configured floors, doubles memory while a hash stays within the target
+ * latency and {@code argon2-max-memory-kib}, then adds iterations while it still fits. Memory goes
+ * first because it is what makes guessing expensive on GPUs; the cap keeps {@code hash-threads}
+ * concurrent hashes within the heap. Parameters never drop below the floors, however slow the host.
+ */
+public record Argon2Settings(int memoryKib, int iterations, int parallelism, Duration measured,
+                             Duration target, boolean calibrated) {
+
+    private static final Logger log = LoggerFactory.getLogger(Argon2Settings.class);
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final int MAX_ITERATIONS = 16;
+    private static final int RUNS = 3; // best of, after one warm-up
+
+    /** The floors, unmeasured; what hashes use until calibration completes, or for good without it. */
+    public static Argon2Settings floors(AppProps.AuthProps props) {
+        int parallelism = Math.max(1, props.getArgon2Parallelism());
+        return new Argon2Settings(Math.max(8 * parallelism, props.getArgon2MinMemoryKib()),
+                Math.max(1, props.getArgon2MinIterations()), parallelism, null, props.getArgon2TargetLatency(), false);
+    }
+
+    /** Measures the parameters for this host; returns the floors untouched when calibration is off. */
+    public static Argon2Settings calibrate(AppProps.AuthProps props) {
+        Argon2Settings floors = floors(props);
+        if (!props.isArgon2Calibrate()) return floors;
+        int parallelism = floors.parallelism();
+        int memory = floors.memoryKib();
+        int iterations = floors.iterations();
+        long target = props.getArgon2TargetLatency().toNanos();
+        measure(memory, iterations, parallelism, 1); // warm up the JIT before anything is compared
+        long took = measure(memory, iterations, parallelism, RUNS);
+        while ((long) memory * 2 <= props.getArgon2MaxMemoryKib() && took * 2 <= target) {
+            memory *= 2;
+            took = measure(memory, iterations, parallelism, RUNS);
+        }
+        while (iterations < MAX_ITERATIONS && took / iterations * (iterations + 1) <= target) {
+            iterations++;
+            took = measure(memory, iterations, parallelism, RUNS);
+        }
+        Argon2Settings settings = new Argon2Settings(memory, iterations, parallelism, Duration.ofNanos(took),
+                props.getArgon2TargetLatency(), true);
+        log.info("Argon2id m={}KiB t={} p={} takes {}ms (target {}ms)", memory, iterations, parallelism,
+                settings.measured().toMillis(), settings.target().toMillis());
+        return settings;
+    }
+
+    public Argon2PasswordEncoder encoder() {
+        return encoder(memoryKib, iterations, parallelism);
+    }
+
+    /** Shape of the {@code passwordHashing} entry of actuator info. */
+    public Map<String, Object> report(int hashThreads) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("algorithm", "argon2id");
+        report.put("memoryKib", memoryKib);
+        report.put("iterations", iterations);
+        report.put("parallelism", parallelism);
+        report.put("calibrated", calibrated);
+        if (measured != null) report.put("measuredMillis", measured.toMillis());
+        report.put("targetMillis", target.toMillis());
+        report.put("hashThreads", hashThreads);
+        report.put("peakMemoryKib", (long) memoryKib * hashThreads);
+        return report;
+    }
+
+    private static long measure(int memory, int iterations, int parallelism, int runs) {
+        Argon2PasswordEncoder encoder = encoder(memory, iterations, parallelism);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            encoder.encode("calibration");
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static Argon2PasswordEncoder encoder(int memory, int iterations, int parallelism) {
+        return new Argon2PasswordEncoder(SALT_LENGTH, HASH_LENGTH, parallelism, memory, iterations);
+    }
+}
@@ -0,0 +1,76 @@
+package nl.mallepetrus.rptv.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Remembers tokens that passed full verification until they expire, so a player fetching several
+ * HLS segments per second costs one RS256 verification per token instead of one per request.
+ * <p>
+ * Entries are keyed by the SHA-256 of the token, never by a prefix or claim: only the exact bytes
+ * that were verified are accepted from the cache. Rejected tokens are not remembered.
+ */
+public class CachingJwtDecoder implements JwtDecoder {
+
+    private record TokenKey(long a, long b, long c, long d) {}
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final JwtDecoder delegate;
+    private final Cache<TokenKey, Jwt> verified;
+
+    public CachingJwtDecoder(JwtDecoder delegate, long maximumSize, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.verified = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new Expiry<TokenKey, Jwt>() {
+                    @Override
+                    public long expireAfterCreate(TokenKey key, Jwt jwt, long currentTime) {
+                        Instant exp = jwt.getExpiresAt();
+                        return exp == null ? 0 : Math.max(0, Duration.between(Instant.now(), exp).toNanos());
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(TokenKey key, Jwt jwt, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(TokenKey key, Jwt jwt, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build(), "rptv.jwt.decoder");
+    }
+
+    @Override
+    public Jwt decode(String token) throws JwtException {
+        if (token == null) return delegate.decode(null);
+        return verified.get(key(token), k -> delegate.decode(token));
+    }
+
+    private static TokenKey key(String token) {
+        ByteBuffer digest = ByteBuffer.wrap(SHA256.get().digest(token.getBytes(StandardCharsets.UTF_8)));
+        return new TokenKey(digest.getLong(), digest.getLong(), digest.getLong(), digest.getLong());
+    }
+}
@@ -0,0 +1,101 @@
+package nl.mallepetrus.rptv.security;
+
+import nl.mallepetrus.rptv.config.AppProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.util.Map;
+
+/**
+ * Argon2id {@link PasswordEncoder} that hashes with the configured floors from the start and switches
+ * to the parameters {@link Argon2Settings#calibrate} measures on a background thread, so calibration
+ * holds up neither startup nor the readiness probe. Hashes written on the floors in the meantime keep
+ * verifying and are reported by {@link #upgradeEncoding} once the calibrated parameters are in place.
+ * <p>
+ * With {@code argon2-calibrate: false} nothing is measured and the floors are the fixed parameters.
+ */
+public class CalibratingPasswordEncoder implements PasswordEncoder, SmartLifecycle {
+    private static final Logger log = LoggerFactory.getLogger(CalibratingPasswordEncoder.class);
+
+    private final AppProps.AuthProps props;
+    private volatile Argon2Settings settings;
+    private volatile Argon2PasswordEncoder encoder;
+    private volatile boolean calibrating;
+    private Thread worker;
+    private volatile boolean running;
+
+    public CalibratingPasswordEncoder(AppProps.AuthProps props) {
+        this.props = props;
+        use(Argon2Settings.floors(props));
+        if (!props.isArgon2Calibrate()) {
+            log.info("Argon2id m={}KiB t={} p={} (fixed)", settings.memoryKib(), settings.iterations(), settings.parallelism());
+        }
+    }
+
+    public Argon2Settings settings() {
+        return settings;
+    }
+
+    /** {@link Argon2Settings#report}, plus whether calibration is still running. */
+    public Map<String, Object> report(int hashThreads) {
+        Map<String, Object> report = settings.report(hashThreads);
+        report.put("calibrating", calibrating);
+        return report;
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return encoder.encode(rawPassword);
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        return encoder.matches(rawPassword, encodedPassword);
+    }
+
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        return encoder.upgradeEncoding(encodedPassword);
+    }
+
+    private void use(Argon2Settings settings) {
+        this.encoder = settings.encoder();
+        this.settings = settings;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return props.isArgon2Calibrate();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        calibrating = true;
+        worker = new Thread(() -> {
+            try {
+                use(Argon2Settings.calibrate(props));
+            } catch (RuntimeException e) {
+                log.warn("Argon2 calibration failed, hashing on the floors", e);
+            } finally {
+                calibrating = false;
+            }
+        }, "rptv-argon2-calibration");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
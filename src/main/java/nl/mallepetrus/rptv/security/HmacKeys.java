@@ -0,0 +1,42 @@
+package nl.mallepetrus.rptv.security;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+/** HMAC-SHA256 keys for server-side tokens: configured explicitly, or derived per purpose from the master key. */
+public final class HmacKeys {
+    static final String ALGORITHM = "HmacSHA256";
+
+    private HmacKeys() {}
+
+    /** {@code configured} (Base64) when set, else HMAC(master key, purpose), so each purpose gets its own key. */
+    public static byte[] resolve(String configured, String masterKey, String purpose, String property) {
+        if (configured != null && !configured.isBlank()) return Base64.getDecoder().decode(configured);
+        if (masterKey != null && !masterKey.isBlank()) return derive(Base64.getDecoder().decode(masterKey), purpose);
+        throw new IllegalStateException("Missing " + property + " or app.enc.master-key");
+    }
+
+    public static byte[] derive(byte[] secret, String purpose) {
+        return newMac(secret).doFinal(purpose.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** A per-thread {@link Mac} keyed with {@code key}; Mac instances are not thread-safe. */
+    public static ThreadLocal<Mac> perThread(byte[] key) {
+        if (key.length < 32) throw new IllegalArgumentException("HMAC key must be at least 256 bits");
+        byte[] copy = key.clone();
+        return ThreadLocal.withInitial(() -> newMac(copy));
+    }
+
+    private static Mac newMac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+}
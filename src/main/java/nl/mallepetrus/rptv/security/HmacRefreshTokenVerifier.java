@@ -0,0 +1,55 @@
+package nl.mallepetrus.rptv.security;
+
+import javax.crypto.Mac;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Stores refresh tokens as {@code hmac-sha256$<base64url mac>} under a server-side key.
+ * <p>
+ * A refresh token carries 256 random bits, so a slow password hash adds nothing against guessing; a
+ * keyed MAC still keeps a leaked table useless without the key and costs microseconds instead of an
+ * Argon2 run. Hashes without the prefix were written by the password encoder and are still checked
+ * with it, through {@link PasswordHashingExecutor} so a burst of them is shed like one of logins,
+ * until the token is next used and replaced.
+ */
+public class HmacRefreshTokenVerifier implements RefreshTokenVerifier {
+
+    static final String PREFIX = "hmac-sha256$";
+
+    private final ThreadLocal<Mac> macs;
+    private final PasswordHashingExecutor legacy;
+
+    public HmacRefreshTokenVerifier(byte[] key, PasswordHashingExecutor legacy) {
+        this.macs = HmacKeys.perThread(key);
+        this.legacy = legacy;
+    }
+
+    @Override
+    public String hash(String token) {
+        return PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(mac(token));
+    }
+
+    @Override
+    public boolean matches(String token, String storedHash) {
+        if (token == null || storedHash == null) return false;
+        if (isLegacy(storedHash)) return legacy != null && legacy.matches(token, storedHash);
+        byte[] stored;
+        try {
+            stored = Base64.getUrlDecoder().decode(storedHash.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return MessageDigest.isEqual(mac(token), stored); // constant time
+    }
+
+    /** Written by the password encoder; replaced when the token is rotated on refresh. */
+    static boolean isLegacy(String storedHash) {
+        return !storedHash.startsWith(PREFIX);
+    }
+
+    private byte[] mac(String token) {
+        return macs.get().doFinal(token.getBytes(StandardCharsets.UTF_8));
+    }
+}
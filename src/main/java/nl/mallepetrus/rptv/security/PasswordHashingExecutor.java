@@ -0,0 +1,136 @@
+package nl.mallepetrus.rptv.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
+
+/**
+ * Runs password hashing (Argon2, memory-hard by design) on a small pool of its own, so a login burst
+ * cannot occupy more than {@code hashThreads} cores and their hash memory.
+ * <p>
+ * The calling request thread waits for its result; at most {@code hashQueueCapacity} requests wait
+ * for a free hashing thread and any further one is turned away with 429 at once. A request that
+ * waited {@code hashTimeout} without its hash finishing gets 503. Either way the servlet threads that
+ * carry streams and catalog requests stay free.
+ */
+@Component
+public class PasswordHashingExecutor {
+
+    private final PasswordEncoder passwordEncoder;
+    private final ThreadPoolExecutor pool;
+    private final long timeoutNanos;
+    private final Timer encodeTimer;
+    private final Timer matchesTimer;
+    private final Timer waitTimer;
+    private final Counter rejected;
+    private final Counter timedOut;
+
+    public PasswordHashingExecutor(PasswordEncoder passwordEncoder, AppProps.AuthProps props, MeterRegistry meterRegistry) {
+        this.passwordEncoder = passwordEncoder;
+        int threads = Math.max(1, props.getHashThreads());
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, props.getHashQueueCapacity())), r -> {
+                    Thread t = new Thread(r, "rptv-password-hash-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.timeoutNanos = props.getHashTimeout().toNanos();
+        this.encodeTimer = Timer.builder("rptv.auth.hash").tag("op", "encode")
+                .description("Time spent hashing a password").register(meterRegistry);
+        this.matchesTimer = Timer.builder("rptv.auth.hash").tag("op", "matches")
+                .description("Time spent hashing a password").register(meterRegistry);
+        this.waitTimer = Timer.builder("rptv.auth.hash.wait")
+                .description("Time a password hash waited for a hashing thread").register(meterRegistry);
+        this.rejected = Counter.builder("rptv.auth.hash.rejected").tag("reason", "queue_full")
+                .description("Password hashes refused without running").register(meterRegistry);
+        this.timedOut = Counter.builder("rptv.auth.hash.rejected").tag("reason", "timeout")
+                .description("Password hashes refused without running").register(meterRegistry);
+        Gauge.builder("rptv.auth.hash.queue", pool, p -> p.getQueue().size())
+                .description("Password hashes waiting for a hashing thread").register(meterRegistry);
+        Gauge.builder("rptv.auth.hash.active", pool, ThreadPoolExecutor::getActiveCount)
+                .description("Password hashes running").register(meterRegistry);
+    }
+
+    public String encode(CharSequence rawPassword) {
+        return run(() -> passwordEncoder.encode(rawPassword), encodeTimer);
+    }
+
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        return run(() -> passwordEncoder.matches(rawPassword, encodedPassword), matchesTimer);
+    }
+
+    /** True when {@code encodedPassword} was hashed with a lower cost than the encoder now uses. */
+    public boolean needsRehash(String encodedPassword) {
+        return passwordEncoder.upgradeEncoding(encodedPassword);
+    }
+
+    /**
+     * Hashes in the background and hands the result to {@code onHashed} on the hashing thread. Skipped
+     * when the pool is saturated: a rehash is never worth refusing a login for, and the next one retries.
+     */
+    public void encodeLater(CharSequence rawPassword, Consumer<String> onHashed) {
+        try {
+            pool.execute(() -> {
+                long started = System.nanoTime();
+                String hash = passwordEncoder.encode(rawPassword);
+                encodeTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                onHashed.accept(hash);
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+        }
+    }
+
+    private <T> T run(Callable<T> hash, Timer timer) {
+        long queued = System.nanoTime();
+        Future<T> result;
+        try {
+            result = pool.submit(() -> {
+                long started = System.nanoTime();
+                waitTimer.record(started - queued, TimeUnit.NANOSECONDS);
+                try {
+                    return hash.call();
+                } finally {
+                    timer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new ResponseStatusException(TOO_MANY_REQUESTS, "Too many sign-in attempts, try again shortly");
+        }
+        try {
+            return result.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true); // still queued: never runs; already hashing: finishes unobserved
+            timedOut.increment();
+            throw new ResponseStatusException(SERVICE_UNAVAILABLE, "Sign-in is busy, try again shortly");
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(SERVICE_UNAVAILABLE, "Sign-in interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException r) throw r;
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+}
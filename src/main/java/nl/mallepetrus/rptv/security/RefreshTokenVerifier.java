@@ -0,0 +1,12 @@
+package nl.mallepetrus.rptv.security;
+
+/**
+ * Turns a presented refresh token into the value stored in {@code refresh_tokens.token_hash} and
+ * checks a presented token against a stored value.
+ */
+public interface RefreshTokenVerifier {
+
+    String hash(String token);
+
+    boolean matches(String token, String storedHash);
+}
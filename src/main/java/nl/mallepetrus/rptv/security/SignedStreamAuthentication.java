@@ -0,0 +1,25 @@
+package nl.mallepetrus.rptv.security;
+
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+
+import java.util.UUID;
+
+/** A request authenticated by a valid {@link StreamUrlSigner} signature; good for one account's streams only. */
+public final class SignedStreamAuthentication extends AbstractAuthenticationToken {
+    private final UUID accountId;
+
+    public SignedStreamAuthentication(UUID accountId) {
+        super(AuthorityUtils.createAuthorityList("STREAM"));
+        this.accountId = accountId;
+        setAuthenticated(true);
+    }
+
+    public UUID getAccountId() { return accountId; }
+
+    @Override
+    public Object getCredentials() { return ""; }
+
+    @Override
+    public Object getPrincipal() { return accountId; }
+}
@@ -0,0 +1,58 @@
+package nl.mallepetrus.rptv.security;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.RequestAttributeSecurityContextRepository;
+import org.springframework.security.web.context.SecurityContextRepository;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Authenticates {@code /proxy/**} requests that carry a {@link StreamUrlSigner} signature, ahead of
+ * the bearer token filter. Requests without one fall through to JWT authentication; a signature that
+ * is present but wrong or expired ends the request with 403.
+ */
+public class SignedStreamUrlFilter extends OncePerRequestFilter {
+    private final StreamUrlSigner signer;
+    private final SecurityContextRepository contextRepository = new RequestAttributeSecurityContextRepository();
+
+    public SignedStreamUrlFilter(StreamUrlSigner signer) {
+        this.signer = signer;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().startsWith("/proxy/") || request.getParameter(StreamUrlSigner.SIGNATURE) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String path = request.getRequestURI();
+        UUID accountId = StreamUrlSigner.accountOf(path);
+        StreamUrlSigner.Result result = accountId == null ? StreamUrlSigner.Result.INVALID
+                : signer.verify(path, request.getParameter(StreamUrlSigner.EXPIRES), request.getParameter(StreamUrlSigner.SIGNATURE));
+        if (result != StreamUrlSigner.Result.VALID) {
+            // written directly: an error dispatch would be re-authorized and answered with 401
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            response.setContentType("text/plain;charset=UTF-8");
+            response.getWriter().write(result == StreamUrlSigner.Result.EXPIRED ? "Stream URL expired" : "Invalid stream URL");
+            return;
+        }
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(new SignedStreamAuthentication(accountId));
+        SecurityContextHolder.setContext(context);
+        contextRepository.saveContext(context, request, response); // read back on async dispatches
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package nl.mallepetrus.rptv.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Signs {@code /proxy/{accountId}/...} paths for players that cannot send a bearer token:
+ * {@code <path>?exp=<epoch seconds>&sig=<HMAC-SHA256(path, exp), 128 bits, base64url>}.
+ * <p>
+ * The path carries the account and stream id, so a signature is good for exactly one stream of one
+ * account until {@code exp}; ownership is checked when the URL is handed out. Checking one costs a
+ * MAC over a few dozen bytes, without RSA or a database.
+ */
+@Component
+public class StreamUrlSigner {
+    public static final String EXPIRES = "exp";
+    public static final String SIGNATURE = "sig";
+    private static final int TAG_BYTES = 16;
+    private static final Pattern ACCOUNT_PATH = Pattern.compile("^/proxy/([0-9a-fA-F-]{36})/.+");
+
+    public enum Result { VALID, EXPIRED, INVALID }
+
+    private final ThreadLocal<Mac> macs;
+    private final Duration ttl;
+    private final Clock clock;
+    private final Counter expired;
+    private final Counter invalid;
+
+    public StreamUrlSigner(AppProps.ProxyProps props, AppProps.EncProps encProps, MeterRegistry meterRegistry) {
+        this(HmacKeys.resolve(props.getStreamUrlKey(), encProps.getMasterKey(), "rptv stream url v1",
+                "app.proxy.stream-url-key"), props.getStreamUrlTtl(), Clock.systemUTC(), meterRegistry);
+    }
+
+    StreamUrlSigner(byte[] key, Duration ttl, Clock clock, MeterRegistry meterRegistry) {
+        this.macs = HmacKeys.perThread(key);
+        this.ttl = ttl;
+        this.clock = clock;
+        this.expired = Counter.builder("rptv.stream_urls.rejected").tag("reason", "expired")
+                .description("Signed stream URLs refused").register(meterRegistry);
+        this.invalid = Counter.builder("rptv.stream_urls.rejected").tag("reason", "invalid")
+                .description("Signed stream URLs refused").register(meterRegistry);
+    }
+
+    /** {@code rawPath} (already percent-encoded, no query) with a signature valid for the configured ttl. */
+    public String sign(String rawPath) {
+        return sign(rawPath, expiry());
+    }
+
+    public String sign(String rawPath, Instant expiresAt) {
+        long exp = expiresAt.getEpochSecond();
+        return rawPath + "?" + EXPIRES + "=" + exp + "&" + SIGNATURE + "="
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(tag(rawPath, exp));
+    }
+
+    public Instant expiry() {
+        return clock.instant().plus(ttl);
+    }
+
+    public Result verify(String rawPath, String exp, String sig) {
+        long expires;
+        byte[] presented;
+        try {
+            expires = Long.parseLong(exp);
+            presented = Base64.getUrlDecoder().decode(sig);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            invalid.increment();
+            return Result.INVALID;
+        }
+        if (!MessageDigest.isEqual(tag(rawPath, expires), presented)) { // constant time
+            invalid.increment();
+            return Result.INVALID;
+        }
+        if (clock.instant().getEpochSecond() >= expires) {
+            expired.increment();
+            return Result.EXPIRED;
+        }
+        return Result.VALID;
+    }
+
+    /** The account a signable path belongs to, or null for paths outside {@code /proxy/{accountId}/}. */
+    public static UUID accountOf(String rawPath) {
+        Matcher m = ACCOUNT_PATH.matcher(rawPath);
+        if (!m.matches()) return null;
+        try {
+            return UUID.fromString(m.group(1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] tag(String rawPath, long exp) {
+        Mac mac = macs.get();
+        mac.update(rawPath.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) '\n');
+        return Arrays.copyOf(mac.doFinal(Long.toString(exp).getBytes(StandardCharsets.US_ASCII)), TAG_BYTES);
+    }
+}
@@ -2,7 +2,7 @@ package nl.mallepetrus.rptv.service;
 
 import nl.mallepetrus.rptv.config.AppProps;
 import nl.mallepetrus.rptv.domain.User;
-import org.springframework.security.crypto.password.PasswordEncoder;
+import nl.mallepetrus.rptv.security.RefreshTokenVerifier;
 import org.springframework.security.oauth2.jwt.JwtClaimsSet;
 import org.springframework.security.oauth2.jwt.JwtEncoder;
 import org.springframework.security.oauth2.jwt.JwtEncoderParameters;
@@ -19,13 +19,13 @@ import java.util.UUID;
 public class TokenService {
     private final JwtEncoder jwtEncoder;
     private final AppProps.JwtProps jwtProps;
-    private final PasswordEncoder passwordEncoder;
+    private final RefreshTokenVerifier refreshTokenVerifier;
     private final SecureRandom secureRandom = new SecureRandom();
 
-    public TokenService(JwtEncoder jwtEncoder, AppProps.JwtProps jwtProps, PasswordEncoder passwordEncoder) {
+    public TokenService(JwtEncoder jwtEncoder, AppProps.JwtProps jwtProps, RefreshTokenVerifier refreshTokenVerifier) {
         this.jwtEncoder = jwtEncoder;
         this.jwtProps = jwtProps;
-        this.passwordEncoder = passwordEncoder;
+        this.refreshTokenVerifier = refreshTokenVerifier;
     }
 
     public String issueAccessToken(User user) {
@@ -50,7 +50,7 @@ public class TokenService {
         secureRandom.nextBytes(raw);
         String rawPart = Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
         String presented = tokenId + "." + rawPart;
-        String hash = passwordEncoder.encode(presented);
+        String hash = refreshTokenVerifier.hash(presented);
         Instant expiresAt = Instant.now().plus(jwtProps.getRefreshTokenTtl(), ChronoUnit.SECONDS);
         return new GeneratedRefreshToken(tokenId, presented, hash, expiresAt);
     }
@@ -68,7 +68,7 @@ public class TokenService {
     }
 
     public boolean matchesRefreshToken(String rawToken, String hash) {
-        return passwordEncoder.matches(rawToken, hash);
+        return refreshTokenVerifier.matches(rawToken, hash);
     }
 
     public record GeneratedRefreshToken(String tokenId, String token, String hash, Instant expiresAt) {}
@@ -1,37 +1,99 @@
 package nl.mallepetrus.rptv.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import nl.mallepetrus.rptv.domain.User;
 import nl.mallepetrus.rptv.repository.UserRepository;
-import org.springframework.security.crypto.password.PasswordEncoder;
+import nl.mallepetrus.rptv.security.PasswordHashingExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.time.Duration;
 import java.util.Optional;
+import java.util.UUID;
+
+import static org.springframework.http.HttpStatus.UNAUTHORIZED;
 
 @Service
 public class UserService {
+    private static final Logger log = LoggerFactory.getLogger(UserService.class);
     private final UserRepository userRepository;
-    private final PasswordEncoder passwordEncoder;
+    private final PasswordHashingExecutor passwordHashing;
+    // detached rows by id; treat them as read-only and evict after changing a user
+    private final Cache<UUID, User> usersById;
 
-    public UserService(UserRepository userRepository, PasswordEncoder passwordEncoder) {
+    public UserService(UserRepository userRepository, PasswordHashingExecutor passwordHashing, MeterRegistry meterRegistry) {
         this.userRepository = userRepository;
-        this.passwordEncoder = passwordEncoder;
+        this.passwordHashing = passwordHashing;
+        this.usersById = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(10_000)
+                .expireAfterWrite(Duration.ofMinutes(5))
+                .recordStats()
+                .build(), "rptv.users");
+    }
+
+    /** The user behind a token subject, from a short-lived cache; 401 when the user no longer exists. */
+    public User getById(UUID id) {
+        User user = usersById.get(id, key -> userRepository.findById(key).orElse(null));
+        if (user == null) throw new ResponseStatusException(UNAUTHORIZED, "Unknown user");
+        return user;
+    }
+
+    public void evict(UUID id) {
+        usersById.invalidate(id);
     }
 
     public Optional<User> findByEmail(String email) {
         return userRepository.findByEmail(email);
     }
 
-    @Transactional
     public User register(String email, String rawPassword, String rolesCsv) {
+        return registerHashed(email, hashPassword(rawPassword), rolesCsv);
+    }
+
+    /** Hashes on the bounded hashing pool; call outside a transaction so no connection is held meanwhile. */
+    public String hashPassword(String rawPassword) {
+        return passwordHashing.encode(rawPassword);
+    }
+
+    @Transactional
+    public User registerHashed(String email, String passwordHash, String rolesCsv) {
         User user = new User();
         user.setEmail(email.toLowerCase());
-        user.setPasswordHash(passwordEncoder.encode(rawPassword));
+        user.setPasswordHash(passwordHash);
         user.setRoles(rolesCsv);
         return userRepository.save(user);
     }
 
-    public boolean matchesPassword(String raw, String hash) {
-        return passwordEncoder.matches(raw, hash);
+    /**
+     * Checks {@code raw} against the user's stored hash. A hash made with lower cost parameters than
+     * the current (calibrated) ones is replaced in the background once the password is known good.
+     */
+    public boolean matchesPassword(User user, String raw) {
+        String hash = user.getPasswordHash();
+        if (!passwordHashing.matches(raw, hash)) return false;
+        if (passwordHashing.needsRehash(hash)) {
+            UUID id = user.getId();
+            passwordHashing.encodeLater(raw, rehashed -> replacePasswordHash(id, hash, rehashed));
+        }
+        return true;
+    }
+
+    private void replacePasswordHash(UUID id, String expected, String replacement) {
+        try {
+            // only if the password was not changed in the meantime
+            userRepository.findById(id).filter(u -> expected.equals(u.getPasswordHash())).ifPresent(u -> {
+                u.setPasswordHash(replacement);
+                userRepository.save(u);
+            });
+            evict(id);
+        } catch (RuntimeException e) {
+            log.warn("Could not store the upgraded password hash of user {}", id, e);
+        }
     }
 }
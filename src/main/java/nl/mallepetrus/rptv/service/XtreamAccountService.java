@@ -1,8 +1,8 @@
 package nl.mallepetrus.rptv.service;
 
-import nl.mallepetrus.rptv.domain.User;
+import nl.mallepetrus.rptv.catalog.CatalogCache;
+import nl.mallepetrus.rptv.catalog.CatalogStore;
 import nl.mallepetrus.rptv.domain.XtreamAccount;
-import nl.mallepetrus.rptv.repository.UserRepository;
 import nl.mallepetrus.rptv.repository.XtreamAccountRepository;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -16,48 +16,61 @@ import static org.springframework.http.HttpStatus.NOT_FOUND;
 @Service
 public class XtreamAccountService {
     private final XtreamAccountRepository xtreamRepo;
-    private final UserRepository userRepository;
+    private final UserService userService;
+    private final CatalogCache catalogCache;
+    private final CatalogStore catalogStore;
+    private final XtreamCredentialCache credentialCache;
 
-    public XtreamAccountService(XtreamAccountRepository xtreamRepo, UserRepository userRepository) {
+    public XtreamAccountService(XtreamAccountRepository xtreamRepo, UserService userService,
+                                CatalogCache catalogCache, CatalogStore catalogStore,
+                                XtreamCredentialCache credentialCache) {
         this.xtreamRepo = xtreamRepo;
-        this.userRepository = userRepository;
+        this.userService = userService;
+        this.catalogCache = catalogCache;
+        this.catalogStore = catalogStore;
+        this.credentialCache = credentialCache;
     }
 
-    public List<XtreamAccount> listFor(User user) {
-        return xtreamRepo.findAllByUser(user);
+    public List<XtreamAccount> listFor(UUID userId) {
+        return xtreamRepo.findAllByUserId(userId);
     }
 
     @Transactional
-    public XtreamAccount create(User user, String name, String apiUrl, String usernameEnc, String passwordEnc) {
+    public XtreamAccount create(UUID userId, String name, String apiUrl, String username, String password) {
         XtreamAccount xa = new XtreamAccount();
-        xa.setUser(user);
+        xa.setUser(userService.getById(userId));
         xa.setName(name);
         xa.setApiUrl(apiUrl);
-        xa.setUsernameEnc(usernameEnc);
-        xa.setPasswordEnc(passwordEnc);
+        xa.setUsername(username);
+        xa.setPassword(password);
         return xtreamRepo.save(xa);
     }
 
-    public XtreamAccount getOwned(User user, UUID id) {
-        XtreamAccount xa = xtreamRepo.findById(id)
+    /** The account if it belongs to the user; ownership is part of the query, so one round-trip. */
+    public XtreamAccount getOwned(UUID userId, UUID id) {
+        return xtreamRepo.findByIdAndUserId(id, userId)
                 .orElseThrow(() -> new ResponseStatusException(NOT_FOUND));
-        if (!xa.getUser().getId().equals(user.getId())) throw new ResponseStatusException(NOT_FOUND);
-        return xa;
     }
 
     @Transactional
-    public XtreamAccount update(User user, UUID id, String name, String apiUrl, String usernameEnc, String passwordEnc) {
-        XtreamAccount xa = getOwned(user, id);
+    public XtreamAccount update(UUID userId, UUID id, String name, String apiUrl, String username, String password) {
+        XtreamAccount xa = getOwned(userId, id);
         if (name != null) xa.setName(name);
         if (apiUrl != null) xa.setApiUrl(apiUrl);
-        if (usernameEnc != null) xa.setUsernameEnc(usernameEnc);
-        if (passwordEnc != null) xa.setPasswordEnc(passwordEnc);
+        if (username != null) xa.setUsername(username);
+        if (password != null) xa.setPassword(password);
+        catalogCache.invalidateAccount(id);
+        catalogStore.invalidateAccount(id);
+        credentialCache.invalidate(id);
         return xtreamRepo.save(xa);
     }
 
     @Transactional
-    public void delete(User user, UUID id) {
-        XtreamAccount xa = getOwned(user, id);
+    public void delete(UUID userId, UUID id) {
+        XtreamAccount xa = getOwned(userId, id);
         xtreamRepo.delete(xa);
+        catalogCache.invalidateAccount(id);
+        catalogStore.invalidateAccount(id);
+        credentialCache.invalidate(id);
     }
 }
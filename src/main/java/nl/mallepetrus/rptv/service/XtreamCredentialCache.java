@@ -0,0 +1,121 @@
+package nl.mallepetrus.rptv.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.crypto.CryptoService;
+import nl.mallepetrus.rptv.domain.XtreamAccount;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import nl.mallepetrus.rptv.repository.XtreamAccountRepository;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+
+/**
+ * Decrypted upstream location and credentials per Xtream account, so that setting up a stream is a
+ * map lookup instead of an entity load plus four AES-GCM decryptions. The owner is kept alongside,
+ * which makes the ownership check part of the same lookup.
+ * <p>
+ * Secrets are held as char arrays and zeroed when an entry is evicted, expires or is invalidated;
+ * the {@link XtreamUpstream} handed out per request is short-lived. Entries expire after
+ * {@code credentialCacheTtl}, which also bounds how long another instance may use credentials that
+ * were changed elsewhere.
+ */
+@Service
+public class XtreamCredentialCache {
+
+    private static final class Credentials {
+        final UUID ownerId;
+        final String baseUrl;
+        final char[] username;
+        final char[] password;
+        private boolean cleared; // guarded by this
+
+        Credentials(UUID ownerId, XtreamUpstream upstream) {
+            this.ownerId = ownerId;
+            this.baseUrl = upstream.baseUrl();
+            this.username = upstream.username().toCharArray();
+            this.password = upstream.password().toCharArray();
+        }
+
+        /** A fresh upstream, or null when the entry was cleared in the meantime. */
+        synchronized XtreamUpstream upstream() {
+            return cleared ? null : new XtreamUpstream(baseUrl, new String(username), new String(password));
+        }
+
+        synchronized void clear() {
+            cleared = true;
+            Arrays.fill(username, '\0');
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    private final XtreamAccountRepository xtreamRepo;
+    private final CryptoService cryptoService;
+    private final Cache<UUID, Credentials> byAccount;
+
+    public XtreamCredentialCache(XtreamAccountRepository xtreamRepo, CryptoService cryptoService,
+                                 AppProps.ProxyProps props, MeterRegistry meterRegistry) {
+        this.xtreamRepo = xtreamRepo;
+        this.cryptoService = cryptoService;
+        this.byAccount = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(props.getCredentialCacheMaxSize())
+                .expireAfterWrite(props.getCredentialCacheTtl())
+                .<UUID, Credentials>removalListener((id, credentials, cause) -> {
+                    if (credentials != null && cause != RemovalCause.REPLACED) credentials.clear();
+                })
+                .recordStats()
+                .build(), "rptv.credentials");
+    }
+
+    /** Upstream of the account if it belongs to the user, else 404 (also for accounts that do not exist). */
+    public XtreamUpstream resolveOwned(UUID userId, UUID accountId) {
+        while (true) {
+            Credentials credentials = byAccount.get(accountId, this::load);
+            if (credentials == null || !credentials.ownerId.equals(userId)) throw new ResponseStatusException(NOT_FOUND);
+            XtreamUpstream upstream = credentials.upstream();
+            if (upstream != null) return upstream;
+        }
+    }
+
+    /** Upstream of the account for a caller already authorized for it (a signed stream URL), else 404. */
+    public XtreamUpstream resolve(UUID accountId) {
+        while (true) {
+            Credentials credentials = byAccount.get(accountId, this::load);
+            if (credentials == null) throw new ResponseStatusException(NOT_FOUND);
+            XtreamUpstream upstream = credentials.upstream();
+            if (upstream != null) return upstream;
+        }
+    }
+
+    /**
+     * Drops the account now and, inside a transaction, once more after it commits, so a lookup racing
+     * with the change cannot put the old row back.
+     */
+    public void invalidate(UUID accountId) {
+        byAccount.invalidate(accountId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    byAccount.invalidate(accountId);
+                }
+            });
+        }
+    }
+
+    private Credentials load(UUID accountId) {
+        XtreamAccount xa = xtreamRepo.findById(accountId).orElse(null);
+        if (xa == null) return null;
+        return new Credentials(xa.getUser().getId(), XtreamUpstream.of(xa, cryptoService));
+    }
+}
@@ -0,0 +1,126 @@
+package nl.mallepetrus.rptv.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.domain.User;
+import nl.mallepetrus.rptv.domain.XtreamAccount;
+import nl.mallepetrus.rptv.security.HmacKeys;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.crypto.Mac;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.springframework.http.HttpStatus.UNAUTHORIZED;
+
+/**
+ * Checks the rptv credentials that stock Xtream apps send with every request and maps them onto one
+ * of the user's Xtream accounts: {@code username} is the rptv email, optionally suffixed with
+ * {@code ~N} for the user's N-th account by creation (default the first). A {@code ~} that is not
+ * followed by digits only, or that follows no {@code @}, is part of the email.
+ * <p>
+ * A successful Argon2 check is remembered for {@code facadeCredentialCacheTtl} under an HMAC of the
+ * pair, keyed per process, so neither the password nor a plain hash of it sits in memory. A hit is
+ * only honoured while the user still exists with the password hash it was verified against, as seen
+ * through {@link UserService#getById}; changing or removing a user and evicting it there revokes
+ * every cached login at once. Failed checks are not remembered.
+ */
+@Service
+public class XtreamFacadeAuthenticator {
+
+    public record Identity(UUID userId, UUID accountId) {}
+
+    private record DigestKey(long a, long b, long c, long d) {}
+
+    private record Verified(UUID userId, UUID accountId, String passwordHash) {}
+
+    private final UserService userService;
+    private final XtreamAccountService accountService;
+    private final ThreadLocal<Mac> macs;
+    private final Cache<DigestKey, Verified> verified;
+
+    public XtreamFacadeAuthenticator(UserService userService, XtreamAccountService accountService,
+                                     AppProps.ProxyProps props, MeterRegistry meterRegistry) {
+        this.userService = userService;
+        this.accountService = accountService;
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.macs = HmacKeys.perThread(key);
+        this.verified = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(props.getFacadeCredentialCacheMaxSize())
+                .expireAfterWrite(props.getFacadeCredentialCacheTtl())
+                .recordStats()
+                .build(), "rptv.facade.credentials");
+    }
+
+    /** The user and account behind the credentials, else 401. */
+    public Identity authenticate(String username, String password) {
+        if (username == null || username.isBlank() || password == null || password.isEmpty()) {
+            throw new ResponseStatusException(UNAUTHORIZED);
+        }
+        DigestKey key = digest(username, password);
+        Verified hit = verified.getIfPresent(key);
+        if (hit != null) {
+            if (stillCurrent(hit)) return new Identity(hit.userId(), hit.accountId());
+            verified.invalidate(key);
+        }
+
+        int tilde = accountSuffix(username);
+        String email = (tilde > 0 ? username.substring(0, tilde) : username).toLowerCase();
+        int index = tilde > 0 ? accountIndex(username.substring(tilde + 1)) : 1;
+        User user = userService.findByEmail(email).orElseThrow(() -> new ResponseStatusException(UNAUTHORIZED));
+        if (!userService.matchesPassword(user, password)) throw new ResponseStatusException(UNAUTHORIZED);
+        List<XtreamAccount> accounts = accountService.listFor(user.getId()).stream()
+                .sorted(Comparator.comparing(XtreamAccount::getCreatedAt).thenComparing(XtreamAccount::getId))
+                .toList();
+        if (index > accounts.size()) throw new ResponseStatusException(UNAUTHORIZED, "No such Xtream account");
+        Verified entry = new Verified(user.getId(), accounts.get(index - 1).getId(), user.getPasswordHash());
+        verified.put(key, entry);
+        return new Identity(entry.userId(), entry.accountId());
+    }
+
+    private boolean stillCurrent(Verified hit) {
+        try {
+            return hit.passwordHash().equals(userService.getById(hit.userId()).getPasswordHash());
+        } catch (ResponseStatusException e) {
+            return false; // user removed
+        }
+    }
+
+    /** Position of the {@code ~} before an account number, or -1 when the whole username is the email. */
+    static int accountSuffix(String username) {
+        int tilde = username.lastIndexOf('~');
+        if (tilde < 0 || tilde == username.length() - 1 || username.lastIndexOf('@', tilde) < 0) return -1;
+        for (int i = tilde + 1; i < username.length(); i++) {
+            char c = username.charAt(i);
+            if (c < '0' || c > '9') return -1;
+        }
+        return tilde;
+    }
+
+    private static int accountIndex(String suffix) {
+        try {
+            int index = Integer.parseInt(suffix);
+            if (index >= 1) return index;
+        } catch (NumberFormatException ignored) {
+            // fall through
+        }
+        throw new ResponseStatusException(UNAUTHORIZED);
+    }
+
+    private DigestKey digest(String username, String password) {
+        Mac mac = macs.get();
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        ByteBuffer d = ByteBuffer.wrap(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+        return new DigestKey(d.getLong(), d.getLong(), d.getLong(), d.getLong());
+    }
+}
@@ -8,7 +8,8 @@ import nl.mallepetrus.rptv.web.dto.AuthDtos;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
@@ -23,35 +24,41 @@ public class AuthController {
     private final InviteService inviteService;
     private final TokenService tokenService;
     private final RefreshTokenService refreshTokenService;
+    private final TransactionTemplate tx;
 
     public AuthController(UserService userService, InviteService inviteService,
-                          TokenService tokenService, RefreshTokenService refreshTokenService) {
+                          TokenService tokenService, RefreshTokenService refreshTokenService,
+                          PlatformTransactionManager transactionManager) {
         this.userService = userService;
         this.inviteService = inviteService;
         this.tokenService = tokenService;
         this.refreshTokenService = refreshTokenService;
+        this.tx = new TransactionTemplate(transactionManager);
     }
 
     @PostMapping("/register")
     @ResponseStatus(HttpStatus.CREATED)
-    @Transactional
     public AuthDtos.TokenPair register(@Valid @RequestBody AuthDtos.RegisterRequest req) {
-        inviteService.consumeInvite(req.inviteCode());
-        userService.findByEmail(req.email()).ifPresent(u -> {
-            throw new ResponseStatusException(CONFLICT, "Email already registered");
+        // hash first: a request queued for a hashing thread must not hold a database connection
+        String passwordHash = userService.hashPassword(req.password());
+        return tx.execute(status -> {
+            inviteService.consumeInvite(req.inviteCode());
+            userService.findByEmail(req.email()).ifPresent(u -> {
+                throw new ResponseStatusException(CONFLICT, "Email already registered");
+            });
+            User user = userService.registerHashed(req.email(), passwordHash, "USER");
+            String access = tokenService.issueAccessToken(user);
+            TokenService.GeneratedRefreshToken gen = tokenService.generateRefreshToken();
+            refreshTokenService.create(user, gen.tokenId(), gen.hash(), gen.expiresAt());
+            return new AuthDtos.TokenPair(access, gen.token());
         });
-        User user = userService.register(req.email(), req.password(), "USER");
-        String access = tokenService.issueAccessToken(user);
-        TokenService.GeneratedRefreshToken gen = tokenService.generateRefreshToken();
-        refreshTokenService.create(user, gen.tokenId(), gen.hash(), gen.expiresAt());
-        return new AuthDtos.TokenPair(access, gen.token());
     }
 
     @PostMapping("/login")
     public AuthDtos.TokenPair login(@Valid @RequestBody AuthDtos.LoginRequest req) {
         User user = userService.findByEmail(req.email())
                 .orElseThrow(() -> new ResponseStatusException(UNAUTHORIZED, "Invalid credentials"));
-        if (!userService.matchesPassword(req.password(), user.getPasswordHash())) {
+        if (!userService.matchesPassword(user, req.password())) {
             throw new ResponseStatusException(UNAUTHORIZED, "Invalid credentials");
         }
         String access = tokenService.issueAccessToken(user);
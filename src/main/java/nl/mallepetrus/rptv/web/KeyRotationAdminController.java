@@ -0,0 +1,28 @@
+package nl.mallepetrus.rptv.web;
+
+import nl.mallepetrus.rptv.persistence.KeyRotationJob;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping("/api/admin/key-rotation")
+@PreAuthorize("hasRole('ADMIN')")
+public class KeyRotationAdminController {
+    private final KeyRotationJob keyRotationJob;
+
+    public KeyRotationAdminController(KeyRotationJob keyRotationJob) {
+        this.keyRotationJob = keyRotationJob;
+    }
+
+    /** Re-encryption to the active key: rows done, rows still under other keys, checkpoint. */
+    @GetMapping
+    public KeyRotationJob.Progress progress() {
+        return keyRotationJob.progress();
+    }
+
+    /** Starts or resumes the pass from its last checkpoint; a running pass is left alone. */
+    @PostMapping
+    public KeyRotationJob.Progress resume() {
+        return keyRotationJob.resume();
+    }
+}
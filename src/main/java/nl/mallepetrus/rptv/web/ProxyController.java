@@ -0,0 +1,110 @@
+package nl.mallepetrus.rptv.web;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import nl.mallepetrus.rptv.catalog.CatalogCache;
+import nl.mallepetrus.rptv.proxy.HlsService;
+import nl.mallepetrus.rptv.proxy.StreamRelayService;
+import nl.mallepetrus.rptv.proxy.StreamRouter;
+import nl.mallepetrus.rptv.proxy.StreamSlotScheduler;
+import nl.mallepetrus.rptv.proxy.UpstreamUrlRewriter;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import nl.mallepetrus.rptv.security.SignedStreamAuthentication;
+import nl.mallepetrus.rptv.security.StreamUrlSigner;
+import nl.mallepetrus.rptv.service.XtreamCredentialCache;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+
+@RestController
+@RequestMapping("/proxy/{accountId}")
+public class ProxyController {
+    /** Provider paths this controller serves, and so the ones rewritten onto it. */
+    private static final List<String> ROUTES = List.of("/live/", "/movie/", "/series/", "/player_api.php");
+    private static final List<String> STREAM_ROUTES = List.of("/live/", "/movie/", "/series/");
+
+    private final XtreamCredentialCache credentialCache;
+    private final StreamRelayService relayService;
+    private final CatalogCache catalogCache;
+    private final HlsService hlsService;
+    private final StreamRouter streamRouter;
+    private final StreamSlotScheduler slotScheduler;
+    private final StreamUrlSigner urlSigner;
+
+    public ProxyController(XtreamCredentialCache credentialCache, StreamRelayService relayService, CatalogCache catalogCache, HlsService hlsService,
+                           StreamRouter streamRouter, StreamSlotScheduler slotScheduler, StreamUrlSigner urlSigner) {
+        this.credentialCache = credentialCache;
+        this.relayService = relayService;
+        this.catalogCache = catalogCache;
+        this.hlsService = hlsService;
+        this.streamRouter = streamRouter;
+        this.slotScheduler = slotScheduler;
+        this.urlSigner = urlSigner;
+    }
+
+    /**
+     * A bearer token's subject is the user id, checked against the account owner without loading the
+     * user; a signed URL was checked when it was handed out and names the account itself.
+     */
+    private XtreamUpstream upstream(Authentication auth, UUID accountId) {
+        if (auth instanceof SignedStreamAuthentication signed) {
+            if (!signed.getAccountId().equals(accountId)) throw new ResponseStatusException(NOT_FOUND);
+            return credentialCache.resolve(accountId);
+        }
+        Jwt jwt = (Jwt) auth.getPrincipal();
+        return credentialCache.resolveOwned(UUID.fromString(jwt.getSubject()), accountId);
+    }
+
+    @GetMapping("/player_api.php")
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> playerApi(Authentication auth, @PathVariable UUID accountId,
+                                                                              @RequestParam MultiValueMap<String, String> params,
+                                                                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        XtreamUpstream upstream = upstream(auth, accountId);
+        // provider URLs in the body become /proxy/{accountId} URLs; credentials are blanked, and stream
+        // links are signed so players can open them without a bearer token
+        String prefix = "/proxy/" + accountId;
+        Instant expiresAt = urlSigner.expiry();
+        UpstreamUrlRewriter rewriter = UpstreamUrlRewriter.of(upstream,
+                ServletUriComponentsBuilder.fromCurrentContextPath().path(prefix).toUriString(),
+                ROUTES, null, null, STREAM_ROUTES,
+                path -> urlSigner.sign(prefix + path, expiresAt).substring(prefix.length()));
+        if (!catalogCache.isCached(params.getFirst("action"))) {
+            // account info, EPG and other light or volatile actions are passed straight through
+            relayService.relayRewritten(upstream.playerApiUri(params), rewriter, request, response);
+            return null;
+        }
+        return catalogCache.get(accountId, upstream, params)
+                .thenApply(lookup -> ResponseEntity.ok()
+                        .header("X-Cache", lookup.cacheStatus())
+                        .header("Content-Type", lookup.response().contentType())
+                        .body(lookup.response().writeTo(rewriter)));
+    }
+
+    @GetMapping("/{kind:live|movie|series}/{*path}")
+    public void stream(Authentication auth, @PathVariable UUID accountId,
+                       @PathVariable String kind, @PathVariable String path,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException {
+        streamRouter.stream(accountId, upstream(auth, accountId), kind, path, request, response);
+    }
+
+    @GetMapping("/hls/{name}")
+    public void hls(Authentication auth, @PathVariable UUID accountId, @PathVariable String name,
+                    HttpServletRequest request, HttpServletResponse response) throws IOException {
+        XtreamUpstream upstream = upstream(auth, accountId);
+        slotScheduler.prepare(accountId, () -> upstream);
+        hlsService.relayTarget(accountId, name, request, response);
+    }
+}
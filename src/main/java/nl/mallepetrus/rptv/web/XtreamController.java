@@ -1,47 +1,77 @@
 package nl.mallepetrus.rptv.web;
 
 import jakarta.validation.constraints.NotBlank;
-import nl.mallepetrus.rptv.crypto.CryptoService;
-import nl.mallepetrus.rptv.domain.User;
+import nl.mallepetrus.rptv.catalog.CatalogDtos;
+import nl.mallepetrus.rptv.catalog.CatalogStore;
+import nl.mallepetrus.rptv.catalog.ColumnarCatalog;
+import nl.mallepetrus.rptv.catalog.XtreamJsonParser;
 import nl.mallepetrus.rptv.domain.XtreamAccount;
-import nl.mallepetrus.rptv.repository.UserRepository;
+import nl.mallepetrus.rptv.epg.EpgGuide;
+import nl.mallepetrus.rptv.epg.EpgService;
+import nl.mallepetrus.rptv.proxy.StreamSlotScheduler;
+import nl.mallepetrus.rptv.proxy.UpstreamSingleFlight;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import nl.mallepetrus.rptv.security.StreamUrlSigner;
 import nl.mallepetrus.rptv.service.XtreamAccountService;
+import nl.mallepetrus.rptv.service.XtreamCredentialCache;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import reactor.core.publisher.Mono;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+
 @RestController
 @RequestMapping("/api/xtream")
 public class XtreamController {
     private final XtreamAccountService service;
-    private final UserRepository userRepository;
-    private final CryptoService cryptoService;
+    private final XtreamCredentialCache credentialCache;
     private final WebClient webClient;
+    private final UpstreamSingleFlight singleFlight;
+    private final XtreamJsonParser jsonParser;
+    private final CatalogStore catalogStore;
+    private final StreamUrlSigner urlSigner;
+    private final EpgService epgService;
 
-    public XtreamController(XtreamAccountService service, UserRepository userRepository,
-                            CryptoService cryptoService, WebClient webClient) {
+    public XtreamController(XtreamAccountService service, XtreamCredentialCache credentialCache,
+                            WebClient webClient, UpstreamSingleFlight singleFlight, XtreamJsonParser jsonParser,
+                            CatalogStore catalogStore, StreamUrlSigner urlSigner, EpgService epgService) {
         this.service = service;
-        this.userRepository = userRepository;
-        this.cryptoService = cryptoService;
+        this.credentialCache = credentialCache;
         this.webClient = webClient;
+        this.singleFlight = singleFlight;
+        this.jsonParser = jsonParser;
+        this.catalogStore = catalogStore;
+        this.urlSigner = urlSigner;
+        this.epgService = epgService;
     }
 
-    private User ensureUser(Jwt jwt) {
-        return userRepository.findById(UUID.fromString(jwt.getSubject())).orElseThrow();
+    /** The token subject is the user id; ownership is checked against it without loading the user. */
+    private static UUID userId(Jwt jwt) {
+        return UUID.fromString(jwt.getSubject());
     }
 
     @GetMapping
     public List<XtreamAccount> list(@AuthenticationPrincipal Jwt jwt) {
-        return service.listFor(ensureUser(jwt));
+        return service.listFor(userId(jwt));
     }
 
     public record CreateReq(@NotBlank String name, @NotBlank String apiUrl,
@@ -49,44 +79,45 @@ public class XtreamController {
 
     @PostMapping
     public XtreamAccount create(@AuthenticationPrincipal Jwt jwt, @RequestBody CreateReq req) {
-        User user = ensureUser(jwt);
-        return service.create(user, req.name(), req.apiUrl(),
-                cryptoService.encrypt(req.username()), cryptoService.encrypt(req.password()));
+        // credentials are encrypted once, by the column converter
+        return service.create(userId(jwt), req.name(), req.apiUrl(), req.username(), req.password());
     }
 
     public record UpdateReq(String name, String apiUrl, String username, String password) {}
 
     @PutMapping("/{id}")
     public XtreamAccount update(@AuthenticationPrincipal Jwt jwt, @PathVariable UUID id, @RequestBody UpdateReq req) {
-        User user = ensureUser(jwt);
-        String u = req.username() != null ? cryptoService.encrypt(req.username()) : null;
-        String p = req.password() != null ? cryptoService.encrypt(req.password()) : null;
-        return service.update(user, id, req.name(), req.apiUrl(), u, p);
+        return service.update(userId(jwt), id, req.name(), req.apiUrl(), req.username(), req.password());
     }
 
     @DeleteMapping("/{id}")
     public Map<String, String> delete(@AuthenticationPrincipal Jwt jwt, @PathVariable UUID id) {
-        service.delete(ensureUser(jwt), id);
+        service.delete(userId(jwt), id);
         return Map.of("status", "deleted");
     }
 
     @GetMapping("/{id}/test")
     public Map<String, Object> test(@AuthenticationPrincipal Jwt jwt, @PathVariable UUID id) {
-        XtreamAccount xa = service.getOwned(ensureUser(jwt), id);
-        String username = cryptoService.decrypt(xa.getUsernameEnc());
-        String password = cryptoService.decrypt(xa.getPasswordEnc());
-        String url = xa.getApiUrl();
-        if (!url.endsWith("/")) url += "/";
-        URI uri = URI.create(url + "player_api.php?username=" + username + "&password=" + password);
-
-        Map<String, Object> result = webClient.get().uri(uri)
-                .exchangeToMono(resp -> resp.bodyToMono(Map.class)
-                        .defaultIfEmpty(Map.of())
-                        .map(body -> Map.of(
-                                "ok", resp.statusCode().is2xxSuccessful(),
-                                "status", resp.statusCode().value(),
-                                "response", body
-                        )))
+        URI uri = credentialCache.resolveOwned(userId(jwt), id).playerApiUri(new LinkedMultiValueMap<>());
+
+        // decoded incrementally into a typed record; the upstream body is never materialized as a Map
+        Map<String, Object> result = singleFlight.execute("account-test", uri, () -> webClient.get().uri(uri)
+                        .exchangeToMono(resp -> {
+                            if (!resp.statusCode().is2xxSuccessful()) {
+                                return resp.releaseBody().thenReturn(Map.<String, Object>of(
+                                        "ok", false,
+                                        "status", resp.statusCode().value(),
+                                        "response", Map.of()));
+                            }
+                            return jsonParser.document(resp.bodyToFlux(DataBuffer.class), CatalogDtos.AccountInfo.class)
+                                    .<Object>map(info -> info)
+                                    .defaultIfEmpty(Map.of())
+                                    .map(body -> Map.<String, Object>of(
+                                            "ok", true,
+                                            "status", resp.statusCode().value(),
+                                            "response", body
+                                    ));
+                        }))
                 .timeout(Duration.ofSeconds(15))
                 .onErrorResume(throwable -> {
                     if (throwable instanceof WebClientResponseException wcre) {
@@ -106,4 +137,81 @@ public class XtreamController {
                 .block();
         return result;
     }
+
+    /**
+     * A signed URL for one stream of the account, for players that cannot send a bearer token, e.g.
+     * {@code kind=live&path=123.m3u8}; valid until {@code expiresAt}. Each URL is one playback: the
+     * requests made with it share a connection slot.
+     */
+    @GetMapping("/{id}/stream-url")
+    public Map<String, Object> streamUrl(@AuthenticationPrincipal Jwt jwt, @PathVariable UUID id,
+                                         @RequestParam String kind, @RequestParam String path) {
+        if (!kind.matches("live|movie|series") || path.isBlank() || path.contains("..")) {
+            throw new ResponseStatusException(BAD_REQUEST, "Invalid stream");
+        }
+        credentialCache.resolveOwned(userId(jwt), id); // 404 unless the account is the caller's
+        StringBuilder raw = new StringBuilder("/proxy/").append(id).append('/').append(kind);
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) raw.append('/').append(UriUtils.encodePathSegment(segment, StandardCharsets.UTF_8));
+        }
+        Instant expiresAt = urlSigner.expiry();
+        String url = ServletUriComponentsBuilder.fromCurrentContextPath().toUriString()
+                + urlSigner.sign(raw.toString(), expiresAt)
+                + "&" + StreamSlotScheduler.PLAYBACK + "=" + StreamSlotScheduler.newPlayback();
+        return Map.of("url", url, "expiresAt", expiresAt);
+    }
+
+    @GetMapping("/{id}/search")
+    public CompletableFuture<CatalogDtos.SearchResult> search(@AuthenticationPrincipal Jwt jwt, @PathVariable UUID id,
+                                                              @RequestParam String q,
+                                                              @RequestParam(required = false) String type,
+                                                              @RequestParam(defaultValue = "50") int limit) {
+        if (q.isBlank()) throw new ResponseStatusException(BAD_REQUEST, "Query must not be blank");
+        int perType = Math.max(1, Math.min(limit, 200));
+        List<ColumnarCatalog.Kind> kinds = new ArrayList<>();
+        for (ColumnarCatalog.Kind kind : ColumnarCatalog.Kind.values()) {
+            if (type == null || kind.streamType().equals(type)) kinds.add(kind);
+        }
+        if (kinds.isEmpty()) throw new ResponseStatusException(BAD_REQUEST, "Unknown type " + type);
+
+        XtreamUpstream upstream = credentialCache.resolveOwned(userId(jwt), id);
+        // each catalog is loaded (and indexed) on first use and then answered from memory, off the event loop
+        List<CompletableFuture<List<CatalogDtos.SearchHit>>> perKind = kinds.stream()
+                .map(kind -> catalogStore.get(id, upstream, kind)
+                        .thenApplyAsync(catalog -> hits(catalog, q, perType), catalogStore.executor()))
+                .toList();
+        return CompletableFuture.allOf(perKind.toArray(CompletableFuture[]::new))
+                .thenApply(done -> new CatalogDtos.SearchResult(q, perKind.stream()
+                        .flatMap(f -> f.join().stream())
+                        .toList()));
+    }
+
+    public record EpgListing(String channel, Instant from, Instant to, List<EpgGuide.Programme> programmes) {}
+
+    /**
+     * Guide of one channel (its {@code epg_channel_id}) for {@code [from, to)}, ISO instants; by
+     * default the next 24 hours. Answered from the provider's ingested XMLTV guide.
+     */
+    @GetMapping("/{id}/epg")
+    public CompletableFuture<EpgListing> epg(@AuthenticationPrincipal Jwt jwt, @PathVariable UUID id,
+                                             @RequestParam String channel,
+                                             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+                                             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to) {
+        if (channel.isBlank()) throw new ResponseStatusException(BAD_REQUEST, "Channel must not be blank");
+        Instant start = from != null ? from : Instant.now();
+        Instant end = to != null ? to : start.plus(Duration.ofHours(24));
+        XtreamUpstream upstream = credentialCache.resolveOwned(userId(jwt), id);
+        return epgService.programmes(id, upstream, channel, start, end)
+                .thenApply(programmes -> new EpgListing(channel, start, end, programmes));
+    }
+
+    private static List<CatalogDtos.SearchHit> hits(ColumnarCatalog catalog, String q, int limit) {
+        int[] rows = catalog.searchIndex().search(q, limit);
+        List<CatalogDtos.SearchHit> hits = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            hits.add(new CatalogDtos.SearchHit(catalog.kind().streamType(), catalog.id(row), catalog.name(row),
+                    catalog.icon(row), catalog.categoryId(row)));
+        }
+        return hits;
+    }
 }
@@ -0,0 +1,243 @@
+package nl.mallepetrus.rptv.web;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import nl.mallepetrus.rptv.catalog.CatalogCache;
+import nl.mallepetrus.rptv.catalog.CatalogClient;
+import nl.mallepetrus.rptv.catalog.CatalogDtos;
+import nl.mallepetrus.rptv.catalog.CatalogStore;
+import nl.mallepetrus.rptv.catalog.ColumnarCatalog;
+import nl.mallepetrus.rptv.catalog.M3uPlaylist;
+import nl.mallepetrus.rptv.proxy.StreamRelayService;
+import nl.mallepetrus.rptv.proxy.StreamRouter;
+import nl.mallepetrus.rptv.proxy.UpstreamUrlRewriter;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import nl.mallepetrus.rptv.service.XtreamCredentialCache;
+import nl.mallepetrus.rptv.service.XtreamFacadeAuthenticator;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The proxy as an Xtream server, for stock IPTV apps that only know a server URL, a username and a
+ * password: the rptv email (optionally {@code ~N} for the N-th Xtream account) and rptv password.
+ * Upstream credentials never reach the app; every URL handed out points back here.
+ */
+@RestController
+public class XtreamFacadeController {
+    private static final Map<String, Object> UNAUTHORIZED_BODY = Map.of("user_info", Map.of("auth", 0));
+    /** Provider paths the facade serves, and so the ones rewritten onto it. */
+    private static final List<String> ROUTES = List.of("/live/", "/movie/", "/series/", "/player_api.php", "/get.php");
+    private static final MediaType M3U = new MediaType("audio", "x-mpegurl", StandardCharsets.UTF_8);
+
+    private final XtreamFacadeAuthenticator authenticator;
+    private final XtreamCredentialCache credentialCache;
+    private final StreamRelayService relayService;
+    private final CatalogCache catalogCache;
+    private final CatalogClient catalogClient;
+    private final CatalogStore catalogStore;
+    private final StreamRouter streamRouter;
+
+    public XtreamFacadeController(XtreamFacadeAuthenticator authenticator, XtreamCredentialCache credentialCache,
+                                  StreamRelayService relayService, CatalogCache catalogCache, CatalogClient catalogClient,
+                                  CatalogStore catalogStore, StreamRouter streamRouter) {
+        this.authenticator = authenticator;
+        this.credentialCache = credentialCache;
+        this.relayService = relayService;
+        this.catalogCache = catalogCache;
+        this.catalogClient = catalogClient;
+        this.catalogStore = catalogStore;
+        this.streamRouter = streamRouter;
+    }
+
+    private record Session(XtreamFacadeAuthenticator.Identity identity, XtreamUpstream upstream) {}
+
+    private Session login(String username, String password) {
+        XtreamFacadeAuthenticator.Identity identity = authenticator.authenticate(username, password);
+        return new Session(identity, credentialCache.resolve(identity.accountId()));
+    }
+
+    @RequestMapping(value = "/player_api.php", method = {RequestMethod.GET, RequestMethod.POST})
+    public CompletableFuture<ResponseEntity<?>> playerApi(@RequestParam MultiValueMap<String, String> params,
+                                                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String username = params.getFirst("username");
+        String password = params.getFirst("password");
+        Session session;
+        try {
+            session = login(username, password);
+        } catch (ResponseStatusException e) {
+            if (e.getStatusCode() != HttpStatus.UNAUTHORIZED) throw e;
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(UNAUTHORIZED_BODY));
+        }
+        String action = params.getFirst("action");
+        if (action == null || action.isEmpty()) {
+            // the upstream block would carry the provider's credentials and server; answer with ours
+            return catalogClient.accountInfo(session.upstream()).toFuture()
+                    .thenApply(info -> ResponseEntity.ok(accountInfo(info, username, password, request)));
+        }
+        UpstreamUrlRewriter rewriter = rewriter(session, username, password);
+        if (!catalogCache.isCached(action)) {
+            relayService.relayRewritten(session.upstream().playerApiUri(params), rewriter, request, response);
+            return null;
+        }
+        return catalogCache.get(session.identity().accountId(), session.upstream(), params)
+                .thenApply(lookup -> ResponseEntity.ok()
+                        .header("X-Cache", lookup.cacheStatus())
+                        .header("Content-Type", lookup.response().contentType())
+                        .body(lookup.response().writeTo(rewriter)));
+    }
+
+    /**
+     * The account's live channels and movies as M3U, streamed from the cached catalogs. The ETag
+     * follows the catalog versions, so apps that fetch the playlist on every start mostly get a 304.
+     */
+    @GetMapping("/get.php")
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> playlist(
+            @RequestParam(required = false) String username, @RequestParam(required = false) String password,
+            @RequestParam(defaultValue = "ts") String output,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        Session session = login(username, password);
+        String base = ServletUriComponentsBuilder.fromCurrentContextPath().build().toUriString();
+        String credentials = enc(username) + "/" + enc(password) + "/";
+        String liveExtension = "m3u8".equals(output) || "hls".equals(output) ? "m3u8" : "ts";
+        boolean gzip = acceptsGzip(acceptEncoding);
+        UpstreamUrlRewriter rewriter = rewriter(session, username, password);
+
+        UUID accountId = session.identity().accountId();
+        CompletableFuture<ColumnarCatalog> live = catalogStore.get(accountId, session.upstream(), ColumnarCatalog.Kind.LIVE);
+        CompletableFuture<ColumnarCatalog> vod = catalogStore.get(accountId, session.upstream(), ColumnarCatalog.Kind.VOD);
+        return live.thenCombine(vod, (channels, movies) -> {
+            M3uPlaylist playlist = new M3uPlaylist(List.of(
+                    new M3uPlaylist.Section(channels, base + "/live/" + credentials, liveExtension),
+                    new M3uPlaylist.Section(movies, base + "/movie/" + credentials, null)));
+            String etag = playlist.etag(gzip ? "gzip" : null);
+            if (matches(ifNoneMatch, etag)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag)
+                        .cacheControl(CacheControl.noCache().cachePrivate())
+                        .varyBy(HttpHeaders.ACCEPT_ENCODING)
+                        .<StreamingResponseBody>build();
+            }
+            ResponseEntity.BodyBuilder ok = ResponseEntity.ok().eTag(etag)
+                    .cacheControl(CacheControl.noCache().cachePrivate())
+                    .varyBy(HttpHeaders.ACCEPT_ENCODING)
+                    .contentType(M3U)
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"playlist.m3u\"");
+            // icons may still point at the provider
+            if (!gzip) return ok.body(out -> write(playlist, rewriter, out));
+            return ok.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(out -> {
+                GZIPOutputStream compressed = new GZIPOutputStream(out, 16 * 1024);
+                write(playlist, rewriter, compressed);
+                compressed.finish();
+            });
+        });
+    }
+
+    @GetMapping("/{kind:live|movie|series}/{username}/{password}/{*path}")
+    public void stream(@PathVariable String kind, @PathVariable String username, @PathVariable String password,
+                       @PathVariable String path, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Session session = login(username, password);
+        streamRouter.stream(session.identity().accountId(), session.upstream(), kind, path, request, response);
+    }
+
+    /** Provider URLs become facade URLs carrying the app's own credentials. */
+    private static UpstreamUrlRewriter rewriter(Session session, String username, String password) {
+        return UpstreamUrlRewriter.of(session.upstream(),
+                ServletUriComponentsBuilder.fromCurrentContextPath().build().toUriString(), ROUTES, username, password);
+    }
+
+    private static void write(M3uPlaylist playlist, UpstreamUrlRewriter rewriter, OutputStream out) throws IOException {
+        UpstreamUrlRewriter.RewritingOutputStream rewritten = rewriter.rewrite(out);
+        playlist.write(rewritten);
+        rewritten.finish();
+    }
+
+    private static Map<String, Object> accountInfo(CatalogDtos.AccountInfo upstream, String username, String password,
+                                                   HttpServletRequest request) {
+        CatalogDtos.UserInfo u = upstream == null ? null : upstream.userInfo();
+        Map<String, Object> user = new LinkedHashMap<>();
+        user.put("username", username);
+        user.put("password", password);
+        user.put("message", u == null ? "" : u.message());
+        user.put("auth", 1);
+        user.put("status", u == null || u.status() == null ? "Active" : u.status());
+        user.put("exp_date", u == null ? null : u.expDate());
+        user.put("is_trial", u == null ? "0" : String.valueOf(u.isTrial()));
+        user.put("active_cons", u == null ? "0" : String.valueOf(u.activeConnections()));
+        user.put("max_connections", u == null ? "1" : String.valueOf(u.maxConnections()));
+        user.put("allowed_output_formats", u == null || u.allowedOutputFormats() == null
+                ? List.of("m3u8", "ts") : u.allowedOutputFormats());
+
+        Map<String, Object> server = new LinkedHashMap<>();
+        server.put("url", request.getServerName());
+        server.put("port", String.valueOf(request.getServerPort()));
+        server.put("https_port", String.valueOf(request.getServerPort()));
+        server.put("server_protocol", request.getScheme());
+        server.put("timezone", "UTC");
+        server.put("timestamp_now", Instant.now().getEpochSecond());
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("user_info", user);
+        body.put("server_info", server);
+        return body;
+    }
+
+    /** True unless the client sent no {@code Accept-Encoding} or refused gzip with {@code q=0}. */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim();
+            if (!coding.equalsIgnoreCase("gzip") && !coding.equals("*")) continue;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") && isZero(param.substring(2).trim())) return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** A malformed q-value is read as absent, so a sloppy client still gets gzip rather than an error. */
+    private static boolean isZero(String qvalue) {
+        try {
+            return Double.parseDouble(qvalue) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** {@code If-None-Match} uses the weak comparison: a {@code W/} prefix is ignored. */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    private static String enc(String value) {
+        return UriUtils.encodePathSegment(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,13 @@
+-- Upstream stream connections held per Xtream account, shared by all API instances.
+-- Rows are leases: the owning node renews lease_until while the stream runs, so the
+-- sessions of a node that died expire on their own.
+
+CREATE TABLE IF NOT EXISTS stream_sessions (
+    id UUID PRIMARY KEY,
+    account_id UUID NOT NULL REFERENCES xtream_accounts(id) ON DELETE CASCADE,
+    node_id VARCHAR(64) NOT NULL,
+    acquired_at TIMESTAMPTZ NOT NULL DEFAULT now(),
+    lease_until TIMESTAMPTZ NOT NULL
+);
+CREATE INDEX IF NOT EXISTS ix_stream_sessions_account ON stream_sessions(account_id);
+CREATE INDEX IF NOT EXISTS ix_stream_sessions_node ON stream_sessions(node_id);
@@ -0,0 +1,9 @@
+-- Xtream credentials as binary envelopes ([version][key id][iv][ciphertext]) instead of Base64 text.
+-- Adding nullable columns without a default only touches the catalog; existing rows are converted
+-- in small batches by CredentialColumnMigration after startup, after which the text columns are NULL.
+
+ALTER TABLE xtream_accounts
+    ADD COLUMN IF NOT EXISTS username_ct BYTEA,
+    ADD COLUMN IF NOT EXISTS password_ct BYTEA,
+    ALTER COLUMN username_enc DROP NOT NULL,
+    ALTER COLUMN password_enc DROP NOT NULL;
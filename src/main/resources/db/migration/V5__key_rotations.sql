@@ -0,0 +1,11 @@
+-- Checkpoint of the background re-encryption to a master key, so a restarted node resumes where the
+-- last committed batch ended instead of scanning xtream_accounts from the start.
+
+CREATE TABLE IF NOT EXISTS key_rotations (
+    target_key_id SMALLINT PRIMARY KEY,
+    last_id UUID NOT NULL DEFAULT '00000000-0000-0000-0000-000000000000',
+    rows_done BIGINT NOT NULL DEFAULT 0,
+    started_at TIMESTAMPTZ NOT NULL DEFAULT now(),
+    updated_at TIMESTAMPTZ NOT NULL DEFAULT now(),
+    finished_at TIMESTAMPTZ
+);
@@ -0,0 +1,94 @@
+package nl.mallepetrus.rptv.catalog;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.proxy.UpstreamSingleFlight;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CatalogCacheTest {
+
+    @Test
+    void a_refresh_that_finishes_after_the_account_was_invalidated_is_dropped() {
+        Sinks.One<ClientResponse> slowRefresh = Sinks.one();
+        Queue<Mono<ClientResponse>> responses = new ArrayDeque<>();
+        responses.add(Mono.just(ok("v1")));
+        responses.add(slowRefresh.asMono());
+        responses.add(Mono.just(ok("v3")));
+        WebClient webClient = WebClient.builder().exchangeFunction(request -> responses.remove()).build();
+
+        AppProps.CatalogProps props = new AppProps.CatalogProps();
+        props.setTtl(Map.of("get_live_streams", Duration.ofNanos(1))); // stale as soon as it is read again
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CatalogCache cache = new CatalogCache(webClient, new UpstreamSingleFlight(registry), props, registry);
+
+        UUID account = UUID.randomUUID();
+        XtreamUpstream upstream = new XtreamUpstream("http://prov.example", "bob", "s3cret");
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("action", "get_live_streams");
+
+        assertEquals("MISS v1", lookup(cache, account, upstream, params));
+        assertEquals("STALE v1", lookup(cache, account, upstream, params)); // starts the refresh
+        cache.invalidateAccount(account);
+        slowRefresh.tryEmitValue(ok("v2"));
+
+        assertEquals("MISS v3", lookup(cache, account, upstream, params));
+    }
+
+    @Test
+    void a_response_loaded_before_the_account_change_commits_is_dropped_after_it() {
+        Queue<Mono<ClientResponse>> responses = new ArrayDeque<>();
+        responses.add(Mono.just(ok("old")));
+        responses.add(Mono.just(ok("new")));
+        WebClient webClient = WebClient.builder().exchangeFunction(request -> responses.remove()).build();
+        AppProps.CatalogProps props = new AppProps.CatalogProps();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CatalogCache cache = new CatalogCache(webClient, new UpstreamSingleFlight(registry), props, registry);
+
+        UUID account = UUID.randomUUID();
+        XtreamUpstream upstream = new XtreamUpstream("http://prov.example", "bob", "s3cret");
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("action", "get_live_streams");
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            cache.invalidateAccount(account);
+            // a concurrent request still sees the uncommitted, old account
+            assertEquals("MISS old", lookup(cache, account, upstream, params));
+            TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(),
+                    TransactionSynchronization.STATUS_COMMITTED);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertEquals("MISS new", lookup(cache, account, upstream, params));
+    }
+
+    private static String lookup(CatalogCache cache, UUID account, XtreamUpstream upstream,
+                                 MultiValueMap<String, String> params) {
+        CatalogCache.Lookup lookup = cache.get(account, upstream, params).join();
+        return lookup.cacheStatus() + " " + new String(lookup.response().body(), StandardCharsets.UTF_8);
+    }
+
+    private static ClientResponse ok(String body) {
+        return ClientResponse.create(HttpStatus.OK).header("Content-Type", "application/json").body(body).build();
+    }
+}
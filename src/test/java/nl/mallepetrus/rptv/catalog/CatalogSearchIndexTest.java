@@ -0,0 +1,71 @@
+package nl.mallepetrus.rptv.catalog;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CatalogSearchIndexTest {
+
+    @Test
+    void prefix_matches_come_before_substring_matches() {
+        ColumnarCatalog catalog = live("NL: NPO 1 HD", "NPO 2", "Één", "npo3 (backup)", "Discovery", "BBC One");
+        CatalogSearchIndex index = catalog.searchIndex();
+
+        assertEquals(List.of("NPO 2", "npo3 (backup)", "NL: NPO 1 HD"), names(catalog, index.search("npo", 10)));
+        assertEquals(List.of("Één"), names(catalog, index.search("een", 10)));
+        assertEquals(List.of("NL: NPO 1 HD"), names(catalog, index.search("npo 1 h", 10)));
+        assertEquals(List.of("Discovery"), names(catalog, index.search("di", 10)));
+        // below three characters only prefixes match
+        assertEquals(List.of(), names(catalog, index.search("ne", 10)));
+        assertEquals(List.of("BBC One"), names(catalog, index.search("one", 10)));
+        assertEquals(1, index.search("npo", 1).length);
+        assertEquals(0, index.search("  ", 10).length);
+        assertSame(index, catalog.searchIndex());
+    }
+
+    @Test
+    void prefix_matches_are_ordered_by_name_then_catalog_order() {
+        Random random = new Random(42);
+        String[] names = new String[1_000];
+        for (int i = 0; i < names.length; i++) names[i] = "ch " + (char) ('a' + random.nextInt(26)) + random.nextInt(20);
+        ColumnarCatalog catalog = live(names);
+
+        List<Integer> expected = IntStream.range(0, names.length).boxed()
+                .sorted(Comparator.comparing((Integer row) -> CatalogSearchIndex.normalize(names[row])))
+                .toList();
+        List<Integer> actual = Arrays.stream(catalog.searchIndex().search("ch", names.length)).boxed().toList();
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void queries_over_100k_entries_find_the_right_rows() {
+        String[] names = new String[100_000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = (i % 7 == 0 ? "NL: " : "UK| ") + "Channel " + i + (i % 3 == 0 ? " HD" : " FHD");
+        }
+        // query latency is measured by CatalogSearchIndexBenchmark
+        CatalogSearchIndex index = live(names).searchIndex();
+
+        assertEquals(50, index.search("channel 1", 50).length);
+        assertArrayEquals(new int[]{4242}, index.search("channel 4242 hd", 50));
+        assertEquals(11, index.search("channel 4242", 50).length);
+    }
+
+    private static ColumnarCatalog live(String... names) {
+        ColumnarCatalog.Builder builder = ColumnarCatalog.builder(ColumnarCatalog.Kind.LIVE);
+        for (int i = 0; i < names.length; i++) {
+            builder.add(new CatalogDtos.LiveStreamEntry(i + 1, names[i], i, null, null, 1, 0, 0L));
+        }
+        return builder.build();
+    }
+
+    private static List<String> names(ColumnarCatalog catalog, int[] rows) {
+        return Arrays.stream(rows).mapToObj(catalog::name).toList();
+    }
+}
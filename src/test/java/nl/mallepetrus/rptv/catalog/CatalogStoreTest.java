@@ -0,0 +1,57 @@
+package nl.mallepetrus.rptv.catalog;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.proxy.UpstreamSingleFlight;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CatalogStoreTest {
+
+    @Test
+    void the_columnar_catalog_is_decoded_from_the_cached_response_without_asking_upstream_again() {
+        Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+        WebClient webClient = WebClient.builder().exchangeFunction(request -> {
+            String action = UriComponentsBuilder.fromUri(request.url()).build().getQueryParams().getFirst("action");
+            requests.computeIfAbsent(action, a -> new AtomicInteger()).incrementAndGet();
+            String body = switch (action) {
+                case "get_live_streams" -> "[{\"num\":1,\"name\":\"NPO 1\",\"stream_id\":101,\"category_id\":\"5\"}]";
+                case "get_live_categories" -> "[{\"category_id\":\"5\",\"category_name\":\"Nederland\"}]";
+                default -> "[]";
+            };
+            return Mono.just(ClientResponse.create(HttpStatus.OK).header("Content-Type", "application/json").body(body).build());
+        }).build();
+        AppProps.CatalogProps props = new AppProps.CatalogProps();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        XtreamJsonParser parser = new XtreamJsonParser();
+        CatalogCache catalogCache = new CatalogCache(webClient, new UpstreamSingleFlight(registry), props, registry);
+        CatalogStore store = new CatalogStore(new CatalogClient(webClient, parser), catalogCache, parser, props, registry);
+
+        UUID account = UUID.randomUUID();
+        XtreamUpstream upstream = new XtreamUpstream("http://prov.example", "bob", "s3cret");
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        params.add("action", "get_live_streams");
+        catalogCache.get(account, upstream, params).join(); // a player fetched the list through the proxy
+
+        ColumnarCatalog live = store.get(account, upstream, ColumnarCatalog.Kind.LIVE).join();
+        assertEquals(1, live.size());
+        assertEquals("NPO 1", live.name(live.indexOf(101)));
+        assertEquals("Nederland", live.categoryName(live.indexOf(101)));
+        assertEquals(1, requests.get("get_live_streams").get());
+        assertEquals(1, requests.get("get_live_categories").get());
+    }
+}
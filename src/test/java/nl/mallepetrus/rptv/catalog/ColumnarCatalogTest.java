@@ -0,0 +1,101 @@
+package nl.mallepetrus.rptv.catalog;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ColumnarCatalogTest {
+
+    private static final int ENTRIES = 100_000;
+
+    @Test
+    void rows_round_trip_and_are_found_by_id() {
+        ColumnarCatalog catalog = ColumnarCatalog.builder(ColumnarCatalog.Kind.VOD)
+                .add(new CatalogDtos.VodStreamEntry(1, "Heat", 900, "http://img.example.org/p/900.jpg", 3, "mkv", "8.3", 10L))
+                .add(new CatalogDtos.VodStreamEntry(2, "Alien", 17, null, 3, "mp4", null, 11L))
+                .add(new CatalogDtos.VodStreamEntry(3, "Ronin", 450, "poster.jpg", 4, "mkv", "7.2", 12L))
+                .build();
+
+        assertEquals(3, catalog.size());
+        assertEquals(0, catalog.indexOf(900));
+        assertEquals(1, catalog.indexOf(17));
+        assertEquals(-1, catalog.indexOf(18));
+        assertEquals(new CatalogDtos.VodStreamEntry(1, "Heat", 900, "http://img.example.org/p/900.jpg", 3, "mkv", "8.3", 10L),
+                catalog.vod(0));
+        assertEquals(new CatalogDtos.VodStreamEntry(2, "Alien", 17, null, 3, "mp4", null, 11L), catalog.vod(1));
+        assertEquals("poster.jpg", catalog.icon(2));
+        assertThrows(IllegalStateException.class, () -> catalog.live(0));
+    }
+
+    @Test
+    void categories_are_named_and_the_version_follows_content() {
+        ColumnarCatalog.Builder builder = ColumnarCatalog.builder(ColumnarCatalog.Kind.LIVE)
+                .add(new CatalogDtos.LiveStreamEntry(1, "NPO 1", 7, null, "npo1.nl", 2, 0, 10L))
+                .add(new CatalogDtos.LiveStreamEntry(2, "BBC 1", 8, null, null, 5, 0, 11L))
+                .category(new CatalogDtos.CategoryEntry(2, "Dutch", 0));
+        ColumnarCatalog catalog = builder.build();
+
+        assertEquals("Dutch", catalog.categoryName(0));
+        assertNull(catalog.categoryName(1));
+        assertEquals(catalog.version(), builder.build().version());
+        assertNotEquals(catalog.version(), builder.category(new CatalogDtos.CategoryEntry(5, "British", 0)).build().version());
+        assertNotEquals(catalog.version(), ColumnarCatalog.builder(ColumnarCatalog.Kind.LIVE)
+                .add(new CatalogDtos.LiveStreamEntry(1, "NPO 1", 7, null, "npo1.nl", 3, 0, 10L))
+                .category(new CatalogDtos.CategoryEntry(2, "Dutch", 0)).build().version());
+    }
+
+    @Test
+    void columnar_catalog_retains_a_fraction_of_the_map_graph() throws Exception {
+        byte[] json = liveStreamsJson(ENTRIES);
+
+        long before = usedHeapAfterGc();
+        List<Map<String, Object>> naive = new ObjectMapper().readValue(json, new TypeReference<>() {});
+        long naiveBytes = usedHeapAfterGc() - before;
+        assertEquals(ENTRIES, naive.size());
+        Reference.reachabilityFence(naive);
+        naive = null;
+
+        before = usedHeapAfterGc();
+        ColumnarCatalog catalog = new XtreamJsonParser()
+                .elements(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(json)), CatalogDtos.LiveStreamEntry.class)
+                .reduceWith(() -> ColumnarCatalog.builder(ColumnarCatalog.Kind.LIVE), ColumnarCatalog.Builder::add)
+                .map(ColumnarCatalog.Builder::build)
+                .block();
+        long columnarBytes = usedHeapAfterGc() - before;
+
+        assertEquals(ENTRIES, catalog.size());
+        assertEquals("Channel 4242 HD", catalog.live(catalog.indexOf(4242)).name());
+        assertTrue(naiveBytes >= 5 * columnarBytes,
+                "map graph " + naiveBytes + " bytes vs columnar " + columnarBytes + " bytes");
+        Reference.reachabilityFence(catalog);
+    }
+
+    static byte[] liveStreamsJson(int entries) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"num\":").append(i + 1)
+                    .append(",\"name\":\"Channel ").append(i).append(" HD\",\"stream_type\":\"live\",\"stream_id\":").append(i)
+                    .append(",\"stream_icon\":\"http://icons.example.org/logos/").append(i % 997).append(".png\"")
+                    .append(",\"epg_channel_id\":\"ch").append(i).append(".example\",\"added\":\"1700000000\",\"is_adult\":\"0\"")
+                    .append(",\"category_id\":\"").append(i % 40).append("\",\"category_ids\":[").append(i % 40).append(']')
+                    .append(",\"custom_sid\":\"\",\"tv_archive\":0,\"direct_source\":\"\",\"tv_archive_duration\":0}");
+        }
+        return sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
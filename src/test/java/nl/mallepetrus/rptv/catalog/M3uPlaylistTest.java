@@ -0,0 +1,62 @@
+package nl.mallepetrus.rptv.catalog;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class M3uPlaylistTest {
+
+    @Test
+    void entries_carry_epg_ids_logos_and_category_names() throws IOException {
+        M3uPlaylist playlist = new M3uPlaylist(List.of(
+                new M3uPlaylist.Section(live("NPO 1"), "http://rptv/live/a/b/", "ts"),
+                new M3uPlaylist.Section(vod(), "http://rptv/movie/a/b/", null)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        playlist.write(out);
+
+        assertEquals("""
+                #EXTM3U
+                #EXTINF:-1 tvg-id="npo1.nl" tvg-name="NPO 1" tvg-logo="http://img/npo1.png" group-title="Dutch",NPO 1
+                http://rptv/live/a/b/7.ts
+                #EXTINF:-1 tvg-name="Heat 'Directors cut'" group-title="Films",Heat "Directors cut"
+                http://rptv/movie/a/b/900.mkv
+                #EXTINF:-1 tvg-name="Alien",Alien
+                http://rptv/movie/a/b/17.mp4
+                """, out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void etag_follows_content_urls_and_coding() {
+        String etag = new M3uPlaylist(List.of(new M3uPlaylist.Section(live("NPO 1"), "http://rptv/live/a/b/", "ts"))).etag(null);
+
+        // a reload of identical upstream data keeps the validator
+        assertEquals(etag, new M3uPlaylist(List.of(new M3uPlaylist.Section(live("NPO 1"), "http://rptv/live/a/b/", "ts"))).etag(null));
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+
+        assertNotEquals(etag, new M3uPlaylist(List.of(new M3uPlaylist.Section(live("NPO 2"), "http://rptv/live/a/b/", "ts"))).etag(null));
+        assertNotEquals(etag, new M3uPlaylist(List.of(new M3uPlaylist.Section(live("NPO 1"), "http://rptv/live/a/c/", "ts"))).etag(null));
+        assertNotEquals(etag, new M3uPlaylist(List.of(new M3uPlaylist.Section(live("NPO 1"), "http://rptv/live/a/b/", "m3u8"))).etag(null));
+        assertNotEquals(etag, new M3uPlaylist(List.of(new M3uPlaylist.Section(live("NPO 1"), "http://rptv/live/a/b/", "ts"))).etag("gzip"));
+    }
+
+    private static ColumnarCatalog live(String name) {
+        return ColumnarCatalog.builder(ColumnarCatalog.Kind.LIVE)
+                .add(new CatalogDtos.LiveStreamEntry(1, name, 7, "http://img/npo1.png", "npo1.nl", 2, 0, 10L))
+                .category(new CatalogDtos.CategoryEntry(2, "Dutch", 0))
+                .build();
+    }
+
+    private static ColumnarCatalog vod() {
+        return ColumnarCatalog.builder(ColumnarCatalog.Kind.VOD)
+                .add(new CatalogDtos.VodStreamEntry(1, "Heat \"Directors cut\"", 900, null, 3, "mkv", "8.3", 10L))
+                .add(new CatalogDtos.VodStreamEntry(2, "Alien", 17, "", 4, null, null, 11L))
+                .category(new CatalogDtos.CategoryEntry(3, "Films", 0))
+                .build();
+    }
+}
@@ -0,0 +1,106 @@
+package nl.mallepetrus.rptv.catalog;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class XtreamJsonParserTest {
+
+    private static final int RECORDS = 400_000;
+    private static final int BATCH = 64;
+
+    private final XtreamJsonParser parser = new XtreamJsonParser();
+
+    @Test
+    void large_live_streams_payload_is_parsed_in_bounded_memory() {
+        AtomicLong payloadBytes = new AtomicLong();
+        AtomicLong peakRetained = new AtomicLong();
+        long baseline = usedHeapAfterGc();
+
+        Long checksum = parser.elements(syntheticLiveStreams(payloadBytes), CatalogDtos.LiveStreamEntry.class)
+                .index()
+                .doOnNext(t -> {
+                    if (t.getT1() % 50_000 == 0) {
+                        peakRetained.accumulateAndGet(usedHeapAfterGc() - baseline, Math::max);
+                    }
+                })
+                .map(t -> (long) t.getT2().streamId())
+                .reduce(0L, Long::sum)
+                .block();
+
+        assertEquals((long) RECORDS * (RECORDS - 1) / 2, checksum);
+        assertTrue(payloadBytes.get() > 80L * 1024 * 1024, "payload should be large: " + payloadBytes.get());
+        // the document is ~90 MB; holding it (let alone a Map of it) would take several times that
+        assertTrue(peakRetained.get() < 16L * 1024 * 1024, "retained heap while parsing: " + peakRetained.get());
+    }
+
+    @Test
+    void provider_quirks_are_coerced() {
+        String json = "{\"0\":{\"stream_id\":\"7\",\"name\":\"NPO 1\",\"category_id\":\"\",\"added\":\"1700000000\",\"extra\":[1,{\"x\":2}]},"
+                + "\"1\":{\"stream_id\":8,\"name\":\"NPO 2\",\"category_id\":null,\"tv_archive\":1}}";
+        List<CatalogDtos.LiveStreamEntry> entries = parser.elements(split(json, 5), CatalogDtos.LiveStreamEntry.class)
+                .collectList().block();
+
+        assertEquals(2, entries.size());
+        assertEquals(7, entries.get(0).streamId());
+        assertEquals(0, entries.get(0).categoryId());
+        assertEquals(1_700_000_000L, entries.get(0).added());
+        assertEquals("NPO 2", entries.get(1).name());
+        assertEquals(1, entries.get(1).tvArchive());
+    }
+
+    @Test
+    void account_info_is_decoded_without_credentials() {
+        String json = "{\"user_info\":{\"username\":\"u\",\"password\":\"p\",\"auth\":1,\"status\":\"Active\","
+                + "\"active_cons\":\"1\",\"max_connections\":\"2\",\"allowed_output_formats\":[\"m3u8\",\"ts\"]},"
+                + "\"server_info\":{\"url\":\"example.org\",\"port\":\"80\",\"timestamp_now\":1700000000}}";
+        CatalogDtos.AccountInfo info = parser.document(split(json, 7), CatalogDtos.AccountInfo.class).block();
+
+        assertNotNull(info);
+        assertEquals(2, info.userInfo().maxConnections());
+        assertEquals(1, info.userInfo().activeConnections());
+        assertEquals(List.of("m3u8", "ts"), info.userInfo().allowedOutputFormats());
+        assertEquals("example.org", info.serverInfo().url());
+    }
+
+    private static Flux<DataBuffer> syntheticLiveStreams(AtomicLong payloadBytes) {
+        Flux<String> records = Flux.range(0, RECORDS / BATCH).map(batch -> {
+            StringBuilder sb = new StringBuilder(batch == 0 ? "[" : ",");
+            for (int i = batch * BATCH; i < (batch + 1) * BATCH; i++) {
+                if (i > batch * BATCH) sb.append(',');
+                sb.append("{\"num\":").append(i + 1)
+                        .append(",\"name\":\"Channel ").append(i).append(" HD\",\"stream_type\":\"live\",\"stream_id\":").append(i)
+                        .append(",\"stream_icon\":\"http://icons.example.org/logos/").append(i % 997).append(".png\"")
+                        .append(",\"epg_channel_id\":\"ch").append(i).append(".example\",\"added\":\"1700000000\"")
+                        .append(",\"category_id\":\"").append(i % 40).append("\",\"custom_sid\":\"\",\"tv_archive\":0")
+                        .append(",\"direct_source\":\"\",\"tv_archive_duration\":0}");
+            }
+            return sb.toString();
+        }).concatWith(Flux.just("]"));
+        // split every batch so records and tokens straddle buffer boundaries
+        return records.concatMap(s -> split(s, 3)).doOnNext(b -> payloadBytes.addAndGet(b.readableByteCount()));
+    }
+
+    private static Flux<DataBuffer> split(String s, int parts) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int step = Math.max(1, bytes.length / parts + 1);
+        return Flux.range(0, (bytes.length + step - 1) / step).map(i -> {
+            int from = i * step;
+            int to = Math.min(bytes.length, from + step);
+            return DefaultDataBufferFactory.sharedInstance.wrap(java.util.Arrays.copyOfRange(bytes, from, to));
+        });
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,126 @@
+package nl.mallepetrus.rptv.crypto;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AesGcmCryptoServiceTest {
+
+    private final String keyB64 = AesGcmCryptoService.generateRandomKeyB64();
+    private final AesGcmCryptoService crypto = new AesGcmCryptoService(keyB64, 1);
+
+    @Test
+    void decrypts_version_1_payloads_written_by_a_plain_jce_cipher() throws Exception {
+        byte[] iv = new byte[12];
+        iv[11] = 7;
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Base64.getDecoder().decode(keyB64), "AES"),
+                new GCMParameterSpec(128, iv));
+        byte[] sealed = cipher.doFinal("pässwörd".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer packed = ByteBuffer.allocate(1 + iv.length + sealed.length).put((byte) 1).put(iv).put(sealed);
+
+        assertEquals("pässwörd", crypto.decrypt(Base64.getEncoder().encodeToString(packed.array())));
+    }
+
+    @Test
+    void string_and_buffer_apis_read_each_others_envelopes() {
+        String text = "x".repeat(100_000); // larger than the retained scratch buffer
+        String sealed = crypto.encrypt(text);
+        byte[] envelope = Base64.getDecoder().decode(sealed);
+        assertEquals(crypto.encryptedLength(text.length()) - 1, envelope.length); // text envelope has no key id
+        assertEquals(1, envelope[0]);
+
+        ByteBuffer plain = ByteBuffer.allocate(envelope.length);
+        assertEquals(text.length(), crypto.decrypt(ByteBuffer.wrap(envelope), plain));
+        assertEquals(text, new String(plain.array(), 0, plain.position(), StandardCharsets.UTF_8));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(crypto.encryptedLength(5));
+        assertEquals(direct.capacity(), crypto.encrypt(ByteBuffer.wrap("hello".getBytes(StandardCharsets.UTF_8)), direct));
+        byte[] raw = new byte[direct.flip().remaining()];
+        direct.get(raw);
+        assertEquals("hello", crypto.decrypt(Base64.getEncoder().encodeToString(raw)));
+    }
+
+    @Test
+    void binary_envelope_carries_the_key_id() {
+        byte[] envelope = crypto.encryptToBytes("alice");
+        assertEquals(crypto.encryptedLength(5), envelope.length);
+        assertEquals(2, envelope[0]);
+        assertEquals(1, envelope[1]);
+        assertEquals("alice", crypto.decryptBytes(envelope));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> new AesGcmCryptoService(keyB64, 7).decryptBytes(envelope));
+        assertTrue(e.getMessage().contains("key id"));
+    }
+
+    @Test
+    void keyring_reads_retired_keys_and_writes_the_active_one() {
+        String next = AesGcmCryptoService.generateRandomKeyB64();
+        AesGcmCryptoService rotated = new AesGcmCryptoService(Map.of(1, keyB64, 2, next), 1, 2);
+        byte[] old = crypto.encryptToBytes("alice");
+
+        assertEquals("alice", rotated.decryptBytes(old));
+        byte[] fresh = rotated.encryptToBytes("alice");
+        assertEquals(2, fresh[1]);
+        assertEquals(2, rotated.activeKeyId());
+        assertThrows(IllegalStateException.class, () -> crypto.decryptBytes(fresh));
+        // text envelopes carry no id and stay on the master key
+        assertEquals("bob", crypto.decrypt(rotated.encrypt("bob")));
+
+        assertThrows(IllegalStateException.class, () -> new AesGcmCryptoService(Map.of(1, keyB64), 1, 2));
+    }
+
+    @Test
+    void each_encryption_uses_a_fresh_iv() {
+        assertNotEquals(crypto.encrypt("same"), crypto.encrypt("same"));
+        assertEquals("", crypto.decrypt(crypto.encrypt("")));
+    }
+
+    @Test
+    void tampered_truncated_and_foreign_payloads_are_rejected() {
+        byte[] envelope = Base64.getDecoder().decode(crypto.encrypt("secret"));
+        envelope[envelope.length - 1] ^= 1;
+        assertThrows(IllegalStateException.class, () -> crypto.decrypt(Base64.getEncoder().encodeToString(envelope)));
+        assertThrows(IllegalStateException.class, () -> crypto.decrypt("AQID"));
+        assertThrows(IllegalStateException.class, () -> crypto.decrypt("not base64!"));
+        String other = new AesGcmCryptoService(AesGcmCryptoService.generateRandomKeyB64(), 1).encrypt("secret");
+        assertThrows(IllegalStateException.class, () -> crypto.decrypt(other));
+        // the thread's cipher is still usable after a failed decryption
+        assertEquals("secret", crypto.decrypt(crypto.encrypt("secret")));
+    }
+
+    @Test
+    void threads_do_not_share_cipher_state() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < 2_000; i++) {
+                        String text = "thread-" + thread + "-" + i;
+                        if (!text.equals(crypto.decrypt(crypto.encrypt(text)))) return false;
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) assertTrue(result.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package nl.mallepetrus.rptv.epg;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EpgGuideTest {
+
+    private static final Instant T0 = Instant.parse("2024-03-01T00:00:00Z");
+    private static final long S0 = T0.getEpochSecond();
+
+    @Test
+    void window_queries_find_overlapping_programmes_by_binary_search() {
+        EpgGuide.Builder builder = EpgGuide.builder(T0, T0.plusSeconds(86_400), 1000);
+        builder.add("b", S0 + 7200, S0 + 9000, "B2", null); // arrival order does not matter
+        builder.add("b", S0, S0 + 7200, "B1", null);
+        builder.add("b", S0 + 3600, S0 + 3900, "Flash", null); // overlaps B1
+        builder.add("a", S0, S0 + 600, "A1", "first");
+        builder.add("a", S0 - 7200, S0 - 3600, "Gone", null); // ended before the window
+        builder.add("a", S0 + 86_400, S0 + 90_000, "Later", null); // starts after the window
+        EpgGuide guide = builder.build();
+
+        assertEquals(4, builder.size());
+        assertEquals(2, guide.channelCount());
+        assertEquals(List.of("B1", "Flash"), titles(guide.programmes("b", T0.plusSeconds(3700), T0.plusSeconds(7200))));
+        assertEquals(List.of("B1", "B2"), titles(guide.programmes("b", T0.plusSeconds(4000), T0.plusSeconds(7201))));
+        assertEquals(List.of("B2"), titles(guide.programmes("b", T0.plusSeconds(8999), T0.plusSeconds(20_000))));
+        assertEquals(List.of(), guide.programmes("b", T0.plusSeconds(9000), T0.plusSeconds(20_000)));
+        assertEquals(List.of(), guide.programmes("c", T0, T0.plusSeconds(86_400)));
+        assertEquals("first", guide.programmes("a", T0, T0.plusSeconds(1)).get(0).description());
+    }
+
+    @Test
+    void refresh_keeps_programmes_the_new_file_no_longer_lists() {
+        EpgGuide.Builder first = EpgGuide.builder(T0, T0.plusSeconds(86_400), 1000);
+        first.add("a", S0, S0 + 3600, "Old 1", null);
+        first.add("a", S0 + 3600, S0 + 7200, "Old 2", null);
+        first.add("b", S0, S0 + 3600, "Only before", null);
+        EpgGuide previous = first.build();
+
+        // the provider now starts its window an hour later and reschedules the second slot
+        EpgGuide.Builder next = EpgGuide.builder(T0, T0.plusSeconds(86_400), 1000);
+        next.add("a", S0 + 3600, S0 + 5400, "New 2", null);
+        next.add("a", S0 + 5400, S0 + 7200, "New 3", null);
+        EpgGuide guide = next.keep(previous).build();
+
+        assertEquals(List.of("Old 1", "New 2", "New 3"), titles(guide.programmes("a", T0, T0.plusSeconds(86_400))));
+        assertEquals(List.of("Only before"), titles(guide.programmes("b", T0, T0.plusSeconds(86_400))));
+
+        // programmes that aged out of the window are not carried over
+        EpgGuide later = EpgGuide.builder(T0.plusSeconds(3600), T0.plusSeconds(86_400), 1000).keep(guide).build();
+        assertEquals(List.of("New 2", "New 3"), titles(later.programmes("a", T0, T0.plusSeconds(86_400))));
+        assertEquals(0, later.programmes("b", T0, T0.plusSeconds(86_400)).size());
+    }
+
+    @Test
+    void guides_round_trip_through_their_file_format() throws Exception {
+        EpgGuide.Builder builder = EpgGuide.builder(T0, T0.plusSeconds(86_400), 1000);
+        builder.add("npo1.nl", S0, S0 + 600, "Journaal", "Nieuws ✓");
+        builder.add("npo1.nl", S0 + 600, S0 + 1200, "Journaal", null);
+        builder.add("bbc1.uk", S0, S0 + 1800, null, null);
+        EpgGuide guide = builder.build();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        guide.writeTo(new DataOutputStream(bytes));
+        EpgGuide read = EpgGuide.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(guide.size(), read.size());
+        for (String channel : List.of("npo1.nl", "bbc1.uk")) {
+            assertEquals(guide.programmes(channel, T0, T0.plusSeconds(3600)), read.programmes(channel, T0, T0.plusSeconds(3600)));
+        }
+        byte[] corrupt = bytes.toByteArray();
+        corrupt[0] ^= 1;
+        assertThrows(IOException.class,
+                () -> EpgGuide.readFrom(new DataInputStream(new ByteArrayInputStream(corrupt))));
+    }
+
+    private static List<String> titles(List<EpgGuide.Programme> programmes) {
+        return programmes.stream().map(EpgGuide.Programme::title).toList();
+    }
+}
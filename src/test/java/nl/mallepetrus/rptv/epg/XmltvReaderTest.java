@@ -0,0 +1,98 @@
+package nl.mallepetrus.rptv.epg;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class XmltvReaderTest {
+
+    private static final Instant T0 = Instant.parse("2024-03-01T00:00:00Z");
+
+    @Test
+    void programmes_are_read_with_their_offsets_and_other_elements_skipped() throws Exception {
+        String xml = """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <!DOCTYPE tv SYSTEM "xmltv.dtd">
+                <tv generator-info-name="test">
+                  <channel id="npo1.nl"><display-name>NPO 1</display-name><icon src="http://img/1.png"/></channel>
+                  <programme start="20240301120000 +0100" stop="20240301123000 +0100" channel="npo1.nl">
+                    <title lang="nl">Journaal &amp; Weer</title>
+                    <credits><presenter>Someone</presenter></credits>
+                    <desc lang="nl">  Het nieuws.  </desc>
+                    <desc lang="en">The news.</desc>
+                  </programme>
+                  <programme start="202403011230" channel="npo1.nl"><title>Late</title></programme>
+                  <programme start="garbage" stop="20240301130000" channel="npo1.nl"><title>Skipped</title></programme>
+                </tv>
+                """;
+        EpgGuide.Builder builder = EpgGuide.builder(T0, T0.plusSeconds(86_400), 100);
+
+        assertEquals(3, new XmltvReader(1024).read(stream(xml), builder));
+
+        List<EpgGuide.Programme> day = builder.build().programmes("npo1.nl", T0, T0.plusSeconds(86_400));
+        assertEquals(List.of(
+                new EpgGuide.Programme(Instant.parse("2024-03-01T11:00:00Z"), Instant.parse("2024-03-01T11:30:00Z"),
+                        "Journaal & Weer", "Het nieuws."),
+                // no stop: an hour after the last programme of the channel
+                new EpgGuide.Programme(Instant.parse("2024-03-01T12:30:00Z"), Instant.parse("2024-03-01T13:30:00Z"),
+                        "Late", null)), day);
+    }
+
+    @Test
+    void times_parse_with_and_without_seconds_and_offsets() {
+        assertEquals(Instant.parse("2024-03-01T12:00:05Z").getEpochSecond(), XmltvReader.parseTime("20240301120005"));
+        assertEquals(Instant.parse("2024-03-01T14:00:00Z").getEpochSecond(), XmltvReader.parseTime("202403011200 -0200"));
+        assertEquals(Long.MIN_VALUE, XmltvReader.parseTime("2024-03-01"));
+        assertEquals(Long.MIN_VALUE, XmltvReader.parseTime("20241301120000"));
+        assertEquals(Long.MIN_VALUE, XmltvReader.parseTime(null));
+    }
+
+    @Test
+    void a_large_guide_is_read_in_bounded_memory_and_stops_when_full() throws Exception {
+        int programmes = 200_000;
+        // generated while it is read: the document is never in memory here either
+        Iterator<InputStream> parts = Stream.concat(Stream.concat(Stream.of("<tv>"),
+                        IntStream.range(0, programmes).mapToObj(
+                                i -> programme("ch" + (i % 50), T0.plusSeconds(600L * (i / 50)), "x".repeat(4000)))),
+                Stream.of("</tv>")).map(XmltvReaderTest::stream).iterator();
+        InputStream xml = new SequenceInputStream(new Enumeration<>() {
+            public boolean hasMoreElements() { return parts.hasNext(); }
+            public InputStream nextElement() { return parts.next(); }
+        });
+        EpgGuide.Builder builder = EpgGuide.builder(T0, T0.plusSeconds(600L * 1000), 10_000);
+
+        new XmltvReader(100).read(xml, builder);
+
+        // 800 MB of descriptions, truncated and de-duplicated; the window and the cap bound the rest
+        assertEquals(10_000, builder.size());
+        assertEquals(1, builder.dropped());
+        EpgGuide guide = builder.build();
+        assertEquals(50, guide.channelCount());
+        assertEquals(100, guide.programmes("ch7", T0, T0.plusSeconds(60)).get(0).description().length());
+        assertTrue(guide.estimatedBytes() < 2_000_000);
+    }
+
+    private static String programme(String channel, Instant start, String description) {
+        return "<programme start=\"" + xmltv(start) + " +0000\" stop=\"" + xmltv(start.plusSeconds(600))
+                + " +0000\" channel=\"" + channel + "\"><title>Show</title><desc>" + description + "</desc></programme>\n";
+    }
+
+    private static String xmltv(Instant t) {
+        return t.toString().replaceAll("[-:TZ]", "");
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,193 @@
+package nl.mallepetrus.rptv.it;
+
+import nl.mallepetrus.rptv.domain.InviteCode;
+import nl.mallepetrus.rptv.repository.InviteCodeRepository;
+import nl.mallepetrus.rptv.testutil.BaseIntegrationTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.*;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CatalogCacheIT extends BaseIntegrationTest {
+
+    @Autowired
+    TestRestTemplate rest;
+    @Autowired
+    InviteCodeRepository inviteRepo;
+
+    private final AtomicInteger streamsCalls = new AtomicInteger();
+    private final AtomicInteger infoCalls = new AtomicInteger();
+    private DisposableServer upstream;
+    private String baseUrl;
+
+    @BeforeEach
+    void startUpstream() {
+        upstream = HttpServer.create()
+                .port(0)
+                .route(routes -> routes
+                        .get("/player_api.php", (req, res) -> {
+                            String body;
+                            if (req.uri().contains("action=get_live_streams")) {
+                                streamsCalls.incrementAndGet();
+                                body = "[{\"num\":1,\"name\":\"NPO 1\",\"stream_id\":101,\"category_id\":\"5\"}]";
+                            } else if (req.uri().contains("action=get_live_categories")) {
+                                body = "[{\"category_id\":\"5\",\"category_name\":\"Dutch\",\"parent_id\":0}]";
+                            } else if (req.uri().contains("action=get_vod_")) {
+                                body = "[]";
+                            } else {
+                                infoCalls.incrementAndGet();
+                                body = "{\"user_info\":{\"auth\":1}}";
+                            }
+                            return res.header("Content-Type", "application/json")
+                                    .sendString(Mono.just(body), StandardCharsets.UTF_8);
+                        })
+                ).bindNow();
+        baseUrl = "http://localhost:" + upstream.port() + "/";
+    }
+
+    @AfterEach
+    void stopUpstream() {
+        if (upstream != null) upstream.disposeNow();
+    }
+
+    @Test
+    void heavy_actions_are_cached_and_others_pass_through() {
+        String code = UUID.randomUUID().toString().replace("-", "");
+        InviteCode ic = new InviteCode();
+        ic.setCode(code); ic.setMaxUses(1); ic.setExpiresAt(OffsetDateTime.now().plusDays(1));
+        inviteRepo.save(ic);
+
+        String email = "u" + UUID.randomUUID() + "@ex.com";
+        var reg = rest.postForEntity("/api/auth/register",
+                json(Map.of("email", email, "password", "Passw0rd!", "inviteCode", code)), Map.class);
+        String access = (String) reg.getBody().get("accessToken");
+
+        HttpHeaders h = bearer(access); h.setContentType(MediaType.APPLICATION_JSON);
+        var create = rest.postForEntity("/api/xtream", new HttpEntity<>(
+                Map.of("name", "Test", "apiUrl", baseUrl, "username", "u", "password", "p"), h), Map.class);
+        String id = (String) create.getBody().get("id");
+
+        String streamsUrl = "/proxy/" + id + "/player_api.php?action=get_live_streams";
+        ResponseEntity<String> first = rest.exchange(streamsUrl, HttpMethod.GET, new HttpEntity<>(bearer(access)), String.class);
+        ResponseEntity<String> second = rest.exchange(streamsUrl, HttpMethod.GET, new HttpEntity<>(bearer(access)), String.class);
+        assertEquals(HttpStatus.OK, first.getStatusCode());
+        assertEquals("MISS", first.getHeaders().getFirst("X-Cache"));
+        assertEquals("HIT", second.getHeaders().getFirst("X-Cache"));
+        assertEquals(first.getBody(), second.getBody());
+        assertTrue(second.getBody().contains("NPO 1"));
+        assertEquals(1, streamsCalls.get());
+
+        ResponseEntity<String> info1 = rest.exchange("/proxy/" + id + "/player_api.php", HttpMethod.GET,
+                new HttpEntity<>(bearer(access)), String.class);
+        rest.exchange("/proxy/" + id + "/player_api.php", HttpMethod.GET, new HttpEntity<>(bearer(access)), String.class);
+        assertEquals(HttpStatus.OK, info1.getStatusCode());
+        assertTrue(info1.getBody().contains("user_info"));
+        assertEquals(2, infoCalls.get());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void search_answers_from_the_indexed_catalog() {
+        String access = registerUser();
+        String id = createAccount(access);
+
+        String url = "/api/xtream/" + id + "/search?type=live&q=";
+        ResponseEntity<Map> hit = rest.exchange(url + "npo", HttpMethod.GET, new HttpEntity<>(bearer(access)), Map.class);
+        ResponseEntity<Map> miss = rest.exchange(url + "bbc", HttpMethod.GET, new HttpEntity<>(bearer(access)), Map.class);
+        assertEquals(HttpStatus.OK, hit.getStatusCode());
+        List<Map<String, Object>> hits = (List<Map<String, Object>>) hit.getBody().get("hits");
+        assertEquals(1, hits.size());
+        assertEquals("live", hits.get(0).get("type"));
+        assertEquals(101, hits.get(0).get("id"));
+        assertEquals("NPO 1", hits.get(0).get("name"));
+        assertEquals(List.of(), miss.getBody().get("hits"));
+        assertEquals(1, streamsCalls.get());
+
+        ResponseEntity<String> bad = rest.exchange(url + "npo&type=radio", HttpMethod.GET,
+                new HttpEntity<>(bearer(access)), String.class);
+        assertEquals(HttpStatus.BAD_REQUEST, bad.getStatusCode());
+    }
+
+    @Test
+    void playlist_is_streamed_gzipped_and_revalidated() throws Exception {
+        String code = UUID.randomUUID().toString().replace("-", "");
+        InviteCode ic = new InviteCode();
+        ic.setCode(code); ic.setMaxUses(1); ic.setExpiresAt(OffsetDateTime.now().plusDays(1));
+        inviteRepo.save(ic);
+        String email = "u" + UUID.randomUUID() + "@ex.com";
+        var reg = rest.postForEntity("/api/auth/register",
+                json(Map.of("email", email, "password", "Passw0rd!", "inviteCode", code)), Map.class);
+        createAccount((String) reg.getBody().get("accessToken"));
+
+        String url = "/get.php?username={u}&password=Passw0rd!&type=m3u_plus";
+        HttpHeaders gzip = new HttpHeaders();
+        gzip.set(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+        ResponseEntity<byte[]> first = rest.exchange(url, HttpMethod.GET, new HttpEntity<>(gzip), byte[].class, email);
+        assertEquals(HttpStatus.OK, first.getStatusCode());
+        assertEquals("gzip", first.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        String etag = first.getHeaders().getETag();
+        assertNotNull(etag);
+        String playlist;
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(first.getBody()))) {
+            playlist = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(playlist.startsWith("#EXTM3U\n"));
+        assertTrue(playlist.contains("group-title=\"Dutch\",NPO 1\n"));
+        assertTrue(playlist.contains("/live/" + email + "/Passw0rd!/101.ts\n"));
+
+        gzip.setIfNoneMatch(etag);
+        ResponseEntity<byte[]> again = rest.exchange(url, HttpMethod.GET, new HttpEntity<>(gzip), byte[].class, email);
+        assertEquals(HttpStatus.NOT_MODIFIED, again.getStatusCode());
+        assertEquals(etag, again.getHeaders().getETag());
+
+        // the identity representation has its own validator
+        HttpHeaders plain = new HttpHeaders();
+        plain.setIfNoneMatch(etag);
+        ResponseEntity<String> identity = rest.exchange(url, HttpMethod.GET, new HttpEntity<>(plain), String.class, email);
+        assertEquals(HttpStatus.OK, identity.getStatusCode());
+        assertEquals(playlist, identity.getBody());
+        assertNotEquals(etag, identity.getHeaders().getETag());
+        assertEquals(1, streamsCalls.get());
+    }
+
+    private String registerUser() {
+        String code = UUID.randomUUID().toString().replace("-", "");
+        InviteCode ic = new InviteCode();
+        ic.setCode(code); ic.setMaxUses(1); ic.setExpiresAt(OffsetDateTime.now().plusDays(1));
+        inviteRepo.save(ic);
+        String email = "u" + UUID.randomUUID() + "@ex.com";
+        var reg = rest.postForEntity("/api/auth/register",
+                json(Map.of("email", email, "password", "Passw0rd!", "inviteCode", code)), Map.class);
+        return (String) reg.getBody().get("accessToken");
+    }
+
+    private String createAccount(String access) {
+        HttpHeaders h = bearer(access); h.setContentType(MediaType.APPLICATION_JSON);
+        var create = rest.postForEntity("/api/xtream", new HttpEntity<>(
+                Map.of("name", "Test", "apiUrl", baseUrl, "username", "u", "password", "p"), h), Map.class);
+        return (String) create.getBody().get("id");
+    }
+
+    private HttpHeaders bearer(String access) { HttpHeaders h = new HttpHeaders(); h.setBearerAuth(access); return h; }
+    private HttpEntity<Map<String, String>> json(Map<String, String> body) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return new HttpEntity<>(body, headers);
+    }
+}
@@ -0,0 +1,105 @@
+package nl.mallepetrus.rptv.it;
+
+import nl.mallepetrus.rptv.crypto.CryptoService;
+import nl.mallepetrus.rptv.domain.XtreamAccount;
+import nl.mallepetrus.rptv.persistence.CredentialColumnMigration;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import nl.mallepetrus.rptv.repository.XtreamAccountRepository;
+import nl.mallepetrus.rptv.testutil.BaseIntegrationTest;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Accounts stored before V4 (double-wrapped Base64 text) are moved to the binary columns. */
+public class CredentialColumnMigrationIT extends BaseIntegrationTest {
+
+    @Autowired
+    JdbcTemplate jdbc;
+    @Autowired
+    DataSource dataSource;
+    @Autowired
+    CryptoService crypto;
+    @Autowired
+    CredentialColumnMigration migration;
+    @Autowired
+    XtreamAccountRepository xtreamRepo;
+
+    @Test
+    void legacy_rows_are_readable_before_and_converted_by_the_pass() {
+        UUID accountId = legacyAccount("alice", "s3cret");
+
+        XtreamAccount before = xtreamRepo.findById(accountId).orElseThrow();
+        assertNull(before.getUsername());
+        assertEquals(new XtreamUpstream("http://provider/", "alice", "s3cret"), XtreamUpstream.of(before, crypto));
+
+        assertTrue(migration.migrate() >= 1);
+
+        Map<String, Object> row = jdbc.queryForMap(
+                "SELECT username_ct, password_ct, username_enc, password_enc FROM xtream_accounts WHERE id = ?", accountId);
+        assertNull(row.get("username_enc"));
+        assertNull(row.get("password_enc"));
+        assertEquals("alice", crypto.decryptBytes((byte[]) row.get("username_ct")));
+        assertEquals("s3cret", crypto.decryptBytes((byte[]) row.get("password_ct")));
+        XtreamAccount after = xtreamRepo.findById(accountId).orElseThrow();
+        assertEquals("alice", after.getUsername());
+        assertEquals("s3cret", after.getPassword());
+    }
+
+    @Test
+    void undecryptable_rows_are_skipped_without_stopping_the_pass() {
+        UUID broken = UUID.randomUUID();
+        jdbc.update("INSERT INTO xtream_accounts (id, user_id, name, api_url, username_enc, password_enc)"
+                + " VALUES (?, ?, 'Broken', 'http://provider/', 'u', 'p')", broken, user());
+        UUID good = legacyAccount("bob", "pw");
+
+        migration.migrate();
+
+        assertNotNull(jdbc.queryForObject("SELECT username_enc FROM xtream_accounts WHERE id = ?", String.class, broken));
+        assertNull(jdbc.queryForObject("SELECT username_enc FROM xtream_accounts WHERE id = ?", String.class, good));
+    }
+
+    @Test
+    void rows_locked_during_the_pass_are_converted_once_released() throws Exception {
+        UUID locked = legacyAccount("carol", "pw");
+        CompletableFuture<Integer> pass;
+        try (Connection other = dataSource.getConnection()) {
+            other.setAutoCommit(false);
+            try (PreparedStatement ps = other.prepareStatement("SELECT id FROM xtream_accounts WHERE id = ? FOR UPDATE")) {
+                ps.setObject(1, locked);
+                ps.executeQuery().close();
+            }
+            pass = CompletableFuture.supplyAsync(migration::migrate);
+            Thread.sleep(500); // the first round walks past the locked row
+            other.commit();
+        }
+
+        pass.get(10, TimeUnit.SECONDS);
+        assertNull(jdbc.queryForObject("SELECT username_enc FROM xtream_accounts WHERE id = ?", String.class, locked));
+    }
+
+    private UUID legacyAccount(String username, String password) {
+        UUID accountId = UUID.randomUUID();
+        // what the controller and the text column converter used to write: two text envelopes
+        jdbc.update("INSERT INTO xtream_accounts (id, user_id, name, api_url, username_enc, password_enc)"
+                        + " VALUES (?, ?, 'Legacy', 'http://provider/', ?, ?)", accountId, user(),
+                crypto.encrypt(crypto.encrypt(username)), crypto.encrypt(crypto.encrypt(password)));
+        return accountId;
+    }
+
+    private UUID user() {
+        UUID userId = UUID.randomUUID();
+        jdbc.update("INSERT INTO users (id, email, password_hash, roles) VALUES (?, ?, 'x', 'USER')",
+                userId, "legacy-" + userId + "@ex.com");
+        return userId;
+    }
+}
@@ -0,0 +1,123 @@
+package nl.mallepetrus.rptv.it;
+
+import nl.mallepetrus.rptv.domain.InviteCode;
+import nl.mallepetrus.rptv.repository.InviteCodeRepository;
+import nl.mallepetrus.rptv.testutil.BaseIntegrationTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.*;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EpgIT extends BaseIntegrationTest {
+
+    private static final DateTimeFormatter XMLTV = DateTimeFormatter.ofPattern("yyyyMMddHHmmss Z").withZone(ZoneOffset.UTC);
+
+    @Autowired
+    TestRestTemplate rest;
+    @Autowired
+    InviteCodeRepository inviteRepo;
+
+    private final AtomicInteger guideFetches = new AtomicInteger();
+    private final Instant hour = Instant.now().truncatedTo(ChronoUnit.HOURS);
+    private DisposableServer upstream;
+    private String baseUrl;
+
+    @BeforeEach
+    void startUpstream() {
+        String xml = "<?xml version=\"1.0\"?><tv>"
+                + programme("npo1.nl", hour, hour.plusSeconds(1800), "Journaal")
+                + programme("npo1.nl", hour.plusSeconds(1800), hour.plusSeconds(3600), "Weer")
+                + programme("bbc1.uk", hour, hour.plusSeconds(3600), "News")
+                + "</tv>";
+        upstream = HttpServer.create()
+                .port(0)
+                .route(routes -> routes.get("/xmltv.php", (req, res) -> {
+                    guideFetches.incrementAndGet();
+                    return res.header("Content-Type", "application/xml").header("ETag", "\"v1\"")
+                            .sendString(Mono.just(xml), StandardCharsets.UTF_8);
+                }))
+                .bindNow();
+        // a fresh provider URL per test, so the shared guide is not reused across tests
+        baseUrl = "http://localhost:" + upstream.port() + "/";
+    }
+
+    @AfterEach
+    void stopUpstream() {
+        if (upstream != null) upstream.disposeNow();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void channel_windows_are_answered_from_the_ingested_guide() {
+        String access = registerUser();
+        String id = createAccount(access);
+
+        String url = "/api/xtream/" + id + "/epg?channel=npo1.nl&from=" + hour.plusSeconds(900) + "&to=" + hour.plusSeconds(7200);
+        ResponseEntity<Map> resp = rest.exchange(url, HttpMethod.GET, new HttpEntity<>(bearer(access)), Map.class);
+        assertEquals(HttpStatus.OK, resp.getStatusCode());
+        List<Map<String, Object>> programmes = (List<Map<String, Object>>) resp.getBody().get("programmes");
+        assertEquals(List.of("Journaal", "Weer"), programmes.stream().map(p -> p.get("title")).toList());
+        assertEquals(hour.toString(), programmes.get(0).get("start"));
+
+        // a second account on the same provider shares the guide
+        String other = registerUser();
+        ResponseEntity<Map> bbc = rest.exchange("/api/xtream/" + createAccount(other) + "/epg?channel=bbc1.uk&from=" + hour,
+                HttpMethod.GET, new HttpEntity<>(bearer(other)), Map.class);
+        assertEquals(1, ((List<?>) bbc.getBody().get("programmes")).size());
+        assertEquals(1, guideFetches.get());
+
+        ResponseEntity<String> reversed = rest.exchange("/api/xtream/" + id + "/epg?channel=npo1.nl&from="
+                + hour + "&to=" + hour.minusSeconds(1), HttpMethod.GET, new HttpEntity<>(bearer(access)), String.class);
+        assertEquals(HttpStatus.BAD_REQUEST, reversed.getStatusCode());
+        ResponseEntity<String> foreign = rest.exchange(url, HttpMethod.GET, new HttpEntity<>(bearer(other)), String.class);
+        assertEquals(HttpStatus.NOT_FOUND, foreign.getStatusCode());
+    }
+
+    private static String programme(String channel, Instant start, Instant stop, String title) {
+        return "<programme start=\"" + XMLTV.format(start) + "\" stop=\"" + XMLTV.format(stop) + "\" channel=\""
+                + channel + "\"><title>" + title + "</title></programme>";
+    }
+
+    private String registerUser() {
+        String code = UUID.randomUUID().toString().replace("-", "");
+        InviteCode ic = new InviteCode();
+        ic.setCode(code); ic.setMaxUses(1); ic.setExpiresAt(OffsetDateTime.now().plusDays(1));
+        inviteRepo.save(ic);
+        String email = "u" + UUID.randomUUID() + "@ex.com";
+        var reg = rest.postForEntity("/api/auth/register",
+                json(Map.of("email", email, "password", "Passw0rd!", "inviteCode", code)), Map.class);
+        return (String) reg.getBody().get("accessToken");
+    }
+
+    private String createAccount(String access) {
+        HttpHeaders h = bearer(access); h.setContentType(MediaType.APPLICATION_JSON);
+        var create = rest.postForEntity("/api/xtream", new HttpEntity<>(
+                Map.of("name", "Test", "apiUrl", baseUrl, "username", "u", "password", "p"), h), Map.class);
+        return (String) create.getBody().get("id");
+    }
+
+    private HttpHeaders bearer(String access) { HttpHeaders h = new HttpHeaders(); h.setBearerAuth(access); return h; }
+    private HttpEntity<Map<String, String>> json(Map<String, String> body) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return new HttpEntity<>(body, headers);
+    }
+}
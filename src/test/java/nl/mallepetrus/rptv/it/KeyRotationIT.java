@@ -0,0 +1,104 @@
+package nl.mallepetrus.rptv.it;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.crypto.AesGcmCryptoService;
+import nl.mallepetrus.rptv.crypto.CryptoService;
+import nl.mallepetrus.rptv.persistence.KeyRotationJob;
+import nl.mallepetrus.rptv.testutil.BaseIntegrationTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.sql.DataSource;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Rows written under the test master key (id 1) are moved to a second key and back. */
+public class KeyRotationIT extends BaseIntegrationTest {
+
+    private static final String KEY_1 = Base64.getEncoder().encodeToString(new byte[32]); // BaseIntegrationTest's key
+    private static final String KEY_2 = AesGcmCryptoService.generateRandomKeyB64();
+
+    @Autowired
+    DataSource dataSource;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+    @Autowired
+    JdbcTemplate jdbc;
+    @Autowired
+    CryptoService crypto;
+
+    private final CryptoService toKey2 = new AesGcmCryptoService(Map.of(1, KEY_1, 2, KEY_2), 1, 2);
+
+    @AfterEach
+    void rotateBack() {
+        // the application context only knows key 1; leave the shared database readable for it
+        job(new AesGcmCryptoService(Map.of(1, KEY_1, 2, KEY_2), 1, 1)).rotate(1);
+    }
+
+    @Test
+    void rotation_reencrypts_every_row_in_parallel_batches() {
+        List<UUID> ids = accounts(25);
+
+        assertEquals(KeyRotationJob.State.FINISHED, job(toKey2).rotate(2));
+
+        for (UUID id : ids) {
+            Map<String, Object> row = jdbc.queryForMap("SELECT username_ct, password_ct FROM xtream_accounts WHERE id = ?", id);
+            byte[] username = (byte[]) row.get("username_ct");
+            assertEquals(2, username[1]);
+            assertEquals("user-" + id, toKey2.decryptBytes(username));
+            assertEquals("pass-" + id, toKey2.decryptBytes((byte[]) row.get("password_ct")));
+        }
+        KeyRotationJob.Progress progress = job(toKey2).progress();
+        assertEquals(0, progress.rowsRemaining());
+        assertTrue(progress.rowsDone() >= ids.size());
+        assertNotNull(progress.finishedAt());
+    }
+
+    @Test
+    void a_restarted_pass_continues_after_the_checkpoint() {
+        List<UUID> ids = accounts(10); // in the database's uuid order
+        UUID checkpoint = ids.get(4);
+        jdbc.update("DELETE FROM key_rotations WHERE target_key_id = 2");
+        jdbc.update("INSERT INTO key_rotations (target_key_id, last_id) VALUES (2, ?)", checkpoint);
+
+        // rows up to the checkpoint count as done, so they are left for the rescan the pass schedules
+        assertEquals(KeyRotationJob.State.INCOMPLETE, job(toKey2).rotate(2));
+        for (int i = 0; i < ids.size(); i++) {
+            int keyId = jdbc.queryForObject("SELECT get_byte(username_ct, 1) FROM xtream_accounts WHERE id = ?",
+                    Integer.class, ids.get(i));
+            assertEquals(i <= 4 ? 1 : 2, keyId, ids.get(i).toString());
+        }
+
+        assertEquals(KeyRotationJob.State.FINISHED, job(toKey2).rotate(2));
+        assertEquals(0, job(toKey2).progress().rowsRemaining());
+    }
+
+    private KeyRotationJob job(CryptoService cryptoService) {
+        AppProps.EncProps props = new AppProps.EncProps();
+        props.setRotationBatchSize(3);
+        props.setRotationParallelism(2);
+        props.setRotationRowsPerSecond(10_000);
+        return new KeyRotationJob(dataSource, transactionManager, cryptoService, props, new SimpleMeterRegistry());
+    }
+
+    private List<UUID> accounts(int count) {
+        UUID userId = UUID.randomUUID();
+        jdbc.update("INSERT INTO users (id, email, password_hash, roles) VALUES (?, ?, 'x', 'USER')",
+                userId, "rotation-" + userId + "@ex.com");
+        for (int i = 0; i < count; i++) {
+            UUID id = UUID.randomUUID();
+            jdbc.update("INSERT INTO xtream_accounts (id, user_id, name, api_url, username_ct, password_ct)"
+                            + " VALUES (?, ?, 'Rotation', 'http://provider/', ?, ?)", id, userId,
+                    crypto.encryptToBytes("user-" + id), crypto.encryptToBytes("pass-" + id));
+        }
+        return jdbc.queryForList("SELECT id FROM xtream_accounts WHERE user_id = ? ORDER BY id", UUID.class, userId);
+    }
+}
@@ -0,0 +1,253 @@
+package nl.mallepetrus.rptv.it;
+
+import nl.mallepetrus.rptv.domain.InviteCode;
+import nl.mallepetrus.rptv.repository.InviteCodeRepository;
+import nl.mallepetrus.rptv.testutil.BaseIntegrationTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.ByteBufFlux;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProxyStreamIT extends BaseIntegrationTest {
+
+    private static final int CHUNKS = 256;
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    @Autowired
+    TestRestTemplate rest;
+    @Autowired
+    InviteCodeRepository inviteRepo;
+
+    private final AtomicInteger liveOpens = new AtomicInteger();
+    private final AtomicInteger segmentFetches = new AtomicInteger();
+    private final AtomicInteger rangeFetches = new AtomicInteger();
+    private final byte[] movie = new byte[3 * 1024 * 1024 + 123];
+    private DisposableServer upstream;
+    private String baseUrl;
+
+    @BeforeEach
+    void startUpstream() {
+        for (int i = 0; i < movie.length; i++) movie[i] = (byte) (i * 31 + i / 4096);
+        upstream = HttpServer.create()
+                .port(0)
+                .route(routes -> routes
+                        .get("/movie/u/p/42.mkv", (req, res) -> res
+                                .header("Content-Type", "video/x-matroska")
+                                .send(ByteBufFlux.fromString(Flux.range(0, CHUNKS).map(ProxyStreamIT::chunk))))
+                        .get("/movie/u/p/50.mkv", (req, res) -> {
+                            rangeFetches.incrementAndGet();
+                            String[] range = req.requestHeaders().get("Range").substring(6).split("-");
+                            int from = Integer.parseInt(range[0]);
+                            int to = Math.min(Integer.parseInt(range[1]), movie.length - 1);
+                            return res.status(206)
+                                    .header("Content-Type", "video/x-matroska")
+                                    .header("Content-Range", "bytes " + from + "-" + to + "/" + movie.length)
+                                    .sendByteArray(Mono.just(Arrays.copyOfRange(movie, from, to + 1)));
+                        })
+                        .get("/live/u/p/8.m3u8", (req, res) -> res
+                                .header("Content-Type", "application/vnd.apple.mpegurl")
+                                .sendString(Mono.just("#EXTM3U\n#EXT-X-TARGETDURATION:4\n#EXTINF:4.0,\n/hls/u/p/8/1.ts\n")))
+                        .get("/hls/u/p/8/1.ts", (req, res) -> {
+                            segmentFetches.incrementAndGet();
+                            return res.header("Content-Type", "video/mp2t").sendString(Mono.just("s".repeat(188 * 100)));
+                        })
+                        .get("/live/u/p/7.ts", (req, res) -> {
+                            liveOpens.incrementAndGet();
+                            return res.header("Content-Type", "video/mp2t")
+                                    .send(ByteBufFlux.fromString(Flux.interval(Duration.ofMillis(10))
+                                            .take(100).map(i -> "t".repeat(1316))));
+                        })
+                ).bindNow();
+        baseUrl = "http://localhost:" + upstream.port() + "/";
+    }
+
+    @AfterEach
+    void stopUpstream() {
+        if (upstream != null) upstream.disposeNow();
+    }
+
+    @Test
+    void vod_stream_is_relayed_byte_for_byte() {
+        String access = registerUser();
+        String id = createAccount(access);
+
+        ResponseEntity<byte[]> resp = rest.exchange("/proxy/" + id + "/movie/42.mkv", HttpMethod.GET,
+                new HttpEntity<>(bearer(access)), byte[].class);
+        assertEquals(HttpStatus.OK, resp.getStatusCode());
+        assertEquals("video/x-matroska", resp.getHeaders().getContentType().toString());
+        assertEquals(CHUNKS * CHUNK_SIZE, resp.getBody().length);
+        for (int i = 0; i < CHUNKS; i++) {
+            assertEquals(chunk(i).charAt(0), (char) resp.getBody()[i * CHUNK_SIZE]);
+        }
+
+        ResponseEntity<String> missing = rest.exchange("/proxy/" + id + "/movie/43.mkv", HttpMethod.GET,
+                new HttpEntity<>(bearer(access)), String.class);
+        assertEquals(HttpStatus.NOT_FOUND, missing.getStatusCode());
+    }
+
+    @Test
+    void concurrent_live_viewers_share_one_upstream_connection() throws Exception {
+        String access = registerUser();
+        String id = createAccount(access);
+
+        var viewers = IntStream.range(0, 3)
+                .mapToObj(i -> CompletableFuture.supplyAsync(() -> rest.exchange("/proxy/" + id + "/live/7.ts",
+                        HttpMethod.GET, new HttpEntity<>(bearer(access)), byte[].class)))
+                .toList();
+        for (var viewer : viewers) {
+            ResponseEntity<byte[]> resp = viewer.get(30, TimeUnit.SECONDS);
+            assertEquals(HttpStatus.OK, resp.getStatusCode());
+            assertEquals("video/mp2t", resp.getHeaders().getContentType().toString());
+            assertTrue(resp.getBody().length > 0);
+        }
+        assertEquals(1, liveOpens.get());
+    }
+
+    @Test
+    void vod_ranges_are_answered_from_cached_blocks() {
+        String access = registerUser();
+        String id = createAccount(access);
+        String url = "/proxy/" + id + "/movie/50.mkv";
+
+        HttpHeaders h = bearer(access);
+        h.set(HttpHeaders.RANGE, "bytes=1000000-2100000");
+        ResponseEntity<byte[]> first = rest.exchange(url, HttpMethod.GET, new HttpEntity<>(h), byte[].class);
+        assertEquals(HttpStatus.PARTIAL_CONTENT, first.getStatusCode());
+        assertEquals("bytes 1000000-2100000/" + movie.length, first.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(movie, 1000000, 2100001), first.getBody());
+        int upstreamAfterFirst = rangeFetches.get();
+
+        h.set(HttpHeaders.RANGE, "bytes=1500000-1600000");
+        ResponseEntity<byte[]> seek = rest.exchange(url, HttpMethod.GET, new HttpEntity<>(h), byte[].class);
+        assertArrayEquals(Arrays.copyOfRange(movie, 1500000, 1600001), seek.getBody());
+        assertEquals(upstreamAfterFirst, rangeFetches.get());
+
+        h.set(HttpHeaders.RANGE, "bytes=" + movie.length + "-");
+        ResponseEntity<byte[]> beyond = rest.exchange(url, HttpMethod.GET, new HttpEntity<>(h), byte[].class);
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, beyond.getStatusCode());
+    }
+
+    @Test
+    void hls_playlist_is_rewritten_and_segments_are_cached_across_viewers() {
+        String access = registerUser();
+        String id = createAccount(access);
+
+        ResponseEntity<String> playlist = rest.exchange("/proxy/" + id + "/live/8.m3u8", HttpMethod.GET,
+                new HttpEntity<>(bearer(access)), String.class);
+        assertEquals(HttpStatus.OK, playlist.getStatusCode());
+        assertEquals("application/vnd.apple.mpegurl", playlist.getHeaders().getContentType().toString());
+        String segment = playlist.getBody().lines().filter(l -> l.startsWith("/proxy/")).findFirst().orElseThrow();
+        assertTrue(segment.startsWith("/proxy/" + id + "/hls/") && segment.contains(".ts?exp="), segment);
+        assertFalse(playlist.getBody().contains("/u/p/"));
+
+        for (int i = 0; i < 3; i++) {
+            ResponseEntity<byte[]> seg = rest.exchange(segment, HttpMethod.GET, new HttpEntity<>(bearer(access)), byte[].class);
+            assertEquals(HttpStatus.OK, seg.getStatusCode());
+            assertEquals("video/mp2t", seg.getHeaders().getContentType().toString());
+            assertEquals(188 * 100, seg.getBody().length);
+        }
+        assertEquals(1, segmentFetches.get());
+
+        ResponseEntity<String> unknown = rest.exchange("/proxy/" + id + "/hls/AAAAAAAAAAAAAAAAAAAAAA.ts", HttpMethod.GET,
+                new HttpEntity<>(bearer(access)), String.class);
+        assertEquals(HttpStatus.NOT_FOUND, unknown.getStatusCode());
+    }
+
+    @Test
+    void signed_urls_play_without_a_bearer_token() {
+        String access = registerUser();
+        String id = createAccount(access);
+
+        ResponseEntity<Map> signed = rest.exchange("/api/xtream/" + id + "/stream-url?kind=live&path=8.m3u8",
+                HttpMethod.GET, new HttpEntity<>(bearer(access)), Map.class);
+        assertEquals(HttpStatus.OK, signed.getStatusCode());
+        String url = (String) signed.getBody().get("url");
+        String path = url.substring(url.indexOf("/proxy/"));
+
+        ResponseEntity<String> playlist = rest.getForEntity(path, String.class);
+        assertEquals(HttpStatus.OK, playlist.getStatusCode());
+        String segment = playlist.getBody().lines().filter(l -> l.startsWith("/proxy/")).findFirst().orElseThrow();
+        ResponseEntity<byte[]> seg = rest.getForEntity(segment, byte[].class);
+        assertEquals(HttpStatus.OK, seg.getStatusCode());
+        assertEquals(188 * 100, seg.getBody().length);
+
+        // the signature covers the path: another stream of the same account is refused
+        assertEquals(HttpStatus.FORBIDDEN, rest.getForEntity(path.replace("/8.m3u8", "/7.ts"), String.class).getStatusCode());
+        assertEquals(HttpStatus.UNAUTHORIZED, rest.getForEntity("/proxy/" + id + "/live/8.m3u8", String.class).getStatusCode());
+    }
+
+    @Test
+    void xtream_apps_stream_with_their_rptv_credentials() {
+        String email = "u" + UUID.randomUUID() + "@ex.com";
+        createAccount(registerUser(email));
+
+        ResponseEntity<byte[]> vod = rest.getForEntity("/movie/" + email + "/Passw0rd!/42.mkv", byte[].class);
+        assertEquals(HttpStatus.OK, vod.getStatusCode());
+        assertEquals(CHUNKS * CHUNK_SIZE, vod.getBody().length);
+        // a cached login still sees the path checks of the proxy
+        assertEquals(HttpStatus.BAD_REQUEST,
+                rest.getForEntity("/movie/" + email + "/Passw0rd!/", String.class).getStatusCode());
+
+        assertEquals(HttpStatus.UNAUTHORIZED,
+                rest.getForEntity("/movie/" + email + "/wrong/42.mkv", String.class).getStatusCode());
+        assertEquals(HttpStatus.UNAUTHORIZED,
+                rest.getForEntity("/movie/" + email + "~2/Passw0rd!/42.mkv", String.class).getStatusCode());
+        ResponseEntity<Map> denied = rest.getForEntity("/player_api.php?username={u}&password=wrong", Map.class, email);
+        assertEquals(HttpStatus.UNAUTHORIZED, denied.getStatusCode());
+        assertEquals(0, ((Map<?, ?>) denied.getBody().get("user_info")).get("auth"));
+    }
+
+    private String registerUser() {
+        return registerUser("u" + UUID.randomUUID() + "@ex.com");
+    }
+
+    private String registerUser(String email) {
+        String code = UUID.randomUUID().toString().replace("-", "");
+        InviteCode ic = new InviteCode();
+        ic.setCode(code); ic.setMaxUses(1); ic.setExpiresAt(OffsetDateTime.now().plusDays(1));
+        inviteRepo.save(ic);
+
+        var reg = rest.postForEntity("/api/auth/register",
+                json(Map.of("email", email, "password", "Passw0rd!", "inviteCode", code)), Map.class);
+        assertEquals(HttpStatus.CREATED, reg.getStatusCode());
+        return (String) reg.getBody().get("accessToken");
+    }
+
+    private String createAccount(String access) {
+        HttpHeaders h = bearer(access); h.setContentType(MediaType.APPLICATION_JSON);
+        var create = rest.postForEntity("/api/xtream", new HttpEntity<>(
+                Map.of("name", "Test", "apiUrl", baseUrl, "username", "u", "password", "p"), h), Map.class);
+        assertEquals(HttpStatus.OK, create.getStatusCode());
+        return (String) create.getBody().get("id");
+    }
+
+    private static String chunk(int i) {
+        return String.valueOf((char) ('a' + i % 26)).repeat(CHUNK_SIZE);
+    }
+
+    private HttpHeaders bearer(String access) { HttpHeaders h = new HttpHeaders(); h.setBearerAuth(access); return h; }
+    private HttpEntity<Map<String, String>> json(Map<String, String> body) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return new HttpEntity<>(body, headers);
+    }
+}
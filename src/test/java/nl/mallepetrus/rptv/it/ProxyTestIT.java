@@ -14,9 +14,14 @@ import reactor.netty.DisposableServer;
 import reactor.netty.http.server.HttpServer;
 
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -27,6 +32,8 @@ public class ProxyTestIT extends BaseIntegrationTest {
     @Autowired
     InviteCodeRepository inviteRepo;
 
+    private final AtomicInteger upstreamCalls = new AtomicInteger();
+    private Duration upstreamDelay = Duration.ZERO;
     private DisposableServer upstream;
     private String baseUrl;
 
@@ -36,9 +43,10 @@ public class ProxyTestIT extends BaseIntegrationTest {
                 .port(0)
                 .route(routes -> routes
                         .get("/player_api.php", (req, res) -> {
+                            upstreamCalls.incrementAndGet();
                             String body = "{\"user_info\":{\"auth\":1}}";
                             return res.header("Content-Type", "application/json")
-                                    .sendString(Mono.just(body), StandardCharsets.UTF_8);
+                                    .sendString(Mono.just(body).delayElement(upstreamDelay), StandardCharsets.UTF_8);
                         })
                 ).bindNow();
         baseUrl = "http://localhost:" + upstream.port() + "/";
@@ -79,6 +87,33 @@ public class ProxyTestIT extends BaseIntegrationTest {
         assertNotNull(test.getBody().get("response"));
     }
 
+    @Test
+    void concurrent_identical_tests_share_one_upstream_call() throws Exception {
+        upstreamDelay = Duration.ofMillis(500);
+        String code = UUID.randomUUID().toString().replace("-", "");
+        var ic = new nl.mallepetrus.rptv.domain.InviteCode();
+        ic.setCode(code); ic.setMaxUses(1); ic.setExpiresAt(OffsetDateTime.now().plusDays(1));
+        inviteRepo.save(ic);
+
+        var reg = rest.postForEntity("/api/auth/register",
+                json(Map.of("email", "u" + UUID.randomUUID() + "@ex.com", "password", "Passw0rd!", "inviteCode", code)), Map.class);
+        String access = (String) reg.getBody().get("accessToken");
+        HttpHeaders h = new HttpHeaders(); h.setBearerAuth(access); h.setContentType(MediaType.APPLICATION_JSON);
+        var create = rest.postForEntity("/api/xtream", new HttpEntity<>(
+                Map.of("name", "Test", "apiUrl", baseUrl, "username", "u", "password", "p"), h), Map.class);
+        String id = (String) create.getBody().get("id");
+
+        var calls = IntStream.range(0, 5)
+                .mapToObj(i -> CompletableFuture.supplyAsync(() -> rest.exchange("/api/xtream/" + id + "/test",
+                        HttpMethod.GET, new HttpEntity<>(bearer(access)), Map.class)))
+                .toList();
+        for (var call : calls) {
+            ResponseEntity<Map> resp = call.get(30, TimeUnit.SECONDS);
+            assertEquals(Boolean.TRUE, resp.getBody().get("ok"));
+        }
+        assertEquals(1, upstreamCalls.get());
+    }
+
     private HttpHeaders bearer(String access) { HttpHeaders h=new HttpHeaders(); h.setBearerAuth(access); return h; }
     private HttpEntity<Map<String, String>> json(Map<String, String> body) {
         HttpHeaders headers = new HttpHeaders();
@@ -0,0 +1,148 @@
+package nl.mallepetrus.rptv.it;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.proxy.PostgresSlotLedger;
+import nl.mallepetrus.rptv.proxy.SlotLedger;
+import nl.mallepetrus.rptv.testutil.BaseIntegrationTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Several ledger instances on one database behave like API replicas sharing the provider limit. */
+public class StreamSlotClusterIT extends BaseIntegrationTest {
+
+    @Autowired
+    DataSource dataSource;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+    @Autowired
+    JdbcTemplate jdbc;
+
+    private final List<PostgresSlotLedger> nodes = new ArrayList<>();
+    private UUID accountId;
+
+    @BeforeEach
+    void createAccount() {
+        UUID userId = UUID.randomUUID();
+        accountId = UUID.randomUUID();
+        jdbc.update("INSERT INTO users (id, email, password_hash, roles) VALUES (?, ?, 'x', 'USER')",
+                userId, "slots-" + userId + "@ex.com");
+        jdbc.update("INSERT INTO xtream_accounts (id, user_id, name, api_url, username_enc, password_enc)"
+                + " VALUES (?, ?, 'Test', 'http://localhost/', 'u', 'p')", accountId, userId);
+    }
+
+    @AfterEach
+    void stopNodes() {
+        nodes.forEach(PostgresSlotLedger::stop);
+    }
+
+    @Test
+    void release_on_one_node_wakes_a_waiter_on_another() throws Exception {
+        // polling is slowed down so that only NOTIFY can deliver the wakeup in time
+        PostgresSlotLedger a = node(Duration.ofMinutes(1)), b = node(Duration.ofMinutes(1));
+
+        SlotLedger.Lease first = a.claim(accountId, 2).block(Duration.ofSeconds(5));
+        SlotLedger.Lease second = a.claim(accountId, 2).block(Duration.ofSeconds(5));
+        CompletableFuture<SlotLedger.Lease> waiting = b.claim(accountId, 2).toFuture();
+        Thread.sleep(300);
+        assertFalse(waiting.isDone());
+        assertEquals(2, sessions());
+
+        first.release();
+        assertNotNull(waiting.get(3, TimeUnit.SECONDS));
+        assertEquals(2, sessions());
+        assertEquals(2, b.sessions(accountId, 0).block(Duration.ofSeconds(5)));
+
+        second.release();
+        waiting.get().release();
+        awaitSessions(0);
+    }
+
+    @Test
+    void leases_of_a_vanished_node_expire() throws Exception {
+        PostgresSlotLedger b = node(Duration.ofMillis(200));
+        jdbc.update("INSERT INTO stream_sessions (id, account_id, node_id, lease_until)"
+                + " VALUES (?, ?, 'crashed', now() + interval '1 second')", UUID.randomUUID(), accountId);
+
+        CompletableFuture<SlotLedger.Lease> waiting = b.claim(accountId, 1).toFuture();
+        Thread.sleep(300);
+        assertFalse(waiting.isDone());
+        assertNotNull(waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(0, jdbc.queryForObject("SELECT count(*) FROM stream_sessions WHERE node_id = 'crashed'", Integer.class));
+    }
+
+    @Test
+    void concurrent_claims_from_three_nodes_never_exceed_the_limit() {
+        List<PostgresSlotLedger> cluster = List.of(node(Duration.ofSeconds(1)), node(Duration.ofSeconds(1)),
+                node(Duration.ofSeconds(1)));
+        AtomicInteger holding = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+
+        Flux.range(0, 30)
+                .flatMap(i -> Mono.usingWhen(cluster.get(i % 3).claim(accountId, 3),
+                        lease -> {
+                            peak.accumulateAndGet(holding.incrementAndGet(), Math::max);
+                            return Mono.delay(Duration.ofMillis(20)).doFinally(s -> holding.decrementAndGet());
+                        },
+                        lease -> Mono.fromRunnable(lease::release)))
+                .blockLast(Duration.ofSeconds(30));
+
+        assertTrue(peak.get() <= 3, "peak " + peak.get());
+        assertTrue(peak.get() > 1, "claims should overlap across nodes");
+        awaitSessions(0);
+    }
+
+    @Test
+    void stopping_a_node_frees_its_sessions_for_the_others() throws Exception {
+        PostgresSlotLedger a = node(Duration.ofMinutes(1)), b = node(Duration.ofMinutes(1));
+        assertNotNull(a.claim(accountId, 1).block(Duration.ofSeconds(5)));
+        CompletableFuture<SlotLedger.Lease> waiting = b.claim(accountId, 1).toFuture();
+        Thread.sleep(300);
+        assertFalse(waiting.isDone());
+
+        a.stop();
+        assertNotNull(waiting.get(3, TimeUnit.SECONDS));
+    }
+
+    private PostgresSlotLedger node(Duration pollInterval) {
+        AppProps.ProxyProps props = new AppProps.ProxyProps();
+        props.setSlotPollInterval(pollInterval);
+        PostgresSlotLedger node = new PostgresSlotLedger(dataSource, transactionManager, props, new SimpleMeterRegistry());
+        node.start();
+        nodes.add(node);
+        return node;
+    }
+
+    private int sessions() {
+        return jdbc.queryForObject("SELECT count(*) FROM stream_sessions WHERE account_id = ?", Integer.class, accountId);
+    }
+
+    private void awaitSessions(int expected) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sessions() != expected && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        assertEquals(expected, sessions());
+    }
+}
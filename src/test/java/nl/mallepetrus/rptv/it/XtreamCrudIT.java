@@ -9,7 +9,9 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.http.*;
+import org.springframework.jdbc.core.JdbcTemplate;
 
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +27,8 @@ public class XtreamCrudIT extends BaseIntegrationTest {
     InviteCodeRepository inviteRepo;
     @Autowired
     XtreamAccountRepository xtreamRepo;
+    @Autowired
+    JdbcTemplate jdbc;
 
     @Test
     void xtream_crud_and_ownership() {
@@ -59,16 +63,30 @@ public class XtreamCrudIT extends BaseIntegrationTest {
         String id = (String) created.getBody().get("id");
         assertNotNull(id);
 
-        // verify encrypted at rest (not plaintext)
+        // verify encrypted at rest, once, as binary envelopes
+        Map<String, Object> row = jdbc.queryForMap(
+                "SELECT username_ct, password_ct, username_enc, password_enc FROM xtream_accounts WHERE id = ?",
+                UUID.fromString(id));
+        byte[] usernameCt = (byte[]) row.get("username_ct");
+        assertEquals(2, usernameCt[0]);
+        assertEquals(2 + 12 + "alice".length() + 16, usernameCt.length);
+        assertFalse(new String(usernameCt, StandardCharsets.ISO_8859_1).contains("alice"));
+        assertNotNull(row.get("password_ct"));
+        assertNull(row.get("username_enc"));
+        assertNull(row.get("password_enc"));
         XtreamAccount stored = xtreamRepo.findById(UUID.fromString(id)).orElseThrow();
-        assertNotNull(stored.getUsernameEnc());
-        assertNotEquals("alice", stored.getUsernameEnc());
-        assertNotEquals("secret", stored.getPasswordEnc());
+        assertEquals("alice", stored.getUsername());
+        assertEquals("secret", stored.getPassword());
+        assertFalse(created.getBody().containsKey("username"));
+        assertFalse(created.getBody().containsKey("password"));
 
         // list for user1 returns 1
         ResponseEntity<List> list1 = rest.exchange("/api/xtream", HttpMethod.GET, new HttpEntity<>(bearer(access1)), List.class);
         assertEquals(HttpStatus.OK, list1.getStatusCode());
         assertFalse(list1.getBody().isEmpty());
+        // the owning user row (with its password hash) is never part of the response
+        assertFalse(((Map<?, ?>) list1.getBody().get(0)).containsKey("user"));
+        assertFalse(created.getBody().containsKey("user"));
 
         // user2 cannot access user1 account -> 404
         HttpHeaders h2 = bearer(access2); h2.setContentType(MediaType.APPLICATION_JSON);
@@ -0,0 +1,56 @@
+package nl.mallepetrus.rptv.proxy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiskCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void ranges_are_read_in_chunks_and_the_file_is_closed_once_read() throws IOException {
+        DiskCache cache = new DiskCache(dir, 1024, Duration.ofMinutes(1), 1024, 4, new SimpleMeterRegistry(), "test");
+        AtomicInteger fetches = new AtomicInteger();
+        Flux<DataBuffer> source = Flux.defer(() -> {
+            fetches.incrementAndGet();
+            return Flux.just("0123456", "789abcdef").map(s -> DefaultDataBufferFactory.sharedInstance.wrap(s.getBytes(StandardCharsets.UTF_8)));
+        });
+
+        DiskCache.Blob whole = cache.get("k", () -> source).block();
+        assertEquals(16, whole.size());
+        assertEquals(List.of("0123", "4567", "89ab", "cdef"), chunks(whole.read(0, whole.size())));
+        assertFalse(whole.isOpen());
+
+        DiskCache.Blob part = cache.get("k", () -> source).block();
+        assertEquals(List.of("3456", "7"), chunks(part.read(3, 8)));
+        assertFalse(part.isOpen());
+        assertEquals(1, fetches.get());
+
+        DiskCache.Blob cancelled = cache.get("k", () -> source).block();
+        cancelled.read(0, cancelled.size()).take(1).doOnNext(DataBufferUtils::release).blockLast();
+        assertFalse(cancelled.isOpen());
+    }
+
+    private static List<String> chunks(Flux<DataBuffer> body) {
+        return body.map(buffer -> {
+            String s = buffer.toString(StandardCharsets.UTF_8);
+            DataBufferUtils.release(buffer);
+            return s;
+        }).collectList().block();
+    }
+}
@@ -0,0 +1,42 @@
+package nl.mallepetrus.rptv.proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HlsPlaylistRewriterTest {
+
+    @Test
+    void segment_variant_and_attribute_uris_are_resolved_and_mapped() {
+        String playlist = String.join("\n",
+                "#EXTM3U",
+                "#EXT-X-VERSION:3",
+                "#EXT-X-KEY:METHOD=AES-128,URI=\"key.bin\",IV=0x1",
+                "#EXTINF:4.0,",
+                "seg_1.ts",
+                "",
+                "#EXTINF:4.0,",
+                "/hls/u/p/123/seg_2.ts",
+                "#EXT-X-STREAM-INF:BANDWIDTH=800000",
+                "http://other.example/low/index.m3u8",
+                "");
+        URI base = URI.create("http://edge.example:8080/live/u/p/123.m3u8?token=abc");
+
+        String rewritten = HlsPlaylistRewriter.rewrite(playlist, base, uri -> "P[" + uri + "]");
+
+        assertEquals(String.join("\n",
+                "#EXTM3U",
+                "#EXT-X-VERSION:3",
+                "#EXT-X-KEY:METHOD=AES-128,URI=\"P[http://edge.example:8080/live/u/p/key.bin]\",IV=0x1",
+                "#EXTINF:4.0,",
+                "P[http://edge.example:8080/live/u/p/seg_1.ts]",
+                "",
+                "#EXTINF:4.0,",
+                "P[http://edge.example:8080/hls/u/p/123/seg_2.ts]",
+                "#EXT-X-STREAM-INF:BANDWIDTH=800000",
+                "P[http://other.example/low/index.m3u8]",
+                ""), rewritten);
+    }
+}
@@ -0,0 +1,61 @@
+package nl.mallepetrus.rptv.proxy;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PostgresSlotLedgerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final HikariDataSource dataSource = new HikariDataSource();
+    private PostgresSlotLedger ledger;
+
+    @AfterEach
+    void tearDown() {
+        if (ledger != null) ledger.stop();
+    }
+
+    @Test
+    void claims_wait_for_the_database_instead_of_going_over_the_cluster_limit() {
+        AppProps.ProxyProps props = new AppProps.ProxyProps();
+        props.setSlotPollInterval(Duration.ofMillis(50));
+        ledger = unreachableLedger(props);
+
+        UUID account = UUID.randomUUID();
+        // block() times out and cancels the claim, as the slot wait timeout does for a stream request
+        assertThrows(IllegalStateException.class, () -> ledger.claim(account, 1).block(Duration.ofMillis(500)));
+        assertEquals(0, registry.get("rptv.slots.cluster.fallback").counter().count());
+        assertEquals(7, ledger.sessions(account, 7).block(Duration.ofSeconds(5)));
+    }
+
+    @Test
+    void claims_are_granted_on_the_local_limit_when_failing_open() {
+        AppProps.ProxyProps props = new AppProps.ProxyProps();
+        props.setSlotLedgerFailOpen(true);
+        ledger = unreachableLedger(props);
+
+        UUID account = UUID.randomUUID();
+        for (int i = 0; i < 3; i++) {
+            SlotLedger.Lease lease = ledger.claim(account, 1).block(Duration.ofSeconds(5));
+            assertSame(PostgresSlotLedger.UNCOUNTED, lease);
+        }
+        assertEquals(3, registry.get("rptv.slots.cluster.fallback").counter().count());
+    }
+
+    private PostgresSlotLedger unreachableLedger(AppProps.ProxyProps props) {
+        dataSource.setJdbcUrl("jdbc:postgresql://127.0.0.1:1/rptv");
+        dataSource.close(); // every connection attempt now fails before reaching the network
+        PostgresSlotLedger ledger = new PostgresSlotLedger(dataSource, new DataSourceTransactionManager(dataSource),
+                props, registry);
+        ledger.start();
+        return ledger;
+    }
+}
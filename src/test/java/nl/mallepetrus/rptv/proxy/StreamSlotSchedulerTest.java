@@ -0,0 +1,258 @@
+package nl.mallepetrus.rptv.proxy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.catalog.CatalogClient;
+import nl.mallepetrus.rptv.catalog.CatalogDtos;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StreamSlotSchedulerTest {
+
+    private final CatalogClient catalogClient = mock(CatalogClient.class);
+    private final AppProps.ProxyProps props = new AppProps.ProxyProps();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final UUID account = UUID.randomUUID();
+    private StreamSlotScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        props.setSlotWaitTimeout(Duration.ofSeconds(5));
+        props.setSlotIdlePreemptAfter(Duration.ZERO);
+        scheduler = new StreamSlotScheduler(catalogClient, props, registry, SlotLedger.LOCAL);
+    }
+
+    @Test
+    void provider_limit_minus_foreign_connections_caps_concurrent_streams() throws Exception {
+        limitReportedAs(3, 1); // one connection in use by another device
+        scheduler.prepare(account, () -> new XtreamUpstream("http://x/", "u", "p"));
+
+        Session a = open(), b = open(), c = open();
+        assertTrue(a.started.get(1, TimeUnit.SECONDS));
+        assertTrue(b.started.get(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertFalse(c.started.isDone());
+        assertEquals(1.0, registry.get("rptv.slots.queued").gauge().value());
+        assertEquals(2.0, registry.get("rptv.slots.active").gauge().value());
+
+        a.body.tryEmitComplete();
+        assertTrue(c.started.get(1, TimeUnit.SECONDS));
+        assertEquals(0.0, registry.get("rptv.slots.queued").gauge().value());
+        assertEquals(2.0, registry.get("rptv.slots.active").gauge().value());
+    }
+
+    @Test
+    void waiting_requests_are_served_in_arrival_order() throws Exception {
+        Session holder = open(); // unprepared accounts get the default limit of one
+        assertTrue(holder.started.get(1, TimeUnit.SECONDS));
+        List<String> order = new CopyOnWriteArrayList<>();
+        Session first = open(), second = open();
+        first.started.thenRun(() -> order.add("first"));
+        second.started.thenRun(() -> order.add("second"));
+
+        holder.body.tryEmitComplete();
+        assertTrue(first.started.get(1, TimeUnit.SECONDS));
+        assertFalse(second.started.isDone());
+        first.subscription.dispose();
+        assertTrue(second.started.get(1, TimeUnit.SECONDS));
+        assertEquals(List.of("first", "second"), order);
+    }
+
+    @Test
+    void wait_timeout_fails_with_503_and_leaves_no_slot_behind() throws Exception {
+        props.setSlotWaitTimeout(Duration.ofMillis(100));
+        Session holder = open();
+        assertTrue(holder.started.get(1, TimeUnit.SECONDS));
+
+        Session rejected = open();
+        ResponseStatusException e = assertInstanceOf(ResponseStatusException.class,
+                rejected.failed.get(1, TimeUnit.SECONDS));
+        assertEquals(503, e.getStatusCode().value());
+        assertEquals(1.0, registry.get("rptv.slots.rejected").counter().count());
+        assertEquals(0.0, registry.get("rptv.slots.queued").gauge().value());
+
+        holder.body.tryEmitComplete();
+        assertTrue(open().started.get(1, TimeUnit.SECONDS));
+        assertEquals(1.0, registry.get("rptv.slots.active").gauge().value());
+    }
+
+    @Test
+    void idle_session_is_ended_for_a_waiting_request() throws Exception {
+        props.setSlotIdlePreemptAfter(Duration.ofMillis(50));
+        Session idle = open();
+        assertTrue(idle.started.get(1, TimeUnit.SECONDS));
+        idle.body.tryEmitNext("chunk");
+        Thread.sleep(100);
+
+        Session waiting = open();
+        assertTrue(waiting.started.get(1, TimeUnit.SECONDS));
+        assertTrue(idle.completed.get(1, TimeUnit.SECONDS));
+        assertEquals(1.0, registry.get("rptv.slots.preempted").counter().count());
+        assertEquals(1.0, registry.get("rptv.slots.active").gauge().value());
+    }
+
+    @Test
+    void provider_without_a_limit_falls_back_to_the_default() throws Exception {
+        props.setDefaultMaxConnections(2);
+        limitReportedAs(0, 0);
+        scheduler.prepare(account, () -> new XtreamUpstream("http://x/", "u", "p"));
+
+        Session a = open(), b = open(), c = open();
+        assertTrue(a.started.get(1, TimeUnit.SECONDS));
+        assertTrue(b.started.get(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertFalse(c.started.isDone());
+    }
+
+    @Test
+    void cluster_claim_shares_the_wait_timeout_and_frees_the_local_slot() throws Exception {
+        props.setSlotWaitTimeout(Duration.ofMillis(100));
+        AtomicBoolean clusterFull = new AtomicBoolean(true);
+        AtomicInteger leasesReleased = new AtomicInteger();
+        SlotLedger ledger = new SlotLedger() {
+            @Override
+            public Mono<Lease> claim(UUID accountId, int limit) {
+                return clusterFull.get() ? Mono.never() : Mono.just(leasesReleased::incrementAndGet);
+            }
+
+            @Override
+            public Mono<Integer> sessions(UUID accountId, int local) {
+                return Mono.just(local);
+            }
+        };
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        scheduler = new StreamSlotScheduler(catalogClient, props, meters, ledger);
+
+        Session rejected = open();
+        assertEquals(503, assertInstanceOf(ResponseStatusException.class,
+                rejected.failed.get(1, TimeUnit.SECONDS)).getStatusCode().value());
+        assertFalse(rejected.started.isDone());
+        assertEquals(0.0, meters.get("rptv.slots.active").gauge().value());
+
+        clusterFull.set(false);
+        Session admitted = open();
+        assertTrue(admitted.started.get(1, TimeUnit.SECONDS));
+        admitted.body.tryEmitComplete();
+        assertTrue(admitted.completed.get(1, TimeUnit.SECONDS));
+        assertEquals(1, leasesReleased.get());
+    }
+
+    @Test
+    void a_viewer_claims_once_for_a_run_of_segments_and_gives_the_slot_back_when_idle() throws Exception {
+        props.setSlotViewerIdle(Duration.ofMillis(200));
+        AtomicInteger claims = new AtomicInteger();
+        AtomicInteger leasesReleased = new AtomicInteger();
+        SlotLedger ledger = new SlotLedger() {
+            @Override
+            public Mono<Lease> claim(UUID accountId, int limit) {
+                claims.incrementAndGet();
+                return Mono.just(leasesReleased::incrementAndGet);
+            }
+
+            @Override
+            public Mono<Integer> sessions(UUID accountId, int local) {
+                return Mono.just(local);
+            }
+        };
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        scheduler = new StreamSlotScheduler(catalogClient, props, meters, ledger);
+
+        for (int segment = 0; segment < 5; segment++) {
+            assertEquals(List.of(segment), scheduler.withSlot(account, "10.0.0.1 VLC", Flux.just(segment))
+                    .collectList().block(Duration.ofSeconds(1)));
+        }
+        assertEquals(1, claims.get());
+        assertEquals(1.0, meters.get("rptv.slots.active").gauge().value());
+
+        // the default limit is one: another player waits until the first has been idle long enough
+        long start = System.nanoTime();
+        assertEquals(List.of("other"), scheduler.withSlot(account, "10.0.0.2 Kodi", Flux.just("other"))
+                .collectList().block(Duration.ofSeconds(2)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(2, claims.get());
+        assertEquals(1, leasesReleased.get());
+    }
+
+    @Test
+    void parallel_requests_of_one_viewer_each_take_a_slot() throws Exception {
+        limitReportedAs(2, 0);
+        scheduler.prepare(account, () -> new XtreamUpstream("http://x/", "u", "p"));
+
+        Session a = open("tv"), b = open("tv"), c = open("tv");
+        assertTrue(a.started.get(1, TimeUnit.SECONDS));
+        assertTrue(b.started.get(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertFalse(c.started.isDone()); // a third connection would exceed the provider limit
+        assertEquals(2.0, registry.get("rptv.slots.active").gauge().value());
+
+        b.body.tryEmitComplete();
+        assertTrue(c.started.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void viewers_are_told_apart_by_playback_token_before_address() {
+        MockHttpServletRequest first = new MockHttpServletRequest();
+        first.setRemoteAddr("10.0.0.1");
+        first.addHeader("User-Agent", "VLC");
+        MockHttpServletRequest second = new MockHttpServletRequest();
+        second.setRemoteAddr("10.0.0.1");
+        second.addHeader("User-Agent", "VLC");
+        assertEquals(StreamSlotScheduler.viewerOf(first), StreamSlotScheduler.viewerOf(second));
+
+        first.setParameter(StreamSlotScheduler.PLAYBACK, StreamSlotScheduler.newPlayback());
+        second.setParameter(StreamSlotScheduler.PLAYBACK, StreamSlotScheduler.newPlayback());
+        assertNotEquals(StreamSlotScheduler.viewerOf(first), StreamSlotScheduler.viewerOf(second));
+    }
+
+    private void limitReportedAs(int maxConnections, int activeConnections) {
+        CatalogDtos.UserInfo user = new CatalogDtos.UserInfo(1, "Active", null, null, 0,
+                activeConnections, maxConnections, List.of());
+        when(catalogClient.accountInfo(any())).thenReturn(Mono.just(new CatalogDtos.AccountInfo(user, null)));
+    }
+
+    private Session open() {
+        return new Session(null);
+    }
+
+    private Session open(String viewer) {
+        return new Session(viewer);
+    }
+
+    /** A stream whose body stays open until completed through {@link #body}. */
+    private final class Session {
+        final Sinks.Many<String> body = Sinks.many().unicast().onBackpressureBuffer();
+        final CompletableFuture<Boolean> started = new CompletableFuture<>();
+        final CompletableFuture<Boolean> completed = new CompletableFuture<>();
+        final CompletableFuture<Throwable> failed = new CompletableFuture<>();
+        final Disposable subscription;
+
+        Session(String viewer) {
+            Flux<String> tracked = Flux.defer(() -> {
+                started.complete(true);
+                return body.asFlux();
+            });
+            subscription = (viewer == null ? scheduler.withSlot(account, tracked) : scheduler.withSlot(account, viewer, tracked))
+                    .subscribe(item -> { }, failed::complete, () -> completed.complete(true));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package nl.mallepetrus.rptv.proxy;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpstreamUrlRewriterTest {
+
+    private static final XtreamUpstream UPSTREAM = new XtreamUpstream("http://prov.example:80/", "bob", "s3cret");
+    private static final List<String> ROUTES = List.of("/live/", "/player_api.php");
+
+    @Test
+    void served_provider_urls_and_credentials_are_replaced_across_any_buffer_split() {
+        String body = "{\"user_info\":{\"username\":\"bob\",\"password\":\"s3cret\"},"
+                + "\"direct_source\":\"http:\\/\\/prov.example:80\\/live\\/bob\\/s3cret\\/101.ts\","
+                + "\"stream_icon\":\"http://prov.example:80/images/101.png\","
+                + "\"epg\":\"http://prov.example:80/xmltv.php?username=bob&password=s3cret\"}";
+        UpstreamUrlRewriter rewriter = UpstreamUrlRewriter.of(UPSTREAM, "https://rptv.example", ROUTES, "me@ex.com~2", "pw");
+
+        String expected = "{\"user_info\":{\"username\":\"me@ex.com~2\",\"password\":\"pw\"},"
+                + "\"direct_source\":\"https:\\/\\/rptv.example\\/live\\/me%40ex.com~2\\/pw\\/101.ts\","
+                + "\"stream_icon\":\"http://prov.example:80/images/101.png\","
+                + "\"epg\":\"http://prov.example:80/xmltv.php?username=me%40ex.com~2&password=pw\"}";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        for (int split = 1; split <= bytes.length; split++) {
+            assertEquals(expected, viaFlux(rewriter, bytes, split), "split " + split);
+        }
+        assertEquals(expected, viaStream(rewriter, bytes));
+    }
+
+    @Test
+    void longer_tokens_sharing_a_prefix_are_left_alone() {
+        UpstreamUrlRewriter rewriter = UpstreamUrlRewriter.of(UPSTREAM, "https://rptv.example", ROUTES, "me", "pw");
+        String body = "http://prov.example:8080/live/1.ts http://prov.example:80/player_api.phpx"
+                + " http://prov.example:80/player_api.php?a=1 username=bobby&password=s3cret2";
+        assertEquals("http://prov.example:8080/live/1.ts http://prov.example:80/player_api.phpx"
+                        + " https://rptv.example/player_api.php?a=1 username=bobby&password=s3cret2",
+                viaFlux(rewriter, body.getBytes(StandardCharsets.UTF_8), 3));
+    }
+
+    @Test
+    void without_client_credentials_the_upstream_ones_are_dropped() {
+        UpstreamUrlRewriter rewriter = UpstreamUrlRewriter.of(UPSTREAM, "http://rptv.example/proxy/42", ROUTES, null, null);
+        String body = "#EXTINF:-1,NPO 1\nhttp://prov.example:80/live/bob/s3cret/101.ts\n"
+                + "{\"username\":\"bob\",\"password\":\"s3cret\"}";
+        assertEquals("#EXTINF:-1,NPO 1\nhttp://rptv.example/proxy/42/live/101.ts\n"
+                + "{\"username\":\"\",\"password\":\"\"}", viaStream(rewriter, body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void stream_links_under_signed_routes_are_signed_without_the_upstream_credentials() {
+        UpstreamUrlRewriter rewriter = UpstreamUrlRewriter.of(UPSTREAM, "http://rptv.example/proxy/42", ROUTES, null, null,
+                List.of("/live/"), path -> path + "?sig=" + path.length());
+        String body = "{\"direct_source\":\"http:\\/\\/prov.example:80\\/live\\/bob\\/s3cret\\/101.ts\"}\n"
+                + "http://prov.example:80/live/bob/s3cret/102.m3u8\n"
+                + "http://prov.example:80/live/bob/s3cret/103.ts?token=x\n"
+                + "http://prov.example:80/player_api.php?username=bob&password=s3cret";
+        String expected = "{\"direct_source\":\"http:\\/\\/rptv.example\\/proxy\\/42\\/live\\/101.ts?sig=12\"}\n"
+                + "http://rptv.example/proxy/42/live/102.m3u8?sig=14\n"
+                + "http://rptv.example/proxy/42/live/103.ts?token=x\n"
+                + "http://rptv.example/proxy/42/player_api.php?username=&password=";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        for (int split = 1; split <= bytes.length; split++) {
+            assertEquals(expected, viaFlux(rewriter, bytes, split), "split " + split);
+        }
+        assertEquals(expected, viaStream(rewriter, bytes));
+    }
+
+    private static String viaFlux(UpstreamUrlRewriter rewriter, byte[] body, int bufferSize) {
+        List<DataBuffer> buffers = new ArrayList<>();
+        for (int off = 0; off < body.length; off += bufferSize) {
+            int len = Math.min(bufferSize, body.length - off);
+            DataBuffer buffer = DefaultDataBufferFactory.sharedInstance.allocateBuffer(len);
+            buffer.write(body, off, len);
+            buffers.add(buffer);
+        }
+        DataBuffer joined = DataBufferUtils.join(rewriter.rewrite(Flux.fromIterable(buffers))).block();
+        String result = joined.toString(StandardCharsets.UTF_8);
+        DataBufferUtils.release(joined);
+        return result;
+    }
+
+    private static String viaStream(UpstreamUrlRewriter rewriter, byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            UpstreamUrlRewriter.RewritingOutputStream rewritten = rewriter.rewrite(out);
+            rewritten.write(body);
+            rewritten.finish();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
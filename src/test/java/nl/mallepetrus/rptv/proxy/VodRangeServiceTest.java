@@ -0,0 +1,30 @@
+package nl.mallepetrus.rptv.proxy;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VodRangeServiceTest {
+
+    @Test
+    void single_ranges_are_parsed_with_open_and_suffix_forms() {
+        assertArrayEquals(new long[]{0, 499}, VodRangeService.parseRange("bytes=0-499"));
+        assertArrayEquals(new long[]{1_048_576, -1}, VodRangeService.parseRange("bytes=1048576-"));
+        assertArrayEquals(new long[]{-1, 500}, VodRangeService.parseRange("bytes=-500"));
+        assertArrayEquals(new long[]{7, 7}, VodRangeService.parseRange("bytes= 7 - 7 "));
+        // past the end is only known against the resource length, where it becomes a 416
+        assertArrayEquals(new long[]{Long.MAX_VALUE - 1, -1}, VodRangeService.parseRange("bytes=" + (Long.MAX_VALUE - 1) + "-"));
+    }
+
+    @Test
+    void multiple_malformed_and_unsatisfiable_ranges_are_refused() {
+        assertNull(VodRangeService.parseRange(null));
+        assertNull(VodRangeService.parseRange("bytes=0-99,200-299"));
+        assertNull(VodRangeService.parseRange("items=0-99"));
+        assertNull(VodRangeService.parseRange("bytes=abc-"));
+        assertNull(VodRangeService.parseRange("bytes=500"));
+        assertNull(VodRangeService.parseRange("bytes=500-100"));
+        assertNull(VodRangeService.parseRange("bytes=-0"));
+        assertNull(VodRangeService.parseRange("bytes=-"));
+    }
+}
@@ -0,0 +1,68 @@
+package nl.mallepetrus.rptv.security;
+
+import nl.mallepetrus.rptv.config.AppProps;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Argon2SettingsTest {
+
+    @Test
+    void floors_hold_when_the_target_is_out_of_reach() {
+        Argon2Settings settings = Argon2Settings.calibrate(props(Duration.ofNanos(1), true));
+        assertEquals(1024, settings.memoryKib());
+        assertEquals(2, settings.iterations());
+        assertEquals(1, settings.parallelism());
+    }
+
+    @Test
+    void memory_grows_to_its_cap_before_iterations() {
+        Argon2Settings settings = Argon2Settings.calibrate(props(Duration.ofMillis(200), true));
+        assertEquals(4096, settings.memoryKib());
+        assertTrue(settings.iterations() >= 2);
+        assertEquals(4096L * 3, settings.report(3).get("peakMemoryKib"));
+    }
+
+    @Test
+    void disabled_calibration_uses_the_floors_and_flags_weaker_hashes() {
+        Argon2Settings settings = Argon2Settings.calibrate(props(Duration.ofSeconds(10), false));
+        assertEquals(1024, settings.memoryKib());
+        assertNull(settings.measured()); // nothing was hashed to find out
+        assertFalse((Boolean) settings.report(1).get("calibrated"));
+
+        Argon2PasswordEncoder encoder = settings.encoder();
+        assertFalse(encoder.upgradeEncoding(encoder.encode("pw")));
+        String weaker = new Argon2PasswordEncoder(16, 32, 1, 512, 2).encode("pw");
+        assertTrue(encoder.upgradeEncoding(weaker));
+        assertTrue(encoder.matches("pw", weaker));
+    }
+
+    @Test
+    void the_encoder_hashes_on_the_floors_until_background_calibration_completes() throws InterruptedException {
+        CalibratingPasswordEncoder encoder = new CalibratingPasswordEncoder(props(Duration.ofMillis(200), true));
+        assertEquals(1024, encoder.settings().memoryKib());
+        String onFloors = encoder.encode("pw");
+
+        encoder.start();
+        for (int i = 0; i < 300 && (Boolean) encoder.report(1).get("calibrating"); i++) Thread.sleep(100);
+        encoder.stop();
+
+        assertFalse((Boolean) encoder.report(1).get("calibrating"));
+        assertEquals(4096, encoder.settings().memoryKib());
+        assertTrue(encoder.matches("pw", onFloors));
+        assertTrue(encoder.upgradeEncoding(onFloors));
+    }
+
+    private static AppProps.AuthProps props(Duration target, boolean calibrate) {
+        AppProps.AuthProps props = new AppProps.AuthProps();
+        props.setArgon2Calibrate(calibrate);
+        props.setArgon2TargetLatency(target);
+        props.setArgon2MinMemoryKib(1024); // small enough to keep the test quick
+        props.setArgon2MaxMemoryKib(4096);
+        props.setArgon2MinIterations(2);
+        return props;
+    }
+}
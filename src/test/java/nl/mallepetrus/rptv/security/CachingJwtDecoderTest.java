@@ -0,0 +1,89 @@
+package nl.mallepetrus.rptv.security;
+
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.jose.jws.SignatureAlgorithm;
+import org.springframework.security.oauth2.jwt.*;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingJwtDecoderTest {
+
+    private final KeyPair keys = rsa();
+    private final JwtEncoder encoder = new NimbusJwtEncoder((selector, ctx) -> selector.select(new JWKSet(
+            new RSAKey.Builder((RSAPublicKey) keys.getPublic()).privateKey((RSAPrivateKey) keys.getPrivate()).build())));
+    private final JwtDecoder verifying = NimbusJwtDecoder.withPublicKey((RSAPublicKey) keys.getPublic()).build();
+    private final AtomicInteger verifications = new AtomicInteger();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final CachingJwtDecoder decoder = new CachingJwtDecoder(token -> {
+        verifications.incrementAndGet();
+        return verifying.decode(token);
+    }, 100, registry);
+
+    @Test
+    void token_is_verified_once_and_then_served_from_the_cache() {
+        String token = token("alice", Instant.now().plusSeconds(300));
+        Jwt first = decoder.decode(token);
+        Jwt second = decoder.decode(token);
+
+        assertEquals("alice", second.getSubject());
+        assertSame(first, second);
+        assertEquals(1, verifications.get());
+        assertEquals("bob", decoder.decode(token("bob", Instant.now().plusSeconds(300))).getSubject());
+        assertEquals(2, verifications.get());
+        assertEquals(1.0, registry.get("cache.gets").tag("cache", "rptv.jwt.decoder").tag("result", "hit")
+                .functionCounter().count());
+    }
+
+    @Test
+    void rejected_tokens_are_never_cached() {
+        String token = token("alice", Instant.now().plusSeconds(300));
+        String tampered = token.substring(0, token.length() - 4) + (token.endsWith("AAAA") ? "BBBB" : "AAAA");
+
+        assertThrows(JwtException.class, () -> decoder.decode(tampered));
+        assertThrows(JwtException.class, () -> decoder.decode(tampered));
+        assertEquals(2, verifications.get());
+        assertEquals("alice", decoder.decode(token).getSubject());
+    }
+
+    @Test
+    void cached_entry_ends_at_the_token_expiry() throws Exception {
+        // exp has whole seconds, so this leaves between one and two seconds
+        String token = token("alice", Instant.now().plusSeconds(2));
+        decoder.decode(token);
+        decoder.decode(token);
+        assertEquals(1, verifications.get());
+
+        Thread.sleep(2_500);
+        decoder.decode(token); // still inside the validator's clock skew, but verified again
+        assertEquals(2, verifications.get());
+    }
+
+    private String token(String subject, Instant expiresAt) {
+        JwtClaimsSet claims = JwtClaimsSet.builder()
+                .subject(subject)
+                .issuedAt(Instant.now().minusSeconds(1))
+                .expiresAt(expiresAt)
+                .build();
+        return encoder.encode(JwtEncoderParameters.from(JwsHeader.with(SignatureAlgorithm.RS256).build(), claims)).getTokenValue();
+    }
+
+    private static KeyPair rsa() {
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+            kpg.initialize(2048);
+            return kpg.generateKeyPair();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package nl.mallepetrus.rptv.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HmacRefreshTokenVerifierTest {
+
+    private final byte[] key = random(32);
+    private final PasswordEncoder argon2 = new Argon2PasswordEncoder(16, 32, 1, 1 << 10, 1); // cheap for tests
+    private final PasswordHashingExecutor hashing = new PasswordHashingExecutor(argon2, new AppProps.AuthProps(), new SimpleMeterRegistry());
+    private final HmacRefreshTokenVerifier verifier = new HmacRefreshTokenVerifier(key, hashing);
+
+    @Test
+    void hashes_are_prefixed_deterministic_and_checked_against_the_token() {
+        String hash = verifier.hash("id.secret");
+        assertTrue(hash.startsWith(HmacRefreshTokenVerifier.PREFIX));
+        assertEquals(hash, verifier.hash("id.secret"));
+        assertFalse(HmacRefreshTokenVerifier.isLegacy(hash));
+
+        assertTrue(verifier.matches("id.secret", hash));
+        assertFalse(verifier.matches("id.secreT", hash));
+        assertFalse(verifier.matches("id.secret", HmacRefreshTokenVerifier.PREFIX + "not base64!"));
+        assertFalse(verifier.matches("id.secret", HmacRefreshTokenVerifier.PREFIX));
+    }
+
+    @Test
+    void a_different_key_does_not_verify() {
+        HmacRefreshTokenVerifier other = new HmacRefreshTokenVerifier(random(32), hashing);
+        assertFalse(other.matches("id.secret", verifier.hash("id.secret")));
+        assertThrows(IllegalArgumentException.class, () -> new HmacRefreshTokenVerifier(random(16), hashing));
+    }
+
+    @Test
+    void password_encoder_hashes_from_before_the_switch_still_verify() {
+        String legacy = argon2.encode("id.secret");
+        assertTrue(HmacRefreshTokenVerifier.isLegacy(legacy));
+        assertTrue(verifier.matches("id.secret", legacy));
+        assertFalse(verifier.matches("id.other", legacy));
+        assertFalse(new HmacRefreshTokenVerifier(key, null).matches("id.secret", legacy));
+    }
+
+    @Test
+    void derived_keys_depend_on_purpose() {
+        byte[] master = random(32);
+        assertArrayEquals(HmacKeys.derive(master, "a"), HmacKeys.derive(master, "a"));
+        assertFalse(Arrays.equals(HmacKeys.derive(master, "a"), HmacKeys.derive(master, "b")));
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,87 @@
+package nl.mallepetrus.rptv.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PasswordHashingExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    /** Stands in for Argon2: blocks until released, so the pool can be filled deterministically. */
+    private final PasswordEncoder slow = new PasswordEncoder() {
+        @Override
+        public String encode(CharSequence raw) {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "hash:" + raw;
+        }
+
+        @Override
+        public boolean matches(CharSequence raw, String encoded) {
+            return encode(raw).equals(encoded);
+        }
+    };
+
+    @Test
+    void hashes_run_on_the_pool_and_are_timed() {
+        release.countDown();
+        PasswordHashingExecutor hashing = executor(1, 1, Duration.ofSeconds(5));
+
+        assertEquals("hash:pw", hashing.encode("pw"));
+        assertTrue(hashing.matches("pw", "hash:pw"));
+        assertEquals(1, registry.get("rptv.auth.hash").tag("op", "encode").timer().count());
+        assertEquals(1, registry.get("rptv.auth.hash").tag("op", "matches").timer().count());
+    }
+
+    @Test
+    void a_full_queue_is_refused_with_429_without_waiting() throws Exception {
+        PasswordHashingExecutor hashing = executor(1, 1, Duration.ofSeconds(10));
+        CompletableFuture<String> running = CompletableFuture.supplyAsync(() -> hashing.encode("a"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> queued = CompletableFuture.supplyAsync(() -> hashing.encode("b"));
+        while (registry.get("rptv.auth.hash.queue").gauge().value() < 1) Thread.onSpinWait();
+
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> hashing.encode("c"));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, e.getStatusCode());
+        assertEquals(1, registry.get("rptv.auth.hash.rejected").tag("reason", "queue_full").counter().count());
+
+        release.countDown();
+        assertEquals("hash:a", running.get(5, TimeUnit.SECONDS));
+        assertEquals("hash:b", queued.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void a_hash_that_waits_too_long_gets_503() {
+        PasswordHashingExecutor hashing = executor(1, 4, Duration.ofMillis(100));
+        CompletableFuture.runAsync(() -> hashing.encode("a"));
+
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> hashing.encode("b"));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+        release.countDown();
+    }
+
+    private PasswordHashingExecutor executor(int threads, int queue, Duration timeout) {
+        AppProps.AuthProps props = new AppProps.AuthProps();
+        props.setHashThreads(threads);
+        props.setHashQueueCapacity(queue);
+        props.setHashTimeout(timeout);
+        return new PasswordHashingExecutor(slow, props, registry);
+    }
+}
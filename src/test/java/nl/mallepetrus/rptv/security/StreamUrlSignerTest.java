@@ -0,0 +1,93 @@
+package nl.mallepetrus.rptv.security;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamUrlSignerTest {
+
+    private static final Instant NOW = Instant.parse("2026-01-01T12:00:00Z");
+    private final byte[] key = new byte[32];
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final StreamUrlSigner signer = new StreamUrlSigner(key, Duration.ofHours(1),
+            Clock.fixed(NOW, ZoneOffset.UTC), registry);
+    private final String path = "/proxy/" + UUID.randomUUID() + "/live/123.m3u8";
+
+    @Test
+    void signature_binds_path_and_expiry() {
+        String url = signer.sign(path);
+        assertTrue(url.startsWith(path + "?exp=" + NOW.plusSeconds(3600).getEpochSecond() + "&sig="));
+        String exp = query(url, "exp");
+        String sig = query(url, "sig");
+
+        assertEquals(StreamUrlSigner.Result.VALID, signer.verify(path, exp, sig));
+        assertEquals(StreamUrlSigner.Result.INVALID, signer.verify(path.replace("123", "124"), exp, sig));
+        assertEquals(StreamUrlSigner.Result.INVALID, signer.verify(path, String.valueOf(Long.parseLong(exp) + 1), sig));
+        assertEquals(StreamUrlSigner.Result.INVALID, signer.verify(path, exp, "!!"));
+        assertEquals(StreamUrlSigner.Result.INVALID, signer.verify(path, null, sig));
+        key[0] = 1; // the signer keeps its own copy
+        assertEquals(StreamUrlSigner.Result.VALID, signer.verify(path, exp, sig));
+    }
+
+    @Test
+    void expired_urls_are_refused() {
+        String url = signer.sign(path, NOW.minusSeconds(1));
+        assertEquals(StreamUrlSigner.Result.EXPIRED, signer.verify(path, query(url, "exp"), query(url, "sig")));
+        assertEquals(1, registry.get("rptv.stream_urls.rejected").tag("reason", "expired").counter().count());
+    }
+
+    @Test
+    void filter_authenticates_signed_proxy_requests_for_their_account_only() throws Exception {
+        SignedStreamUrlFilter filter = new SignedStreamUrlFilter(signer);
+        String url = signer.sign(path);
+        AtomicReference<Authentication> seen = new AtomicReference<>();
+        MockFilterChain chain = new MockFilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                seen.set(SecurityContextHolder.getContext().getAuthentication());
+            }
+        };
+        filter.doFilter(request(path, url), new MockHttpServletResponse(), chain);
+        SignedStreamAuthentication auth = assertInstanceOf(SignedStreamAuthentication.class, seen.get());
+        assertEquals(StreamUrlSigner.accountOf(path), auth.getAccountId());
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+
+        MockHttpServletResponse forged = new MockHttpServletResponse();
+        filter.doFilter(request(path.replace("123", "999"), url), forged, new MockFilterChain());
+        assertEquals(403, forged.getStatus());
+
+        // no signature: left to the bearer token filter
+        MockFilterChain unsigned = new MockFilterChain();
+        filter.doFilter(new MockHttpServletRequest("GET", path), new MockHttpServletResponse(), unsigned);
+        assertNotNull(unsigned.getRequest());
+    }
+
+    private static MockHttpServletRequest request(String path, String signedUrl) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        request.setParameter("exp", query(signedUrl, "exp"));
+        request.setParameter("sig", query(signedUrl, "sig"));
+        return request;
+    }
+
+    private static String query(String url, String name) {
+        for (String pair : url.substring(url.indexOf('?') + 1).split("&")) {
+            if (pair.startsWith(name + "=")) return pair.substring(name.length() + 1);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,57 @@
+package nl.mallepetrus.rptv.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.domain.User;
+import nl.mallepetrus.rptv.repository.UserRepository;
+import nl.mallepetrus.rptv.security.PasswordHashingExecutor;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.crypto.argon2.Argon2PasswordEncoder;
+
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class UserServiceTest {
+
+    private final Argon2PasswordEncoder current = new Argon2PasswordEncoder(16, 32, 1, 2048, 2);
+    private final Argon2PasswordEncoder outdated = new Argon2PasswordEncoder(16, 32, 1, 1024, 1);
+    private final UserRepository repo = mock(UserRepository.class);
+    private final UserService userService = new UserService(repo,
+            new PasswordHashingExecutor(current, new AppProps.AuthProps(), new SimpleMeterRegistry()),
+            new SimpleMeterRegistry());
+
+    @Test
+    void a_login_with_an_outdated_hash_stores_a_current_one() {
+        User user = user(outdated.encode("pw"));
+        when(repo.findById(user.getId())).thenReturn(Optional.of(user));
+
+        assertTrue(userService.matchesPassword(user, "pw"));
+
+        verify(repo, timeout(5_000)).save(user);
+        assertFalse(current.upgradeEncoding(user.getPasswordHash()));
+        assertTrue(current.matches("pw", user.getPasswordHash()));
+    }
+
+    @Test
+    void current_hashes_and_wrong_passwords_are_left_alone() throws Exception {
+        User upToDate = user(current.encode("pw"));
+        User stale = user(outdated.encode("pw"));
+
+        assertTrue(userService.matchesPassword(upToDate, "pw"));
+        assertFalse(userService.matchesPassword(stale, "wrong"));
+
+        Thread.sleep(200);
+        verify(repo, never()).save(any());
+    }
+
+    private static User user(String passwordHash) {
+        User user = new User();
+        user.setId(UUID.randomUUID());
+        user.setPasswordHash(passwordHash);
+        return user;
+    }
+}
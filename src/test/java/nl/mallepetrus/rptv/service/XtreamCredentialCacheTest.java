@@ -0,0 +1,72 @@
+package nl.mallepetrus.rptv.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.crypto.CryptoService;
+import nl.mallepetrus.rptv.domain.User;
+import nl.mallepetrus.rptv.domain.XtreamAccount;
+import nl.mallepetrus.rptv.proxy.XtreamUpstream;
+import nl.mallepetrus.rptv.repository.XtreamAccountRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class XtreamCredentialCacheTest {
+
+    private final XtreamAccountRepository repo = mock(XtreamAccountRepository.class);
+    private final CryptoService crypto = mock(CryptoService.class);
+    private final UUID owner = UUID.randomUUID();
+    private final UUID accountId = UUID.randomUUID();
+    private XtreamCredentialCache cache;
+
+    @BeforeEach
+    void setUp() {
+        User user = new User();
+        user.setId(owner);
+        XtreamAccount xa = new XtreamAccount();
+        xa.setId(accountId);
+        xa.setUser(user);
+        xa.setApiUrl("http://provider/");
+        xa.setUsernameEnc("enc:alice");
+        xa.setPasswordEnc("enc:secret");
+        when(repo.findById(accountId)).thenReturn(Optional.of(xa));
+        when(crypto.decrypt(anyString())).thenAnswer(inv -> inv.<String>getArgument(0).substring(4));
+        cache = new XtreamCredentialCache(repo, crypto, new AppProps.ProxyProps(), new SimpleMeterRegistry());
+    }
+
+    @Test
+    void repeated_lookups_decrypt_once() {
+        XtreamUpstream first = cache.resolveOwned(owner, accountId);
+        XtreamUpstream second = cache.resolveOwned(owner, accountId);
+
+        assertEquals(new XtreamUpstream("http://provider/", "alice", "secret"), first);
+        assertEquals(first, second);
+        verify(repo, times(1)).findById(accountId);
+        verify(crypto, times(2)).decrypt(anyString());
+    }
+
+    @Test
+    void other_users_and_unknown_accounts_get_404() {
+        assertEquals(404, assertThrows(ResponseStatusException.class,
+                () -> cache.resolveOwned(UUID.randomUUID(), accountId)).getStatusCode().value());
+        assertEquals(404, assertThrows(ResponseStatusException.class,
+                () -> cache.resolveOwned(owner, UUID.randomUUID())).getStatusCode().value());
+    }
+
+    @Test
+    void invalidate_reloads_and_leaves_handed_out_upstreams_intact() {
+        XtreamUpstream before = cache.resolveOwned(owner, accountId);
+        cache.invalidate(accountId);
+
+        assertEquals("secret", before.password());
+        assertEquals("secret", cache.resolveOwned(owner, accountId).password());
+        verify(repo, times(2)).findById(accountId);
+    }
+}
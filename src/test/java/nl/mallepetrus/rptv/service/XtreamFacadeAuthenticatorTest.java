@@ -0,0 +1,105 @@
+package nl.mallepetrus.rptv.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.mallepetrus.rptv.config.AppProps;
+import nl.mallepetrus.rptv.domain.User;
+import nl.mallepetrus.rptv.domain.XtreamAccount;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+
+public class XtreamFacadeAuthenticatorTest {
+
+    private final UserService users = mock(UserService.class);
+    private final XtreamAccountService accounts = mock(XtreamAccountService.class);
+    private final XtreamFacadeAuthenticator authenticator =
+            new XtreamFacadeAuthenticator(users, accounts, new AppProps.ProxyProps(), new SimpleMeterRegistry());
+    private final User alice = new User();
+    private final XtreamAccount first = account(Instant.parse("2024-01-01T00:00:00Z"));
+    private final XtreamAccount second = account(Instant.parse("2024-02-01T00:00:00Z"));
+
+    @BeforeEach
+    void setUp() {
+        alice.setId(UUID.randomUUID());
+        alice.setEmail("alice@ex.com");
+        alice.setPasswordHash("hash-1");
+        when(users.findByEmail("alice@ex.com")).thenReturn(Optional.of(alice));
+        when(users.getById(alice.getId())).thenReturn(alice);
+        when(users.matchesPassword(alice, "pw")).thenReturn(true);
+        when(accounts.listFor(alice.getId())).thenReturn(List.of(second, first));
+    }
+
+    @Test
+    void repeated_logins_skip_the_password_hash() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(first.getId(), authenticator.authenticate("Alice@ex.com", "pw").accountId());
+        }
+        verify(users, times(1)).matchesPassword(any(), anyString());
+
+        assertEquals(second.getId(), authenticator.authenticate("alice@ex.com~2", "pw").accountId());
+        assertThrows(ResponseStatusException.class, () -> authenticator.authenticate("alice@ex.com~3", "pw"));
+        assertThrows(ResponseStatusException.class, () -> authenticator.authenticate("alice@ex.com~x", "pw"));
+    }
+
+    @Test
+    void a_tilde_is_only_an_account_suffix_when_digits_follow_it_after_the_email() {
+        User tilde = new User();
+        tilde.setId(UUID.randomUUID());
+        tilde.setEmail("a~b@x.nl");
+        when(users.findByEmail("a~b@x.nl")).thenReturn(Optional.of(tilde));
+        when(users.getById(tilde.getId())).thenReturn(tilde);
+        when(users.matchesPassword(tilde, "pw")).thenReturn(true);
+        when(accounts.listFor(tilde.getId())).thenReturn(List.of(second, first));
+
+        assertEquals(first.getId(), authenticator.authenticate("a~b@x.nl", "pw").accountId());
+        assertEquals(second.getId(), authenticator.authenticate("a~b@x.nl~2", "pw").accountId());
+
+        assertEquals(-1, XtreamFacadeAuthenticator.accountSuffix("a~1"));
+        assertEquals(-1, XtreamFacadeAuthenticator.accountSuffix("a@x.nl~"));
+        assertEquals(-1, XtreamFacadeAuthenticator.accountSuffix("a@x.nl~2b"));
+        assertEquals(6, XtreamFacadeAuthenticator.accountSuffix("a@x.nl~12"));
+    }
+
+    @Test
+    void wrong_passwords_are_checked_every_time() {
+        for (int i = 0; i < 3; i++) {
+            assertThrows(ResponseStatusException.class, () -> authenticator.authenticate("alice@ex.com", "nope"));
+        }
+        verify(users, times(3)).matchesPassword(alice, "nope");
+        assertThrows(ResponseStatusException.class, () -> authenticator.authenticate("", "pw"));
+    }
+
+    @Test
+    void a_changed_password_or_removed_user_revokes_cached_logins() {
+        authenticator.authenticate("alice@ex.com", "pw");
+
+        alice.setPasswordHash("hash-2"); // what getById returns after UserService.evict
+        when(users.matchesPassword(alice, "pw")).thenReturn(false);
+        assertThrows(ResponseStatusException.class, () -> authenticator.authenticate("alice@ex.com", "pw"));
+
+        when(users.matchesPassword(alice, "pw")).thenReturn(true);
+        authenticator.authenticate("alice@ex.com", "pw");
+        when(users.getById(alice.getId())).thenThrow(new ResponseStatusException(NOT_FOUND));
+        when(users.findByEmail("alice@ex.com")).thenReturn(Optional.empty());
+        assertThrows(ResponseStatusException.class, () -> authenticator.authenticate("alice@ex.com", "pw"));
+    }
+
+    private static XtreamAccount account(Instant createdAt) {
+        XtreamAccount account = mock(XtreamAccount.class);
+        UUID id = UUID.randomUUID();
+        when(account.getId()).thenReturn(id);
+        when(account.getCreatedAt()).thenReturn(createdAt);
+        return account;
+    }
+}
@@ -0,0 +1,25 @@
+package nl.mallepetrus.rptv.web;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class XtreamFacadeControllerTest {
+
+    @Test
+    void gzip_is_accepted_unless_absent_or_refused_with_q_zero() {
+        assertFalse(XtreamFacadeController.acceptsGzip(null));
+        assertFalse(XtreamFacadeController.acceptsGzip("deflate, br"));
+        assertTrue(XtreamFacadeController.acceptsGzip("gzip, deflate"));
+        assertTrue(XtreamFacadeController.acceptsGzip("br;q=1.0, GZIP;q=0.5"));
+        assertTrue(XtreamFacadeController.acceptsGzip("*"));
+        assertFalse(XtreamFacadeController.acceptsGzip("gzip;q=0"));
+        assertFalse(XtreamFacadeController.acceptsGzip("gzip; q=0.000"));
+    }
+
+    @Test
+    void a_malformed_q_value_is_read_as_absent() {
+        assertTrue(XtreamFacadeController.acceptsGzip("gzip;q=high"));
+        assertTrue(XtreamFacadeController.acceptsGzip("gzip;q="));
+    }
+}